@@ -0,0 +1,27 @@
+package benchmark;
+
+/**
+ * Benchmark
+ *
+ * One measured operation, run by BenchmarkRunner for every combination of
+ * agent count and density. setUp builds the world (outside the measurement),
+ * operation is then called repeatedly and timed.
+ *
+ * @author michaellees
+ */
+public interface Benchmark {
+
+    String getName();
+
+    void setUp(int agents, double density) throws Exception;
+
+    /**
+     * The measured operation
+     *
+     * @return number of calls of the benchmarked method it made (e.g. one per
+     * agent), to report the time per call as well
+     */
+    int operation();
+
+    void tearDown();
+}
@@ -0,0 +1,211 @@
+package benchmark;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * BenchmarkRunner
+ *
+ * Runs the benchmarks for every combination of agent count and density and
+ * prints one line per combination. Each combination gets a number of warmup
+ * iterations (so that the JIT has compiled the hot code) followed by the
+ * measured ones; an iteration calls the operation for at least the given
+ * time. Reported are the mean time per operation and per call (e.g. per
+ * agent) with the spread over the iterations, the bytes allocated per
+ * operation and the garbage collections during the measured iterations.
+ *
+ * Arguments (all optional):
+ *
+ * <pre>
+ * -benchmarks velocity-RVO2,velocity-SocialForce,velocity-RVO1Standard,sense,sense-clustered,tick
+ *                  (also socialforce-population,
+ *                  tick-&lt;Model&gt; and scenario-&lt;file in xml-resources/scenarios&gt;)
+ * -agents 100,400,1600
+ * -density 0.5,2
+ * -warmup 5 -iterations 10 -time 500 (milliseconds per iteration)
+ * -properties xml-resources/CrowdProperties/CW2011PaperSettings.xml
+ * </pre>
+ *
+ * Run it with "ant benchmark", passing the arguments in benchmark.args.
+ *
+ * @author michaellees
+ */
+public class BenchmarkRunner {
+
+    private String[] benchmarks = {"velocity-RVO2", "velocity-SocialForce", "velocity-RVO1Standard",
+        "sense", "sense-clustered", "tick"};
+    private int[] agentCounts = {100, 400, 1600};
+    private double[] densities = {0.5, 2};
+    private int warmupIterations = 5;
+    private int measuredIterations = 10;
+    private long iterationNanos = 500 * 1000000L;
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            runner.parse(args[i], args[i + 1]);
+        }
+        runner.run();
+        System.exit(0);
+    }
+
+    private void parse(String option, String value) {
+        if (option.equals("-benchmarks")) {
+            benchmarks = value.split(",");
+        } else if (option.equals("-agents")) {
+            String[] values = value.split(",");
+            agentCounts = new int[values.length];
+            for (int i = 0; i < values.length; i++) {
+                agentCounts[i] = Integer.parseInt(values[i].trim());
+            }
+        } else if (option.equals("-density")) {
+            String[] values = value.split(",");
+            densities = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                densities[i] = Double.parseDouble(values[i].trim());
+            }
+        } else if (option.equals("-warmup")) {
+            warmupIterations = Integer.parseInt(value);
+        } else if (option.equals("-iterations")) {
+            measuredIterations = Integer.parseInt(value);
+        } else if (option.equals("-time")) {
+            iterationNanos = Long.parseLong(value) * 1000000L;
+        } else if (option.equals("-properties")) {
+            BenchmarkWorld.setPropertiesFile(value);
+        } else {
+            throw new IllegalArgumentException("Unknown option " + option);
+        }
+    }
+
+    private static Benchmark create(String name) {
+        if (name.startsWith("velocity-")) {
+            return new VelocityBenchmark(name.substring("velocity-".length()));
+        } else if (name.equals("sense")) {
+            return new SensingBenchmark(false);
+        } else if (name.equals("sense-clustered")) {
+            return new SensingBenchmark(true);
+        } else if (name.equals("socialforce-population")) {
+            return new SocialForcePopulationBenchmark();
+        } else if (name.equals("tick")) {
+            return new TickBenchmark(null, null);
+        } else if (name.startsWith("tick-")) {
+            return new TickBenchmark(name.substring("tick-".length()), null);
+        } else if (name.startsWith("scenario-")) {
+            return new TickBenchmark(null, name.substring("scenario-".length()));
+        }
+        throw new IllegalArgumentException("Unknown benchmark " + name);
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format(Locale.US, "%-24s %7s %7s %14s %10s %12s %12s %6s %8s",
+                "benchmark", "agents", "density", "ns/op", "+-%", "ns/call", "bytes/op", "gcs", "gc ms"));
+        for (String name : benchmarks) {
+            Benchmark benchmark = create(name.trim());
+            for (int agents : agentCounts) {
+                for (double density : densities) {
+                    benchmark.setUp(agents, density);
+                    try {
+                        measure(benchmark, agents, density);
+                    } finally {
+                        benchmark.tearDown();
+                    }
+                    if (name.startsWith("scenario-")) {
+                        /*
+                         * the scenario decides the agents and density
+                         */
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private void measure(Benchmark benchmark, int agents, double density) {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(benchmark);
+        }
+        System.gc();
+
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long gcCountBefore = gcCount();
+        final long gcTimeBefore = gcTime();
+        final long allocatedBefore = allocatedBytes(threads);
+        double[] nanosPerOperation = new double[measuredIterations];
+        long operations = 0;
+        long calls = 0;
+        long nanos = 0;
+        for (int i = 0; i < measuredIterations; i++) {
+            long[] result = iteration(benchmark);
+            nanosPerOperation[i] = (double) result[2] / result[0];
+            operations += result[0];
+            calls += result[1];
+            nanos += result[2];
+        }
+        final long allocated = allocatedBytes(threads) - allocatedBefore;
+
+        final double mean = (double) nanos / operations;
+        double variance = 0;
+        for (double value : nanosPerOperation) {
+            variance += (value - mean) * (value - mean);
+        }
+        final double spread = measuredIterations > 1
+                ? 100 * Math.sqrt(variance / (measuredIterations - 1)) / mean : 0;
+        System.out.println(String.format(Locale.US, "%-24s %7d %7.2f %14.1f %10.1f %12.1f %12s %6d %8d",
+                benchmark.getName(), agents, density, mean, spread, (double) nanos / calls,
+                allocatedBefore < 0 ? "n/a" : String.valueOf(allocated / operations),
+                gcCount() - gcCountBefore, gcTime() - gcTimeBefore));
+    }
+
+    /**
+     * Calls the operation until the iteration time is up
+     *
+     * @return operations, calls and nanoseconds
+     */
+    private long[] iteration(Benchmark benchmark) {
+        long operations = 0;
+        long calls = 0;
+        final long start = System.nanoTime();
+        long now;
+        do {
+            calls += benchmark.operation();
+            operations++;
+            now = System.nanoTime();
+        } while (now - start < iterationNanos);
+        return new long[]{operations, Math.max(1, calls), now - start};
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, collector.getCollectionTime());
+        }
+        return time;
+    }
+
+    /**
+     * Bytes allocated by this thread so far, or -1 if the JVM can't tell. The
+     * allocations of other threads (e.g. the SenseThink pool) are not
+     * included.
+     */
+    private static long allocatedBytes(ThreadMXBean threads) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
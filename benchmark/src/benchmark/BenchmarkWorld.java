@@ -0,0 +1,114 @@
+package benchmark;
+
+import agent.RVOAgent;
+import app.PropertySet.Model;
+import app.RVOModel;
+import app.SimulationConfig;
+import app.params.SimulationParameters;
+import environment.geography.Obstacle;
+import environment.xml.XMLScenarioManager;
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import javax.vecmath.Point2d;
+import motionPlanners.socialforce.SocialForce;
+
+/**
+ * BenchmarkWorld
+ *
+ * Builds the simulations the benchmarks run on, from the properties file the
+ * runner was given (CW2011PaperSettings by default) with the model and the
+ * other settings of the benchmark applied on top.
+ *
+ * Synthetic worlds place the agents on a jittered grid in a square whose side
+ * gives the requested density (agents per square metre), each heading for the
+ * point opposite it through the centre, so all the agents cross in the
+ * middle. Scenario worlds load a scenario from xml-resources/scenarios as a
+ * normal run does.
+ *
+ * @author michaellees
+ */
+public final class BenchmarkWorld {
+
+    public static final String SCENARIO_FOLDER = "xml-resources" + File.separatorChar
+            + "scenarios" + File.separatorChar;
+    private static String propertiesFile = "xml-resources" + File.separatorChar
+            + "CrowdProperties" + File.separatorChar + "CW2011PaperSettings.xml";
+    private static final long SEED = 10;
+
+    private BenchmarkWorld() {
+    }
+
+    static void setPropertiesFile(String file) {
+        propertiesFile = file;
+    }
+
+    /**
+     * Fresh copy of the parameters of the properties file, with tracking and
+     * devices switched off
+     */
+    public static SimulationParameters loadParameters() throws Exception {
+        SimulationParameters params = (SimulationParameters) XMLScenarioManager.instance("app.params").unmarshal(propertiesFile);
+        params.setTrackData(false);
+        params.setDeviceHoldingProbability(0.0);
+        return params;
+    }
+
+    /**
+     * Starts a simulation with agents at the given density, nothing stepped
+     * yet
+     */
+    public static RVOModel synthetic(SimulationParameters params, int agents, double density) {
+        final double side = Math.sqrt(agents / density);
+        final int worldSize = (int) Math.ceil(side) + 2;
+        params.setInitialiseFromXML(false);
+        params.setWorldXSize(worldSize);
+        params.setWorldYSize(worldSize);
+        SimulationConfig config = new SimulationConfig(params, SCENARIO_FOLDER);
+
+        RVOModel model = new RVOModel(SEED, config);
+        model.start();
+        if (config.getModel() == Model.SocialForce) {
+            List<Obstacle> noObstacles = Collections.emptyList();
+            ((SocialForce) model.getSharedVelocityCalculator()).initializeObstacleSet(noObstacles, worldSize, worldSize,
+                    config.isDeterministic());
+        }
+
+        final int perSide = (int) Math.ceil(Math.sqrt(agents));
+        final double cell = side / perSide;
+        final double jitter = Math.max(0, cell / 2 - config.getAgentRadius());
+        final double centre = 1 + side / 2;
+        for (int i = 0; i < agents; i++) {
+            final double x = 1 + (i % perSide + 0.5) * cell + (model.random.nextDouble() * 2 - 1) * jitter;
+            final double y = 1 + (i / perSide + 0.5) * cell + (model.random.nextDouble() * 2 - 1) * jitter;
+            RVOAgent agent = new RVOAgent(new Point2d(x, y), new Point2d(2 * centre - x, 2 * centre - y),
+                    model.getRvoSpace());
+            agent.setMaximumSpeed(agent.getPreferredSpeed() * 2.0);
+            model.addNewAgent(agent);
+        }
+        model.scheduleAgents();
+        return model;
+    }
+
+    /**
+     * Starts a simulation of the scenario file (relative to
+     * xml-resources/scenarios), nothing stepped yet
+     */
+    public static RVOModel scenario(SimulationParameters params, String scenario) {
+        params.setInitialiseFromXML(true);
+        params.setFilePath(scenario);
+        RVOModel model = new RVOModel(SEED, new SimulationConfig(params, SCENARIO_FOLDER));
+        model.start();
+        return model;
+    }
+
+    /**
+     * Sets every agent's preferred velocity towards its goal, as the
+     * SenseThink step does before calling the velocity calculator
+     */
+    public static void preparePreferredVelocities(RVOModel model) {
+        for (RVOAgent agent : model.getAgentList()) {
+            agent.setPrefVelocity();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package benchmark;
+
+import agent.RVOAgent;
+import app.RVOModel;
+import app.params.SimulationParameters;
+
+/**
+ * SensingBenchmark
+ *
+ * Time of the spatial queries: senseNeighbours and senseObstacles for every
+ * agent, on the plain RVOSpace or, with clustering, the ClusteredSpace.
+ *
+ * @author michaellees
+ */
+public class SensingBenchmark implements Benchmark {
+
+    private final boolean clustering;
+    private RVOModel world;
+    private RVOAgent[] agents;
+    private long sink;
+
+    public SensingBenchmark(boolean clustering) {
+        this.clustering = clustering;
+    }
+
+    @Override
+    public String getName() {
+        return clustering ? "sense-clustered" : "sense";
+    }
+
+    @Override
+    public void setUp(int numberOfAgents, double density) throws Exception {
+        SimulationParameters params = BenchmarkWorld.loadParameters();
+        params.setUseClustering(clustering);
+        world = BenchmarkWorld.synthetic(params, numberOfAgents, density);
+        agents = world.getAgentList().toArray(new RVOAgent[0]);
+    }
+
+    @Override
+    public int operation() {
+        for (RVOAgent agent : agents) {
+            sink += world.getRvoSpace().senseNeighbours(agent).numObjs;
+            sink += world.getRvoSpace().senseObstacles(agent).numObjs;
+        }
+        return agents.length;
+    }
+
+    @Override
+    public void tearDown() {
+        if (sink == Long.MIN_VALUE) {
+            System.out.println(sink);
+        }
+        world.finish();
+        world = null;
+        agents = null;
+    }
+}
@@ -0,0 +1,82 @@
+package benchmark;
+
+import agent.RVOAgent;
+import app.RVOModel;
+import app.params.SimulationParameters;
+import java.util.List;
+import motionPlanners.socialforce.SocialForceKernel;
+
+/**
+ * SocialForcePopulationBenchmark
+ *
+ * Time of the social force interaction of the whole population in one pass
+ * (SocialForceKernel.populationForces), over the same range senseNeighbours
+ * uses, to compare with velocity-SocialForce.
+ *
+ * @author steven
+ */
+public class SocialForcePopulationBenchmark implements Benchmark {
+
+    private final SocialForceKernel kernel = new SocialForceKernel();
+    private int n;
+    private double[] x;
+    private double[] y;
+    private double[] vx;
+    private double[] vy;
+    private double[] r;
+    private double[] fx;
+    private double[] fy;
+    private double range;
+    private double width;
+    private double height;
+    private double sink;
+
+    @Override
+    public String getName() {
+        return "socialforce-population";
+    }
+
+    @Override
+    public void setUp(int numberOfAgents, double density) throws Exception {
+        SimulationParameters params = BenchmarkWorld.loadParameters();
+        params.setModel("SocialForce");
+        RVOModel world = BenchmarkWorld.synthetic(params, numberOfAgents, density);
+        BenchmarkWorld.preparePreferredVelocities(world);
+        List<RVOAgent> agents = world.getAgentList();
+        n = agents.size();
+        x = new double[n];
+        y = new double[n];
+        vx = new double[n];
+        vy = new double[n];
+        r = new double[n];
+        fx = new double[n];
+        fy = new double[n];
+        for (int i = 0; i < n; i++) {
+            RVOAgent agent = agents.get(i);
+            x[i] = agent.getX();
+            y[i] = agent.getY();
+            vx[i] = agent.getPrefVelocity().x;
+            vy[i] = agent.getPrefVelocity().y;
+            r[i] = agent.getRadius();
+        }
+        range = world.getConfig().getSensorRange() * world.getConfig().getAgentRadius();
+        width = world.getConfig().getWorldXSize();
+        height = world.getConfig().getWorldYSize();
+        kernel.setDeterministic(world.getConfig().isDeterministic());
+        world.finish();
+    }
+
+    @Override
+    public int operation() {
+        kernel.populationForces(n, x, y, vx, vy, r, range, width, height, fx, fy);
+        sink += fx[0];
+        return n;
+    }
+
+    @Override
+    public void tearDown() {
+        if (sink == Double.MIN_VALUE) {
+            System.out.println(sink);
+        }
+    }
+}
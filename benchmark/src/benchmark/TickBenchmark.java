@@ -0,0 +1,78 @@
+package benchmark;
+
+import app.RVOModel;
+import app.params.SimulationParameters;
+
+/**
+ * TickBenchmark
+ *
+ * Time of a whole step of the schedule (sensing, planning, moving and the
+ * bookkeeping) with the model of the properties file, or the given one. When
+ * the simulation ends, i.e. every agent reached its goal, a new one is set up
+ * so that the agents keep interacting.
+ *
+ * @author michaellees
+ */
+public class TickBenchmark implements Benchmark {
+
+    private final String model;
+    private final String scenario;
+    private int numberOfAgents;
+    private double density;
+    private RVOModel world;
+
+    /**
+     * @param model name of a PropertySet.Model, or null for the model of the
+     * properties file
+     * @param scenario scenario file in xml-resources/scenarios, or null for
+     * the synthetic world
+     */
+    public TickBenchmark(String model, String scenario) {
+        this.model = model;
+        this.scenario = scenario;
+    }
+
+    @Override
+    public String getName() {
+        return "tick" + (model == null ? "" : "-" + model)
+                + (scenario == null ? "" : "-" + scenario);
+    }
+
+    @Override
+    public void setUp(int numberOfAgents, double density) throws Exception {
+        this.numberOfAgents = numberOfAgents;
+        this.density = density;
+        world = newWorld();
+    }
+
+    private RVOModel newWorld() throws Exception {
+        SimulationParameters params = BenchmarkWorld.loadParameters();
+        if (model != null) {
+            params.setModel(model);
+        }
+        if (scenario != null) {
+            return BenchmarkWorld.scenario(params, scenario);
+        }
+        return BenchmarkWorld.synthetic(params, numberOfAgents, density);
+    }
+
+    @Override
+    public int operation() {
+        if (!world.schedule.step(world)) {
+            world.finish();
+            try {
+                world = newWorld();
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+            world.schedule.step(world);
+        }
+        return world.getAgentList().size();
+    }
+
+    @Override
+    public void tearDown() {
+        world.finish();
+        world = null;
+    }
+}
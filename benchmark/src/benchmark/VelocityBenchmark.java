@@ -0,0 +1,94 @@
+package benchmark;
+
+import agent.RVOAgent;
+import app.RVOModel;
+import app.params.SimulationParameters;
+import java.util.List;
+import javax.vecmath.Vector2d;
+import motionPlanners.VelocityCalculator;
+import sim.util.Bag;
+
+/**
+ * VelocityBenchmark
+ *
+ * Time of the motion planner alone: one calculateVelocity per agent, with the
+ * neighbours, obstacles and preferred velocities sensed once in setUp, so
+ * the world does not change between operations.
+ *
+ * @author michaellees
+ */
+public class VelocityBenchmark implements Benchmark {
+
+    private final String model;
+    private RVOModel world;
+    private RVOAgent[] agents;
+    private VelocityCalculator[] calculators;
+    private Bag[] neighbours;
+    private Bag[] obstacles;
+    private Vector2d[] preferredVelocities;
+    private double timeStep;
+    /**
+     * Sum of the results, so that the calls can't be optimised away
+     */
+    private double sink;
+
+    /**
+     * @param model name of a PropertySet.Model
+     */
+    public VelocityBenchmark(String model) {
+        this.model = model;
+    }
+
+    @Override
+    public String getName() {
+        return "velocity-" + model;
+    }
+
+    @Override
+    public void setUp(int numberOfAgents, double density) throws Exception {
+        SimulationParameters params = BenchmarkWorld.loadParameters();
+        params.setModel(model);
+        params.setUseClustering(false);
+        world = BenchmarkWorld.synthetic(params, numberOfAgents, density);
+        BenchmarkWorld.preparePreferredVelocities(world);
+        timeStep = world.getConfig().getTimeStep();
+
+        List<RVOAgent> agentList = world.getAgentList();
+        final int n = agentList.size();
+        agents = agentList.toArray(new RVOAgent[n]);
+        calculators = new VelocityCalculator[n];
+        neighbours = new Bag[n];
+        obstacles = new Bag[n];
+        preferredVelocities = new Vector2d[n];
+        for (int i = 0; i < n; i++) {
+            calculators[i] = agents[i].getVelocityCalculator();
+            neighbours[i] = new Bag(world.getRvoSpace().senseNeighbours(agents[i]));
+            obstacles[i] = new Bag(world.getRvoSpace().senseObstacles(agents[i]));
+            preferredVelocities[i] = new Vector2d(agents[i].getPrefVelocity());
+        }
+    }
+
+    @Override
+    public int operation() {
+        for (int i = 0; i < agents.length; i++) {
+            Vector2d velocity = calculators[i].calculateVelocity(agents[i], neighbours[i], obstacles[i],
+                    preferredVelocities[i], timeStep);
+            sink += velocity.x + velocity.y;
+        }
+        return agents.length;
+    }
+
+    @Override
+    public void tearDown() {
+        if (sink == Double.MIN_VALUE) {
+            System.out.println(sink);
+        }
+        world.finish();
+        world = null;
+        agents = null;
+        calculators = null;
+        neighbours = null;
+        obstacles = null;
+        preferredVelocities = null;
+    }
+}
@@ -26,8 +26,6 @@ import sim.engine.Steppable;
  * @author Vaisagh
  */
 public class AgentGenerator implements Steppable {
-    private static boolean finished = true;
-
     int generatorsPerLine;
     Point2d startPoint;
     Point2d endPoint;
@@ -43,7 +41,7 @@ public class AgentGenerator implements Steppable {
     private Vector2d preferedDirection;
 
     public AgentGenerator(AgentLine agentLine, RVOModel model, HashMultimap<Integer, Point2d> actualRoadMap) {
-        finished = false;
+        model.setGenerationFinished(false);
         maxSpeed = agentLine.getMaxSpeed();
         minSpeed = agentLine.getMinSpeed();
         meanSpeed = agentLine.getMeanSpeed();
@@ -63,12 +61,12 @@ public class AgentGenerator implements Steppable {
 
 
 
-        generationPoints = getGoalPoints(RVOAgent.RADIUS, generatorsPerLine, startPoint, endPoint);
+        generationPoints = getGoalPoints(model.getConfig().getAgentRadius(), generatorsPerLine, startPoint, endPoint);
         createAgents();
     }
     
     public AgentGenerator(AgentLine agentLine, RVOModel model, Vector2d direction) {
-        finished = false;
+        model.setGenerationFinished(false);
         maxSpeed = agentLine.getMaxSpeed();
         minSpeed = agentLine.getMinSpeed();
         meanSpeed = agentLine.getMeanSpeed();
@@ -90,7 +88,7 @@ public class AgentGenerator implements Steppable {
 
 
 
-        generationPoints = getGoalPoints(RVOAgent.RADIUS, generatorsPerLine, startPoint, endPoint);
+        generationPoints = getGoalPoints(model.getConfig().getAgentRadius(), generatorsPerLine, startPoint, endPoint);
         createAgents();
     }
 
@@ -147,7 +145,7 @@ public class AgentGenerator implements Steppable {
         steps++;
         if (steps > 50) { //TODO : MAke into a variable in property set
             model.getGeneratorStoppable().stop();
-            AgentGenerator.finished = true;
+            model.setGenerationFinished(true);
         }
     }
 
@@ -186,8 +184,4 @@ public class AgentGenerator implements Steppable {
 
         }
     }
-    
-    public static boolean finished(){
-        return AgentGenerator.finished;
-    }
 }
@@ -13,9 +13,9 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.geom.Ellipse2D;
 import java.util.ArrayList;
+import java.util.List;
 import javax.vecmath.Point2d;
 import utility.Line;
-import motionPlanners.rvo2.RVO_2_1;
 import sim.display.GUIState;
 import sim.portrayal.DrawInfo2D;
 import sim.portrayal.Inspector;
@@ -58,6 +58,11 @@ public class AgentPortrayal extends SimplePortrayal2D {
     private float trailLineWidth = 2.5f;
     private float agentLineWidth = 5.0f;
     private boolean showOrcaLines;
+    /**
+     * Copy of the ORCA lines of the last step. Only recorded by RVO2 while
+     * showOrcaLines is set
+     */
+    private List<Line> orcaLines;
     private boolean showVelocity;
     private boolean showPerception;
     private boolean showSTP;
@@ -99,11 +104,10 @@ public class AgentPortrayal extends SimplePortrayal2D {
 
 
         //draw orcaLines for RVO2
-        if (((RVOAgent) this).getVelocityCalculator() instanceof RVO_2_1) {
+        if (orcaLines != null) {
 
-            RVO_2_1 rvo2 = (RVO_2_1) ((RVOAgent) this).getVelocityCalculator();
             if (showOrcaLines) {
-                for (Line l : rvo2.getOrcaLines()) {
+                for (Line l : orcaLines) {
                     Point2d end = l.getEndPoint();
                     Point2d start = l.getStartPoint();
                     end.add(me.getCurrentPosition());
@@ -262,6 +266,14 @@ public class AgentPortrayal extends SimplePortrayal2D {
         showOrcaLines = !showOrcaLines;
     }
 
+    public boolean isShowingOrcaLines() {
+        return showOrcaLines;
+    }
+
+    public void setOrcaLines(List<Line> orcaLines) {
+        this.orcaLines = orcaLines;
+    }
+
     public void togglePerception() {
         showPerception = !showPerception;
     }
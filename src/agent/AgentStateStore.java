@@ -0,0 +1,200 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package agent;
+
+import app.SimulationConfig;
+import java.io.Serializable;
+import java.util.List;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+import utility.PrecisePoint;
+
+/**
+ * Struct-of-arrays storage for the kinematic state of the agents. Position,
+ * velocity, chosen velocity, radius and maximum speed of every attached agent
+ * are kept in primitive columns indexed by the agent's slot, instead of in
+ * PrecisePoint objects that are replaced on every step.
+ *
+ * RVOAgent reads and writes through the store once it is attached to it (see
+ * RVOAgent.attachTo), so the rest of the code is unaffected. Agents that are
+ * never attached, such as the temporary ClusteredAgents, keep using their own
+ * fields.
+ *
+ * Values are stored rounded exactly as PrecisePoint would hold them, so the
+ * trajectories are the same as without the store.
+ *
+ * @author michaellees
+ */
+public strictfp class AgentStateStore implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 64;
+    double[] positionX = new double[INITIAL_CAPACITY];
+    double[] positionY = new double[INITIAL_CAPACITY];
+    double[] velocityX = new double[INITIAL_CAPACITY];
+    double[] velocityY = new double[INITIAL_CAPACITY];
+    double[] chosenVelocityX = new double[INITIAL_CAPACITY];
+    double[] chosenVelocityY = new double[INITIAL_CAPACITY];
+    double[] radius = new double[INITIAL_CAPACITY];
+    double[] maxSpeed = new double[INITIAL_CAPACITY];
+    private RVOAgent[] agents = new RVOAgent[INITIAL_CAPACITY];
+    private int size = 0;
+    private final double timeStep;
+    /**
+     * Size of the random perturbation of the velocities, kept as a float like
+     * RVOAgent does so the perturbation is computed the same way
+     */
+    private final float epsilon;
+    private final boolean deterministic;
+
+    public AgentStateStore(SimulationConfig config) {
+        timeStep = config.getTimeStep();
+        epsilon = config.getEpsilon();
+        deterministic = config.isDeterministic();
+    }
+
+    /**
+     * Reserves a slot for the agent. Called by RVOAgent.attachTo
+     *
+     * @return the agent's slot
+     */
+    int add(RVOAgent agent) {
+        if (size == agents.length) {
+            int capacity = size * 2;
+            positionX = copyOf(positionX, capacity);
+            positionY = copyOf(positionY, capacity);
+            velocityX = copyOf(velocityX, capacity);
+            velocityY = copyOf(velocityY, capacity);
+            chosenVelocityX = copyOf(chosenVelocityX, capacity);
+            chosenVelocityY = copyOf(chosenVelocityY, capacity);
+            radius = copyOf(radius, capacity);
+            maxSpeed = copyOf(maxSpeed, capacity);
+            RVOAgent[] newAgents = new RVOAgent[capacity];
+            System.arraycopy(agents, 0, newAgents, 0, size);
+            agents = newAgents;
+        }
+        agents[size] = agent;
+        return size++;
+    }
+
+    /**
+     * Number of attached agents. Slots run from 0 to size() - 1 in the order
+     * the agents were attached.
+     */
+    public int size() {
+        return size;
+    }
+
+    public RVOAgent getAgent(int slot) {
+        return agents[slot];
+    }
+
+    /**
+     * Copies the current positions of all attached agents, by slot, into the
+     * given arrays, which must hold at least size() elements.
+     */
+    public void copyPositions(double[] xs, double[] ys) {
+        System.arraycopy(positionX, 0, xs, 0, size);
+        System.arraycopy(positionY, 0, ys, 0, size);
+    }
+
+    /**
+     * Copies the current velocities of all attached agents, by slot, into the
+     * given arrays, which must hold at least size() elements.
+     */
+    public void copyVelocities(double[] xs, double[] ys) {
+        System.arraycopy(velocityX, 0, xs, 0, size);
+        System.arraycopy(velocityY, 0, ys, 0, size);
+    }
+
+    /**
+     * Creates the steppable that moves the given agents, which must all be
+     * attached to this store. It replaces a RandomSequence of their Act
+     * steppables.
+     */
+    public Steppable createAct(List<RVOAgent> actingAgents) {
+        int[] slots = new int[actingAgents.size()];
+        for (int i = 0; i < slots.length; i++) {
+            assert actingAgents.get(i).stateStore == this;
+            slots[i] = actingAgents.get(i).slot;
+        }
+        return new Act(slots);
+    }
+
+    private static double[] copyOf(double[] array, int capacity) {
+        double[] copy = new double[capacity];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+
+    /**
+     * Does for all agents what RVOAgent.Act does for one, column by column:
+     * first the velocity of every agent is set to its chosen velocity plus the
+     * small random perturbation, then all positions are advanced in one loop
+     * and finally the agents are moved on the map.
+     *
+     * The agents are shuffled exactly as a RandomSequence shuffles their Act
+     * steppables and the random numbers and map updates are done in that
+     * order, so the random number stream and the order of the agents in the
+     * space are the same as with the per agent steppables.
+     */
+    private class Act implements Steppable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int[] order;
+        private final boolean[] moving;
+        private final double[] nextX;
+        private final double[] nextY;
+
+        Act(int[] slots) {
+            order = slots;
+            moving = new boolean[slots.length];
+            nextX = new double[slots.length];
+            nextY = new double[slots.length];
+        }
+
+        @Override
+        public void step(SimState state) {
+            /*
+             * Same shuffle as RandomSequence.step()
+             */
+            for (int x = order.length - 1; x >= 1; x--) {
+                int rand = state.random.nextInt(x + 1);
+                int temp = order[x];
+                order[x] = order[rand];
+                order[rand] = temp;
+            }
+
+            for (int i = 0; i < order.length; i++) {
+                final int slot = order[i];
+                moving[i] = !agents[slot].isDead();
+                if (moving[i]) {
+                    velocityX[slot] = PrecisePoint.round(chosenVelocityX[slot] + state.random.nextFloat() * epsilon, deterministic);
+                    velocityY[slot] = PrecisePoint.round(chosenVelocityY[slot] + state.random.nextFloat() * epsilon, deterministic);
+                }
+            }
+
+            for (int i = 0; i < order.length; i++) {
+                if (moving[i]) {
+                    final int slot = order[i];
+                    nextX[i] = positionX[slot] + velocityX[slot] * timeStep;
+                    nextY[i] = positionY[slot] + velocityY[slot] * timeStep;
+                    positionX[slot] = PrecisePoint.round(nextX[i], deterministic);
+                    positionY[slot] = PrecisePoint.round(nextY[i], deterministic);
+                }
+            }
+
+            for (int i = 0; i < order.length; i++) {
+                if (moving[i]) {
+                    final RVOAgent agent = agents[order[i]];
+                    agent.positionChanged();
+                    agent.getMySpace().updatePositionOnMap(agent, nextX[i], nextY[i]);
+                }
+            }
+        }
+    }
+}
@@ -12,7 +12,8 @@ package agent;
  * stored here.
  *
  */
-import app.PropertySet;
+import app.PropertySet.Model;
+import app.SimulationConfig;
 import com.google.common.collect.HashMultimap;
 import device.Device;
 import environment.RVOSpace;
@@ -33,18 +34,19 @@ import sim.engine.Stoppable;
 import sim.portrayal.LocationWrapper;
 import sim.util.Bag;
 import sim.util.Proxiable;
+import utility.Geometry;
 import utility.PrecisePoint;
 
-public class RVOAgent extends AgentPortrayal implements Proxiable {
+public strictfp class RVOAgent extends AgentPortrayal implements Proxiable {
 
-    //static constants
+    //static constants, set from the properties for the GUI and the creator.
+    //The agents themselves use the configuration of their simulation.
     // public static final double MAXACCEL = 260.0f; //m/s*s
     public static double INFO_LIMIT; // Chunks!
 //    public static final double INFO_LIMIT = Double.MAX_VALUE; // Chunks!
     public static double RADIUS;
     public static double DEFAULT_PREFERRED_SPEED;
     public static int SENSOR_RANGE; //sensor range in proportion to agent radius
-    public static int agentCount = 0; // number of agents
     protected int id;
     int currentGoal = 0;
     /**
@@ -97,6 +99,10 @@ public class RVOAgent extends AgentPortrayal implements Proxiable {
      * for motion planning that implements the VelocityCalculator interface
      */
     protected VelocityCalculator velocityCalc;
+    /**
+     * Configuration of the simulation the agent belongs to
+     */
+    protected final SimulationConfig config;
     protected Stoppable senseThinkStoppable;
     protected Stoppable actStoppable;
     private SenseThink senseThinkAgent;
@@ -107,6 +113,17 @@ public class RVOAgent extends AgentPortrayal implements Proxiable {
 //    private PrecisePoint prevGoal;
     private int currentPriority = -1;
     private boolean isTrustingDevice=true;
+    /**
+     * Store holding position, velocities, radius and maximum speed once the
+     * agent is attached to one, null otherwise
+     */
+    AgentStateStore stateStore = null;
+    int slot = -1;
+    /**
+     * Position handed out by getCurrentPosition while attached to a store.
+     * Replaced, never modified, when the agent moves.
+     */
+    private Point2d positionView;
 
     /**
      * Used by RVOModel to create an agent with just the space initialized.
@@ -118,20 +135,45 @@ public class RVOAgent extends AgentPortrayal implements Proxiable {
     public RVOAgent(RVOSpace mySpace) {
         super(); //for portraying the trails on the agentportrayal layer
         this.mySpace = mySpace;
+        this.config = mySpace.getRvoModel().getConfig();
+        radius = config.getAgentRadius();
 //        currentPosition = new PrecisePoint();
 //        goal = new Point2d();
 
         //DEFAULT_PREFERRED_SPEED is the default value specified in 1.xml
         //the parameter value of preferredSpeed should be only set to this default value when it is not set with the value from the xml initialization file
         if (preferredSpeed == 0) {
-            preferredSpeed = RVOAgent.DEFAULT_PREFERRED_SPEED;
+            preferredSpeed = config.getDefaultPreferredSpeed();
+        }
+
+        if (config.getModel().isShared()) {
+            velocityCalc = mySpace.getRvoModel().getSharedVelocityCalculator();
+        } else {
+            velocityCalc = createVelocityCalculator(config.getModel());
+        }
+        id = mySpace.getRvoModel().nextAgentId();
+        
+        if(mySpace.getRvoModel().random.nextDouble()  < config.getDeviceHoldingProbability()){
+            setDevice(mySpace); //assigns a device to agents in mySpace
+            if(mySpace.getRvoModel().random.nextDouble() < config.getDeviceTrust()){
+                this.isTrustingDevice = true;
+            }else{
+                this.isTrustingDevice = false;
+            }
         }
+        
+    }
 
+    /**
+     * Creates a new velocity calculator for the model
+     */
+    public static VelocityCalculator createVelocityCalculator(Model model) {
+        VelocityCalculator calculator = null;
         Object[] args = new Object[0];              // Change these two if you need to pass arguments to your motion plannign constructor
         Class<?>[] classes = new Class<?>[0];      // Change these two if you want to pass arguments to your motion planning constructor
         try {
 
-            velocityCalc = (VelocityCalculator) Class.forName(PropertySet.MODEL.getAssociatedClass()).getConstructor(classes).newInstance(args);
+            calculator = (VelocityCalculator) Class.forName(model.getAssociatedClass()).getConstructor(classes).newInstance(args);
 
         } catch (NoSuchMethodException ex) {
             Logger.getLogger(RVOAgent.class.getName()).log(Level.SEVERE, null, ex);
@@ -148,17 +190,7 @@ public class RVOAgent extends AgentPortrayal implements Proxiable {
         } catch (ClassNotFoundException ex) {
             Logger.getLogger(RVOAgent.class.getName()).log(Level.SEVERE, null, ex);
         }
-        id = agentCount++;
-        
-        if(mySpace.getRvoModel().random.nextDouble()  < Device.DEVICE_HOLDING_PROBABILITY){
-            setDevice(mySpace); //assigns a device to agents in mySpace
-            if(mySpace.getRvoModel().random.nextDouble() < Device.DEVICE_TRUST){
-                this.isTrustingDevice = true;
-            }else{
-                this.isTrustingDevice = false;
-            }
-        }
-        
+        return calculator;
     }
 
     public RVOAgent(Point2d myLocation,Point2d goal,RVOSpace rvoSpace){
@@ -188,7 +220,7 @@ public class RVOAgent extends AgentPortrayal implements Proxiable {
         mySpace = otherAgent.mySpace;
         mydevice = otherAgent.mydevice; // added for device
         id = otherAgent.getId();
-        agentCount--;
+        mySpace.getRvoModel().returnAgentId();
     }
 
     /**
@@ -239,7 +271,32 @@ return false;
 //        }
     }
 
+    /**
+     * Moves the kinematic state of the agent into the store. From then on the
+     * getters and setters read and write the store's columns.
+     */
+    public void attachTo(AgentStateStore store) {
+        assert stateStore == null;
+        slot = store.add(this);
+        store.positionX[slot] = currentPosition.getX();
+        store.positionY[slot] = currentPosition.getY();
+        store.velocityX[slot] = (velocity != null) ? velocity.getX() : 0;
+        store.velocityY[slot] = (velocity != null) ? velocity.getY() : 0;
+        store.chosenVelocityX[slot] = (chosenVelocity != null) ? chosenVelocity.getX() : 0;
+        store.chosenVelocityY[slot] = (chosenVelocity != null) ? chosenVelocity.getY() : 0;
+        store.radius[slot] = radius;
+        store.maxSpeed[slot] = maxSpeed;
+        positionView = currentPosition.toPoint();
+        stateStore = store;
+        currentPosition = null;
+        velocity = null;
+        chosenVelocity = null;
+    }
+
     public Point2d getCurrentPosition() {
+        if (stateStore != null) {
+            return positionView;
+        }
         return currentPosition.toPoint();
     }
 
@@ -254,32 +311,108 @@ return false;
 //        return predictPos.toPoint();
 //    }
     public double getX() {
+        if (stateStore != null) {
+            return stateStore.positionX[slot];
+        }
         return currentPosition.getX();
     }
 
     public double getY() {
+        if (stateStore != null) {
+            return stateStore.positionY[slot];
+        }
         return currentPosition.getY();
     }
 
     //everytime you set position of the agent, if agent has device, it will also set the position of the device
     final public void setCurrentPosition(double x, double y) {
-        currentPosition = new PrecisePoint(x, y);
+        if (stateStore != null) {
+            stateStore.positionX[slot] = PrecisePoint.round(x, config.isDeterministic());
+            stateStore.positionY[slot] = PrecisePoint.round(y, config.isDeterministic());
+            positionChanged();
+            return;
+        }
+        if (currentPosition == null) {
+            currentPosition = new PrecisePoint(x, y, config.isDeterministic());
+        } else {
+            currentPosition.set(x, y);
+        }
+        //builds the cached point now so that neighbours sensing in parallel
+        //only ever read it
+        currentPosition.toPoint();
         if (this.hasDevice()) {
             this.getDevice().setCurrentPosition(currentPosition.toPoint());
         }
     }
 
+    /**
+     * Refreshes the position view and the device after the store's position
+     * columns were written
+     */
+    final void positionChanged() {
+        positionView = new Point2d(stateStore.positionX[slot], stateStore.positionY[slot]);
+        if (this.hasDevice()) {
+            this.getDevice().setCurrentPosition(positionView);
+        }
+    }
+
     public Vector2d getVelocity() {
+        if (stateStore != null) {
+            return new Vector2d(stateStore.velocityX[slot], stateStore.velocityY[slot]);
+        }
         if (velocity == null) {
-            velocity = new PrecisePoint();
+            return new Vector2d();
         }
 //        return velocity.toVector(); //the error comes from here, 1.3,0 gives vector value of 1,0
 //        System.out.println(velocity);
         return new Vector2d(velocity.getX(), velocity.getY());
     }
 
+    /**
+     * Components of getVelocity(), without creating a vector
+     */
+    public double getVelocityX() {
+        if (stateStore != null) {
+            return stateStore.velocityX[slot];
+        }
+        return (velocity == null) ? 0 : velocity.getX();
+    }
+
+    public double getVelocityY() {
+        if (stateStore != null) {
+            return stateStore.velocityY[slot];
+        }
+        return (velocity == null) ? 0 : velocity.getY();
+    }
+
     public void setVelocity(Vector2d vel) {
-        velocity = new PrecisePoint(vel.getX(), vel.getY());
+        if (stateStore != null) {
+            stateStore.velocityX[slot] = PrecisePoint.round(vel.getX(), config.isDeterministic());
+            stateStore.velocityY[slot] = PrecisePoint.round(vel.getY(), config.isDeterministic());
+            return;
+        }
+        if (velocity == null) {
+            velocity = new PrecisePoint(vel.getX(), vel.getY(), config.isDeterministic());
+        } else {
+            velocity.set(vel.getX(), vel.getY());
+        }
+    }
+
+    private void setChosenVelocity(double x, double y) {
+        if (stateStore != null) {
+            stateStore.chosenVelocityX[slot] = PrecisePoint.round(x, config.isDeterministic());
+            stateStore.chosenVelocityY[slot] = PrecisePoint.round(y, config.isDeterministic());
+            return;
+        }
+        if (chosenVelocity == null) {
+            chosenVelocity = new PrecisePoint(x, y, config.isDeterministic());
+        } else {
+            chosenVelocity.set(x, y);
+        }
+    }
+
+    boolean isDead() {
+        return dead;
     }
 
     public double getSpeed() {
@@ -314,9 +447,9 @@ return false;
         } else if (this.goal != null) {
             //no preferredDirection
             prefVelocity = new Vector2d(goal);
-            prefVelocity.sub(currentPosition.toPoint());
+            prefVelocity.sub(getCurrentPosition());
             prefVelocity.normalize();
-            double distanceToGoal = currentPosition.toPoint().distance(goal);
+            double distanceToGoal = getCurrentPosition().distance(goal);
             if(distanceToGoal < preferredSpeed) {
                 prefVelocity.scale(distanceToGoal);
             }
@@ -352,9 +485,24 @@ return false;
     }
 
     public double getMaxSpeed() {
+        if (stateStore != null) {
+            return stateStore.maxSpeed[slot];
+        }
         return maxSpeed;
     }
 
+    public SimulationConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public double getRadius() {
+        if (stateStore != null) {
+            return stateStore.radius[slot];
+        }
+        return super.getRadius();
+    }
+
     public double getPersonalSpaceFactor() {
         return personalSpaceFactor;
     }
@@ -370,9 +518,9 @@ return false;
      * @last modified by: hunan　at Dec 20th, 2011
      */
     public Point2d getNextPosition(int i) {
-        PrecisePoint predictPos = new PrecisePoint(this.getVelocity().getX(), this.getVelocity().getY());
+        PrecisePoint predictPos = new PrecisePoint(this.getVelocity().getX(), this.getVelocity().getY(), config.isDeterministic());
 //        Vector2d predictPos =new Vector2d(this.getVelocity().getX(),this.getVelocity().getY());
-        predictPos.scale(i * PropertySet.TIMESTEP);
+        predictPos.scale(i * config.getTimeStep());
         predictPos.add(this.getCurrentPosition());
         return predictPos.toPoint();
     }
@@ -380,9 +528,9 @@ return false;
     public Point2d getMyPositionAtEye() {
         Vector2d myVel = getVelocity();
         myVel.normalize();
-        PrecisePoint myPos = new PrecisePoint(myVel.x, myVel.y);
+        PrecisePoint myPos = new PrecisePoint(myVel.x, myVel.y, config.isDeterministic());
 //        Vector2d predictPos =new Vector2d(this.getVelocity().getX(),this.getVelocity().getY());
-        myPos.scale(RADIUS);
+        myPos.scale(config.getAgentRadius());
         myPos.add(this.getCurrentPosition());
         return myPos.toPoint();
     }
@@ -430,6 +578,9 @@ return false;
 
     public void setMaximumSpeed(double maxSpeed) {
         this.maxSpeed = maxSpeed;
+        if (stateStore != null) {
+            stateStore.maxSpeed[slot] = maxSpeed;
+        }
     }
 
     public RVOAgent getAgentWithId(Bag sensedNei, int id) {
@@ -444,7 +595,7 @@ return false;
 
     private Vector2d findVelocityFromRoadMap(Point2d localCurrentGoal) {
         currentRoadMapPoint = new Point2d(localCurrentGoal);
-        PrecisePoint cleanCurrentGoal = new PrecisePoint(localCurrentGoal.getX(), localCurrentGoal.getY());
+        PrecisePoint cleanCurrentGoal = new PrecisePoint(localCurrentGoal.getX(), localCurrentGoal.getY(), config.isDeterministic());
         Vector2d result = new Vector2d(cleanCurrentGoal.toVector());
         result.sub(this.getCurrentPosition());
         if (result.length() != 0) {
@@ -470,7 +621,7 @@ return false;
 
                 Bag sensedNeighbours = mySpace.senseNeighbours(RVOAgent.this);
 
-                if (PropertySet.INFOPROCESSING) {
+                if (config.isInfoProcessing()) {
                     /**
                      * Here we process the neighbour list that was passed to it
                      * to determine collisions
@@ -483,7 +634,7 @@ return false;
                 }
 
                 //updated on 30th September 2013
-                if (hasDevice() && Device.FORBIDDENAREA_APPROACH) {
+                if (hasDevice() && config.isForbiddenAreaApproach()) {
                     setPrefVelocity();
                 } else {//use the stop device approach
 
@@ -512,12 +663,12 @@ return false;
                 Vector2d tempVelocity = velocityCalc.calculateVelocity(
                         RVOAgent.this, sensedNeighbours,
                         mySpace.senseObstacles(RVOAgent.this),
-                        prefVelocity, PropertySet.TIMESTEP);
+                        prefVelocity, config.getTimeStep());
                 if (Double.isNaN(
                         tempVelocity.getX())) {
                     assert false;
                 }
-                chosenVelocity = new PrecisePoint(tempVelocity.getX(), tempVelocity.getY());
+                setChosenVelocity(tempVelocity.getX(), tempVelocity.getY());
 
             }//end of if(!dead)
         }//end of step(ss)
@@ -607,7 +758,7 @@ return false;
             int indexToBeDeleted = 0;
             for (; indexToBeDeleted < distanceScoreList.size(); indexToBeDeleted++) {
                 accumulatedScore += distanceScoreList.get(indexToBeDeleted);
-                if (accumulatedScore >= RVOAgent.INFO_LIMIT) {
+                if (accumulatedScore >= config.getInfoLimit()) {
                     break;
                 }
             }
@@ -619,22 +770,22 @@ return false;
 
         private double assignDistanceScore(Vector2d distanceVector, RVOAgent tempAgent) {
 
-            double distance = (distanceVector.length() - tempAgent.getRadius() - RVOAgent.RADIUS);
+            double distance = (distanceVector.length() - tempAgent.getRadius() - config.getAgentRadius());
             if (distance < 0) {
                 return 1.5; //1.5? interesting effect
             }
 //            double distanceScore = RVOAgent.INFO_LIMIT- (RVOAgent.INFO_LIMIT/10.0)*Math.log((RVOAgent.INFO_LIMIT/10.0)*distanceVector.length());
-            double distanceScore = Math.max(Math.min(1.0f, (Math.expm1(5.0f / distance) - 0.11)), 0.1);
+            double distanceScore = Math.max(Math.min(1.0f, (Geometry.expm1(5.0f / distance, config.isDeterministic()) - 0.11)), 0.1);
 
             Vector2d angleFormedVector = new Vector2d(RVOAgent.this.getGoal());
-            angleFormedVector.sub(RVOAgent.this.currentPosition.toPoint());
+            angleFormedVector.sub(RVOAgent.this.getCurrentPosition());
             double angleFormed = angleFormedVector.dot(distanceVector);
             double angleScore = 0.0f;
             if (angleFormed < 0) {
                 angleScore = 0.1f;
             } else {
                 angleFormed = angleFormed / (distanceVector.length() * angleFormedVector.length());
-                angleFormed = Math.acos(angleFormed);
+                angleFormed = Geometry.acos(angleFormed, config.isDeterministic());
 
 
                 if (angleFormed < Math.PI / 3.0f) {
@@ -684,14 +835,30 @@ return false;
                  getDevice().checkStillStopped();
                  } else {
                  */
-                velocity = new PrecisePoint(
-                        chosenVelocity.getX() + mySpace.getRvoModel().random.nextFloat() * utility.Geometry.EPSILON,
-                        chosenVelocity.getY() + mySpace.getRvoModel().random.nextFloat() * utility.Geometry.EPSILON);
+                if (stateStore != null) {
+                    stateStore.velocityX[slot] = PrecisePoint.round(stateStore.chosenVelocityX[slot] + mySpace.getRvoModel().random.nextFloat() * config.getEpsilon(), config.isDeterministic());
+                    stateStore.velocityY[slot] = PrecisePoint.round(stateStore.chosenVelocityY[slot] + mySpace.getRvoModel().random.nextFloat() * config.getEpsilon(), config.isDeterministic());
+                    double currentPosition_x = (stateStore.positionX[slot]
+                            + stateStore.velocityX[slot] * config.getTimeStep());
+                    double currentPosition_y = (stateStore.positionY[slot]
+                            + stateStore.velocityY[slot] * config.getTimeStep());
+                    setCurrentPosition(currentPosition_x, currentPosition_y);
+                    getMySpace().updatePositionOnMap(RVOAgent.this, currentPosition_x,
+                            currentPosition_y);
+                    return;
+                }
+                final double velocity_x = chosenVelocity.getX() + mySpace.getRvoModel().random.nextFloat() * config.getEpsilon();
+                final double velocity_y = chosenVelocity.getY() + mySpace.getRvoModel().random.nextFloat() * config.getEpsilon();
+                if (velocity == null) {
+                    velocity = new PrecisePoint(velocity_x, velocity_y, config.isDeterministic());
+                } else {
+                    velocity.set(velocity_x, velocity_y);
+                }
                 //}
                 double currentPosition_x = (currentPosition.getX()
-                        + velocity.getX() * PropertySet.TIMESTEP);
+                        + velocity.getX() * config.getTimeStep());
                 double currentPosition_y = (currentPosition.getY()
-                        + velocity.getY() * PropertySet.TIMESTEP);
+                        + velocity.getY() * config.getTimeStep());
                 
                 setCurrentPosition(currentPosition_x, currentPosition_y);
                 /*
@@ -712,6 +879,9 @@ return false;
     public class MyProxy {
 
         public Vector2d getVelocity() {
+            if (stateStore != null) {
+                return RVOAgent.this.getVelocity();
+            }
             if (velocity != null) {
                 return velocity.toVector();
             } else {
@@ -725,7 +895,7 @@ return false;
         }
 
         public Point2d getPosition() {
-            return currentPosition.toPoint();
+            return getCurrentPosition();
         }
 //
 //        public Point2d getGoal() {
@@ -789,12 +959,12 @@ return false;
             agentUnitVelocity.normalize();
         }
         Point2d agentTopPosition = new Point2d();
-        agentTopPosition.setX(this.getCurrentPosition().getX() - agentUnitVelocity.getY() * RVOAgent.RADIUS);
-        agentTopPosition.setY(this.getCurrentPosition().getY() + agentUnitVelocity.getX() * RVOAgent.RADIUS);
+        agentTopPosition.setX(this.getCurrentPosition().getX() - agentUnitVelocity.getY() * config.getAgentRadius());
+        agentTopPosition.setY(this.getCurrentPosition().getY() + agentUnitVelocity.getX() * config.getAgentRadius());
 
         Point2d agentBottomPosition = new Point2d();
-        agentBottomPosition.setX(this.getCurrentPosition().getX() + agentUnitVelocity.getY() * RVOAgent.RADIUS);
-        agentBottomPosition.setY(this.getCurrentPosition().getY() - agentUnitVelocity.getX() * RVOAgent.RADIUS);
+        agentBottomPosition.setX(this.getCurrentPosition().getX() + agentUnitVelocity.getY() * config.getAgentRadius());
+        agentBottomPosition.setY(this.getCurrentPosition().getY() - agentUnitVelocity.getX() * config.getAgentRadius());
 
         Set<Point2d> ignoredPoints = new LinkedHashSet<Point2d> ();
         
@@ -807,7 +977,7 @@ return false;
 //                // would be that this point is forbidden.
                 if (mySpace.visibleFrom(currentRoadMapPoint, agentTopPosition)
                             && mySpace.visibleFrom(currentRoadMapPoint, agentBottomPosition)) {
-                    if (listenToDevice>0 && this.hasDevice() && Device.FORBIDDENAREA_APPROACH 
+                    if (listenToDevice>0 && this.hasDevice() && config.isForbiddenAreaApproach() 
                             && this.getDevice().hasForbiddenArea() 
                             && this.getDevice().inForbiddenArea(currentRoadMapPoint)) {
                         ignoredPoints.add(currentRoadMapPoint);
@@ -828,7 +998,7 @@ return false;
                 }
                 if (mySpace.visibleFrom(tempCurrentGoal, agentTopPosition)
                             && mySpace.visibleFrom(tempCurrentGoal, agentBottomPosition)) {
-                    if (this.hasDevice() && Device.FORBIDDENAREA_APPROACH 
+                    if (this.hasDevice() && config.isForbiddenAreaApproach() 
                             && this.getDevice().hasForbiddenArea() 
                             && this.getDevice().inForbiddenArea(tempCurrentGoal)) {
                         ignoredPoints.add(tempCurrentGoal);
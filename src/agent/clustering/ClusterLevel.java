@@ -0,0 +1,171 @@
+package agent.clustering;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import sim.util.Bag;
+
+/**
+ * ClusterLevel
+ *
+ * Snapshot of the clusters of one clustering layer for the neighbour queries
+ * of ClusteredSpace, taken after every clustering step. The centres, radii and
+ * hash codes of the clusters are copied in cell order into primitive arrays,
+ * so a query scans contiguous arrays and does not allocate, in the same way
+ * as environment.NeighbourGrid does for the agents.
+ *
+ * The clusters do not move until the next clustering step, so the snapshot is
+ * only written by the clustering step and may be queried by several threads
+ * at once in between.
+ *
+ * @author Vaisagh
+ */
+final class ClusterLevel implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double cellSize;
+    private final int xCells;
+    private final int yCells;
+    /**
+     * cellStart[c] to cellStart[c + 1] - 1 are the clusters in cell c
+     */
+    private final int[] cellStart;
+    private int size = 0;
+    private int[] cellOfCluster = new int[16];
+    private ClusteredAgent[] unsorted = new ClusteredAgent[16];
+    private ClusteredAgent[] clusters = new ClusteredAgent[16];
+    private double[] x = new double[16];
+    private double[] y = new double[16];
+    private double[] radius = new double[16];
+    private int[] hash = new int[16];
+
+    /**
+     * @param cellSize should be about the radius of the queries made on the
+     * level, so that a query only scans the 3x3 cells around the agent
+     */
+    ClusterLevel(double cellSize, double width, double height) {
+        this.cellSize = cellSize;
+        xCells = Math.max(1, (int) Math.ceil(width / cellSize));
+        yCells = Math.max(1, (int) Math.ceil(height / cellSize));
+        cellStart = new int[xCells * yCells + 1];
+    }
+
+    /**
+     * Replaces the snapshot by the clusters in the bag, in bag order within a
+     * cell
+     */
+    void rebuild(Bag layer) {
+        size = layer.numObjs;
+        if (clusters.length < size) {
+            final int capacity = Math.max(size, clusters.length * 2);
+            cellOfCluster = new int[capacity];
+            unsorted = new ClusteredAgent[capacity];
+            clusters = new ClusteredAgent[capacity];
+            x = new double[capacity];
+            y = new double[capacity];
+            radius = new double[capacity];
+            hash = new int[capacity];
+        }
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < size; i++) {
+            final ClusteredAgent cluster = (ClusteredAgent) layer.objs[i];
+            unsorted[i] = cluster;
+            final int cell = cellX(cluster.getX()) * yCells + cellY(cluster.getY());
+            cellOfCluster[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        final int cells = cellStart.length - 1;
+        for (int cell = 0; cell < cells; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        for (int i = 0; i < size; i++) {
+            final int position = cellStart[cellOfCluster[i]]++;
+            final ClusteredAgent cluster = unsorted[i];
+            clusters[position] = cluster;
+            x[position] = cluster.getX();
+            y[position] = cluster.getY();
+            radius[position] = cluster.getRadius();
+            hash[position] = cluster.hashCode();
+            unsorted[i] = null;
+        }
+        /*
+         * the placement loop moved every start to the start of the next cell
+         */
+        for (int cell = cells; cell > 0; cell--) {
+            cellStart[cell] = cellStart[cell - 1];
+        }
+        cellStart[0] = 0;
+        Arrays.fill(clusters, size, clusters.length, null);
+    }
+
+    int size() {
+        return size;
+    }
+
+    ClusteredAgent getCluster(int index) {
+        return clusters[index];
+    }
+
+    double getX(int index) {
+        return x[index];
+    }
+
+    double getY(int index) {
+        return y[index];
+    }
+
+    double getRadius(int index) {
+        return radius[index];
+    }
+
+    /**
+     * Hash code of the cluster when the snapshot was taken
+     */
+    int getHash(int index) {
+        return hash[index];
+    }
+
+    /**
+     * Fills result with the indices of the clusters whose centre is within
+     * radius of (x, y), boundary included.
+     *
+     * @return the number of clusters found. If it is larger than
+     * result.length only the first result.length were stored and the query
+     * has to be repeated with a larger buffer.
+     */
+    int findWithinDistance(double x, double y, double radius, int[] result) {
+        final double radiusSq = radius * radius;
+        final int minX = cellX(x - radius);
+        final int maxX = cellX(x + radius);
+        final int minY = cellY(y - radius);
+        final int maxY = cellY(y + radius);
+
+        int found = 0;
+        for (int cellX = minX; cellX <= maxX; cellX++) {
+            final int column = cellX * yCells;
+            final int from = cellStart[column + minY];
+            final int to = cellStart[column + maxY + 1];
+            for (int i = from; i < to; i++) {
+                final double dx = this.x[i] - x;
+                final double dy = this.y[i] - y;
+                if (dx * dx + dy * dy <= radiusSq) {
+                    if (found < result.length) {
+                        result[found] = i;
+                    }
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    private int cellX(double x) {
+        int cell = (int) Math.floor(x / cellSize);
+        return (cell < 0) ? 0 : ((cell >= xCells) ? xCells - 1 : cell);
+    }
+
+    private int cellY(double y) {
+        int cell = (int) Math.floor(y / cellSize);
+        return (cell < 0) ? 0 : ((cell >= yCells) ? yCells - 1 : cell);
+    }
+}
@@ -34,11 +34,18 @@ public class ClusteredAgent extends RVOAgent {
 
     private List<RVOAgent> agents;
     final double maxRadius;
+    /**
+     * Bookkeeping of IncrementalClustering: the grid cell the cluster is
+     * filed under and whether it changed in the current step
+     */
+    int gridCell;
+    boolean changed;
 
     public ClusteredAgent(RVOSpace rvoSpace, RVOAgent agent, double maxRadius) {
         super(rvoSpace);
         radius = agent.getRadius();
-        velocity = new PrecisePoint(agent.getVelocity().getX(), agent.getVelocity().getY());
+        velocity = new PrecisePoint(agent.getVelocity().getX(), agent.getVelocity().getY(),
+                config.isDeterministic());
         agents = new ArrayList<RVOAgent>();
         agents.add(agent);
         this.setCurrentPosition(agent.getCurrentPosition().getX(), agent.getCurrentPosition().getY());
@@ -107,6 +114,6 @@ public class ClusteredAgent extends RVOAgent {
         }
 //        mass/=agents.size();
         tempVelocity.scale(1.0 / (double) agents.size());
-        this.velocity= new PrecisePoint(tempVelocity.x, tempVelocity.y);
+        this.velocity= new PrecisePoint(tempVelocity.x, tempVelocity.y, config.isDeterministic());
     }
 }
@@ -16,9 +16,10 @@ package agent.clustering;
 import agent.RVOAgent;
 import app.RVOModel;
 import environment.RVOSpace;
+import environment.NeighbourGrid;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.List;
 import javax.vecmath.Vector2d;
 import sim.engine.SimState;
 import sim.engine.Steppable;
@@ -32,14 +33,38 @@ import sim.util.Double2D;
  */
 public final class ClusteredSpace extends RVOSpace {
 
+    private static final long serialVersionUID = 1L;
+
     public static double ALPHA;
     public static int NUMBER_OF_CLUSTERING_SPACES;
-    final double AGENT_DIAMETER = RVOAgent.RADIUS * 2.0;
-    protected static int numberOfClusteringSpaces;
+    protected final int numberOfClusteringSpaces;
     protected ArrayList<Continuous2D> clusteringLayers;
+    /**
+     * The clustering engine when clusters are maintained incrementally, null
+     * when they are rebuilt every step by Clustered
+     */
+    private IncrementalClustering incrementalClustering;
+    /**
+     * regionRadius[i] is calculateRadiusForRegion(i), for the regions up to
+     * the outer edge of the last layer
+     */
+    private final double[] regionRadius;
+    /**
+     * Snapshots of the clustering layers for senseNeighbours
+     */
+    private final ClusterLevel[] clusterLevels;
+    /**
+     * Per thread buffers for senseNeighbours
+     */
+    private static final ThreadLocal<SenseBuffers> SENSE_BUFFERS = new ThreadLocal<SenseBuffers>() {
+        @Override
+        protected SenseBuffers initialValue() {
+            return new SenseBuffers();
+        }
+    };
 
     public ClusteredSpace(int xSize, int ySize, double gridSize, RVOModel rm) {
-        this(xSize, ySize, gridSize, rm, NUMBER_OF_CLUSTERING_SPACES);
+        this(xSize, ySize, gridSize, rm, rm.getConfig().getNumberOfClusteringSpaces());
     }
 
     public ClusteredSpace(int xSize, int ySize, double gridSize, RVOModel rm,
@@ -52,6 +77,21 @@ public final class ClusteredSpace extends RVOSpace {
                     yRealSize));
 
         }
+        regionRadius = new double[numberOfClusteringSpaces + 1];
+        for (int region = 0; region <= numberOfClusteringSpaces; region++) {
+            regionRadius[region] = calculateRadiusForRegion(region);
+        }
+        clusterLevels = new ClusterLevel[numberOfClusteringSpaces];
+        for (int layer = 0; layer < numberOfClusteringSpaces; layer++) {
+            clusterLevels[layer] = new ClusterLevel(regionRadius[layer + 1] + config.getAgentRadius(),
+                    xRealSize, yRealSize);
+        }
+        /*
+         * the agents within the first region are sensed on a neighbour grid
+         */
+        if (neighbourGrid == null) {
+            neighbourGrid = new NeighbourGrid(gridDimension, xRealSize, yRealSize);
+        }
 
         scheduleClustering();
     }
@@ -60,142 +100,175 @@ public final class ClusteredSpace extends RVOSpace {
         return clusteringLayers.get(i);
     }
 
-    public static int getNumberOfClusteringSpaces() {
+    public int getNumberOfClusteringSpaces() {
         return numberOfClusteringSpaces;
     }
 
+    public IncrementalClustering getIncrementalClustering() {
+        return incrementalClustering;
+    }
+
     public void updatePositionOnMap(ClusteredAgent clusteredAgent, int layer) {
         clusteringLayers.get(layer).setObjectLocation(clusteredAgent, new Double2D(clusteredAgent.getX(), clusteredAgent.getY()));
     }
 
     /**
-     * This function replaces the function in RVOSpace, and calculates all the 
-     * neighbours as clusters of agents depending on distance.
+     * This function replaces the function in RVOSpace, and calculates all the
+     * neighbours as clusters of agents depending on distance. The agents
+     * within the first region are sensed individually. Beyond it every layer
+     * contributes the clusters in its ring of regions, except that clusters
+     * straddling the inner edge of the ring are broken up into those of
+     * their agents that lie in the ring.
+     *
+     * The query walks the agent grid and then the snapshot of each layer
+     * once, with per thread buffers; only the returned bag is allocated.
+     *
      * @param me : the agent whose neighbours need to be found
-     * @return Bag of neighbours found
+     * @return Bag of neighbours found, each agent or cluster once and not me
      */
     @Override
     public Bag senseNeighbours(RVOAgent me) {
-
-
-        Bag neighbourAgents = agentSpace.getObjectsExactlyWithinDistance(
-                new Double2D(me.getCurrentPosition().x, me.getCurrentPosition().y),
-                ClusteredSpace.calculateRadiusForRegion(0) + RVOAgent.RADIUS);
- 
-        Bag[] neighbourClusters = new Bag[numberOfClusteringSpaces];
-        Set<RVOAgent> finalNeighbourSet = new HashSet<RVOAgent>();
-        finalNeighbourSet.addAll(neighbourAgents);
-
-        //Detect all neighbours. This detects all neighbours in all ranges for
-        //now. Can't remember exactly why I have used such a big sensor range
-        for (int layer = 0; layer < numberOfClusteringSpaces; layer++) {
-            ClusteredAgent clusteredMe = new ClusteredAgent(this, me, ClusteredSpace.calculateMaxClusterRadiusForRegion(layer));
-            neighbourClusters[layer] = clusteringLayers.get(layer).getObjectsExactlyWithinDistance(
-                    new Double2D(me.getCurrentPosition().x, me.getCurrentPosition().y),
-                    ClusteredSpace.calculateRadiusForRegion(layer + 1) + RVOAgent.RADIUS);
-            neighbourClusters[layer].remove(clusteredMe);
+        final SenseBuffers buffers = SENSE_BUFFERS.get();
+        buffers.begin(neighbourGrid.size());
+        final double x = me.getCurrentPosition().x;
+        final double y = me.getCurrentPosition().y;
+        final double agentRadius = config.getAgentRadius();
+
+        int found = neighbourGrid.findWithinDistance(x, y, regionRadius[0] + agentRadius, buffers.indices);
+        if (found > buffers.indices.length) {
+            buffers.ensureCapacity(found);
+            found = neighbourGrid.findWithinDistance(x, y, regionRadius[0] + agentRadius, buffers.indices);
+        }
+        for (int i = 0; i < found; i++) {
+            final int index = buffers.indices[i];
+            final RVOAgent agent = neighbourGrid.getAgent(index);
+            if (agent != me) {
+                buffers.addAgent(agent, index);
+            }
         }
 
-//        System.out.println("Starting filtering Process after detecting"
-//                + neighbourClusters.numObjs + " clusters:");
-
-        /*
-        Loop to remove all the clusters that are close to the agent.
-         */
         for (int layer = 0; layer < numberOfClusteringSpaces; layer++) {
-            for (int i = 0; i < neighbourClusters[layer].size(); i++) {
-                if (neighbourClusters[layer].get(i).getClass() != ClusteredAgent.class) {
+            final ClusterLevel level = clusterLevels[layer];
+            final double inner = regionRadius[layer];
+            final double outer = (layer < numberOfClusteringSpaces - 1) ? regionRadius[layer + 1] : Double.MAX_VALUE;
+            found = level.findWithinDistance(x, y, regionRadius[layer + 1] + agentRadius, buffers.indices);
+            if (found > buffers.indices.length) {
+                buffers.ensureCapacity(found);
+                found = level.findWithinDistance(x, y, regionRadius[layer + 1] + agentRadius, buffers.indices);
+            }
+            boolean skippedMe = false;
+            for (int i = 0; i < found; i++) {
+                final int index = buffers.indices[i];
+                final ClusteredAgent cluster = level.getCluster(index);
+                final List<RVOAgent> members = cluster.getAgents();
+                if (!skippedMe && members.size() == 1 && members.get(0).equals(me)) {
+                    // the cluster of only me
+                    skippedMe = true;
                     continue;
                 }
-
-                ClusteredAgent clusteredNeighbour = (ClusteredAgent) neighbourClusters[layer].get(i);
-                Vector2d fromClusterCenterToAgent = new Vector2d(me.getCurrentPosition());
-
-                // vector from cluster center to agent center
-                fromClusterCenterToAgent.sub(clusteredNeighbour.getCurrentPosition());
-
-                double minDistance = (fromClusterCenterToAgent.length() - clusteredNeighbour.getRadius());
-                double maxDistance = (fromClusterCenterToAgent.length() + clusteredNeighbour.getRadius());
-                /*
-                break up clusters that are too close to the agent and thus will 
-                 * not be detected as clusters. They need to be broken up so that 
-                 * they will at least be perceived as individuals.
-                 */
-                if (minDistance <= ClusteredSpace.calculateRadiusForRegion(layer)
-                        && maxDistance >= ClusteredSpace.calculateRadiusForRegion(layer)) {
-//                  System.out.println("For agent at"+me.getCurrentPosition()+
-//                    " deleted a cluster at"+ tempAgent.getCentre());
-
-                    /*Adds all the individual agents not within the first region 
-                     * as individuals into respective layer  so that they can be 
-                     * added in later
+                final double distance = distance(x, y, level.getX(index), level.getY(index));
+                final double minDistance = distance - level.getRadius(index);
+                final double maxDistance = distance + level.getRadius(index);
+                if (minDistance <= inner && maxDistance >= inner) {
+                    /*
+                     * break up clusters that are too close to the agent and
+                     * thus will not be detected as clusters. They need to be
+                     * broken up so that they will at least be perceived as
+                     * individuals.
                      */
-                    for (RVOAgent individualAgent : clusteredNeighbour.getAgents()) {
-                        neighbourClusters[layer].add(individualAgent);
+                    for (int j = 0; j < members.size(); j++) {
+                        final RVOAgent member = members.get(j);
+                        final double memberDistance = distance(x, y, member.getCurrentPosition().x,
+                                member.getCurrentPosition().y) - member.getRadius();
+                        if (member != me && memberDistance >= inner && memberDistance <= outer) {
+                            buffers.addAgent(member, neighbourGrid.indexOf(member));
+                        }
                     }
-
-                    neighbourClusters[layer].remove(i);
-                    i--;
-                    continue;
+                } else if (minDistance >= inner && minDistance <= outer) {
+                    buffers.addCluster(cluster, level.getHash(index));
                 }
             }
         }
 
+        Bag finalList = new Bag(Math.max(buffers.size, 1));
+        System.arraycopy(buffers.found, 0, finalList.objs, 0, buffers.size);
+        finalList.numObjs = buffers.size;
+        buffers.clear();
+        return finalList;
+    }
 
+    private static double distance(double x1, double y1, double x2, double y2) {
+        final double dx = x1 - x2;
+        final double dy = y1 - y2;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
 
-        /*
-         * For each region beyond the first two
-         */
+    /**
+     * Takes the snapshots of the clustering layers that senseNeighbours
+     * queries until the next clustering step
+     */
+    void snapshotClusters() {
         for (int layer = 0; layer < numberOfClusteringSpaces; layer++) {
-            for (Object agent : neighbourClusters[layer]) {
-                RVOAgent clusteredAgent = (RVOAgent) agent;
-                Vector2d fromClusterCenterToAgentCenter = new Vector2d(me.getCurrentPosition());
-                fromClusterCenterToAgentCenter.sub(clusteredAgent.getCurrentPosition());
-                double minDistance =
-                        (fromClusterCenterToAgentCenter.length() - clusteredAgent.getRadius());
-
-
-                //   double totalMaxDistance = distance.length() + ((ClusteredAgent) neighbourClusters[layer].get(i)).getRadius();
-                if (layer < numberOfClusteringSpaces - 1) {
-                    if (minDistance <= calculateRadiusForRegion(layer + 1)
-                            && minDistance >= calculateRadiusForRegion(layer)) {
-
-                        finalNeighbourSet.add(clusteredAgent);
-//                  System.out.println("For agent at"+me.getCurrentPosition()+" added a neighbour at"+ ((RVOAgent)neighbourClusters[layer].get(i)).getCurrentPosition());
-                    }
-                } else {
-                    if (minDistance >= calculateRadiusForRegion(layer)) {
-                        finalNeighbourSet.add(clusteredAgent);
-                    }
-                }
-            }
+            clusterLevels[layer].rebuild(clusteringLayers.get(layer).allObjects);
         }
-
-        finalNeighbourSet.remove(me);
-        Bag finalList = new Bag();
-        finalList.addAll(finalNeighbourSet);
-        return finalList;
-
     }
 
+    /**
+     * Schedules the clustering step. Clustered is scheduled again on every
+     * call, as it always was (the constructor and RVOModel.initialiseFromXML
+     * both call this, and the results depend on it); the incremental
+     * clustering is scheduled only once.
+     */
     public void scheduleClustering() {
-        rvoModel.schedule.scheduleRepeating(new Clustered(), 3, 1.0);
+        if (config.isIncrementalClustering()) {
+            if (incrementalClustering != null) {
+                return;
+            }
+            double[] maxRadii = new double[numberOfClusteringSpaces];
+            for (int layer = 0; layer < numberOfClusteringSpaces; layer++) {
+                maxRadii[layer] = calculateMaxClusterRadiusForRegion(layer);
+            }
+            incrementalClustering = new IncrementalClustering(this, maxRadii, xRealSize, yRealSize);
+            rvoModel.schedule.scheduleRepeating(incrementalClustering, 3, 1.0);
+        } else {
+            rvoModel.schedule.scheduleRepeating(new Clustered(), 3, 1.0);
+        }
     }
 
-    private static double calculateRadiusForRegion(int region) {
+    private double calculateRadiusForRegion(int region) {
         if (region == -2) {
-            return RVOAgent.RADIUS;
+            return config.getAgentRadius();
         }
 //        return calculateRadiusForRegion(region - 1) + ALPHA * 2.0 * calculateRadiusForRegion(region - 1);
-        return ALPHA * 2.0 * calculateRadiusForRegion(region - 1);
+        return config.getClusteringAlpha() * 2.0 * calculateRadiusForRegion(region - 1);
     }
 
-    private static double calculateMaxClusterRadiusForRegion(int layer) {
+    private double calculateMaxClusterRadiusForRegion(int layer) {
         if (layer == -2) {
-            return RVOAgent.RADIUS;
+            return config.getAgentRadius();
         }
 //        return ALPHA * calculateRadiusForRegion(layer - 1);
-        return ALPHA * 2.0 * calculateMaxClusterRadiusForRegion(layer - 1);
+        return config.getClusteringAlpha() * 2.0 * calculateMaxClusterRadiusForRegion(layer - 1);
+    }
+
+    /**
+     * Whether there are agents near the centre of a cluster at (x, y) with
+     * the given radius and half way to its edge in the four directions. If
+     * there are none at one of these points the cluster would mostly cover
+     * empty space.
+     */
+    boolean isCovered(double x, double y, double radius) {
+        /*
+         * Was earlier checking for lower layer clusters...
+         * checking for individual agents now... need to change
+         * back if unreasonable behavior
+         */
+        final double checkRadius = calculateMaxClusterRadiusForRegion(-1);
+        return !agentSpace.getObjectsExactlyWithinDistance(new Double2D(x, y), checkRadius).isEmpty()
+                && !agentSpace.getObjectsExactlyWithinDistance(new Double2D(x - (radius / 2), y), checkRadius).isEmpty()
+                && !agentSpace.getObjectsExactlyWithinDistance(new Double2D(x + (radius / 2), y), checkRadius).isEmpty()
+                && !agentSpace.getObjectsExactlyWithinDistance(new Double2D(x, y - (radius / 2)), checkRadius).isEmpty()
+                && !agentSpace.getObjectsExactlyWithinDistance(new Double2D(x, y + (radius / 2)), checkRadius).isEmpty();
     }
 
     class Clustered implements Steppable {
@@ -284,54 +357,7 @@ public final class ClusteredSpace extends RVOSpace {
                         double newX = agent.getCurrentPosition().x + connectingOldCenterToPoint.x;
                         double newY = agent.getCurrentPosition().y + connectingOldCenterToPoint.y;
 
-                        ArrayList<Boolean> innerChecks = new ArrayList<Boolean>();
-                        //If there are no agents near the center then delete those clusters
-
-                        /*
-                         * Was earlier checking for lower layer clusters... 
-                         * checking for individual agents now... need to change 
-                         * back if unreasonable behavior
-                         */
-                        innerChecks.add(
-                                agentSpace.getObjectsExactlyWithinDistance(
-                                new Double2D(newX, newY),
-                                calculateMaxClusterRadiusForRegion(-1)).isEmpty());
-
-                        innerChecks.add(
-                                agentSpace.getObjectsExactlyWithinDistance(
-                                new Double2D(newX - (newRadius / 2),
-                                newY),
-                                calculateMaxClusterRadiusForRegion(-1)).isEmpty());
-
-
-                        innerChecks.add(
-                                agentSpace.getObjectsExactlyWithinDistance(
-                                new Double2D(newX + (newRadius / 2),
-                                newY),
-                                calculateMaxClusterRadiusForRegion(-1)).isEmpty());
-
-
-                        innerChecks.add(
-                                agentSpace.getObjectsExactlyWithinDistance(
-                                new Double2D(newX,
-                                newY - (newRadius / 2)),
-                                calculateMaxClusterRadiusForRegion(-1)).isEmpty());
-
-                        innerChecks.add(
-                                agentSpace.getObjectsExactlyWithinDistance(
-                                new Double2D(newX,
-                                newY + (newRadius / 2)),
-                                calculateMaxClusterRadiusForRegion(-1)).isEmpty());
-
-                        boolean dontAdd = false;
-
-                        for (Boolean isEmpty : innerChecks) {
-                            if (isEmpty) {
-
-                                dontAdd = true;
-                                break;
-                            }
-                        }
+                        boolean dontAdd = !isCovered(newX, newY, newRadius);
                         if (!dontAdd) {
 
                             bestCluster.simplyAddAgent(agent);
@@ -379,6 +405,114 @@ public final class ClusteredSpace extends RVOSpace {
                 }
 
             }
+            snapshotClusters();
+        }
+    }
+
+    /**
+     * The neighbours found by one senseNeighbours call so far. The agents are
+     * kept unique with marks on their neighbour grid indices and the clusters
+     * with an open addressing table on their hash codes, which is what makes
+     * two clusters of the same agents in different layers count once.
+     */
+    private static final class SenseBuffers {
+
+        int[] indices = new int[64];
+        Object[] found = new Object[64];
+        int[] foundHash = new int[64];
+        int size = 0;
+        private int query = 0;
+        private int[] agentMark = new int[0];
+        private int[] clusterSlot = new int[64];
+        private int[] clusterSlotQuery = new int[64];
+        private int clusters = 0;
+
+        void ensureCapacity(int capacity) {
+            if (indices.length < capacity) {
+                indices = new int[capacity];
+            }
+        }
+
+        void begin(int numberOfAgents) {
+            if (agentMark.length < numberOfAgents) {
+                agentMark = Arrays.copyOf(agentMark, Math.max(numberOfAgents, agentMark.length * 2));
+            }
+            if (query == Integer.MAX_VALUE) {
+                Arrays.fill(agentMark, 0);
+                Arrays.fill(clusterSlotQuery, 0);
+                query = 0;
+            }
+            query++;
+            size = 0;
+            clusters = 0;
+        }
+
+        /**
+         * Drops the references to the neighbours found
+         */
+        void clear() {
+            Arrays.fill(found, 0, size, null);
+            size = 0;
+        }
+
+        /**
+         * @param index the agent's index on the neighbour grid, -1 if it has
+         * none
+         */
+        void addAgent(RVOAgent agent, int index) {
+            if (index >= 0) {
+                if (agentMark[index] == query) {
+                    return;
+                }
+                agentMark[index] = query;
+            }
+            add(agent, 0);
+        }
+
+        void addCluster(ClusteredAgent cluster, int hash) {
+            if (2 * (clusters + 1) > clusterSlot.length) {
+                growClusterTable();
+            }
+            final int mask = clusterSlot.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (clusterSlotQuery[slot] == query) {
+                final int other = clusterSlot[slot];
+                if (foundHash[other] == hash && found[other].equals(cluster)) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            clusterSlotQuery[slot] = query;
+            clusterSlot[slot] = size;
+            clusters++;
+            add(cluster, hash);
+        }
+
+        private void add(Object neighbour, int hash) {
+            if (size == found.length) {
+                found = Arrays.copyOf(found, size * 2);
+                foundHash = Arrays.copyOf(foundHash, size * 2);
+            }
+            found[size] = neighbour;
+            foundHash[size] = hash;
+            size++;
+        }
+
+        private void growClusterTable() {
+            final int capacity = clusterSlot.length * 2;
+            clusterSlot = new int[capacity];
+            clusterSlotQuery = new int[capacity];
+            final int mask = capacity - 1;
+            for (int i = 0; i < size; i++) {
+                if (found[i] instanceof ClusteredAgent) {
+                    int slot = (foundHash[i] ^ (foundHash[i] >>> 16)) & mask;
+                    while (clusterSlotQuery[slot] == query) {
+                        slot = (slot + 1) & mask;
+                    }
+                    clusterSlotQuery[slot] = query;
+                    clusterSlot[slot] = i;
+                }
+            }
         }
     }
 }
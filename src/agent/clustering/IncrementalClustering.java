@@ -0,0 +1,437 @@
+package agent.clustering;
+
+import agent.RVOAgent;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+
+/**
+ * IncrementalClustering
+ *
+ * Keeps the clusters of every clustering layer from one step to the next
+ * instead of rebuilding them from scratch like ClusteredSpace.Clustered.
+ * Every step the clusters are refitted around their agents as they are now;
+ * only the agents that moved out of the largest radius a cluster of the layer
+ * may have are taken out and assigned again, together with new agents, to a
+ * nearby cluster (simply, or by extending it the way Clustered does) or to a
+ * cluster of their own. Clusters that were changed are then merged with a
+ * nearby cluster if both fit in one cluster of the layer.
+ *
+ * Nearby clusters are found on a grid with cells of twice the maximum cluster
+ * radius of the layer, so a step costs time linear in the number of agents.
+ * The clusters are not the ones Clustered would build for the same positions.
+ *
+ * The counts of what the last step changed are kept for monitoring.
+ *
+ * @author Vaisagh
+ */
+public final class IncrementalClustering implements Steppable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ClusteredSpace space;
+    private final Layer[] layers;
+    private int reassignedAgents;
+    private int createdClusters;
+    private int mergedClusters;
+    private int splitClusters;
+    private int dissolvedClusters;
+
+    IncrementalClustering(ClusteredSpace space, double[] maxRadii, double xSize, double ySize) {
+        this.space = space;
+        layers = new Layer[maxRadii.length];
+        for (int layer = 0; layer < layers.length; layer++) {
+            layers[layer] = new Layer(layer, maxRadii[layer], xSize, ySize);
+        }
+    }
+
+    /**
+     * Executed once per step right at the beginning.
+     */
+    @Override
+    public void step(SimState ss) {
+        reassignedAgents = 0;
+        createdClusters = 0;
+        mergedClusters = 0;
+        splitClusters = 0;
+        dissolvedClusters = 0;
+        for (Layer layer : layers) {
+            layer.update(space.getRvoModel().getAgentList());
+        }
+        space.snapshotClusters();
+    }
+
+    /**
+     * Agents that were assigned to a cluster in the last step, because they
+     * were new or had left their cluster (counted once per layer)
+     */
+    public int getReassignedAgents() {
+        return reassignedAgents;
+    }
+
+    public int getCreatedClusters() {
+        return createdClusters;
+    }
+
+    /**
+     * Clusters that were merged into another one in the last step
+     */
+    public int getMergedClusters() {
+        return mergedClusters;
+    }
+
+    /**
+     * Clusters that some of their agents left in the last step
+     */
+    public int getSplitClusters() {
+        return splitClusters;
+    }
+
+    /**
+     * Clusters that all of their agents left in the last step
+     */
+    public int getDissolvedClusters() {
+        return dissolvedClusters;
+    }
+
+    public int getNumberOfClusters(int layer) {
+        return layers[layer].clusters.size();
+    }
+
+    private final class Layer implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int layer;
+        private final double maxRadius;
+        private final double cellSize;
+        private final int xCells;
+        private final int yCells;
+        private final List<ArrayList<ClusteredAgent>> grid;
+        private final Map<RVOAgent, ClusteredAgent> clusterOf = new IdentityHashMap<RVOAgent, ClusteredAgent>();
+        private ArrayList<ClusteredAgent> clusters = new ArrayList<ClusteredAgent>();
+        private ArrayList<ClusteredAgent> survivors = new ArrayList<ClusteredAgent>();
+        private final ArrayList<ClusteredAgent> changed = new ArrayList<ClusteredAgent>();
+        private final ArrayList<RVOAgent> pending = new ArrayList<RVOAgent>();
+        private final ArrayList<RVOAgent> leaving = new ArrayList<RVOAgent>();
+        /**
+         * Centre and radius of the last enclosing circle
+         */
+        private double enclosingX;
+        private double enclosingY;
+        private double enclosingRadius;
+
+        Layer(int layer, double maxRadius, double xSize, double ySize) {
+            this.layer = layer;
+            this.maxRadius = maxRadius;
+            cellSize = 2 * maxRadius;
+            xCells = Math.max(1, (int) Math.ceil(xSize / cellSize));
+            yCells = Math.max(1, (int) Math.ceil(ySize / cellSize));
+            grid = new ArrayList<ArrayList<ClusteredAgent>>(xCells * yCells);
+            for (int i = 0; i < xCells * yCells; i++) {
+                grid.add(new ArrayList<ClusteredAgent>());
+            }
+        }
+
+        void update(List<RVOAgent> agents) {
+            /*
+             * the clusters are hashed on their agents, so they have to be out
+             * of the layer while they change
+             */
+            space.getClusteredSpace(layer).clear();
+            changed.clear();
+            pending.clear();
+
+            survivors.clear();
+            for (ClusteredAgent cluster : clusters) {
+                if (refit(cluster)) {
+                    survivors.add(cluster);
+                }
+            }
+            swapClusters();
+
+            /*
+             * new agents and the ones that left their cluster
+             */
+            for (RVOAgent agent : agents) {
+                if (!clusterOf.containsKey(agent)) {
+                    pending.add(agent);
+                }
+            }
+            reassignedAgents += pending.size();
+
+            for (ArrayList<ClusteredAgent> cell : grid) {
+                cell.clear();
+            }
+            for (ClusteredAgent cluster : clusters) {
+                cluster.gridCell = cellOf(cluster.getX(), cluster.getY());
+                grid.get(cluster.gridCell).add(cluster);
+            }
+
+            for (RVOAgent agent : pending) {
+                assign(agent);
+            }
+            for (int i = 0; i < changed.size(); i++) {
+                mergeWithNeighbour(changed.get(i));
+            }
+            for (ClusteredAgent cluster : changed) {
+                cluster.changed = false;
+            }
+
+            survivors.clear();
+            for (ClusteredAgent cluster : clusters) {
+                if (!cluster.getAgents().isEmpty()) {
+                    cluster.updateVelocityAndMass();
+                    space.updatePositionOnMap(cluster, layer);
+                    survivors.add(cluster);
+                }
+            }
+            swapClusters();
+        }
+
+        private void swapClusters() {
+            ArrayList<ClusteredAgent> previous = clusters;
+            clusters = survivors;
+            survivors = previous;
+        }
+
+        /**
+         * Moves the cluster to the centroid of its agents and fits the radius
+         * around them, taking out the agents that no longer fit in the
+         * maximum radius. False if no agent is left.
+         */
+        private boolean refit(ClusteredAgent cluster) {
+            final List<RVOAgent> members = cluster.getAgents();
+            double x = 0;
+            double y = 0;
+            for (RVOAgent agent : members) {
+                x += agent.getX();
+                y += agent.getY();
+            }
+            x /= members.size();
+            y /= members.size();
+
+            leaving.clear();
+            double radius = 0;
+            for (int i = 0; i < members.size(); i++) {
+                final RVOAgent agent = members.get(i);
+                final double extent = distance(x, y, agent.getX(), agent.getY()) + agent.getRadius();
+                if (extent > maxRadius) {
+                    leaving.add(agent);
+                } else if (extent > radius) {
+                    radius = extent;
+                }
+            }
+            if (!leaving.isEmpty()) {
+                members.removeAll(leaving);
+                for (RVOAgent agent : leaving) {
+                    clusterOf.remove(agent);
+                }
+                if (members.isEmpty()) {
+                    dissolvedClusters++;
+                    return false;
+                }
+                splitClusters++;
+            }
+            cluster.setCurrentPosition(x, y);
+            cluster.setRadius(radius);
+            return true;
+        }
+
+        /**
+         * Adds the agent to the nearest cluster it is already inside of, else
+         * to the cluster that grows least by taking it in, as long as the
+         * grown cluster is still mostly covered by agents, else to a new
+         * cluster of its own
+         */
+        private void assign(RVOAgent agent) {
+            final double x = agent.getX();
+            final double y = agent.getY();
+            final int cellX = cellX(x);
+            final int cellY = cellY(y);
+            ClusteredAgent inside = null;
+            double minDistance = Double.MAX_VALUE;
+            ClusteredAgent closest = null;
+            double minExtendedDistance = Double.MAX_VALUE;
+
+            for (int i = Math.max(0, cellX - 1); i <= Math.min(xCells - 1, cellX + 1); i++) {
+                for (int j = Math.max(0, cellY - 1); j <= Math.min(yCells - 1, cellY + 1); j++) {
+                    for (ClusteredAgent cluster : grid.get(i * yCells + j)) {
+                        final double distance = distance(cluster.getX(), cluster.getY(), x, y) + agent.getRadius();
+                        if (distance < cluster.getRadius()) {
+                            if (distance < minDistance) {
+                                minDistance = distance;
+                                inside = cluster;
+                            }
+                        } else if (inside == null) {
+                            final double extendedDistance = distance + cluster.getRadius();
+                            if (extendedDistance < minExtendedDistance
+                                    && extendedDistance <= 2 * maxRadius) {
+                                minExtendedDistance = extendedDistance;
+                                closest = cluster;
+                            }
+                        }
+                    }
+                }
+            }
+
+            if (inside != null) {
+                join(inside, agent);
+                return;
+            }
+            if (closest != null) {
+                enclose(closest.getX(), closest.getY(), closest.getRadius(), x, y, agent.getRadius());
+                if (enclosingRadius <= maxRadius
+                        && space.isCovered(enclosingX, enclosingY, enclosingRadius)) {
+                    join(closest, agent);
+                    closest.setRadius(enclosingRadius);
+                    move(closest, enclosingX, enclosingY);
+                    return;
+                }
+            }
+
+            ClusteredAgent cluster = new ClusteredAgent(space, agent, maxRadius);
+            clusterOf.put(agent, cluster);
+            cluster.gridCell = cellOf(x, y);
+            grid.get(cluster.gridCell).add(cluster);
+            clusters.add(cluster);
+            markChanged(cluster);
+            createdClusters++;
+        }
+
+        private void join(ClusteredAgent cluster, RVOAgent agent) {
+            cluster.simplyAddAgent(agent);
+            clusterOf.put(agent, cluster);
+            markChanged(cluster);
+        }
+
+        /**
+         * Merges the cluster into (or takes in) the first cluster near it
+         * that both fit in without leaving the merged cluster mostly empty
+         */
+        private void mergeWithNeighbour(ClusteredAgent cluster) {
+            if (cluster.getAgents().isEmpty()) {
+                return;
+            }
+            final int cellX = cluster.gridCell / yCells;
+            final int cellY = cluster.gridCell % yCells;
+            for (int i = Math.max(0, cellX - 1); i <= Math.min(xCells - 1, cellX + 1); i++) {
+                for (int j = Math.max(0, cellY - 1); j <= Math.min(yCells - 1, cellY + 1); j++) {
+                    for (ClusteredAgent other : grid.get(i * yCells + j)) {
+                        if (other == cluster || other.getAgents().isEmpty()) {
+                            continue;
+                        }
+                        enclose(cluster.getX(), cluster.getY(), cluster.getRadius(),
+                                other.getX(), other.getY(), other.getRadius());
+                        if (enclosingRadius <= maxRadius
+                                && space.isCovered(enclosingX, enclosingY, enclosingRadius)) {
+                            if (other.getAgents().size() > cluster.getAgents().size()) {
+                                merge(cluster, other);
+                            } else {
+                                merge(other, cluster);
+                            }
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Moves the agents of from into into, which becomes the last
+         * enclosing circle. from is left empty and dropped at the end of the
+         * step.
+         */
+        private void merge(ClusteredAgent from, ClusteredAgent into) {
+            for (RVOAgent agent : from.getAgents()) {
+                into.simplyAddAgent(agent);
+                clusterOf.put(agent, into);
+            }
+            from.getAgents().clear();
+            removeFromCell(from);
+            into.setRadius(enclosingRadius);
+            move(into, enclosingX, enclosingY);
+            mergedClusters++;
+        }
+
+        private void move(ClusteredAgent cluster, double x, double y) {
+            cluster.setCurrentPosition(x, y);
+            final int cell = cellOf(x, y);
+            if (cell != cluster.gridCell) {
+                removeFromCell(cluster);
+                grid.get(cell).add(cluster);
+                cluster.gridCell = cell;
+            }
+        }
+
+        /**
+         * Clusters are equal when they have the same agents, so they are
+         * taken out of their cell by identity
+         */
+        private void removeFromCell(ClusteredAgent cluster) {
+            final ArrayList<ClusteredAgent> cell = grid.get(cluster.gridCell);
+            for (int i = 0; i < cell.size(); i++) {
+                if (cell.get(i) == cluster) {
+                    cell.remove(i);
+                    return;
+                }
+            }
+        }
+
+        private void markChanged(ClusteredAgent cluster) {
+            if (!cluster.changed) {
+                cluster.changed = true;
+                changed.add(cluster);
+            }
+        }
+
+        /**
+         * Smallest circle containing the circles (x1, y1, r1) and (x2, y2,
+         * r2), the same one Clustered grows a cluster to when it adds an
+         * agent outside of it
+         */
+        private void enclose(double x1, double y1, double r1, double x2, double y2, double r2) {
+            final double distance = distance(x1, y1, x2, y2);
+            if (distance + r2 <= r1) {
+                enclosingX = x1;
+                enclosingY = y1;
+                enclosingRadius = r1;
+            } else if (distance + r1 <= r2) {
+                enclosingX = x2;
+                enclosingY = y2;
+                enclosingRadius = r2;
+            } else {
+                enclosingRadius = (distance + r1 + r2) / 2.0;
+                final double fromSecond = (enclosingRadius - r2) / distance;
+                enclosingX = x2 + (x1 - x2) * fromSecond;
+                enclosingY = y2 + (y1 - y2) * fromSecond;
+            }
+        }
+
+        private int cellOf(double x, double y) {
+            return cellX(x) * yCells + cellY(y);
+        }
+
+        private int cellX(double x) {
+            return clamp((int) Math.floor(x / cellSize), xCells);
+        }
+
+        private int cellY(double y) {
+            return clamp((int) Math.floor(y / cellSize), yCells);
+        }
+    }
+
+    private static int clamp(int cell, int cells) {
+        return (cell < 0) ? 0 : ((cell >= cells) ? cells - 1 : cell);
+    }
+
+    private static double distance(double x1, double y1, double x2, double y2) {
+        final double dx = x1 - x2;
+        final double dy = y1 - y2;
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+}
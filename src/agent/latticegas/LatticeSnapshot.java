@@ -0,0 +1,192 @@
+package agent.latticegas;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * LatticeSnapshot
+ *
+ * One state of the lattice gas. LatticeSpace updates the lattice in three
+ * rotating snapshots and publishes the one it has just written at the end of
+ * every lattice step, so trackers and the GUI read the lattice in place
+ * without locking and without copying it.
+ *
+ * A published snapshot is left untouched during the next lattice step, which
+ * only reads it, and is rewritten in the step after that. Consumers stepped
+ * by the simulation, like the data trackers, can therefore use it freely
+ * within a step. Consumers on other threads, like the GUI, must not read it in
+ * place: nothing orders their reads with the rewrite. They use
+ * LatticeSpace.getStableSnapshot() instead, a copy that is never rewritten.
+ *
+ * @author Vaisagh
+ */
+public final class LatticeSnapshot implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int numGridX;
+    private final int numGridY;
+    /**
+     * State of the cells, state[y][x], and the id + 10 of the agent in the
+     * cells that hold one, as in LatticeSpace
+     */
+    final byte[][] state;
+    final int[][] ids;
+    /**
+     * Number of lattice steps that led to this state, -1 while it is written
+     */
+    private volatile long epoch;
+    /**
+     * The agents in the order of the cells (y outer, x inner), and the index
+     * of every agent by id, -1 for the agents not on the lattice
+     */
+    private int numberOfAgents = 0;
+    private int[] agentIds = new int[16];
+    private int[] agentX = new int[16];
+    private int[] agentY = new int[16];
+    private int[] indexOfAgent = new int[16];
+
+    /**
+     * Copy of the published snapshot, for LatticeSpace.getStableSnapshot
+     */
+    LatticeSnapshot(LatticeSnapshot source) {
+        numGridX = source.numGridX;
+        numGridY = source.numGridY;
+        state = new byte[numGridY][];
+        ids = new int[numGridY][];
+        for (int j = 0; j < numGridY; j++) {
+            state[j] = source.state[j].clone();
+            ids[j] = source.ids[j].clone();
+        }
+        numberOfAgents = source.numberOfAgents;
+        agentIds = Arrays.copyOf(source.agentIds, Math.max(numberOfAgents, 1));
+        agentX = Arrays.copyOf(source.agentX, Math.max(numberOfAgents, 1));
+        agentY = Arrays.copyOf(source.agentY, Math.max(numberOfAgents, 1));
+        indexOfAgent = source.indexOfAgent.clone();
+        epoch = source.epoch;
+    }
+
+    LatticeSnapshot(int numGridX, int numGridY) {
+        this.numGridX = numGridX;
+        this.numGridY = numGridY;
+        state = new byte[numGridY][numGridX];
+        ids = new int[numGridY][numGridX];
+        Arrays.fill(indexOfAgent, -1);
+        epoch = 0;
+    }
+
+    /**
+     * Marks the snapshot as being rewritten
+     */
+    void invalidate() {
+        epoch = -1;
+    }
+
+    /**
+     * Indexes the agents of the lattice and marks it as the state after the
+     * given number of steps
+     */
+    void publish(long epoch) {
+        for (int k = 0; k < numberOfAgents; k++) {
+            indexOfAgent[agentIds[k]] = -1;
+        }
+        numberOfAgents = 0;
+        for (int j = 0; j < numGridY; j++) {
+            final byte[] row = state[j];
+            for (int i = 0; i < numGridX; i++) {
+                if (row[i] == LatticeSpace.AGENT) {
+                    addAgent(i, j);
+                }
+            }
+        }
+        this.epoch = epoch;
+    }
+
+    /**
+     * Indexes the agent in cell (i, j), for the agents put on the lattice
+     * before it is first stepped
+     */
+    void addAgent(int i, int j) {
+        final int id = ids[j][i] - 10;
+        if (numberOfAgents == agentIds.length) {
+            final int capacity = numberOfAgents * 2;
+            agentIds = Arrays.copyOf(agentIds, capacity);
+            agentX = Arrays.copyOf(agentX, capacity);
+            agentY = Arrays.copyOf(agentY, capacity);
+        }
+        if (id >= indexOfAgent.length) {
+            final int length = indexOfAgent.length;
+            indexOfAgent = Arrays.copyOf(indexOfAgent, Math.max(id + 1, length * 2));
+            Arrays.fill(indexOfAgent, length, indexOfAgent.length, -1);
+        }
+        agentIds[numberOfAgents] = id;
+        agentX[numberOfAgents] = i;
+        agentY[numberOfAgents] = j;
+        indexOfAgent[id] = numberOfAgents;
+        numberOfAgents++;
+    }
+
+    /**
+     * Number of lattice steps that led to this state. It changes when the
+     * snapshot is rewritten, and is -1 while that happens.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getNumGridX() {
+        return numGridX;
+    }
+
+    public int getNumGridY() {
+        return numGridY;
+    }
+
+    /**
+     * The value of the cell in the integer lattice: 0 = freeSpace 2 =
+     * obstacle and id + 10 for an agent
+     */
+    public int getCell(int i, int j) {
+        switch (state[j][i]) {
+            case LatticeSpace.AGENT:
+                return ids[j][i];
+            case LatticeSpace.OBSTACLE:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    public int getNumberOfAgents() {
+        return numberOfAgents;
+    }
+
+    /**
+     * Id of the k-th agent on the lattice
+     */
+    public int getAgentId(int k) {
+        return agentIds[k];
+    }
+
+    /**
+     * Column of the k-th agent on the lattice
+     */
+    public int getAgentX(int k) {
+        return agentX[k];
+    }
+
+    /**
+     * Row of the k-th agent on the lattice
+     */
+    public int getAgentY(int k) {
+        return agentY[k];
+    }
+
+    /**
+     * @return k such that the k-th agent on the lattice has the id, -1 if it
+     * is not on the lattice
+     */
+    public int indexOf(int agentId) {
+        return (agentId >= 0 && agentId < indexOfAgent.length) ? indexOfAgent[agentId] : -1;
+    }
+}
@@ -1,15 +1,15 @@
 package agent.latticegas;
 
-import agent.RVOAgent;
-import app.PropertySet;
 import app.RVOModel;
 import ec.util.MersenneTwisterFast;
 import environment.geography.Goals;
 import environment.geography.Obstacle;
 import environment.geography.Position;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 import javax.vecmath.Point2d;
+import sim.engine.ParallelSequence;
 import sim.engine.SimState;
 import sim.engine.Steppable;
 import sim.field.grid.IntGrid2D;
@@ -19,68 +19,172 @@ import sim.util.Int2D;
  * This class implements the lattice gas model. There will be only one agent
  * which represents the CA structure that is used for a lattice gas model.
  *
+ * The state of every cell is kept in a byte (empty, obstacle or agent) and the
+ * ids of the agents in a separate grid that is only touched where agents are.
+ * Both live in LatticeSnapshots that take turns: a step reads the snapshot
+ * of the previous step and writes the oldest one, instead of copying the whole
+ * lattice, and then publishes it for getSnapshot(). The number of agents is
+ * kept up to date as agents are placed and removed.
+ *
+ * With more than one lattice thread the lattice is cut into stripes of
+ * columns. Stripes two apart never touch the same cells, so the even stripes
+ * are updated in parallel and then the odd ones, each with its own random
+ * number generator. The result does not depend on the number of threads, but
+ * is not the same as the serial update, which goes through the lattice cell
+ * by cell with the simulation's random number generator. Deterministic
+ * simulations always update in stripes, with a single thread going through
+ * them in turn, so that they give the same lattice for any number of
+ * threads.
  *
  * @author Vaisagh
  */
-public class LatticeSpace {
+public class LatticeSpace implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     public static double DRIFT = 2.0;
-    public static final double LATTICEGRIDSIZE = 2.0 * RVOAgent.RADIUS;
+    /**
+     * Cell states. A cell is unset during a step until it is decided what it
+     * holds, and counts as empty otherwise.
+     */
+    static final byte UNSET = -1;
+    static final byte EMPTY = 0;
+    static final byte OBSTACLE = 2;
+    static final byte AGENT = 3;
+    /**
+     * Columns per stripe of the parallel update, at least 2 so that the
+     * stripes updated at the same time are more than a cell apart
+     */
+    private static final int STRIPE_WIDTH = 32;
+    /**
+     * Column the serial update starts from (see centreColumn)
+     */
+    private static final int START_COLUMN = 51;
+    /**
+     * Drift and cell size of the simulation this space belongs to
+     */
+    private final double drift;
+    private final double latticeGridSize;
     protected int numGridX;
     protected int numGridY;
     protected MersenneTwisterFast random;
-    protected double driftX;
-    protected double driftY;
     protected int directionX;
     protected int directionY;
     protected int numberOfAgents;
     /**
-     * This is the only space used by this model. 0 = freeSpace 1 = agent 2 =
-     * obstacle
+     * The snapshot being written, the one of the previous step and the one
+     * before, which is written next. state, ids, previousState and
+     * previousIds are the lattices of the first two.
+     */
+    private LatticeSnapshot current;
+    private LatticeSnapshot previous;
+    private LatticeSnapshot spare;
+    private volatile LatticeSnapshot published;
+    /**
+     * Last copy handed out by getStableSnapshot
+     */
+    private transient LatticeSnapshot stable;
+    private long epoch = 0;
+    private byte[][] state;
+    private int[][] ids;
+    private byte[][] previousState;
+    private int[][] previousIds;
+    /**
+     * Copy of the lattice for the GUI, 0 = freeSpace 2 = obstacle and id + 10
+     * for an agent. Only kept up to date once it has been asked for.
      */
     protected IntGrid2D space;
+    private volatile boolean spaceExported = false;
     /**
      * This is the model for local reference
      */
     protected RVOModel rvoModel;
     private ArrayList<GoalLines> goals;
     private int timeStepsPerMovement;
-    private final int[][] previousField;
+    /**
+     * Stripes of the parallel update and the threads working on them, null
+     * for the serial update
+     */
+    private final Stripe[] stripes;
+    private final Steppable stripeUpdates;
+    private int phase;
 
     public LatticeSpace(int xSize, int ySize, RVOModel rm) {
 
+        drift = rm.getConfig().getDrift();
+        latticeGridSize = 2.0 * rm.getConfig().getAgentRadius();
         /**
          * XSize and Ysize are specified in meters
          */
-        numGridX = (int) Math.round(xSize / LATTICEGRIDSIZE);
-        numGridY = (int) Math.round(ySize / LATTICEGRIDSIZE);
-        space = new IntGrid2D(numGridX, numGridY);
+        numGridX = (int) Math.round(xSize / latticeGridSize);
+        numGridY = (int) Math.round(ySize / latticeGridSize);
+        current = new LatticeSnapshot(numGridX, numGridY);
+        previous = new LatticeSnapshot(numGridX, numGridY);
+        spare = new LatticeSnapshot(numGridX, numGridY);
+        state = current.state;
+        ids = current.ids;
+        previousState = previous.state;
+        previousIds = previous.ids;
+        published = current;
 
-        for (int i = 0; i < numGridX; i++) {
-            for (int j = 0; j < numGridY; j++) {
-                space.set(i, j, 0);
-            }
-        }
         rvoModel = rm;
         random = rvoModel.random;
         goals = new ArrayList<GoalLines>();
 
         numberOfAgents = 0;
-        previousField = new int[space.field.length][space.field[0].length];
+
+        final int threads = rm.getConfig().getLatticeThreads();
+        if (threads > 1 || rm.getConfig().isDeterministic()) {
+            stripes = new Stripe[(numGridX + STRIPE_WIDTH - 1) / STRIPE_WIDTH];
+            for (int k = 0; k < stripes.length; k++) {
+                stripes[k] = new Stripe(k * STRIPE_WIDTH, Math.min(numGridX, (k + 1) * STRIPE_WIDTH),
+                        new MersenneTwisterFast(random.nextLong()));
+            }
+            final int numberOfChunks = Math.max(1, Math.min(threads, (stripes.length + 1) / 2));
+            Steppable[] chunks = new Steppable[numberOfChunks];
+            for (int c = 0; c < numberOfChunks; c++) {
+                chunks[c] = new StripeChunk(c, numberOfChunks);
+            }
+            stripeUpdates = (numberOfChunks > 1) ? new ParallelSequence(chunks) : chunks[0];
+        } else {
+            stripes = null;
+            stripeUpdates = null;
+        }
+    }
+
+    /**
+     * Seeds the random number generators of the stripes again from the
+     * simulation's generator, as they were when the space was created. Called
+     * after the simulation's generator got a new seed (see Checkpoint.fork),
+     * so that the stripes do not repeat the random numbers of the original.
+     */
+    public void reseedStripes() {
+        if (stripes != null) {
+            for (Stripe stripe : stripes) {
+                stripe.random.setSeed(random.nextLong());
+            }
+        }
     }
 
     public Int2D generateRandomLocation() {
-        int x = (int) (this.rvoModel.random.nextDouble() * (space.getWidth()));
-        int y = (int) (this.rvoModel.random.nextDouble() * (space.getHeight()));
+        int x = (int) (this.rvoModel.random.nextDouble() * numGridX);
+        int y = (int) (this.rvoModel.random.nextDouble() * numGridY);
         return new Int2D(x, y);
     }
 
     public void addAgentAt(Double x, Double y, int id) {
-        space.set((int) Math.ceil((x - (LATTICEGRIDSIZE / 2)) / LATTICEGRIDSIZE),
-                (int) Math.ceil((y - (LATTICEGRIDSIZE / 2)) / LATTICEGRIDSIZE), id + 10);
+        final int i = (int) Math.ceil((x - (latticeGridSize / 2)) / latticeGridSize);
+        final int j = (int) Math.ceil((y - (latticeGridSize / 2)) / latticeGridSize);
+        state[j][i] = AGENT;
+        ids[j][i] = id + 10;
+        current.addAgent(i, j);
         numberOfAgents++;
     }
 
+    private void setObstacle(int i, int j) {
+        state[j][i] = OBSTACLE;
+    }
+
     /**
      * Changing to just being the outline of an obstacle willhave to check later
      * if there is any problem with doing this.
@@ -92,10 +196,10 @@ public class LatticeSpace {
             Position currentVertex = tempObst.getVertices().get(i);
             Position nextVertex = tempObst.getVertices().get((i + 1) % tempObst.getVertices().size());
 
-            int x1 = (int) Math.floor(currentVertex.getX() / LATTICEGRIDSIZE);
-            int x2 = (int) Math.floor(nextVertex.getX() / LATTICEGRIDSIZE);
-            int y1 = (int) Math.floor(currentVertex.getY() / LATTICEGRIDSIZE);
-            int y2 = (int) Math.floor(nextVertex.getY() / LATTICEGRIDSIZE);
+            int x1 = (int) Math.floor(currentVertex.getX() / latticeGridSize);
+            int x2 = (int) Math.floor(nextVertex.getX() / latticeGridSize);
+            int y1 = (int) Math.floor(currentVertex.getY() / latticeGridSize);
+            int y2 = (int) Math.floor(nextVertex.getY() / latticeGridSize);
 
 //            assert (x1 == x2) || (y1 == y2);
 
@@ -104,14 +208,14 @@ public class LatticeSpace {
                 int startY = Math.min(y1, y2);
                 int endY = Math.max(y1, y2);
                 for (int j = startY; j <= endY; j++) {
-                    space.set(k, j, 2);
+                    setObstacle(k, j);
                 }
             } else if (y1 == y2) {
                 int j = y1;
                 int startX = Math.min(x1, x2);
                 int endX = Math.max(x1, x2);
                 for (int k = startX; k <= endX; k++) {
-                    space.set(k, j, 2);
+                    setObstacle(k, j);
                 }
             } else {
                 int mnx = Math.min(x1, x2);
@@ -124,50 +228,50 @@ public class LatticeSpace {
                     int k = mnx, j = mny;
                     if (slopeY > 0) {
                         for (; k <= mxx && j <= mxy; k++) {
-                            space.set(k, j, 2);
+                            setObstacle(k, j);
                             if (k % slopeY == 0) {
                                 j++;
                             }
                         }
                     } else {
                         for (; k <= mxx && j <= mxy; j++) {
-                            space.set(k, j, 2);
+                            setObstacle(k, j);
                             if (j % slopeX == 0) {
                                 k++;
                             }
                         }
                     }
                     while (k <= mxx) {
-                        space.set(k, j, 2);
+                        setObstacle(k, j);
                         k++;
                     }
                     while (j <= mxy) {
-                        space.set(k, j, 2);
+                        setObstacle(k, j);
                         j++;
                     }
                 } else {
                     int k = mnx, j = mxy;
                     if (slopeY > 0) {
                         for (; k <= mxx && j >= mny; k++) {
-                            space.set(k, j, 2);
+                            setObstacle(k, j);
                             if (k % slopeY == 0) {
                                 j--;
                             }
                         }
                     } else {
                         for (; k <= mxx && j >= mny; j--) {
-                            space.set(k, j, 2);
+                            setObstacle(k, j);
                             if (j % slopeX == 0) {
                                 k++;
                             }
                         }
                     }
                     while (k <= mxx) {
-                        space.set(k, j, 2);
+                        setObstacle(k, j);
                         k++;
                     }
                     while (j >= mny) {
-                        space.set(k, j, 2);
+                        setObstacle(k, j);
                         j--;
                     }
                 }
@@ -177,36 +281,97 @@ public class LatticeSpace {
 
     }
 
-    public Object getSpace() {
+    /**
+     * The lattice for the GUI. From now on it is updated at the end of every
+     * step, under this space's lock, so a reader holding the lock sees a
+     * complete step. MASON's displays draw it under the schedule's lock,
+     * which is also held while the simulation is stepped.
+     */
+    public synchronized Object getSpace() {
+        if (space == null) {
+            space = new IntGrid2D(numGridX, numGridY);
+        }
+        exportSpace();
+        spaceExported = true;
         return space;
     }
 
+    private synchronized void exportSpace() {
+        final LatticeSnapshot lattice = published;
+        for (int i = 0; i < numGridX; i++) {
+            final int[] column = space.field[i];
+            for (int j = 0; j < numGridY; j++) {
+                column[j] = lattice.getCell(i, j);
+            }
+        }
+    }
+
     public void scheduleLattice() {
         rvoModel.schedule.scheduleRepeating(new LatticeStep(), 1.0);
     }
 
+    /**
+     * Stops the threads of the parallel update. To be called when the
+     * simulation finishes.
+     */
+    public void cleanup() {
+        if (stripeUpdates instanceof ParallelSequence) {
+            ((ParallelSequence) stripeUpdates).cleanup();
+        }
+    }
+
     public void addGoal(Goals goal) {
         GoalLines tempGoal = new GoalLines(
                 goal.getStartPoint().getX(), goal.getStartPoint().getY(),
-                goal.getEndPoint().getX(), goal.getEndPoint().getY());
+                goal.getEndPoint().getX(), goal.getEndPoint().getY(), latticeGridSize);
         goals.add(tempGoal);
     }
 
-    public synchronized int[][] getField() {
-        int[][] result = new int[space.field.length][space.field[0].length];
-        for (int i = 0; i < space.field.length; i++) {
-            System.arraycopy(space.field[i], 0, result[i], 0, space.field[0].length);
+    /**
+     * The lattice after the last lattice step, to be read in place by
+     * consumers stepped by the simulation. See LatticeSnapshot for how long it
+     * stays valid.
+     */
+    public LatticeSnapshot getSnapshot() {
+        return published;
+    }
+
+    /**
+     * Copy of the lattice after the last lattice step that is never
+     * rewritten, for consumers on other threads. It is copied at most once
+     * per lattice step, under this space's lock, which the step holds while
+     * it publishes: the published snapshot is only rewritten two steps later,
+     * so it can't change while it is copied.
+     */
+    public synchronized LatticeSnapshot getStableSnapshot() {
+        final LatticeSnapshot lattice = published;
+        if (stable == null || stable.getEpoch() != lattice.getEpoch()) {
+            stable = new LatticeSnapshot(lattice);
+        }
+        return stable;
+    }
+
+    /**
+     * Copy of the lattice after the last lattice step, field[x][y]
+     */
+    public int[][] getField() {
+        final LatticeSnapshot lattice = published;
+        int[][] result = new int[numGridX][numGridY];
+        for (int i = 0; i < numGridX; i++) {
+            for (int j = 0; j < numGridY; j++) {
+                result[i][j] = lattice.getCell(i, j);
+            }
         }
         return result;
-//        return this.previousField;
     }
 
-    public synchronized ArrayList<Point2d> getAgentLocationList() {
+    public ArrayList<Point2d> getAgentLocationList() {
+        final LatticeSnapshot lattice = published;
         ArrayList<Point2d> agentLocationList = new ArrayList<Point2d>();
 
-        for (int i = 0; i < space.field.length; i++) {
-            for (int j = 0; j < space.field[0].length; j++) {
-                if ((space.get(i, j)) == 1) {
+        for (int i = 0; i < numGridX; i++) {
+            for (int j = 0; j < numGridY; j++) {
+                if (lattice.getCell(i, j) == 1) {
                     agentLocationList.add(new Point2d(i, j));
 
                 }
@@ -216,17 +381,12 @@ public class LatticeSpace {
         return agentLocationList;
     }
 
-    public synchronized HashMap<Integer, Point2d> getAgentLocationMap() {
+    public HashMap<Integer, Point2d> getAgentLocationMap() {
+        final LatticeSnapshot lattice = published;
         HashMap<Integer, Point2d> agentLocationMap = new HashMap<Integer, Point2d>();
 
-        for (int i = 0; i < space.field.length; i++) {
-            for (int j = 0; j < space.field[0].length; j++) {
-                if ((space.get(i, j)) > 2) {
-                    agentLocationMap.put(space.get(i, j) - 10, new Point2d(i, j));
-
-                }
-            }
-
+        for (int k = 0; k < lattice.getNumberOfAgents(); k++) {
+            agentLocationMap.put(lattice.getAgentId(k), new Point2d(lattice.getAgentX(k), lattice.getAgentY(k)));
         }
         return agentLocationMap;
     }
@@ -254,8 +414,8 @@ public class LatticeSpace {
     }
 
     public void setSpeed(double speed) {
-        final double distanceMovedInOneStep = RVOAgent.RADIUS * 2.0;
-        final double numberOfTimeStepsInOneSecond = 1.0 / PropertySet.TIMESTEP;
+        final double distanceMovedInOneStep = rvoModel.getConfig().getAgentRadius() * 2.0;
+        final double numberOfTimeStepsInOneSecond = 1.0 / rvoModel.getConfig().getTimeStep();
         this.timeStepsPerMovement = (int) ((distanceMovedInOneStep * numberOfTimeStepsInOneSecond) / speed);
     }
 
@@ -267,20 +427,33 @@ public class LatticeSpace {
         return numberOfAgents;
     }
 
-    private static class GoalLines {
+    private static class GoalLines implements Serializable {
+
+        private static final long serialVersionUID = 1L;
 
         Point2d start;
         Point2d end;
+        /**
+         * The ends rounded to cells
+         */
+        final int startX;
+        final int startY;
+        final int endX;
+        final int endY;
 
-        public GoalLines(double x1, double y1, double x2, double y2) {
+        public GoalLines(double x1, double y1, double x2, double y2, double latticeGridSize) {
             /**
              * CAREFUL : HARDCODED FOR SCENARIOS LIKE THIS
              *
              */
             y1 = (y1 < 0 ? 0 : y1);
             y2 = (y2 < 0 ? 0 : y2);
-            start = new Point2d(x1 / LatticeSpace.LATTICEGRIDSIZE, y1 / LatticeSpace.LATTICEGRIDSIZE);
-            end = new Point2d((x2 / LatticeSpace.LATTICEGRIDSIZE) - 1, y2 / LatticeSpace.LATTICEGRIDSIZE);
+            start = new Point2d(x1 / latticeGridSize, y1 / latticeGridSize);
+            end = new Point2d((x2 / latticeGridSize) - 1, y2 / latticeGridSize);
+            startX = (int) Math.round(start.getX());
+            startY = (int) Math.round(start.getY());
+            endX = (int) Math.round(end.getX());
+            endY = (int) Math.round(end.getY());
         }
 
         public Point2d getStart() {
@@ -320,312 +493,391 @@ public class LatticeSpace {
         }
     }
 
-    class LatticeStep implements Steppable {
+    /**
+     * Makes the lattice of the last step the previous one and starts writing
+     * the oldest snapshot, which is no longer published
+     */
+    private void swapBuffers() {
+        final LatticeSnapshot next = spare;
+        spare = previous;
+        previous = current;
+        current = next;
+        current.invalidate();
+        state = current.state;
+        ids = current.ids;
+        previousState = previous.state;
+        previousIds = previous.ids;
+    }
 
-        @Override
-        public void step(SimState ss) {
-            if (ss.schedule.getSteps() % LatticeSpace.this.timeStepsPerMovement != 0) {
-                return;
+    /**
+     * Starts the new lattice from the previous one: agents that reached the
+     * goal edge are removed and obstacles stay, every other cell is unset
+     */
+    private void startStep() {
+        for (int j = 0; j < numGridY; j++) {
+            final byte[] previousRow = previousState[j];
+            final byte[] row = state[j];
+            final boolean goalRow = (j == 0 && directionY == -1)
+                    || (j == numGridY - 1 && directionY == 1)
+                    || (j == numGridX - 1 && directionX == 1);
+            for (int i = 0; i < numGridX; i++) {
+                if (goalRow || (i == 0 && directionX == -1)) {
+                    // Goal reached
+                    row[i] = (previousRow[i] == AGENT) ? EMPTY : UNSET;
+                } else {
+                    // if it is an obstacle it remains an obstacle
+                    row[i] = (previousRow[i] == OBSTACLE) ? OBSTACLE : UNSET;
+                }
             }
-            assert DRIFT >= 0;
+        }
+    }
+
+    /**
+     * Column the update starts from, it then works its way to the left and to
+     * the right edge. START_COLUMN whatever the width of the lattice, as the
+     * original update did; narrower lattices start from their last column.
+     */
+    private int centreColumn() {
+        return Math.min(START_COLUMN, numGridX - 1);
+    }
 
+    /**
+     * Whether an agent cannot move into the cell: it holds an agent already,
+     * an obstacle, or an agent that has not moved yet
+     */
+    private boolean blocked(int i, int j) {
+        final byte cell = state[j][i];
+        return cell == AGENT || previousState[j][i] == OBSTACLE
+                || (cell == UNSET && previousState[j][i] == AGENT);
+    }
 
+    /**
+     * Puts the agent in the cell
+     *
+     * @return the change in the number of agents
+     */
+    private int place(int i, int j, int id) {
+        final int added = (state[j][i] == AGENT) ? 0 : 1;
+        state[j][i] = AGENT;
+        ids[j][i] = id;
+        return added;
+    }
 
-            for (int i = 0; i < space.field.length; i++) {
-                for (int j = 0; j < space.field[0].length; j++) {
-                    previousField[i][j] = space.get(i, j);
-                    space.set(i, j, -1);
-                }
+    /**
+     * Moves the agent of the previous lattice at (i, j) to (x, y)
+     *
+     * @return the change in the number of agents
+     */
+    private int move(int i, int j, int x, int y) {
+        int change = place(x, y, previousIds[j][i]); // move it forward
+        if (state[j][i] == AGENT) { // set the current space to 0
+            change--;
+        }
+        state[j][i] = EMPTY;
+        return change;
+    }
+
+    /**
+     * Goal of the agents of a run of cells. It carries over from one agent of
+     * the run to the next when no goal is found for an agent, as it always
+     * did.
+     */
+    private static final class Run implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        int goalXStart;
+        int goalYStart;
+        int goalXEnd;
+        int goalYEnd;
+
+        void start() {
+            goalXStart = goalYStart = goalXEnd = goalYEnd = 0;
+        }
+    }
+
+    /**
+     * Updates the run of cells in row j from column start towards stop
+     * (excluded)
+     *
+     * @return the change in the number of agents
+     */
+    private int updateRun(int start, int stop, int j, Run run, MersenneTwisterFast random) {
+        run.start();
+        int change = 0;
+        final int sign = (stop > start) ? 1 : -1;
+        for (int i = start; i != stop; i = i + sign) {
+            if (previousState[j][i] == AGENT && state[j][i] != AGENT) {
+                change += updateAgent(i, j, run, random);
             }
+        }
+        return change;
+    }
 
-            for (int i = 0; i < space.field.length; i++) {
-                for (int j = 0; j < space.field[0].length; j++) {
-                    if ((j == 0 && directionY == -1)
-                            || (j == space.getHeight() - 1 && directionY == 1)
-                            || (i == 0 && directionX == -1)
-                            || (j == space.getWidth() - 1 && directionX == 1)) {
-                        // Goal reached
-                        if (previousField[i][j] > 2) {
-                            space.set(i, j, 0);
-//                            numberOfAgents--;
-                        }
-//                        System.out.println(numberOfAgents);
-                    } else if (previousField[i][j] == 2) {
-                        // if it is an obstacle it
-                        //remains an obstacle
-                        space.set(i, j, 2);
-                    }
-                }
+    /**
+     * Moves the agent that was at (i, j) and has not been placed yet
+     *
+     * @return the change in the number of agents
+     */
+    private int updateAgent(int i, int j, Run run, MersenneTwisterFast random) {
+        /*
+         * TODO: It is interesting to note that this whole algo is very likely
+         * to get totally messed up when the orientation of the space is
+         * changed because i sort of assume that it is processed form left to
+         * right
+         */
+        if (directionX != 0) {
+            //IF THE AGENTS ARE SUPPOSED TO BE EVACUATING TO THE RIGHT OR LEFT
+            assert false;
+            return 0;
+        }
+        //HERE THE AGENTS ARE SUPPOSED TO BE MOVING UP OR DOWN
+
+        //Search for the closest goal in the direction of propagation
+        int minDistanceY = Integer.MAX_VALUE;
+        int minDistanceX = Integer.MAX_VALUE;
+        for (int g = 0; g < goals.size(); g++) {
+            final GoalLines tempGoal = goals.get(g);
+            if (j < tempGoal.start.y) {
+                continue;
             }
-            for (int j = 0; j < space.field[0].length; j++) {
-                updateMatrix(51, 52, j, previousField, space);
+            int distanceY = tempGoal.YdistanceTo(i, j);
+            if (distanceY < minDistanceY) {
+                run.goalXStart = tempGoal.startX;
+                run.goalYStart = tempGoal.startY;
+                run.goalXEnd = tempGoal.endX;
+                run.goalYEnd = tempGoal.endY;
+                minDistanceY = distanceY;
+                minDistanceX = tempGoal.XdistanceTo(i, j);
+            } else if (distanceY == minDistanceY) {
+                int distanceX = tempGoal.XdistanceTo(i, j);
+                if (distanceX < minDistanceX) {
+                    run.goalXStart = tempGoal.startX;
+                    run.goalYStart = tempGoal.startY;
+                    run.goalXEnd = tempGoal.endX;
+                    run.goalYEnd = tempGoal.endY;
+                    minDistanceY = distanceY;
+                    minDistanceX = distanceX;
+                }
             }
-            for (int j = 0; j < space.field[0].length; j++) {
-                updateMatrix(50, -1, j, previousField, space);
-                updateMatrix(52, space.field[0].length, j, previousField, space);
+        }
+
+        final int goalYCenter = (run.goalYStart + run.goalYEnd) / 2;
+        final int goalXCenter = (run.goalXStart + run.goalXEnd) / 2;
+
+        final double driftX = drift * (double) (Math.abs(i - goalXCenter) / (double) ((Math.abs(i - goalXCenter)) + (Math.abs(j - goalYCenter))));
+        final double driftY = drift * (double) (Math.abs(j - goalYCenter) / (double) ((Math.abs(i - goalXCenter)) + (Math.abs(j - goalYCenter))));
 
+        if (run.goalXStart == run.goalXEnd) {
+            return 0;
+        }
+        int myDirectionX = 0;
+        int myDirectionY = 0;
+        if (run.goalYStart > j) {
+            myDirectionY = 1;
+        } else if (run.goalYStart < j) {
+            myDirectionY = -1;
+        }
+        if (i < goalXCenter) {
+            myDirectionX = 1;
+        } else if (i > goalXCenter) {
+            myDirectionX = -1;
+        }
+
+        /**
+         * Now to check where to move: since it is horizontal door i.e. fixed
+         * Y -myDirectionY is not considered
+         */
+        if (blocked(i + myDirectionX, j)) {
+            if (blocked(i - myDirectionX, j)) {
+                if (blocked(i, j + myDirectionY)) {
+                    //All three are obstacles
+                    //so keep agent at current position
+                    return place(i, j, previousIds[j][i]);
+                } else {
+                    //Obstacles on two sides
+                    //Can move forward
+                    return move(i, j, i, j + myDirectionY);
+                }
+            } else {
+                if (blocked(i, j + myDirectionY)) {
+                    //up and positive directionx are obstacles
+                    //move in megativeX Direction
+                    return move(i, j, i - myDirectionX, j);
+                } else {
+                    //obstacle in positiveXdirection
+                    // move negative x or positive Y
+                    double p = random.nextDouble();
+                    if (p < ((1.0 - drift) / 2.0)) {
+                        //negative X direction
+                        return move(i, j, i - myDirectionX, j);
+                    } else {
+                        //positive Y direction
+                        return move(i, j, i, j + myDirectionY);
+                    }
+                }
             }
-            numberOfAgents = 0;
-
-            for (int i = 0;
-                    i < space.field.length;
-                    i++) {
-                for (int j = 0; j < space.field[0].length; j++) {
-                    if (space.get(i, j) == -1) {
-                        space.set(i, j, 0);
+        } else {
+            if (blocked(i - myDirectionX, j)) {
+                if (blocked(i, j + myDirectionY)) {
+                    //up and negative directionx are obstacles
+                    //move in positiveX Direction
+                    return move(i, j, i + myDirectionX, j);
+                } else {
+                    //only negative direction X is an obstacle
+                    // move positive x or positive Y
+                    double p = random.nextDouble();
+                    if (p < (driftX + (1.0 - drift) / 2.0)) {
+                        //positive X direction
+                        return move(i, j, i + myDirectionX, j);
+                    } else {
+                        //positive Y direction
+                        return move(i, j, i, j + myDirectionY);
                     }
-                    if (space.get(i, j) > 2) {
-//                        System.out.println(i+","+j);
-                        numberOfAgents++;
+                }
+            } else {
+                if (blocked(i, j + myDirectionY)) {
+                    //only positive direction Y is an obstacle
+                    // move positive x or negative X
+                    double p = random.nextDouble();
+                    if (p < (drift + (1.0 - drift) / 2.0)) {
+                        //positive X direction
+                        return move(i, j, i + myDirectionX, j);
+                    } else {
+                        //negative X direction
+                        return move(i, j, i - myDirectionX, j);
+                    }
+                } else {
+                    // no obstacles
+                    // all three directions possible
+                    double p = random.nextDouble();
+                    if (p > (1.0 - ((1.0 - drift) / 3.0))) {
+                        //negative X direction
+                        return move(i, j, i - myDirectionX, j);
+                    } else if (p < (((1.0 - drift) / 3.0) + driftY)) {
+                        //positive Y direction
+                        return move(i, j, i, j + myDirectionY);
+                    } else {
+                        //positive X direction
+                        return move(i, j, i + myDirectionX, j);
                     }
                 }
-//                System.out.println();
             }
-//            System.out.println(numberOfAgents);
         }
+    }
 
-        private void updateMatrix(int start, int stop, int j, int[][] previousField, IntGrid2D space) {
-            // Traverse through lattice
-            int myDirectionX = 0, myDirectionY = 0;
-            int goalYCenter = 0;
-            int goalXCenter = 0;
-            int goalXStart = 0;
-            int goalYStart = 0;
-            int goalXEnd = 0;
-            int goalYEnd = 0;
-            int sign = (stop - start) / Math.abs(stop - start);
-            for (int i = start; i != stop; i = i + sign) {
-                if (previousField[i][j] > 2) {
-                    //if it used to be an agent
-                    if (space.get(i, j) > 2) {
-                        //if it has already been set to be an agent then let it be an agent.
-                            /*
-                         * TODO: It is interesting to note that this whole
-                         * algo is very likely to get totally messed up when
-                         * the orientation of the space is changed because i
-                         * sort of assume that it is processed form left to right
-                         */
-                        continue;
-                    }
+    /**
+     * Columns from to to - 1 of the parallel update, with their own random
+     * numbers
+     */
+    private final class Stripe implements Serializable {
 
-                    boolean breakable = false; // FLAG TO BREAK FROM LOOP
-                    if (directionX != 0) {
-                        //IF THE AGENTS ARE SUPPOSED TO BE EVACUATING TO THE RIGHT OR LEFT
-                        assert false;
+        private static final long serialVersionUID = 1L;
 
+        private final int from;
+        private final int to;
+        private final MersenneTwisterFast random;
+        private final Run run = new Run();
+        int change;
 
-                    } else {
-                        //HERE THE AGENTS ARE SUPPOSED TO BE MOVING UP OR DOWN
-
-                        //Search for the closest goal in the direction of propagation
-//                            for (int p = j + directionY; p >= 0 && p < space.getHeight(); p += directionY) {
-                        int minDistanceY;
-                        minDistanceY = Integer.MAX_VALUE;
-                        int minDistanceX;
-                        minDistanceX = Integer.MAX_VALUE;
-//                                GoalLines chosenGoal = null;
-                        for (GoalLines tempGoal : goals) {
-                            if (j < tempGoal.start.y) {
-                                continue;
-                            }
-                            int distanceY = tempGoal.YdistanceTo(i, j);
-                            if (distanceY < minDistanceY) {
-
-                                goalXStart = (int) Math.round(tempGoal.getStart().getX());
-                                goalYStart = (int) Math.round(tempGoal.getStart().getY());
-                                goalXEnd = (int) Math.round(tempGoal.getEnd().getX());
-                                goalYEnd = (int) Math.round(tempGoal.getEnd().getY());
-                                minDistanceY = distanceY;
-                                minDistanceX = tempGoal.XdistanceTo(i, j);
-//                                     System.out.println(" Comparing p= " + p + "with " + goals.get(q).getStart().getY());
-//                                        break;
-                            } else if (distanceY == minDistanceY) {
-                                int distanceX = tempGoal.XdistanceTo(i, j);
-                                if (distanceX < minDistanceX) {
-
-                                    goalXStart = (int) Math.round(tempGoal.getStart().getX());
-                                    goalYStart = (int) Math.round(tempGoal.getStart().getY());
-                                    goalXEnd = (int) Math.round(tempGoal.getEnd().getX());
-                                    goalYEnd = (int) Math.round(tempGoal.getEnd().getY());
-                                    minDistanceY = distanceY;
-                                    minDistanceX = distanceX;
-//                                     System.out.println(" Comparing p= " + p + "with " + goals.get(q).getStart().getY());
-//                                        break;}
-                                }
-                            }
-//                                System.out.println(minDistance);
-//                                if (breakable) {
-//                                    break;
-//                                }
-//                            }
+        Stripe(int from, int to, MersenneTwisterFast random) {
+            this.from = from;
+            this.to = to;
+            this.random = random;
+        }
 
-                        }
+        /**
+         * Updates the stripe row by row, from the centre column outwards as
+         * the serial update does
+         */
+        void update() {
+            final int centre = centreColumn();
+            change = 0;
+            for (int j = 0; j < numGridY; j++) {
+                if (to <= centre) {
+                    change += updateRun(to - 1, from - 1, j, run, random);
+                } else if (from > centre) {
+                    change += updateRun(from, to, j, run, random);
+                } else {
+                    change += updateRun(centre, centre + 1, j, run, random);
+                    if (centre > from) {
+                        change += updateRun(centre - 1, from - 1, j, run, random);
+                    }
+                    if (centre + 1 < to) {
+                        change += updateRun(centre + 1, to, j, run, random);
+                    }
+                }
+            }
+        }
+    }
 
-//                        assert breakable == true;
-                        goalYCenter = (goalYStart + goalYEnd) / 2;
-                        goalXCenter = (goalXStart + goalXEnd) / 2;
+    /**
+     * Updates every numberOfChunks-th stripe of the current phase
+     */
+    private final class StripeChunk implements Steppable {
 
-                        driftX = DRIFT * (double) (Math.abs(i - goalXCenter) / (double) ((Math.abs(i - goalXCenter)) + (Math.abs(j - goalYCenter))));
-                        driftY = DRIFT * (double) (Math.abs(j - goalYCenter) / (double) ((Math.abs(i - goalXCenter)) + (Math.abs(j - goalYCenter))));
+        private static final long serialVersionUID = 1L;
 
+        private final int chunk;
+        private final int numberOfChunks;
 
-                        if (goalXStart != goalXEnd) {
-                            myDirectionY = myDirectionX = 0;
-                            if (goalYStart > j) {
-                                myDirectionY = 1;
-                            } else if (goalYStart < j) {
-                                myDirectionY = -1;
-                            }
-//                            if (i > goalXStart && i < goalXEnd) {
-//
-//                                myDirectionX = 0;
-//                                goalX = i;
-//
-//                            } else {
+        StripeChunk(int chunk, int numberOfChunks) {
+            this.chunk = chunk;
+            this.numberOfChunks = numberOfChunks;
+        }
 
+        @Override
+        public void step(SimState state) {
+            for (int k = phase + 2 * chunk; k < stripes.length; k += 2 * numberOfChunks) {
+                stripes[k].update();
+            }
+        }
+    }
 
-//                                System.out.println(goalXCenter);
-                            if (i < goalXCenter) {
-                                myDirectionX = 1;
+    class LatticeStep implements Steppable {
 
-                            } else if (i > goalXCenter) {
-                                myDirectionX = -1;
-                            }
+        private final Run run = new Run();
 
-                            //                         }
-//                            System.out.println("My direction y  =" + myDirectionY);
-//                            System.out.println("My direction x  =" + myDirectionX);
-                            /**
-                             * Now to check where to move: since it is
-                             * horizontal door i.e. fixed Y -myDirectionY is
-                             * not considered
-                             */
-                            if ((space.get(i + myDirectionX, j) > 2) || (previousField[i + myDirectionX][j] == 2) || ((space.get(i + myDirectionX, j) == -1) && (previousField[i + myDirectionX][j] > 2))) {
-                                if ((space.get(i - myDirectionX, j) > 2) || (previousField[i - myDirectionX][j] == 2) || ((space.get(i - myDirectionX, j) == -1) && (previousField[i - myDirectionX][j] > 2))) {
-                                    if ((space.get(i, j + myDirectionY) > 2) || (previousField[i][j + myDirectionY] == 2) || ((space.get(i, j + myDirectionY) == -1) && (previousField[i][j + myDirectionY] > 2))) {
-                                        //All three are obstacles
-                                        //so keep agent at current position
-//                                        System.out.println("Stationary ");
-                                        space.set(i, j, previousField[i][j]);
-
-                                    } else {
-                                        //Obstacles on two sides
-                                        //Can move forward
-//                                        System.out.println("Forward definite");
-                                        space.set(i, j + myDirectionY, previousField[i][j]); // move it forward
-                                        space.set(i, j, 0); // set the current space to 0
-                                    }
-
-
-
-                                } else {
-                                    if ((space.get(i, j + myDirectionY) > 2) || (previousField[i][j + myDirectionY] == 2) || ((space.get(i, j + myDirectionY) == -1) && (previousField[i][j + myDirectionY] > 2))) {
-                                        //up and positive directionx are obstacles
-                                        //move in megativeX Direction
-//                                        System.out.println("Left definite");
-                                        space.set(i - myDirectionX, j, previousField[i][j]); // move it forward
-                                        space.set(i, j, 0); // set the current space to 0
-
-
-
-                                    } else {
-                                        //obstacle in positiveXdirection
-                                        // move negative x or positive Y
-
-                                        double p = random.nextDouble();
-
-                                        if (p < ((1.0 - DRIFT) / 2.0)) {
-                                            //negative X direction
-                                            space.set(i - myDirectionX, j, previousField[i][j]); // move it forward
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("Left random");
-                                        } else {
-                                            //positive Y direction
-                                            space.set(i, j + myDirectionY, previousField[i][j]); // move it forward
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("forward random");
-                                        }
-                                    }
-                                }
-                            } else {
-                                if ((space.get(i - myDirectionX, j) > 2) || (previousField[i - myDirectionX][j] == 2) || ((space.get(i - myDirectionX, j) == -1) && (previousField[i - myDirectionX][j] > 2))) {
-                                    if ((space.get(i, j + myDirectionY) > 2) || (previousField[i][j + myDirectionY] == 2) || ((space.get(i, j + myDirectionY) == -1) && (previousField[i][j + myDirectionY] > 2))) {
-                                        //up and negative directionx are obstacles
-                                        //move in positiveX Direction
-                                        space.set(i + myDirectionX, j, previousField[i][j]); // move it forward
-                                        space.set(i, j, 0); // set the current space to 0
-
-//                                        System.out.println("right fixed");
-                                    } else {
-
-                                        //only negative direction X is an obstacle
-                                        // move positive x or positive Y
-
-                                        double p = random.nextDouble();
-
-                                        if (p < (driftX + (1.0 - DRIFT) / 2.0)) {
-                                            //positive X direction
-                                            space.set(i + myDirectionX, j, previousField[i][j]); // move it forward
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("right random out of front and right");
-
-                                        } else {
-                                            //positive Y direction
-                                            space.set(i, j + myDirectionY, previousField[i][j]); // move it forward
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("forward random");
-                                        }
-                                    }
-                                } else {
-                                    if ((space.get(i, j + myDirectionY) > 2) || (previousField[i][j + myDirectionY] == 2) || ((space.get(i, j + myDirectionY) == -1) && (previousField[i][j + myDirectionY] > 2))) {
-                                        //only positive direction Y is an obstacle
-                                        // move positive x or negative X
-
-                                        double p = random.nextDouble();
-
-                                        if (p < (DRIFT + (1.0 - DRIFT) / 2.0)) {
-                                            //positive X direction
-                                            space.set(i + myDirectionX, j, previousField[i][j]); // move it forward
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("right random");
-                                        } else {
-                                            //negative X direction
-                                            space.set(i - myDirectionX, j, previousField[i][j]); // move it forward
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("Left random");
-                                        }
-
-                                    } else {
-                                        // no obstacles
-                                        // all three directions possible
-
-                                        double p = random.nextDouble();
-
-                                        if (p > (1.0 - ((1.0 - DRIFT) / 3.0))) {
-                                            //negative X direction
-                                            space.set(i - myDirectionX, j, previousField[i][j]); // move it left
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("Left random out of all");
-                                        } else if (p < (((1.0 - DRIFT) / 3.0) + driftY)) {
-                                            //positive Y direction
-                                            space.set(i, j + myDirectionY, previousField[i][j]); // move it forward
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("front random out of all");
-                                        } else {
-                                            //positive X direction
-                                            space.set(i + myDirectionX, j, previousField[i][j]); // move it right
-                                            space.set(i, j, 0); // set the current space to 0
-//                                            System.out.println("right random out of all");
-                                        }
-
-                                    }
-                                }
-                            }
-                        }
-                    }
+        @Override
+        public void step(SimState ss) {
+            if (ss.schedule.getSteps() % LatticeSpace.this.timeStepsPerMovement != 0) {
+                return;
+            }
+            assert drift >= 0;
+
+            swapBuffers();
+            startStep();
+            int agents = 0;
+            if (stripes == null) {
+                final int centre = centreColumn();
+                for (int j = 0; j < numGridY; j++) {
+                    agents += updateRun(centre, centre + 1, j, run, random);
+                }
+                for (int j = 0; j < numGridY; j++) {
+                    agents += updateRun(centre - 1, -1, j, run, random);
+                    agents += updateRun(centre + 1, numGridX, j, run, random);
+                }
+            } else {
+                /*
+                 * even stripes, then odd stripes: stripes two apart are
+                 * never next to each other
+                 */
+                for (phase = 0; phase < 2; phase++) {
+                    stripeUpdates.step(ss);
+                }
+                for (Stripe stripe : stripes) {
+                    agents += stripe.change;
+                }
+            }
+            numberOfAgents = agents;
+            synchronized (LatticeSpace.this) {
+                epoch++;
+                current.publish(epoch);
+                published = current;
+                if (spaceExported) {
+                    exportSpace();
                 }
             }
-
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,339 @@
+package app;
+
+import agent.RVOAgent;
+import app.params.SimulationParameters;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.vecmath.Point2d;
+import javax.xml.bind.JAXBException;
+
+/**
+ * BatchRunner
+ *
+ * Runs a parameter sweep in a single JVM, replacing runSimulations.sh. The
+ * sweep file has the format of parameterList: one line per swept attribute of
+ * the properties file, the attribute name followed by its values, e.g.
+ *
+ * <pre>
+ * FilePath ClusteringTest/2.xml ClusteringTest/3.xml
+ * UseClustering false true
+ * </pre>
+ *
+ * Every combination of the values is run (the last line varying fastest, as
+ * in runSimulations.sh) with the seeds seed to seed + repeat - 1. The
+ * combinations are applied to the parameters of the properties file in memory
+ * and each gets its own SimulationConfig, so all the runs, of every
+ * combination, share one pool of worker threads with one RVOModel per thread.
+ * Every finished run adds a line to the summary file with its results: the
+ * number of steps, of agents and of agents within their radius of their goal
+ * at the end, and the mean speed of the agents over all the steps. A run that
+ * fails is recorded with the error in the Status column and logged, the other
+ * runs go on.
+ *
+ * Usage: app.BatchRunner -fileName properties.xml -sweep sweepFile
+ * [-seed 1] [-repeat 1] [-time steps] [-threads n] [-out summary.txt]
+ *
+ * HighPrecision is a setting of the whole JVM (see PrecisePoint), so when it
+ * changes from one combination to the next the runs already started are
+ * finished first.
+ *
+ * The data trackers name their files after the scenario, the clustering
+ * setting and the seed only, so runs of different combinations with the same
+ * seed would write to the same files. TrackData is therefore turned off when
+ * more than one combination is run.
+ *
+ * @author vaisaghvt
+ */
+public class BatchRunner {
+
+    private final String propertiesFile;
+    private final List<String> attributes = new ArrayList<String>();
+    private final List<String[]> values = new ArrayList<String[]>();
+    private final long firstSeed;
+    private final int repeat;
+    private final long maxSteps;
+    private final int threads;
+    private final PrintWriter summary;
+    private boolean trackDataDisabled = false;
+
+    public BatchRunner(String propertiesFile, String sweepFile, long firstSeed, int repeat,
+            long maxSteps, int threads, String summaryFile) throws IOException {
+        this.propertiesFile = propertiesFile;
+        this.firstSeed = firstSeed;
+        this.repeat = repeat;
+        this.maxSteps = maxSteps;
+        this.threads = threads;
+        if (!sweepFile.isEmpty()) {
+            readSweep(sweepFile);
+        }
+        summary = new PrintWriter(new BufferedWriter(new FileWriter(summaryFile)));
+    }
+
+    private void readSweep(String sweepFile) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(sweepFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 2) {
+                    continue;
+                }
+                attributes.add(tokens[0]);
+                String[] attributeValues = new String[tokens.length - 1];
+                System.arraycopy(tokens, 1, attributeValues, 0, attributeValues.length);
+                values.add(attributeValues);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Runs all the combinations and closes the summary file.
+     */
+    public void run() throws JAXBException, InterruptedException, ExecutionException {
+        PropertySet.initializeProperties(propertiesFile);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> runs = new ArrayList<Future<?>>();
+        try {
+            summary.print("Configuration");
+            for (String attribute : attributes) {
+                summary.print("\t" + attribute);
+            }
+            summary.println("\tSeed\tSteps\tAgents\tFinished\tMillis\tAtGoal\tMeanSpeed\tStatus");
+            summary.flush();
+
+            int[] indices = new int[attributes.size()];
+            int configuration = 0;
+            do {
+                String[] assignment = new String[indices.length];
+                for (int i = 0; i < indices.length; i++) {
+                    assignment[i] = values.get(i)[indices[i]];
+                }
+                runConfiguration(pool, runs, configuration, assignment);
+                configuration++;
+            } while (nextCombination(indices));
+            waitFor(runs);
+        } finally {
+            pool.shutdown();
+            summary.close();
+        }
+    }
+
+    private boolean nextCombination(int[] indices) {
+        for (int i = indices.length - 1; i >= 0; i--) {
+            indices[i]++;
+            if (indices[i] < values.get(i).length) {
+                return true;
+            }
+            indices[i] = 0;
+        }
+        return false;
+    }
+
+    private void runConfiguration(ExecutorService pool, List<Future<?>> runs, final int configuration,
+            final String[] assignment) throws JAXBException, InterruptedException, ExecutionException {
+        SimulationParameters params = PropertySet.loadParameters(PropertySet.PROPERTIES_FILEPATH);
+        for (int i = 0; i < assignment.length; i++) {
+            setParameter(params, attributes.get(i), assignment[i]);
+        }
+        if (Boolean.TRUE.equals(params.isTrackData()) && numberOfCombinations() > 1) {
+            params.setTrackData(false);
+            if (!trackDataDisabled) {
+                trackDataDisabled = true;
+                Logger.getLogger(BatchRunner.class.getName()).log(Level.WARNING,
+                        "TrackData is turned off, the runs of different combinations would write to the same files");
+            }
+        }
+        final SimulationConfig config = new SimulationConfig(params, PropertySet.XML_SOURCE_FOLDER);
+        if (config.isHighPrecision() != PropertySet.HIGH_PRECISION) {
+            waitFor(runs);
+            PropertySet.HIGH_PRECISION = config.isHighPrecision();
+        }
+
+        for (int job = 0; job < repeat; job++) {
+            final long seed = firstSeed + job;
+            runs.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    runReplication(config, configuration, assignment, seed);
+                }
+            }));
+        }
+    }
+
+    private int numberOfCombinations() {
+        int combinations = 1;
+        for (String[] attributeValues : values) {
+            combinations *= attributeValues.length;
+        }
+        return combinations;
+    }
+
+    private static void waitFor(List<Future<?>> runs) throws InterruptedException, ExecutionException {
+        for (Future<?> run : runs) {
+            run.get();
+        }
+        runs.clear();
+    }
+
+    private void runReplication(SimulationConfig config, int configuration, String[] assignment, long seed) {
+        long start = System.currentTimeMillis();
+        RVOModel model = null;
+        boolean running = true;
+        double speedSum = 0;
+        long speedSamples = 0;
+        String status = "ok";
+        try {
+            model = new RVOModel(seed, config);
+            model.start();
+            while (running && (maxSteps < 0 || model.schedule.getSteps() < maxSteps)) {
+                running = model.schedule.step(model);
+                for (RVOAgent agent : model.getAgentList()) {
+                    speedSum += Math.hypot(agent.getVelocityX(), agent.getVelocityY());
+                }
+                speedSamples += model.getAgentList().size();
+            }
+            if (running) {
+                model.finish();
+            }
+        } catch (RuntimeException ex) {
+            status = failed(model, configuration, seed, ex);
+        } catch (AssertionError ex) {
+            status = failed(model, configuration, seed, ex);
+        }
+        long millis = System.currentTimeMillis() - start;
+
+        StringBuilder line = new StringBuilder();
+        line.append(configuration);
+        for (String value : assignment) {
+            line.append('\t').append(value);
+        }
+        line.append('\t').append(seed);
+        line.append('\t').append(model == null ? 0 : model.schedule.getSteps());
+        line.append('\t').append(model == null || model.getAgentList() == null ? 0 : model.getAgentList().size());
+        line.append('\t').append(!running);
+        line.append('\t').append(millis);
+        line.append('\t').append(model == null || model.getAgentList() == null ? 0 : agentsAtGoal(model));
+        line.append('\t').append(speedSamples == 0 ? 0 : speedSum / speedSamples);
+        line.append('\t').append(status);
+        synchronized (summary) {
+            summary.println(line);
+            summary.flush();
+        }
+    }
+
+    /**
+     * Logs the failure of a run and stops the model's worker threads
+     *
+     * @return the status of the run for the summary
+     */
+    private static String failed(RVOModel model, int configuration, long seed, Throwable error) {
+        Logger.getLogger(BatchRunner.class.getName()).log(Level.SEVERE,
+                "Run of configuration " + configuration + " with seed " + seed + " failed", error);
+        if (model != null) {
+            try {
+                model.finish();
+            } catch (RuntimeException ex) {
+                Logger.getLogger(BatchRunner.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+        return "failed: " + error.toString().replace('\t', ' ').replace('\n', ' ');
+    }
+
+    /**
+     * Number of agents within their radius of their goal
+     */
+    private static int agentsAtGoal(RVOModel model) {
+        int atGoal = 0;
+        for (RVOAgent agent : model.getAgentList()) {
+            Point2d goal = agent.getGoal();
+            if (goal != null && goal.distance(agent.getCurrentPosition()) < agent.getRadius()) {
+                atGoal++;
+            }
+        }
+        return atGoal;
+    }
+
+    /**
+     * Sets the attribute of the properties file with the given name, through
+     * the setter JAXB generated for it.
+     */
+    static void setParameter(SimulationParameters params, String attribute, String value) {
+        for (Method method : SimulationParameters.class.getMethods()) {
+            if (method.getName().equals("set" + attribute) && method.getParameterTypes().length == 1) {
+                Class<?> type = method.getParameterTypes()[0];
+                Object argument;
+                if (type == Integer.class || type == int.class) {
+                    argument = Integer.valueOf(value);
+                } else if (type == Double.class || type == double.class) {
+                    argument = Double.valueOf(value);
+                } else if (type == Float.class || type == float.class) {
+                    argument = Float.valueOf(value);
+                } else if (type == Boolean.class || type == boolean.class) {
+                    argument = Boolean.valueOf(value);
+                } else {
+                    argument = value;
+                }
+                try {
+                    method.invoke(params, argument);
+                    return;
+                } catch (IllegalAccessException ex) {
+                    throw new IllegalArgumentException("Can't set " + attribute, ex);
+                } catch (InvocationTargetException ex) {
+                    throw new IllegalArgumentException("Can't set " + attribute, ex);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Unknown parameter " + attribute);
+    }
+
+    public static void main(String[] args) {
+        String propertiesFile = "";
+        String sweepFile = "";
+        String summaryFile = "batchSummary.txt";
+        long seed = 1;
+        int repeat = 1;
+        long maxSteps = -1;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equalsIgnoreCase("-fileName")) {
+                propertiesFile = args[i + 1];
+            } else if (args[i].equalsIgnoreCase("-sweep")) {
+                sweepFile = args[i + 1];
+            } else if (args[i].equalsIgnoreCase("-out")) {
+                summaryFile = args[i + 1];
+            } else if (args[i].equalsIgnoreCase("-seed")) {
+                seed = Long.parseLong(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("-repeat")) {
+                repeat = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("-time")) {
+                maxSteps = Long.parseLong(args[i + 1]);
+            } else if (args[i].equalsIgnoreCase("-threads")) {
+                threads = Integer.parseInt(args[i + 1]);
+            }
+        }
+
+        try {
+            new BatchRunner(propertiesFile, sweepFile, seed, repeat, maxSteps, threads, summaryFile).run();
+        } catch (Exception ex) {
+            Logger.getLogger(BatchRunner.class.getName()).log(Level.SEVERE, null, ex);
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,345 @@
+package app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Checkpoint
+ *
+ * The complete state of a simulation between two steps: the model with its
+ * random number generator, the schedule and everything scheduled on it, the
+ * agents, generators, devices, spaces, lattice, clusters and data trackers.
+ *
+ * A checkpoint is captured in memory by serializing the model, and is then
+ * compressed and written to disk by a background thread while the
+ * simulation goes on. The serialization itself is not in the background: the
+ * simulation is paused for the whole of capture, as the model must not change
+ * while it is serialized (about 0.4 s for 5,000 agents, 1 s for 20,000). The file is the gzipped serialized
+ * model, the format of MASON's own checkpoints (SimState.writeToCheckpoint),
+ * so the -checkpoint and -docheckpoint options of RVOModel.main read and write
+ * the same files. The gzip header of the files written here has an extra
+ * field, which gzip readers skip, holding a small header:
+ *
+ * <pre>
+ * int     HEADER_VERSION
+ * long    steps
+ * double  time
+ * boolean deterministic, high precision
+ * </pre>
+ *
+ * (big endian, in an extra field with the identifier 'R' 'V'), so that read
+ * only needs to decode this header and not the model.
+ *
+ * A restored model continues exactly as the simulation it was captured from
+ * would have. Forking restores it with another seed, to explore what would
+ * happen from the same state with different random choices. Either way the
+ * model is stepped by calling schedule.step(model) as in SimState.doLoop, it
+ * must not be started again.
+ *
+ * Data trackers keep what they collected before the checkpoint, except the
+ * binary trajectory writer which starts a new file (see
+ * BinaryTrajectoryWriter).
+ *
+ * @author michaellees
+ */
+public final class Checkpoint {
+
+    /**
+     * Identifier of the gzip extra field holding the header
+     */
+    private static final int HEADER_ID1 = 'R';
+    private static final int HEADER_ID2 = 'V';
+    /**
+     * Increase whenever the header changes
+     */
+    private static final int HEADER_VERSION = 1;
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final int GZIP_FEXTRA = 4;
+    private final byte[] image;
+    private final long steps;
+    private final double time;
+    private final boolean deterministic;
+    private final boolean highPrecision;
+
+    private Checkpoint(byte[] image, long steps, double time, boolean deterministic, boolean highPrecision) {
+        this.image = image;
+        this.steps = steps;
+        this.time = time;
+        this.deterministic = deterministic;
+        this.highPrecision = highPrecision;
+    }
+
+    /**
+     * Captures the state of the model. Must be called between two steps, on
+     * the thread that steps the model, which is blocked until the whole model
+     * is serialized.
+     */
+    public static Checkpoint capture(RVOModel model) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        model.preCheckpoint();
+        try {
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(model);
+            out.close();
+        } finally {
+            model.postCheckpoint();
+        }
+        return new Checkpoint(bytes.toByteArray(), model.schedule.getSteps(), model.schedule.getTime(),
+                model.getConfig().isDeterministic(), model.getConfig().isHighPrecision());
+    }
+
+    /**
+     * Reads a checkpoint written by write or by MASON. Only the header is
+     * decoded, the model is not deserialized until it is restored. MASON's
+     * checkpoints have no header, the model is deserialized (without waking
+     * it up) to find its steps and settings.
+     */
+    public static Checkpoint read(File file) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+        try {
+            in.mark(1 << 17);
+            final DataInputStream header = readHeader(in);
+            in.reset();
+            final byte[] image = readFully(new GZIPInputStream(in));
+            if (header != null) {
+                if (header.readInt() != HEADER_VERSION) {
+                    throw new IOException("Unknown checkpoint version in " + file);
+                }
+                return new Checkpoint(image, header.readLong(), header.readDouble(), header.readBoolean(),
+                        header.readBoolean());
+            }
+            final ObjectInputStream model = new ObjectInputStream(new ByteArrayInputStream(image));
+            try {
+                final RVOModel state = (RVOModel) model.readObject();
+                return new Checkpoint(image, state.schedule.getSteps(), state.schedule.getTime(),
+                        state.getConfig().isDeterministic(), state.getConfig().isHighPrecision());
+            } catch (ClassNotFoundException ex) {
+                throw new IOException("Not a checkpoint of this simulation: " + ex.getMessage());
+            } finally {
+                model.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * The header in the extra field of the gzip header at the start of in,
+     * or null if there is none
+     */
+    private static DataInputStream readHeader(InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        final byte[] fixed = new byte[10];
+        data.readFully(fixed);
+        if (((fixed[0] & 0xff) | (fixed[1] & 0xff) << 8) != GZIP_MAGIC || (fixed[3] & GZIP_FEXTRA) == 0) {
+            return null;
+        }
+        final byte[] extra = new byte[readUnsignedShort(data)];
+        data.readFully(extra);
+        for (int i = 0; i + 4 <= extra.length;) {
+            final int length = (extra[i + 2] & 0xff) | (extra[i + 3] & 0xff) << 8;
+            if ((extra[i] & 0xff) == HEADER_ID1 && (extra[i + 1] & 0xff) == HEADER_ID2) {
+                return new DataInputStream(new ByteArrayInputStream(extra, i + 4, length));
+            }
+            i += 4 + length;
+        }
+        return null;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1 << 16];
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, read);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A new model in the state that was captured
+     */
+    public RVOModel restore() throws IOException {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(image));
+        try {
+            final RVOModel model = (RVOModel) in.readObject();
+            model.awakeFromCheckpoint();
+            return model;
+        } catch (ClassNotFoundException ex) {
+            throw new IOException("Not a checkpoint of this simulation: " + ex.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A new model in the state that was captured whose random number
+     * generator is seeded with the given seed, and the generators of the
+     * lattice stripes from it. The model's seed() and the names of the files
+     * its data trackers write stay those of the original simulation, except
+     * the binary trajectory file which is named after the fork's seed (see
+     * RVOModel.getForkSeed).
+     */
+    public RVOModel fork(long seed) throws IOException {
+        final RVOModel model = restore();
+        model.random.setSeed(seed);
+        model.setForkSeed(seed);
+        if (model.getLatticeSpace() != null) {
+            model.getLatticeSpace().reseedStripes();
+        }
+        return model;
+    }
+
+    /**
+     * Writes the checkpoint to the file. The file only appears once it is
+     * complete, so an interrupted write never leaves a truncated checkpoint.
+     */
+    public void write(File file) throws IOException {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        final File temp = new File(file.getPath() + ".part");
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 1 << 16);
+        try {
+            writeGzip(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+            throw new IOException("Could not move " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Writes the image as a gzip stream, as GZIPOutputStream would, with the
+     * header in an extra field of the gzip header
+     */
+    private void writeGzip(OutputStream out) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(HEADER_VERSION);
+        header.writeLong(steps);
+        header.writeDouble(time);
+        header.writeBoolean(deterministic);
+        header.writeBoolean(highPrecision);
+        header.close();
+
+        writeUnsignedShort(out, GZIP_MAGIC);
+        out.write(Deflater.DEFLATED);
+        out.write(GZIP_FEXTRA);
+        writeInt(out, 0);           // no modification time
+        out.write(0);               // extra flags
+        out.write(255);             // unknown operating system
+        writeUnsignedShort(out, 4 + bytes.size());
+        out.write(HEADER_ID1);
+        out.write(HEADER_ID2);
+        writeUnsignedShort(out, bytes.size());
+        bytes.writeTo(out);
+
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            final DeflaterOutputStream compressed = new DeflaterOutputStream(out, deflater, 1 << 16);
+            compressed.write(image);
+            compressed.finish();
+        } finally {
+            deflater.end();
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(image);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, image.length);
+    }
+
+    /*
+     * The gzip header and trailer are little endian
+     */
+    private static void writeUnsignedShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        writeUnsignedShort(out, value & 0xffff);
+        writeUnsignedShort(out, (value >> 16) & 0xffff);
+    }
+
+    private static int readUnsignedShort(DataInputStream in) throws IOException {
+        final int low = in.readUnsignedByte();
+        return low | in.readUnsignedByte() << 8;
+    }
+
+    /**
+     * Writes the checkpoint to the file on a background thread, which is
+     * returned so that the caller can wait for it
+     */
+    public Thread writeInBackground(final File file) {
+        final Thread writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    write(file);
+                } catch (IOException ex) {
+                    Logger.getLogger(Checkpoint.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            }
+        }, "Checkpoint writer");
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Number of steps the simulation had taken when the checkpoint was
+     * captured
+     */
+    public long getSteps() {
+        return steps;
+    }
+
+    public double getTime() {
+        return time;
+    }
+
+    /**
+     * Whether the simulation was deterministic (see
+     * SimulationConfig.isDeterministic)
+     */
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    /**
+     * Whether the simulation ran with PropertySet.HIGH_PRECISION, which
+     * restoring the model sets for the whole JVM
+     */
+    public boolean isHighPrecision() {
+        return highPrecision;
+    }
+
+    /**
+     * Size of the uncompressed checkpoint in bytes
+     */
+    public int size() {
+        return image.length;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package app;
+
+import sim.engine.ParallelSequence;
+import sim.engine.SimState;
+import sim.engine.Sequence;
+import sim.engine.Steppable;
+
+/**
+ *
+ * Steps the SenseThink of all agents across a number of threads. The agents
+ * are split into contiguous chunks and every chunk is stepped by its own
+ * thread of a MASON ParallelSequence.
+ *
+ * SenseThink only reads the shared state and writes the agent's own chosen
+ * velocity, so the order in which agents are stepped does not change the
+ * result. The steppables are still shuffled exactly as a RandomSequence would
+ * do it so that the random number stream, and therefore the trajectories, are
+ * the same as in a serial run with the same seed.
+ *
+ * @author michaellees
+ */
+class ParallelSenseThink extends Sequence {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ParallelSequence chunks;
+
+    public ParallelSenseThink(Steppable[] senseThinkAgents, int numberOfThreads) {
+        super(senseThinkAgents);
+        int numberOfChunks = Math.max(1, Math.min(numberOfThreads, senseThinkAgents.length));
+        Steppable[] chunkSteps = new Steppable[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            chunkSteps[i] = new Chunk(
+                    (int) ((long) senseThinkAgents.length * i / numberOfChunks),
+                    (int) ((long) senseThinkAgents.length * (i + 1) / numberOfChunks));
+        }
+        chunks = new ParallelSequence(chunkSteps);
+    }
+
+    @Override
+    public void step(SimState state) {
+        /*
+         * Same shuffle as RandomSequence.step() so the same random numbers are
+         * drawn as in the serial schedule
+         */
+        for (int x = steps.length - 1; x >= 1; x--) {
+            int rand = state.random.nextInt(x + 1);
+            Steppable temp = steps[x];
+            steps[x] = steps[rand];
+            steps[rand] = temp;
+        }
+        chunks.step(state);
+    }
+
+    /**
+     * Stops the worker threads. To be called when the simulation finishes.
+     */
+    public void cleanup() {
+        chunks.cleanup();
+    }
+
+    private class Chunk implements Steppable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public void step(SimState state) {
+            for (int i = from; i < to; i++) {
+                steps[i].step(state);
+            }
+        }
+    }
+}
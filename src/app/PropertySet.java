@@ -44,16 +44,20 @@ public class PropertySet {
         // Add full path of class to be called for the constructor. Also if there are
         // parameters for the constructor change at the place where it is called. 
         // (find references to get Associated Class
-        RVO2("motionPlanners.rvo2.RVO_2_1"), 
-        RVO1Standard("motionPlanners.rvo1.RVO_1_Standard"), 
-        RVO1Acceleration("motionPlanners.rvo1.RVO_1_WithAccel"), 
-        RuleBasedNew("motionPlanners.rvo1.RuleBasedNew"), 
-        SocialForce("motionPlanners.socialforce.SocialForce");
+        // Set shared to true if the calculator keeps no state between calls, 
+        // then one instance is used by all the agents.
+        RVO2("motionPlanners.rvo2.RVO_2_1", true), 
+        RVO1Standard("motionPlanners.rvo1.RVO_1_Standard", false), 
+        RVO1Acceleration("motionPlanners.rvo1.RVO_1_WithAccel", false), 
+        RuleBasedNew("motionPlanners.rvo1.RuleBasedNew", false), 
+        SocialForce("motionPlanners.socialforce.SocialForce", true);
         
         private String velocityCalculator;
+        private boolean shared;
    
-        Model(String calculator){
+        Model(String calculator, boolean shared){
             this.velocityCalculator = calculator;
+            this.shared = shared;
         }
         
         
@@ -61,6 +65,10 @@ public class PropertySet {
             return this.velocityCalculator;
         }
         
+        public boolean isShared(){
+            return this.shared;
+        }
+        
        
     }
     //TODO : Be careful  about this seed... need to change for random simulation
@@ -88,6 +96,70 @@ public class PropertySet {
     public static int DEVICE_THRESHOLD;
     public static int DEVICE_MSG_THRESHOLD;
     public static int DEVICE_MAX_HOPS;
+    /**
+     * Number of threads used for the SenseThink phase of the agents. 1 steps
+     * them serially.
+     */
+    public static int SENSE_THINK_THREADS;
+    /**
+     * Keep the agents' positions, velocities, radii and maximum speeds in one
+     * AgentStateStore of primitive columns instead of per agent objects.
+     */
+    public static boolean AGENT_STATE_STORE;
+    /**
+     * Answer the agents' neighbour queries from a NeighbourGrid rebuilt once
+     * per step instead of from the Continuous2D agent space. Neighbours come
+     * in a different (but fixed) order, so runs differ from those without it.
+     */
+    public static boolean NEIGHBOUR_GRID;
+    /**
+     * With NEIGHBOUR_GRID, the number of nearest neighbours an agent senses.
+     * 0 for all the neighbours within the sensor range.
+     */
+    public static int MAX_NEIGHBOURS;
+    /**
+     * Sense the obstacle segments within the sensor range from the obstacle
+     * k-d tree, instead of the obstacle vertices within range (and their
+     * previous segments) from the obstacle space. RVO2 only.
+     */
+    public static boolean OBSTACLE_TREE;
+    /**
+     * With TRACK_DATA, stream the trajectories to a binary file while the
+     * simulation runs (BinaryTrajectoryWriter) instead of writing them as text
+     * at the end.
+     */
+    public static boolean BINARY_TRAJECTORY;
+    /**
+     * Keep the SocialForce wall force field of every scenario in a file under
+     * data/WallForceCache, computed by the first run and memory mapped by the
+     * following ones.
+     */
+    public static boolean WALL_FORCE_CACHE;
+    /**
+     * Keep the clusters between steps and only reassign the agents that left
+     * their cluster (IncrementalClustering) instead of rebuilding all the
+     * clusters every step.
+     */
+    public static boolean INCREMENTAL_CLUSTERING;
+    /**
+     * Number of threads updating the lattice gas in stripes. 1 updates it
+     * serially, cell by cell.
+     */
+    public static int LATTICE_THREADS;
+    /**
+     * Let the RVO1 planners try every third candidate angle first and then
+     * only the angles around the best of them, instead of all the candidates.
+     */
+    public static boolean RVO1_ADAPTIVE_SAMPLING;
+    /**
+     * The same parameters as the fields above, for the simulations created
+     * without a configuration of their own
+     */
+    private static SimulationConfig config;
+
+    public static SimulationConfig getConfig() {
+        return config;
+    }
 
     
     public static void writePropertiesToFile(String fileName) {
@@ -116,10 +188,22 @@ public class PropertySet {
         writer.println("Sensor= " + RVOAgent.SENSOR_RANGE);
 
 
+        writer.println("SenseThink threads =" + SENSE_THINK_THREADS);
+        writer.println("Agent state store =" + AGENT_STATE_STORE);
+        writer.println("Neighbour grid =" + NEIGHBOUR_GRID);
+        if (NEIGHBOUR_GRID) {
+            writer.println("\t Max neighbours =" + MAX_NEIGHBOURS);
+        }
+        writer.println("Obstacle tree =" + OBSTACLE_TREE);
+        writer.println("Binary trajectory =" + BINARY_TRAJECTORY);
+        writer.println("Wall force cache =" + WALL_FORCE_CACHE);
+        writer.println("Deterministic =" + (config != null && config.isDeterministic()));
+
         writer.println("Clustering =" + USECLUSTERING);
         if (USECLUSTERING) {
             writer.println("\t Alpha =" + ClusteredSpace.ALPHA);
             writer.println("\t Number Of Clustering Spaces =" + ClusteredSpace.NUMBER_OF_CLUSTERING_SPACES);
+            writer.println("\t Incremental clustering =" + INCREMENTAL_CLUSTERING);
         }
         writer.println("Info Processing =" + INFOPROCESSING);
         if (INFOPROCESSING) {
@@ -129,9 +213,11 @@ public class PropertySet {
         writer.println("RVO parameters");
         writer.println("\t Time Horizon =" + RVO_2_1.TIME_HORIZON);
         writer.println("\t Time Horizon obst =" + RVO_2_1.TIME_HORIZON_OBSTACLE);
+        writer.println("\t RVO1 adaptive sampling =" + RVO1_ADAPTIVE_SAMPLING);
 
         if (LATTICEMODEL) {
             writer.println("Drift =" + LatticeSpace.DRIFT);
+            writer.println("Lattice threads =" + LATTICE_THREADS);
         }
         writer.print("PBM Scenario ="+PBMSCENARIO);
         writer.close();
@@ -145,93 +231,118 @@ public class PropertySet {
         }
         XML_SOURCE_FOLDER = XML_SOURCE_FOLDER + "scenarios" + File.separatorChar;
         try {
-            XMLScenarioManager settings = XMLScenarioManager.instance("app.params");
-            SimulationParameters params = (SimulationParameters) settings.unmarshal(PropertySet.PROPERTIES_FILEPATH);
-
-            //MODEL PARAMETERS
-            SEED = params.getSeed();
-            WORLDXSIZE = params.getWorldXSize();
-            WORLDYSIZE = params.getWorldYSize();
-            GRIDSIZE = params.getGridSize();
-            TIMESTEP = params.getTimeStep();
-            INITIALISEFROMXML = params.isInitialiseFromXML();
-            LATTICEMODEL = params.isLatticeModel();
-            INFOPROCESSING = params.isInfoProcessing();
-            USECLUSTERING = params.isUseClustering();
-            TRACK_DATA = params.isTrackData();
-            FILEPATH = XML_SOURCE_FOLDER + params.getFilePath();
-            //          FILEPATH= XML_SOURCE_FOLDER+"//EvacTest//5.xml";
-            //FOR GUI
-            CHECKBOARD = params.isCheckBoard();
-            CHECK_SIZE_X = params.getDefaultCheckSizeX();
-            CHECK_SIZE_Y = params.getDefaultCheckSizeY();
-            SCALE = params.getDefaultScale();
-            HIGH_PRECISION = params.isHighPrecision();
-            
-            //AGENT DISPLAY PARAMETERS
-            AgentPortrayal.SHOW_ORCA_LINES = params.isShowLines();
-            AgentPortrayal.SHOW_VELOCITY = params.isShowVelocity();
-            AgentPortrayal.SHOW_TRAILS = params.isTrails();
-            
+            initializeProperties(loadParameters(PROPERTIES_FILEPATH));
+        } catch (JAXBException ex) {
+            Logger.getLogger(RVOModel.class.getName()).log(Level.SEVERE, null, ex);
+        }
+    }
+
+    /**
+     * Reads the parameters in the given properties file without applying them.
+     */
+    static SimulationParameters loadParameters(String filePath) throws JAXBException {
+        XMLScenarioManager settings = XMLScenarioManager.instance("app.params");
+        return (SimulationParameters) settings.unmarshal(filePath);
+    }
+
+    /**
+     * Sets all the properties from the given parameters. Scenario file paths
+     * are taken relative to XML_SOURCE_FOLDER, so the properties must have
+     * been initialized from a file once before.
+     */
+    static void initializeProperties(SimulationParameters params) {
+        config = new SimulationConfig(params, XML_SOURCE_FOLDER);
+
+        //MODEL PARAMETERS
+        SEED = params.getSeed();
+        WORLDXSIZE = params.getWorldXSize();
+        WORLDYSIZE = params.getWorldYSize();
+        GRIDSIZE = params.getGridSize();
+        TIMESTEP = params.getTimeStep();
+        INITIALISEFROMXML = params.isInitialiseFromXML();
+        LATTICEMODEL = params.isLatticeModel();
+        INFOPROCESSING = params.isInfoProcessing();
+        USECLUSTERING = params.isUseClustering();
+        TRACK_DATA = params.isTrackData();
+        FILEPATH = XML_SOURCE_FOLDER + params.getFilePath();
+        //          FILEPATH= XML_SOURCE_FOLDER+"//EvacTest//5.xml";
+        //FOR GUI
+        CHECKBOARD = params.isCheckBoard();
+        CHECK_SIZE_X = params.getDefaultCheckSizeX();
+        CHECK_SIZE_Y = params.getDefaultCheckSizeY();
+        SCALE = params.getDefaultScale();
+        HIGH_PRECISION = params.isHighPrecision();
+        SENSE_THINK_THREADS = params.getSenseThinkThreads();
+        AGENT_STATE_STORE = params.isAgentStateStore();
+        NEIGHBOUR_GRID = params.isNeighbourGrid();
+        MAX_NEIGHBOURS = params.getMaxNeighbours();
+        OBSTACLE_TREE = params.isObstacleTree();
+        BINARY_TRAJECTORY = params.isBinaryTrajectory();
+        WALL_FORCE_CACHE = params.isWallForceCache();
+        INCREMENTAL_CLUSTERING = params.isIncrementalClustering();
+        LATTICE_THREADS = params.getLatticeThreads();
+        RVO1_ADAPTIVE_SAMPLING = params.isRVO1AdaptiveSampling();
+        
+        //AGENT DISPLAY PARAMETERS
+        AgentPortrayal.SHOW_ORCA_LINES = params.isShowLines();
+        AgentPortrayal.SHOW_VELOCITY = params.isShowVelocity();
+        AgentPortrayal.SHOW_TRAILS = params.isTrails();
+        
 //            AgentPortrayal.SHOW_PERCEPTION = params.isShowPerception();
-            AgentPortrayal.SHOW_STP = false; //default false
+        AgentPortrayal.SHOW_STP = false; //default false
 
-            //AGENT PARAMETERS
-            RVOAgent.RADIUS = params.getAgentRadius();
-            RVOAgent.INFO_LIMIT = params.getInfoLimit();
-            RVOAgent.DEFAULT_PREFERRED_SPEED = params.getPreferredSpeed();
-            RVOAgent.SENSOR_RANGE = params.getSensorRange();
+        //AGENT PARAMETERS
+        RVOAgent.RADIUS = params.getAgentRadius();
+        RVOAgent.INFO_LIMIT = params.getInfoLimit();
+        RVOAgent.DEFAULT_PREFERRED_SPEED = params.getPreferredSpeed();
+        RVOAgent.SENSOR_RANGE = params.getSensorRange();
 
-            Geometry.EPSILON = params.getRVOEpsilon();  //@hunan: in this case, can avoid symmetric deadlock in 1to1 case, but cannot avoid crossing4corner cases
-            
-          
-            //Device PARAMETERS
-            Device.RADIUS = params.getAgentRadius();
+        Geometry.EPSILON = params.getRVOEpsilon();  //@hunan: in this case, can avoid symmetric deadlock in 1to1 case, but cannot avoid crossing4corner cases
+        
+      
+        //Device PARAMETERS
+        Device.RADIUS = params.getAgentRadius();
 //           Device.DEFAULT_PREFERRED_SPEED = params.getPreferredSpeed();
 //            Device.SENSOR_RANGE = params.getSensorRange();
-            Device.SENSOR_RANGE = params.getDeviceSensorRange();
-            Device.DEVICE_THRESHOLD= params.getDeviceThreshold();
-            Device.DEVICE_MSG_THRESHOLD = params.getDeviceMsgThreshold();
-            Device.DEVICE_MAX_HOPS = params.getDeviceMaxHops();
-            
-            Device.DEVICE_HOLDING_PROBABILITY = params.getDeviceHoldingProbability();
-            Device.DEVICE_TRUST  = params.getDeviceTrust();
-            
-            Device.FORBIDDENAREA_APPROACH = params.isForbiddenAreaApproach();
-            Device.MIN_DIST_TO_GOAL = params.isMinDistToGoal();
+        Device.SENSOR_RANGE = params.getDeviceSensorRange();
+        Device.DEVICE_THRESHOLD= params.getDeviceThreshold();
+        Device.DEVICE_MSG_THRESHOLD = params.getDeviceMsgThreshold();
+        Device.DEVICE_MAX_HOPS = params.getDeviceMaxHops();
+        
+        Device.DEVICE_HOLDING_PROBABILITY = params.getDeviceHoldingProbability();
+        Device.DEVICE_TRUST  = params.getDeviceTrust();
+        
+        Device.FORBIDDENAREA_APPROACH = params.isForbiddenAreaApproach();
+        Device.MIN_DIST_TO_GOAL = params.isMinDistToGoal();
 
-            
-            if (USECLUSTERING) {
-                ClusteredSpace.ALPHA = params.getAlpha();
-                ClusteredSpace.NUMBER_OF_CLUSTERING_SPACES = params.getNumberOfClusteringSpaces();
-            }
+        
+        if (USECLUSTERING) {
+            ClusteredSpace.ALPHA = params.getAlpha();
+            ClusteredSpace.NUMBER_OF_CLUSTERING_SPACES = params.getNumberOfClusteringSpaces();
+        }
 
-            MODEL = Model.valueOf(params.getModel());
+        MODEL = Model.valueOf(params.getModel());
 
-            if (MODEL == Model.SocialForce) {
-                LATTICEMODEL = false;
-            }
+        if (MODEL == Model.SocialForce) {
+            LATTICEMODEL = false;
+        }
 
-            if (LATTICEMODEL) {
-                LatticeSpace.DRIFT = params.getDrift();
-            }
+        if (LATTICEMODEL) {
+            LatticeSpace.DRIFT = params.getDrift();
+        }
 
 //            if (MODEL == PropertySet.Model.RVO2) {
-                
+            
 //                RVO_2_1.TIME_HORIZON = params.getTimeHorizon();
 //                RVO_2_1.TIME_HORIZON_OBSTACLE = params.getTimeHorizonObst();
 //            }
+        
+        if(params.isUseClustering()){
+            ClusteredSpace.NUMBER_OF_CLUSTERING_SPACES = params.getNumberOfClusteringSpaces();
             
-            if(params.isUseClustering()){
-                ClusteredSpace.NUMBER_OF_CLUSTERING_SPACES = params.getNumberOfClusteringSpaces();
-                
-            }
-
-            RVO_2_1.TIME_HORIZON = params.getTimeHorizon();
-            RVO_2_1.TIME_HORIZON_OBSTACLE = params.getTimeHorizonObst();
-         
-        } catch (JAXBException ex) {
-            Logger.getLogger(RVOModel.class.getName()).log(Level.SEVERE, null, ex);
         }
+
+        RVO_2_1.TIME_HORIZON = params.getTimeHorizon();
+        RVO_2_1.TIME_HORIZON_OBSTACLE = params.getTimeHorizonObst();
     }
 }
@@ -4,8 +4,10 @@
  */
 package app;
 
+import agent.RVOAgent;
 import agent.clustering.ClusteredSpace;
 import java.awt.Color;
+import java.awt.Graphics2D;
 import javax.swing.JFrame;
 import javax.swing.JPanel;
 import org.jfree.chart.ChartPanel;
@@ -14,6 +16,8 @@ import sim.display.Display2D;
 import sim.display.GUIState;
 import sim.engine.SimState;
 import sim.field.grid.ObjectGrid2D;
+import sim.portrayal.DrawInfo2D;
+import sim.portrayal.SimplePortrayal2D;
 import sim.portrayal.continuous.ContinuousPortrayal2D;
 import sim.portrayal.grid.FastValueGridPortrayal2D;
 import sim.portrayal.grid.ObjectGridPortrayal2D;
@@ -98,7 +102,21 @@ public class RVOGui extends GUIState {
 
 
         agentPortrayal.setField(model.getRvoSpace().getCurrentAgentSpace());
-        devicePortrayal.setField(model.getRvoSpace().getDeviceAgentSpace());
+        //the devices are drawn where their agents are, there is no separate
+        //space for them
+        devicePortrayal.setField(model.getRvoSpace().getCurrentAgentSpace());
+        devicePortrayal.setPortrayalForAll(new SimplePortrayal2D() {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void draw(Object object, Graphics2D graphics, DrawInfo2D info) {
+                RVOAgent agent = (RVOAgent) object;
+                if (agent.hasDevice()) {
+                    agent.getDevice().draw(agent.getDevice(), graphics, info);
+                }
+            }
+        });
   //      devicePortrayal.setPortrayalForClass(Device.class, new RectanglePortrayal2D(new Color(1.0f, 0.4f, 0.4f, 0.7f)));
 
 
@@ -114,7 +132,7 @@ public class RVOGui extends GUIState {
         }
 
         if (PropertySet.USECLUSTERING) {
-            for (int j = 0; j < ClusteredSpace.getNumberOfClusteringSpaces(); j++) {
+            for (int j = 0; j < ((ClusteredSpace) model.getRvoSpace()).getNumberOfClusteringSpaces(); j++) {
                 clusteredPortrayal[j].setField(((ClusteredSpace) model.getRvoSpace()).getClusteredSpace(j));
             }
         }
@@ -1,6 +1,7 @@
 package app;
 
 import agent.AgentGenerator;
+import agent.AgentStateStore;
 import agent.RVOAgent;
 import agent.RVOAgent.Act;
 import agent.RVOAgent.SenseThink;
@@ -9,10 +10,12 @@ import agent.latticegas.LatticeSpace;
 import app.PropertySet.Model;
 import app.dataTracking.BasicPositionVelocityTextWriter;
 import app.dataTracking.CWDataCollector;
+import app.dataTracking.BinaryTrajectoryWriter;
 import app.dataTracking.DataTracker;
 import app.dataTracking.PhysicaDataTracker;
 import app.dataTracking.DeviceDataTracker;
 import com.google.common.collect.HashMultimap;
+import device.DenseMessages;
 import device.Device;
 import device.Device.ActDevice;
 import device.Device.ClearDeviceMemory;
@@ -29,6 +32,7 @@ import environment.geography.RoadMapPoint;
 import environment.geography.SimulationScenario;
 import environment.xml.XMLScenarioManager;
 import java.awt.Color;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
@@ -36,12 +40,15 @@ import java.util.logging.Logger;
 import javax.vecmath.Point2d;
 import javax.vecmath.Vector2d;
 import javax.xml.bind.JAXBException;
+import motionPlanners.VelocityCalculator;
 import motionPlanners.socialforce.SocialForce;
 import sim.engine.RandomSequence;
 import sim.engine.Schedule;
 import sim.engine.Sequence;
 import sim.engine.SimState;
+import sim.engine.Steppable;
 import sim.engine.Stoppable;
+import utility.Geometry;
 
 /**
  * RVOModel
@@ -59,9 +66,10 @@ import sim.engine.Stoppable;
  */
 public class RVOModel extends SimState {
 
-    private int worldXSize = PropertySet.WORLDXSIZE;
-    private int worldYSize = PropertySet.WORLDYSIZE;
-    private double gridSize = PropertySet.GRIDSIZE;
+    private final SimulationConfig config;
+    private int worldXSize;
+    private int worldYSize;
+    private double gridSize;
     private RVOSpace rvoSpace;
     private LatticeSpace latticeSpace;
     /**
@@ -74,8 +82,39 @@ public class RVOModel extends SimState {
     private Stoppable generatorStopper;
     private DataTracker dataTracker = null;
     private String name;
-    public static RVOModel publicInstance = null;
     private boolean initialSchedulingDone;
+    private ParallelSenseThink parallelSenseThink = null;
+    /**
+     * Column store for the agents' state, null unless the configuration asks
+     * for an agent state store
+     */
+    private AgentStateStore agentStateStore = null;
+    /**
+     * Number of agent ids handed out in this simulation
+     */
+    private int agentCount = 0;
+    /**
+     * Number of device ids handed out in this simulation
+     */
+    private int deviceCount = 0;
+    /**
+     * Passes on the "too dense" messages of the devices every tick
+     */
+    private DenseMessages denseMessages;
+    /**
+     * False while an agent generator is still creating agents
+     */
+    private boolean generationFinished = true;
+    /**
+     * Velocity calculator used by all the agents if the model's calculator is
+     * shared (see PropertySet.Model)
+     */
+    private VelocityCalculator sharedVelocityCalculator = null;
+    /**
+     * Seed the model was forked with from a checkpoint (see Checkpoint.fork),
+     * null unless it is a fork
+     */
+    private Long forkSeed = null;
 
 //    //for different pbm scenarios to set initial preferredVelocity
 //    private int pbmScenario = 0;
@@ -95,16 +134,26 @@ public class RVOModel extends SimState {
 
     }
 
+    /**
+     * Creates a simulation with the configuration read by PropertySet
+     */
     public RVOModel(long seed) {
+        this(seed, PropertySet.getConfig());
+    }
+
+    public RVOModel(long seed, SimulationConfig config) {
         super(seed);
-        publicInstance = this;
-        if (PropertySet.INITIALISEFROMXML) {
+        this.config = config;
+        worldXSize = config.getWorldXSize();
+        worldYSize = config.getWorldYSize();
+        gridSize = config.getGridSize();
+        if (config.isInitialiseFromXML()) {
             try {
                 XMLScenarioManager settings = XMLScenarioManager.instance("environment.geography");
-                SimulationScenario scenario = (SimulationScenario) settings.unmarshal(PropertySet.FILEPATH);
+                SimulationScenario scenario = (SimulationScenario) settings.unmarshal(config.getScenarioFilePath());
                 RVOGui.scale = scenario.getScale();
-                worldXSize = SocialForce.Xmax = RVOGui.checkSizeX = scenario.getXsize();
-                worldYSize = SocialForce.Ymax = RVOGui.checkSizeY = scenario.getYsize();
+                worldXSize = RVOGui.checkSizeX = scenario.getXsize();
+                worldYSize = RVOGui.checkSizeY = scenario.getYsize();
             } catch (JAXBException ex) {
                 Logger.getLogger(RVOModel.class.getName()).log(Level.SEVERE, null, ex);
             }
@@ -122,16 +171,20 @@ public class RVOModel extends SimState {
         // This function is equivalent to a reset.
         //Need to readup a bit more to see if it is even necessary...
         setup();
-        if (PropertySet.INITIALISEFROMXML) {
+        if (config.isInitialiseFromXML()) {
             initialiseFromXML();
         } else {
             buildSpace();
 //            createAgents();
         }
-        if (PropertySet.TRACK_DATA) {
+        if (config.isTrackData()) {
 //            dataTracker = new CWDataCollector(this, agentList);
 
-            dataTracker = new BasicPositionVelocityTextWriter(this, agentList);
+            if (config.isBinaryTrajectory()) {
+                dataTracker = new BinaryTrajectoryWriter(this, agentList);
+            } else {
+                dataTracker = new BasicPositionVelocityTextWriter(this, agentList);
+            }
             schedule.scheduleRepeating(dataTracker, 7, 1.0);            
         }
         schedule.scheduleRepeating(new WrapUp(this, agentList), 8, 1.0);
@@ -143,7 +196,7 @@ public class RVOModel extends SimState {
      * Creates an appropriate space for Clustering
      */
     private void buildSpace() {
-        if (!PropertySet.USECLUSTERING) {
+        if (!config.isUseClustering()) {
             rvoSpace = new RVOSpace(worldXSize, worldYSize, gridSize, this);
         } else {
             rvoSpace = new ClusteredSpace(worldXSize, worldYSize, gridSize, this);
@@ -184,8 +237,13 @@ public class RVOModel extends SimState {
         agentList = new ArrayList<RVOAgent>();
         //obstacleList = new ArrayList<RVOObstacle>();
         agentLineList = new ArrayList<AgentGenerator>();
-        RVOAgent.agentCount = 0;
+        agentCount = 0;
+        deviceCount = 0;
+        generationFinished = true;
         initialSchedulingDone= false;
+        agentStateStore = config.isAgentStateStore() ? new AgentStateStore(config) : null;
+        sharedVelocityCalculator = null;
+        denseMessages = new DenseMessages(config.getDeviceMaxHops());
 
     }
 
@@ -209,21 +267,58 @@ public class RVOModel extends SimState {
 //        actStoppable = mySpace.getRvoModel().schedule.scheduleRepeating(actAgent, 3, 1.0);
 //        (new RVOAgent(this.rvoSpace)).scheduleAgent();
 
-        schedule.scheduleRepeating(Schedule.EPOCH, 2, new RandomSequence(senseThinkAgents.toArray(new SenseThink[]{})),1.0);
+        if (config.getSenseThinkThreads() > 1 && !config.isUseClustering()) {
+            //clustered sensing creates agents (and draws random numbers) while
+            //sensing, so it is only run in the serial schedule
+            parallelSenseThink = new ParallelSenseThink(senseThinkAgents.toArray(new SenseThink[]{}), config.getSenseThinkThreads());
+            schedule.scheduleRepeating(Schedule.EPOCH, 2, parallelSenseThink, 1.0);
+        } else {
+            schedule.scheduleRepeating(Schedule.EPOCH, 2, new RandomSequence(senseThinkAgents.toArray(new SenseThink[]{})),1.0);
+        }
         schedule.scheduleRepeating(Schedule.EPOCH, 3, new RandomSequence(clearDevices.toArray(new ClearDeviceMemory[]{})),1.0);
         
-        schedule.scheduleRepeating(Schedule.EPOCH, 4, new RandomSequence(senseThinkDevices.toArray(new SenseThinkDevice[]{})),1.0);
-        schedule.scheduleRepeating(Schedule.EPOCH, 5, new RandomSequence(actAgents.toArray(new Act[]{})), 1.0);
+        schedule.scheduleRepeating(Schedule.EPOCH, 4, new Sequence(new Steppable[]{
+                    new RandomSequence(senseThinkDevices.toArray(new SenseThinkDevice[]{})),
+                    denseMessages}), 1.0);
+        if (agentStateStore != null) {
+            schedule.scheduleRepeating(Schedule.EPOCH, 5, agentStateStore.createAct(agentList), 1.0);
+        } else {
+            schedule.scheduleRepeating(Schedule.EPOCH, 5, new RandomSequence(actAgents.toArray(new Act[]{})), 1.0);
+        }
         schedule.scheduleRepeating(Schedule.EPOCH, 6, new RandomSequence(actDevices.toArray(new ActDevice[]{})), 1.0);
 
         initialSchedulingDone = true;
 
     }
 
+    public SimulationConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * The velocity calculator of the configured model that is shared by all
+     * the agents of this simulation. Only for models whose calculator is
+     * shared.
+     */
+    public VelocityCalculator getSharedVelocityCalculator() {
+        assert config.getModel().isShared();
+        if (sharedVelocityCalculator == null) {
+            sharedVelocityCalculator = RVOAgent.createVelocityCalculator(config.getModel());
+        }
+        return sharedVelocityCalculator;
+    }
+
     public List<RVOAgent> getAgentList() {
         return agentList;
     }
 
+    /**
+     * @return the column store of the agents' state, or null if it is not used
+     */
+    public AgentStateStore getAgentStateStore() {
+        return agentStateStore;
+    }
+
     public int getWorldYSize() {
         return worldYSize;
     }
@@ -248,19 +343,56 @@ public class RVOModel extends SimState {
         return generatorStopper;
     }
 
+    public boolean isGenerationFinished() {
+        return generationFinished;
+    }
+
+    public void setGenerationFinished(boolean generationFinished) {
+        this.generationFinished = generationFinished;
+    }
+
+    /**
+     * Hands out the agent ids of this simulation in order, starting from 0
+     */
+    public int nextAgentId() {
+        return agentCount++;
+    }
+
+    public DenseMessages getDenseMessages() {
+        return denseMessages;
+    }
+
+    /**
+     * Hands out the device ids of this simulation in order, starting from 0
+     */
+    public int nextDeviceId() {
+        return deviceCount++;
+    }
+
+    /**
+     * Takes back the last id handed out, for an agent that reuses the id of
+     * another one
+     */
+    public void returnAgentId() {
+        agentCount--;
+    }
+
     private void addNewObstacle(RVOObstacle obstacle) {
         //obstacleList.add(obstacle);
         rvoSpace.addNewObstacle(obstacle);
     }
 
     public void addNewAgent(RVOAgent a) {
+        if (agentStateStore != null) {
+            a.attachTo(agentStateStore);
+        }
         a.createSteppables();
         if(a.hasDevice())   {
             a.getDevice().createSteppables();
         }
         agentList.add(a);
         rvoSpace.updatePositionOnMap(a, a.getX(), a.getY());
-        if (PropertySet.LATTICEMODEL) {
+        if (config.isLatticeModel()) {
             latticeSpace.addAgentAt(a.getX(), a.getY(), a.getId());
         }
         if(initialSchedulingDone){
@@ -284,17 +416,17 @@ public class RVOModel extends SimState {
     private void initialiseFromXML() {
         try {
             XMLScenarioManager settings = XMLScenarioManager.instance("environment.geography");
-            SimulationScenario scenario = (SimulationScenario) settings.unmarshal(PropertySet.FILEPATH);
+            SimulationScenario scenario = (SimulationScenario) settings.unmarshal(config.getScenarioFilePath());
             this.name = scenario.getName();
             double averageSpeed = 0.0;
-            if (!PropertySet.USECLUSTERING) {
+            if (!config.isUseClustering()) {
                 rvoSpace = new RVOSpace(worldXSize, worldYSize, gridSize, this);
             } else {
                 rvoSpace = new ClusteredSpace(worldXSize, worldYSize, gridSize, this);
                 ((ClusteredSpace) rvoSpace).scheduleClustering();
             }
 
-            if (PropertySet.LATTICEMODEL) {
+            if (config.isLatticeModel()) {
                 latticeSpace = new LatticeSpace(worldXSize, worldYSize, this);
                 latticeSpace.scheduleLattice();
                 latticeSpace.setDirection(scenario.getDirection());
@@ -371,7 +503,7 @@ public class RVOModel extends SimState {
             }
 
             List<Goals> xmlGoalList = scenario.getEnvironmentGoals();
-            if (PropertySet.LATTICEMODEL) {
+            if (config.isLatticeModel()) {
                 if (xmlGoalList.size() > 0) {
                     for (Goals tempGoal : xmlGoalList) {
                         latticeSpace.addGoal(tempGoal);
@@ -384,12 +516,13 @@ public class RVOModel extends SimState {
                 Obstacle tempObst = xmlObstacleList.get(i);
                 RVOObstacle tempRvoObst = new RVOObstacle(tempObst);
                 addNewObstacle(tempRvoObst);
-                if (PropertySet.LATTICEMODEL) {
+                if (config.isLatticeModel()) {
                     latticeSpace.addObstacle(tempObst);
                 }
             }
-            if (PropertySet.MODEL == Model.SocialForce) {
-                SocialForce.initializeObstacleSet(xmlObstacleList);
+            if (config.getModel() == Model.SocialForce) {
+                ((SocialForce) getSharedVelocityCalculator()).initializeObstacleSet(xmlObstacleList, worldXSize, worldYSize,
+                        config.isDeterministic(), config.isWallForceCache() ? new File("data" + File.separatorChar + "WallForceCache") : null);
             }
 
 
@@ -464,7 +597,7 @@ public class RVOModel extends SimState {
 //                    agent.setVelocity(groupDirection);
                 }
             }
-            if (PropertySet.LATTICEMODEL) {
+            if (config.isLatticeModel()) {
                 averageSpeed/=xmlAgentGroupList.size();
                 latticeSpace.setSpeed(averageSpeed);
             }
@@ -481,6 +614,13 @@ public class RVOModel extends SimState {
     @Override
     public void finish() {
         System.out.println("wrapping up");
+        if (parallelSenseThink != null) {
+            parallelSenseThink.cleanup();
+            parallelSenseThink = null;
+        }
+        if (latticeSpace != null) {
+            latticeSpace.cleanup();
+        }
         if (dataTracker != null) {
             dataTracker.storeToFile();
             dataTracker = null;
@@ -505,7 +645,7 @@ public class RVOModel extends SimState {
 //                double dy = y - agent.getCurrentPosition().getY();
 //                double d = Math.hypot(dx, dy);
 //
-//                double minDist = (agent.getRadius() * 2 + RVOAgent.RADIUS) / 2.0;
+//                double minDist = (agent.getRadius() * 2 + config.getAgentRadius()) / 2.0;
 //
 //                // if d<=minDist then the agents are 'overlapping'...
 //                if (d <= minDist) {
@@ -514,8 +654,29 @@ public class RVOModel extends SimState {
 //                }
 //            }
         }
-        return new Point2d(mnx + (x * RVOAgent.RADIUS * 2), mny + (y * RVOAgent.RADIUS * 2));
+        return new Point2d(mnx + (x * config.getAgentRadius() * 2), mny + (y * config.getAgentRadius() * 2));
+
+    }
+
+    /**
+     * Called once the model is read from a checkpoint (see Checkpoint).
+     * HighPrecision applies to the whole JVM, it is set back to the value the
+     * model was running with. The agent space is rebuilt (see
+     * RVOSpace.awakeFromCheckpoint).
+     */
+    @Override
+    public void awakeFromCheckpoint() {
+        super.awakeFromCheckpoint();
+        PropertySet.HIGH_PRECISION = config.isHighPrecision();
+        rvoSpace.awakeFromCheckpoint();
+    }
+
+    public Long getForkSeed() {
+        return forkSeed;
+    }
 
+    void setForkSeed(long seed) {
+        forkSeed = seed;
     }
 
     public static void main(String[] args) {
@@ -539,8 +700,8 @@ public class RVOModel extends SimState {
     }
 
     private int[][] initializeLattice(Double startx, Double starty, Double endx, Double endy) {
-        int sizeX = (int) Math.floor((endx - startx) / (RVOAgent.RADIUS * 2));
-        int sizeY = (int) Math.floor((endy - starty) / (RVOAgent.RADIUS * 2));
+        int sizeX = (int) Math.floor((endx - startx) / (config.getAgentRadius() * 2));
+        int sizeY = (int) Math.floor((endy - starty) / (config.getAgentRadius() * 2));
         return new int[sizeX][sizeY];
 
     }
@@ -550,7 +711,7 @@ public class RVOModel extends SimState {
         double angle = Math.PI *2 / number;
         List<Point2d> result=  new ArrayList<Point2d> (number);
         for(int i=0;i< number;i++){
-            result.add(new Point2d(center.x+ (r * Math.cos(angle*i)),center.y+ (r * Math.sin(angle*i))));
+            result.add(new Point2d(center.x+ (r * Geometry.cos(angle*i, config.isDeterministic())),center.y+ (r * Geometry.sin(angle*i, config.isDeterministic()))));
         }
         return result;
     }
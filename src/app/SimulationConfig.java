@@ -0,0 +1,295 @@
+package app;
+
+import app.PropertySet.Model;
+import app.params.SimulationParameters;
+import java.io.Serializable;
+
+/**
+ * SimulationConfig
+ *
+ * The parameters of one simulation, read once from the properties file and
+ * never changed afterwards. Every RVOModel has its own configuration (see
+ * RVOModel.getConfig) which the spaces, agents, devices and velocity
+ * calculators read instead of the static fields of PropertySet, RVOAgent,
+ * Device and so on. Simulations with different configurations can therefore
+ * run side by side in the same JVM.
+ *
+ * The static fields are still set from the same parameters for the GUI and
+ * for the tools that are not part of a simulation. Only the precision of
+ * PrecisePoint (PropertySet.HIGH_PRECISION) stays a setting of the whole JVM,
+ * the deterministic arithmetic (isDeterministic) is passed on from the
+ * configuration to Geometry and PrecisePoint.
+ *
+ * @author vaisaghvt
+ */
+public final class SimulationConfig implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int worldXSize;
+    private final int worldYSize;
+    private final double gridSize;
+    private final double timeStep;
+    private final Model model;
+    private final boolean latticeModel;
+    private final boolean infoProcessing;
+    private final boolean useClustering;
+    private final boolean initialiseFromXML;
+    private final boolean trackData;
+    private final String scenarioFilePath;
+    private final boolean highPrecision;
+    private final int senseThinkThreads;
+    private final boolean agentStateStore;
+    private final boolean neighbourGrid;
+    private final int maxNeighbours;
+    private final boolean obstacleTree;
+    private final boolean binaryTrajectory;
+    private final boolean wallForceCache;
+    private final boolean incrementalClustering;
+    private final int latticeThreads;
+    private final boolean rvo1AdaptiveSampling;
+    private final boolean deterministic;
+    private final double agentRadius;
+    private final double infoLimit;
+    private final double defaultPreferredSpeed;
+    private final int sensorRange;
+    private final float epsilon;
+    private final int deviceSensorRange;
+    private final int deviceThreshold;
+    private final int deviceMsgThreshold;
+    private final int deviceMaxHops;
+    private final double deviceHoldingProbability;
+    private final double deviceTrust;
+    private final boolean forbiddenAreaApproach;
+    private final boolean minDistToGoal;
+    private final double clusteringAlpha;
+    private final int numberOfClusteringSpaces;
+    private final double drift;
+    private final double timeHorizon;
+    private final double timeHorizonObstacle;
+
+    /**
+     * @param scenarioFolder folder the FilePath of the parameters is relative
+     * to
+     */
+    public SimulationConfig(SimulationParameters params, String scenarioFolder) {
+        worldXSize = params.getWorldXSize();
+        worldYSize = params.getWorldYSize();
+        gridSize = params.getGridSize();
+        timeStep = params.getTimeStep();
+        model = Model.valueOf(params.getModel());
+        latticeModel = params.isLatticeModel() && model != Model.SocialForce;
+        infoProcessing = params.isInfoProcessing();
+        useClustering = params.isUseClustering();
+        initialiseFromXML = params.isInitialiseFromXML();
+        trackData = params.isTrackData();
+        scenarioFilePath = scenarioFolder + params.getFilePath();
+        highPrecision = params.isHighPrecision();
+        senseThinkThreads = params.getSenseThinkThreads();
+        agentStateStore = params.isAgentStateStore();
+        neighbourGrid = params.isNeighbourGrid();
+        maxNeighbours = params.getMaxNeighbours();
+        obstacleTree = params.isObstacleTree();
+        binaryTrajectory = params.isBinaryTrajectory();
+        wallForceCache = params.isWallForceCache();
+        incrementalClustering = params.isIncrementalClustering();
+        latticeThreads = params.getLatticeThreads();
+        rvo1AdaptiveSampling = params.isRVO1AdaptiveSampling();
+        deterministic = params.isDeterministic();
+
+        agentRadius = params.getAgentRadius();
+        infoLimit = params.getInfoLimit();
+        defaultPreferredSpeed = params.getPreferredSpeed();
+        sensorRange = params.getSensorRange();
+        epsilon = params.getRVOEpsilon();
+
+        deviceSensorRange = params.getDeviceSensorRange();
+        deviceThreshold = params.getDeviceThreshold();
+        deviceMsgThreshold = params.getDeviceMsgThreshold();
+        deviceMaxHops = params.getDeviceMaxHops();
+        deviceHoldingProbability = params.getDeviceHoldingProbability();
+        deviceTrust = params.getDeviceTrust();
+        forbiddenAreaApproach = params.isForbiddenAreaApproach();
+        minDistToGoal = params.isMinDistToGoal();
+
+        clusteringAlpha = useClustering ? params.getAlpha() : 0;
+        numberOfClusteringSpaces = useClustering ? params.getNumberOfClusteringSpaces() : 0;
+        drift = latticeModel ? params.getDrift() : 2.0;
+        timeHorizon = params.getTimeHorizon();
+        timeHorizonObstacle = params.getTimeHorizonObst();
+    }
+
+    public int getWorldXSize() {
+        return worldXSize;
+    }
+
+    public int getWorldYSize() {
+        return worldYSize;
+    }
+
+    public double getGridSize() {
+        return gridSize;
+    }
+
+    public double getTimeStep() {
+        return timeStep;
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    public boolean isLatticeModel() {
+        return latticeModel;
+    }
+
+    public boolean isInfoProcessing() {
+        return infoProcessing;
+    }
+
+    public boolean isUseClustering() {
+        return useClustering;
+    }
+
+    public boolean isInitialiseFromXML() {
+        return initialiseFromXML;
+    }
+
+    public boolean isTrackData() {
+        return trackData;
+    }
+
+    /**
+     * @return path of the scenario file, including the scenario folder
+     */
+    public String getScenarioFilePath() {
+        return scenarioFilePath;
+    }
+
+    public boolean isHighPrecision() {
+        return highPrecision;
+    }
+
+    public int getSenseThinkThreads() {
+        return senseThinkThreads;
+    }
+
+    public boolean isAgentStateStore() {
+        return agentStateStore;
+    }
+
+    public boolean isNeighbourGrid() {
+        return neighbourGrid;
+    }
+
+    public int getMaxNeighbours() {
+        return maxNeighbours;
+    }
+
+    public boolean isObstacleTree() {
+        return obstacleTree;
+    }
+
+    public boolean isBinaryTrajectory() {
+        return binaryTrajectory;
+    }
+
+    public boolean isWallForceCache() {
+        return wallForceCache;
+    }
+
+    public boolean isIncrementalClustering() {
+        return incrementalClustering;
+    }
+
+    public int getLatticeThreads() {
+        return latticeThreads;
+    }
+
+    public boolean isRvo1AdaptiveSampling() {
+        return rvo1AdaptiveSampling;
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public double getAgentRadius() {
+        return agentRadius;
+    }
+
+    public double getInfoLimit() {
+        return infoLimit;
+    }
+
+    public double getDefaultPreferredSpeed() {
+        return defaultPreferredSpeed;
+    }
+
+    /**
+     * @return sensor range of the agents, in agent radii
+     */
+    public int getSensorRange() {
+        return sensorRange;
+    }
+
+    /**
+     * @return the tolerance used by the geometric tests and the size of the
+     * random perturbation of the velocities (RVOEpsilon)
+     */
+    public float getEpsilon() {
+        return epsilon;
+    }
+
+    public int getDeviceSensorRange() {
+        return deviceSensorRange;
+    }
+
+    public int getDeviceThreshold() {
+        return deviceThreshold;
+    }
+
+    public int getDeviceMsgThreshold() {
+        return deviceMsgThreshold;
+    }
+
+    public int getDeviceMaxHops() {
+        return deviceMaxHops;
+    }
+
+    public double getDeviceHoldingProbability() {
+        return deviceHoldingProbability;
+    }
+
+    public double getDeviceTrust() {
+        return deviceTrust;
+    }
+
+    public boolean isForbiddenAreaApproach() {
+        return forbiddenAreaApproach;
+    }
+
+    public boolean isMinDistToGoal() {
+        return minDistToGoal;
+    }
+
+    public double getClusteringAlpha() {
+        return clusteringAlpha;
+    }
+
+    public int getNumberOfClusteringSpaces() {
+        return numberOfClusteringSpaces;
+    }
+
+    public double getDrift() {
+        return drift;
+    }
+
+    public double getTimeHorizon() {
+        return timeHorizon;
+    }
+
+    public double getTimeHorizonObstacle() {
+        return timeHorizonObstacle;
+    }
+}
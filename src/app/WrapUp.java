@@ -4,13 +4,11 @@
  */
 package app;
 
-import agent.AgentGenerator;
 import agent.RVOAgent;
 import app.dataTracking.PhysicaDataTracker;
 import java.util.List;
 import sim.engine.SimState;
 import sim.engine.Steppable;
-import utility.Geometry;
 
 /**
  *
@@ -31,7 +29,7 @@ class WrapUp implements Steppable {
 
     @Override
     public void step(SimState arg0) {
-        if (PropertySet.LATTICEMODEL) {
+        if (state.getConfig().isLatticeModel()) {
             if (!state.getLatticeSpace().isEmpty()) {
              
 //                System.out.println(state.getLatticeSpace().getNumberOfAgents());
@@ -45,7 +43,7 @@ class WrapUp implements Steppable {
 //                    && agent.getCurrentPosition().getY() < state.getWorldYSize()) {
 //                return;
 //            }
-            if(agent.getVelocity().length()>0.1 && agent.getGoal().distance(agent.getCurrentPosition())>=Geometry.EPSILON){
+            if(agent.getVelocity().length()>0.1 && agent.getGoal().distance(agent.getCurrentPosition())>=state.getConfig().getEpsilon()){
                 return;
             }
         }
@@ -53,7 +51,7 @@ class WrapUp implements Steppable {
 //        for(RVOAgent agent:agents){
 //            
 //        }
-        if(!AgentGenerator.finished()){
+        if(!state.isGenerationFinished()){
             return;
         }
 //        System.out.println("here");
@@ -5,7 +5,6 @@
 package app.dataTracking;
 
 import agent.RVOAgent;
-import app.PropertySet;
 import app.RVOModel;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.io.Files;
@@ -37,7 +36,7 @@ import sim.engine.SimState;
  */
 public class BasicPositionVelocityTextWriter implements DataTracker {
 
-    private static int numberOfAgents;
+    private int numberOfAgents;
     private final RVOModel model;
     private int stepNumber;
     public static final String TRACKER_TYPE = "PosVelText";
@@ -81,8 +80,8 @@ public class BasicPositionVelocityTextWriter implements DataTracker {
         String currentFolder = "data"
                 + File.separatorChar + this.trackerType()
                 + File.separatorChar + model.getScenarioName()
-                + File.separatorChar + PropertySet.USECLUSTERING
-                + File.separatorChar + RVOModel.publicInstance.seed()
+                + File.separatorChar + model.getConfig().isUseClustering()
+                + File.separatorChar + model.seed()
                 + File.separatorChar;
 
         String testFile = currentFolder + "test";
@@ -95,9 +94,9 @@ public class BasicPositionVelocityTextWriter implements DataTracker {
 
 
         try {
-            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + RVOModel.publicInstance.seed() +  "_" + "Velocity", velocityListForTimeStep);
-            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + RVOModel.publicInstance.seed() + "_" + "Position", positionListForTimeStep);
-            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + RVOModel.publicInstance.seed() +  "_" + "PrefVelocity", prefVelocityListForTimeStep);
+            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + model.seed() +  "_" + "Velocity", velocityListForTimeStep);
+            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + model.seed() + "_" + "Position", positionListForTimeStep);
+            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + model.seed() +  "_" + "PrefVelocity", prefVelocityListForTimeStep);
         } catch (IOException ex) {
             Logger.getLogger(BasicPositionVelocityTextWriter.class.getName()).log(Level.SEVERE, null, ex);
             assert false;
@@ -116,7 +115,7 @@ public class BasicPositionVelocityTextWriter implements DataTracker {
         return null;
     }
 
-    private static <E extends Tuple2d> void writeToFileAgentTuple2dList(String fileName, ArrayListMultimap<Integer, E> dataForAgent) throws IOException {
+    private <E extends Tuple2d> void writeToFileAgentTuple2dList(String fileName, ArrayListMultimap<Integer, E> dataForAgent) throws IOException {
         System.out.println("Creating " + fileName);
         File file = new File(fileName);
         PrintWriter writer = null;
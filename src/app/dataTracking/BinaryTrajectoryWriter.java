@@ -0,0 +1,349 @@
+package app.dataTracking;
+
+import agent.AgentStateStore;
+import agent.RVOAgent;
+import app.RVOModel;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.vecmath.Point2d;
+import javax.vecmath.Vector2d;
+import org.jfree.chart.JFreeChart;
+import sim.engine.SimState;
+
+/**
+ * BinaryTrajectoryWriter
+ *
+ * Streaming replacement for BasicPositionVelocityTextWriter. Instead of
+ * keeping every step in memory until the end of the run, each step is
+ * appended to the trajectory file as soon as it is taken, so the memory used
+ * does not grow with the length of the run.
+ *
+ * The file is little endian. It starts with a header
+ *
+ * <pre>
+ * int    MAGIC ("RVOT")
+ * int    VERSION
+ * int    number of agents when tracking started
+ * int    number of columns
+ * per column: byte type (8 = double, 4 = int), short name length, name (ASCII)
+ * </pre>
+ *
+ * followed by one record per step
+ *
+ * <pre>
+ * int    step
+ * int    n, number of agents in the record
+ * int[n]    id
+ * double[n] x, y, vx, vy (one column after the other)
+ * </pre>
+ *
+ * so a record of n agents is always RECORD_HEADER_BYTES + n * AGENT_BYTES
+ * long. The columns are filled with bulk copies, from the AgentStateStore when
+ * the model has one.
+ *
+ * Records are collected in one of two direct buffers while a background thread
+ * writes the other to the file channel, so the simulation only waits for the
+ * disk when it gets a full buffer ahead of it.
+ *
+ * The file and the buffers are not part of a checkpoint (see
+ * app.Checkpoint). A writer restored from one starts a new file, named after
+ * the first step it records, with the steps from the checkpoint on. In a fork
+ * of the simulation the name also has the fork's seed, so that forks of the
+ * same checkpoint do not overwrite each other's files.
+ *
+ * @author vaisaghvt
+ */
+public class BinaryTrajectoryWriter implements DataTracker {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final String TRACKER_TYPE = "PosVelBinary";
+    public static final int MAGIC = 0x52564F54;
+    public static final int VERSION = 1;
+    public static final String[] COLUMNS = {"id", "x", "y", "vx", "vy"};
+    public static final int RECORD_HEADER_BYTES = 8;
+    public static final int AGENT_BYTES = 4 + 4 * 8;
+    private static final int BUFFER_BYTES = 1 << 20;
+    private final RVOModel model;
+    private final int numberOfAgents;
+    private int stepNumber;
+    /**
+     * Set once the file is closed, or could not be opened
+     */
+    private boolean closed = false;
+    private transient FileChannel channel;
+    private transient ByteBuffer active;
+    /**
+     * Buffers handed to the writer thread, in order, and the ones it is done
+     * with. Exactly two buffers go around.
+     */
+    private transient BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(2);
+    private transient BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(2);
+    /**
+     * Handed to the writer thread after the last buffer to stop it
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+    private transient Thread writerThread;
+    private transient volatile IOException writeFailure;
+    private int[] ids = new int[0];
+    private double[] xs = new double[0];
+    private double[] ys = new double[0];
+    private double[] vxs = new double[0];
+    private double[] vys = new double[0];
+
+    public BinaryTrajectoryWriter(RVOModel model, List<? extends RVOAgent> agents) {
+        this.model = model;
+        numberOfAgents = agents.size();
+        stepNumber = 0;
+    }
+
+    @Override
+    public void step(SimState ss) {
+        if (closed || (channel == null && !open())) {
+            return;
+        }
+        if (writeFailure != null) {
+            close();
+            return;
+        }
+        final int n = collect();
+        final int recordBytes = RECORD_HEADER_BYTES + n * AGENT_BYTES;
+        if (recordBytes > active.remaining()) {
+            if (recordBytes > active.capacity()) {
+                grow(recordBytes);
+            } else {
+                swap();
+            }
+        }
+        active.putInt(stepNumber);
+        active.putInt(n);
+        active.asIntBuffer().put(ids, 0, n);
+        active.position(active.position() + n * 4);
+        putColumn(xs, n);
+        putColumn(ys, n);
+        putColumn(vxs, n);
+        putColumn(vys, n);
+        stepNumber++;
+    }
+
+    /**
+     * Copies the state of the agents into the column arrays
+     *
+     * @return the number of agents
+     */
+    private int collect() {
+        final AgentStateStore store = model.getAgentStateStore();
+        if (store != null) {
+            final int n = store.size();
+            ensureCapacity(n);
+            for (int slot = 0; slot < n; slot++) {
+                ids[slot] = store.getAgent(slot).getId();
+            }
+            store.copyPositions(xs, ys);
+            store.copyVelocities(vxs, vys);
+            return n;
+        }
+
+        final List<RVOAgent> agents = model.getAgentList();
+        final int n = agents.size();
+        ensureCapacity(n);
+        for (int i = 0; i < n; i++) {
+            final RVOAgent agent = agents.get(i);
+            final Point2d position = agent.getCurrentPosition();
+            final Vector2d velocity = agent.getVelocity();
+            ids[i] = agent.getId();
+            xs[i] = position.x;
+            ys[i] = position.y;
+            vxs[i] = velocity.x;
+            vys[i] = velocity.y;
+        }
+        return n;
+    }
+
+    private void ensureCapacity(int n) {
+        if (ids.length < n) {
+            int capacity = Math.max(n, ids.length * 2);
+            ids = new int[capacity];
+            xs = new double[capacity];
+            ys = new double[capacity];
+            vxs = new double[capacity];
+            vys = new double[capacity];
+        }
+    }
+
+    private void putColumn(double[] column, int n) {
+        active.asDoubleBuffer().put(column, 0, n);
+        active.position(active.position() + n * 8);
+    }
+
+    private boolean open() {
+        String currentFolder = "data"
+                + File.separatorChar + this.trackerType()
+                + File.separatorChar + model.getScenarioName()
+                + File.separatorChar + model.getConfig().isUseClustering()
+                + File.separatorChar + model.seed()
+                + File.separatorChar;
+        File file = new File(currentFolder + model.getScenarioName() + "_" + model.seed() + "_" + "Trajectory"
+                + (stepNumber > 0 ? "_from" + stepNumber : "")
+                + (model.getForkSeed() != null ? "_fork" + model.getForkSeed() : ""));
+        try {
+            Files.createParentDirs(file);
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            output.setLength(0);
+            channel = output.getChannel();
+        } catch (IOException ex) {
+            Logger.getLogger(BinaryTrajectoryWriter.class.getName()).log(Level.SEVERE, null, ex);
+            closed = true;
+            return false;
+        }
+        System.out.println("Creating " + file);
+
+        final int bufferBytes = Math.max(BUFFER_BYTES, 4 * (RECORD_HEADER_BYTES + numberOfAgents * AGENT_BYTES));
+        active = newBuffer(bufferBytes);
+        free.add(newBuffer(bufferBytes));
+        writeHeader();
+        writerThread = new Thread(new Writer(), "trajectory writer " + model.seed());
+        writerThread.setDaemon(true);
+        writerThread.start();
+        return true;
+    }
+
+    private void writeHeader() {
+        active.putInt(MAGIC);
+        active.putInt(VERSION);
+        active.putInt(numberOfAgents);
+        active.putInt(COLUMNS.length);
+        for (String column : COLUMNS) {
+            active.put((byte) (column.equals("id") ? 4 : 8));
+            active.putShort((short) column.length());
+            for (int i = 0; i < column.length(); i++) {
+                active.put((byte) column.charAt(i));
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        full = new ArrayBlockingQueue<ByteBuffer>(2);
+        free = new ArrayBlockingQueue<ByteBuffer>(2);
+    }
+
+    private static ByteBuffer newBuffer(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Hands the active buffer to the writer thread and continues in the
+     * other one.
+     */
+    private void swap() {
+        try {
+            full.put(active);
+            active = free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Replaces both buffers by larger ones, once the writer thread is done
+     * with them, when the agents no longer fit in a buffer.
+     */
+    private void grow(int recordBytes) {
+        try {
+            full.put(active);
+            free.take();
+            free.take();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+        final int bufferBytes = 4 * recordBytes;
+        active = newBuffer(bufferBytes);
+        free.add(newBuffer(bufferBytes));
+    }
+
+    @Override
+    public String trackerType() {
+        return TRACKER_TYPE;
+    }
+
+    /**
+     * Writes what is left and closes the file. Everything else was already
+     * written while the simulation was running.
+     */
+    @Override
+    public void storeToFile() {
+        if (channel != null) {
+            close();
+            System.out.println("done");
+        }
+    }
+
+    private void close() {
+        try {
+            full.put(active);
+            full.put(END);
+            writerThread.join();
+            channel.close();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            Logger.getLogger(BinaryTrajectoryWriter.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        if (writeFailure != null) {
+            Logger.getLogger(BinaryTrajectoryWriter.class.getName()).log(Level.SEVERE, null, writeFailure);
+        }
+        closed = true;
+        channel = null;
+        active = null;
+        full.clear();
+        free.clear();
+    }
+
+    @Override
+    public boolean hasChart() {
+        return false;
+    }
+
+    @Override
+    public JFreeChart getChart() {
+        return null;
+    }
+
+    private class Writer implements Runnable {
+
+        @Override
+        public void run() {
+            try {
+                ByteBuffer buffer;
+                while ((buffer = full.take()) != END) {
+                    buffer.flip();
+                    try {
+                        while (buffer.hasRemaining() && writeFailure == null) {
+                            channel.write(buffer);
+                        }
+                    } catch (IOException ex) {
+                        writeFailure = ex;
+                    }
+                    buffer.clear();
+                    free.put(buffer);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -24,7 +24,6 @@ import org.jfree.data.xy.XYSeriesCollection;
 import org.joda.time.LocalDate;
 import org.joda.time.LocalTime;
 import sim.engine.SimState;
-import utility.Geometry;
 import utility.PrecisePoint;
 
 /**
@@ -104,7 +103,7 @@ public class CWDataCollector implements DataTracker {
             speedListForAgent.get(agent).add(agent.getVelocity().length());
 
             double distanceInCurrentTimeStep = agent.getVelocity().length()
-                    * PropertySet.TIMESTEP;
+                    * model.getConfig().getTimeStep();
             totalDistanceTravelled += distanceInCurrentTimeStep;
             double distanceSoFar = 0;
             if (stepNumber > 0) {
@@ -112,7 +111,7 @@ public class CWDataCollector implements DataTracker {
             }
             cumulativeDistanceForAgent.get(agent).add(distanceSoFar + distanceInCurrentTimeStep);
 
-            double energyInCurrentTimeStep = agent.getMass() * (E_S + (E_W * agent.getVelocity().lengthSquared())) * PropertySet.TIMESTEP;
+            double energyInCurrentTimeStep = agent.getMass() * (E_S + (E_W * agent.getVelocity().lengthSquared())) * model.getConfig().getTimeStep();
             double energySoFar = 0;
             if (stepNumber > 0) {
                 energySoFar = energySpentByAgent.get(agent).get(stepNumber - 1);
@@ -138,7 +137,7 @@ public class CWDataCollector implements DataTracker {
             if (stepNumber > 0) {
                 earlierInconvenienceCost = inconveniencesForAgent.get(agent).get(stepNumber - 1);
             }
-            if (relativeVelocity.length() > Geometry.EPSILON) {
+            if (relativeVelocity.length() > model.getConfig().getEpsilon()) {
                 countTotalInconvenience++;
                 inconveniencesForAgent.get(agent).add(earlierInconvenienceCost + 1);
             } else {
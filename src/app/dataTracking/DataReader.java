@@ -4,14 +4,12 @@
  */
 package app.dataTracking;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -25,7 +23,12 @@ import java.util.concurrent.Future;
  *
  * 
  * REads the data written as binary files and converts them to text files that
- * can later be read in matlab using one of the scripts below.
+ * can later be read in matlab using one of the scripts below. The files are
+ * memory mapped rather than read through a stream.
+ *
+ * Trajectory files of BinaryTrajectoryWriter (type TRAJECTORY) are exported
+ * as numpy arrays instead, into a directory next to the file (see
+ * TrajectoryFile.exportColumns).
  * @author vaisagh
  */
 public class DataReader {
@@ -41,7 +44,7 @@ public class DataReader {
 
 
         try {
-            DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(inputFile)));
+            MappedFile reader = new MappedFile(inputFile, ByteOrder.BIG_ENDIAN);
 
 
             File outputFile = new File(inputFile.getAbsoluteFile() + ".txt");
@@ -87,7 +90,7 @@ public class DataReader {
 
 
         try {
-            DataInputStream reader = new DataInputStream(new FileInputStream(inputFile));
+            MappedFile reader = new MappedFile(inputFile, ByteOrder.BIG_ENDIAN);
 
 
             File outputFile = new File(inputFile.getAbsoluteFile() + ".txt");
@@ -127,6 +130,26 @@ public class DataReader {
         return true;
     }
 
+    private static Boolean convertTrajectoryFile(File inputFile) {
+        if (!inputFile.exists()) {
+            System.out.println("Invalid file!" + inputFile);
+            return false;
+        }
+        try {
+            TrajectoryFile trajectory = new TrajectoryFile(inputFile);
+            try {
+                trajectory.exportColumns(new File(inputFile.getAbsolutePath() + "_columns"));
+            } finally {
+                trajectory.close();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+        System.out.print("*");
+        return true;
+    }
+
     public static List<File> findAllFile(String[] args) {
         if (args.length < 2) {
             System.out.println("you used: DataReader" + Arrays.toString(args));
@@ -140,6 +163,8 @@ public class DataReader {
             type = FILE_TYPE.FLOAT;
         } else if (args[0].equalsIgnoreCase(FILE_TYPE.CSV.toString())) {
             type = FILE_TYPE.CSV;
+        } else if (args[0].equalsIgnoreCase(FILE_TYPE.TRAJECTORY.toString())) {
+            type = FILE_TYPE.TRAJECTORY;
         } else {
             type = null;
             System.out.println("TYPE =" + Arrays.toString(FILE_TYPE.values()));
@@ -185,6 +210,8 @@ public class DataReader {
             return true;
         } else if (type == FILE_TYPE.LATTICE && fileName.contains("Lattice")) {
             return true;
+        } else if (type == FILE_TYPE.TRAJECTORY && fileName.matches(".*Trajectory(_from\\d+)?(_fork-?\\d+)?")) {
+            return true;
         }
         return false;
     }
@@ -206,7 +233,8 @@ public class DataReader {
 
         LATTICE,
         FLOAT,
-        CSV;
+        CSV,
+        TRAJECTORY;
     }
 
     public static void main(String[] args) {
@@ -219,6 +247,8 @@ public class DataReader {
             type = FILE_TYPE.FLOAT;
         } else if (args[0].equalsIgnoreCase(FILE_TYPE.CSV.toString())) {
             type = FILE_TYPE.CSV;
+        } else if (args[0].equalsIgnoreCase(FILE_TYPE.TRAJECTORY.toString())) {
+            type = FILE_TYPE.TRAJECTORY;
         } else {
             type = null;
             System.out.println("TYPE =" + Arrays.toString(FILE_TYPE.values()));
@@ -244,6 +274,8 @@ public class DataReader {
                     // TODO Auto-generated method stub
                     if (type == FILE_TYPE.LATTICE) {
                         return convertLatticeFile(finalFile);
+                    } else if (type == FILE_TYPE.TRAJECTORY) {
+                        return convertTrajectoryFile(finalFile);
                     } else {
                         return convertFloatFile(finalFile);
                     }
@@ -5,7 +5,6 @@
 package app.dataTracking;
 
 import agent.RVOAgent;
-import app.PropertySet;
 import app.RVOModel;
 import com.google.common.collect.ArrayListMultimap;
 import java.io.BufferedWriter;
@@ -118,17 +117,17 @@ public class DeviceDataTracker implements DataTracker {
                 for (RVOAgent agent : model.getAgentList()) {
             positionListForTimeStep.put(stepNumber, agent.getCurrentPosition());
             if (DistanceTravelled.containsKey(agent.getId()) && agent.getCurrentPosition().getY() >= exit) {
-                DistanceTravelled.put(agent.getId(), agent.getSpeed() * PropertySet.TIMESTEP + DistanceTravelled.get(agent.getId()));
+                DistanceTravelled.put(agent.getId(), agent.getSpeed() * model.getConfig().getTimeStep() + DistanceTravelled.get(agent.getId()));
             } else if (agent.getCurrentPosition().getY() >= exit) {
-                DistanceTravelled.put(agent.getId(), agent.getSpeed() * PropertySet.TIMESTEP);
+                DistanceTravelled.put(agent.getId(), agent.getSpeed() * model.getConfig().getTimeStep());
             }
 
             if (!TrackStart.containsKey(agent.getId())) {
-                TrackStart.put(agent.getId(), stepNumber * PropertySet.TIMESTEP);
+                TrackStart.put(agent.getId(), stepNumber * model.getConfig().getTimeStep());
             }
 
             if (agent.getCurrentPosition().getY() < exit && !TotalTimeTaken.containsKey(agent.getId())) {
-                TotalTimeTaken.put(agent.getId(), stepNumber * PropertySet.TIMESTEP - TrackStart.get(agent.getId()));
+                TotalTimeTaken.put(agent.getId(), stepNumber * model.getConfig().getTimeStep() - TrackStart.get(agent.getId()));
                 numAgentsExit++;
             }
 
@@ -145,19 +144,19 @@ public class DeviceDataTracker implements DataTracker {
             if (DistanceTravelled.containsKey(agent.getId()) && 
                     (agent.getCurrentPosition().getY() >= exitY && 
                     agent.getCurrentPosition().getX() <= exitX)) {
-                DistanceTravelled.put(agent.getId(), agent.getSpeed() * PropertySet.TIMESTEP + DistanceTravelled.get(agent.getId()));
+                DistanceTravelled.put(agent.getId(), agent.getSpeed() * model.getConfig().getTimeStep() + DistanceTravelled.get(agent.getId()));
             } else if (agent.getCurrentPosition().getY() >= exitY && agent.getCurrentPosition().getX() <= exitX) {
-                DistanceTravelled.put(agent.getId(), agent.getSpeed() * PropertySet.TIMESTEP);
+                DistanceTravelled.put(agent.getId(), agent.getSpeed() * model.getConfig().getTimeStep());
             }
 
             if (!TrackStart.containsKey(agent.getId())) {
-                TrackStart.put(agent.getId(), stepNumber * PropertySet.TIMESTEP);
+                TrackStart.put(agent.getId(), stepNumber * model.getConfig().getTimeStep());
             }
 
             if ((agent.getCurrentPosition().getY() <= exitY || 
                     agent.getCurrentPosition().getX()>= exitX) && 
                     !TotalTimeTaken.containsKey(agent.getId())) {
-                TotalTimeTaken.put(agent.getId(), stepNumber * PropertySet.TIMESTEP - TrackStart.get(agent.getId()));
+                TotalTimeTaken.put(agent.getId(), stepNumber * model.getConfig().getTimeStep() - TrackStart.get(agent.getId()));
                 numAgentsExit++;
             }
 
@@ -171,19 +170,19 @@ public class DeviceDataTracker implements DataTracker {
             if (DistanceTravelled.containsKey(agent.getId()) && 
                     (agent.getCurrentPosition().getY() <= exitY && 
                     agent.getCurrentPosition().getX() <= exitX)) {
-                DistanceTravelled.put(agent.getId(), agent.getSpeed() * PropertySet.TIMESTEP + DistanceTravelled.get(agent.getId()));
+                DistanceTravelled.put(agent.getId(), agent.getSpeed() * model.getConfig().getTimeStep() + DistanceTravelled.get(agent.getId()));
             } else if (agent.getCurrentPosition().getY() <= exitY && agent.getCurrentPosition().getX() <= exitX) {
-                DistanceTravelled.put(agent.getId(), agent.getSpeed() * PropertySet.TIMESTEP);
+                DistanceTravelled.put(agent.getId(), agent.getSpeed() * model.getConfig().getTimeStep());
             }
 
             if (!TrackStart.containsKey(agent.getId())) {
-                TrackStart.put(agent.getId(), stepNumber * PropertySet.TIMESTEP);
+                TrackStart.put(agent.getId(), stepNumber * model.getConfig().getTimeStep());
             }
 
             if ((agent.getCurrentPosition().getY() >= exitY || 
                     agent.getCurrentPosition().getX()>= exitX) && 
                     !TotalTimeTaken.containsKey(agent.getId())) {
-                TotalTimeTaken.put(agent.getId(), stepNumber * PropertySet.TIMESTEP - TrackStart.get(agent.getId()));
+                TotalTimeTaken.put(agent.getId(), stepNumber * model.getConfig().getTimeStep() - TrackStart.get(agent.getId()));
                 numAgentsExit++;
             }
 
@@ -193,7 +192,7 @@ public class DeviceDataTracker implements DataTracker {
         }
         
         if (!agentsInside) {
-            endTime = stepNumber * PropertySet.TIMESTEP;
+            endTime = stepNumber * model.getConfig().getTimeStep();
         }
         stepNumber++;
         numExitArray.add(numAgentsExit);
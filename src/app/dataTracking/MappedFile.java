@@ -0,0 +1,152 @@
+package app.dataTracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MappedFile
+ *
+ * Read only view of a data file through memory mapped windows, so that files
+ * larger than 2GB can be read and only the parts that are used get paged in.
+ * Window k covers the bytes from k * WINDOW_BYTES to (k + 1) * WINDOW_BYTES +
+ * 8, so every value of up to 8 bytes lies entirely in the window its first
+ * byte is in. Windows are mapped the first time they are used.
+ *
+ * Values are read at absolute positions (getInt etc., safe to use from
+ * several threads) or one after the other (readInt etc., one thread only). A
+ * window is mapped under the file's lock and published through an atomic
+ * array, so a thread that finds it already mapped also sees its byte order.
+ *
+ * @author vaisagh
+ */
+class MappedFile {
+
+    static final int WINDOW_BYTES = 1 << 28;
+    private static final int OVERLAP = 8;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    private final ByteOrder order;
+    private final AtomicReferenceArray<MappedByteBuffer> windows;
+    private long position = 0;
+
+    MappedFile(File inputFile, ByteOrder order) throws IOException {
+        file = new RandomAccessFile(inputFile, "r");
+        channel = file.getChannel();
+        size = channel.size();
+        this.order = order;
+        windows = new AtomicReferenceArray<MappedByteBuffer>((int) Math.max(1, (size + WINDOW_BYTES - 1) / WINDOW_BYTES));
+    }
+
+    long size() {
+        return size;
+    }
+
+    private ByteBuffer window(long at) {
+        final int index = (int) (at / WINDOW_BYTES);
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            window = map(index);
+        }
+        return window;
+    }
+
+    private synchronized MappedByteBuffer map(int index) {
+        if (windows.get(index) == null) {
+            final long start = (long) index * WINDOW_BYTES;
+            final long length = Math.min(size - start, WINDOW_BYTES + OVERLAP);
+            try {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+                window.order(order);
+                windows.set(index, window);
+            } catch (IOException ex) {
+                throw new IllegalStateException("Can't map " + file, ex);
+            }
+        }
+        return windows.get(index);
+    }
+
+    private static int offset(long at) {
+        return (int) (at % WINDOW_BYTES);
+    }
+
+    byte get(long at) {
+        return window(at).get(offset(at));
+    }
+
+    short getShort(long at) {
+        return window(at).getShort(offset(at));
+    }
+
+    int getInt(long at) {
+        return window(at).getInt(offset(at));
+    }
+
+    float getFloat(long at) {
+        return window(at).getFloat(offset(at));
+    }
+
+    double getDouble(long at) {
+        return window(at).getDouble(offset(at));
+    }
+
+    /**
+     * Copies n ints starting at the given position into destination
+     */
+    void getInts(long at, int[] destination, int from, int n) {
+        while (n > 0) {
+            final int chunk = Math.min(n, (WINDOW_BYTES - offset(at) + 3) / 4);
+            ByteBuffer view = window(at).duplicate().order(order);
+            view.position(offset(at));
+            view.asIntBuffer().get(destination, from, chunk);
+            at += chunk * 4L;
+            from += chunk;
+            n -= chunk;
+        }
+    }
+
+    /**
+     * Copies n doubles starting at the given position into destination
+     */
+    void getDoubles(long at, double[] destination, int from, int n) {
+        while (n > 0) {
+            final int chunk = Math.min(n, (WINDOW_BYTES - offset(at) + 7) / 8);
+            ByteBuffer view = window(at).duplicate().order(order);
+            view.position(offset(at));
+            view.asDoubleBuffer().get(destination, from, chunk);
+            at += chunk * 8L;
+            from += chunk;
+            n -= chunk;
+        }
+    }
+
+    long position() {
+        return position;
+    }
+
+    void position(long newPosition) {
+        position = newPosition;
+    }
+
+    int readInt() {
+        final int value = getInt(position);
+        position += 4;
+        return value;
+    }
+
+    float readFloat() {
+        final float value = getFloat(position);
+        position += 4;
+        return value;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+}
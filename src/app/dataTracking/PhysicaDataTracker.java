@@ -5,7 +5,7 @@
 package app.dataTracking;
 
 import agent.RVOAgent;
-import app.PropertySet;
+import agent.latticegas.LatticeSnapshot;
 import app.RVOModel;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.io.Files;
@@ -31,7 +31,7 @@ import sim.engine.SimState;
  */
 public class PhysicaDataTracker implements DataTracker {
 
-    private static int numberOfAgents;
+    private int numberOfAgents;
     private final RVOModel model;
     private int stepNumber;
     public static final float E_S = 2.23f;
@@ -59,9 +59,9 @@ public class PhysicaDataTracker implements DataTracker {
 
     @Override
     public void step(SimState ss) {
-        HashMap<Integer, Point2d> locationMapForLattice = null;
-        if (PropertySet.LATTICEMODEL) {
-            locationMapForLattice = model.getLatticeSpace().getAgentLocationMap();
+        LatticeSnapshot lattice = null;
+        if (model.getConfig().isLatticeModel()) {
+            lattice = model.getLatticeSpace().getSnapshot();
         }
 
         for (RVOAgent agent : model.getAgentList()) {
@@ -70,8 +70,10 @@ public class PhysicaDataTracker implements DataTracker {
 //
             positionListForTimeStep.put(stepNumber, agent.getCurrentPosition());
 
-            if (PropertySet.LATTICEMODEL && locationMapForLattice != null) {
-                latticeStateForTimeStep.put(stepNumber, locationMapForLattice.get(agent.getId()));
+            if (model.getConfig().isLatticeModel() && lattice != null) {
+                final int k = lattice.indexOf(agent.getId());
+                latticeStateForTimeStep.put(stepNumber,
+                        (k < 0) ? null : new Point2d(lattice.getAgentX(k), lattice.getAgentY(k)));
             }
         }
 
@@ -107,7 +109,7 @@ public class PhysicaDataTracker implements DataTracker {
         String currentFolder = "data"
                 + File.separatorChar + this.trackerType()
                 + File.separatorChar + model.getScenarioName()
-                + File.separatorChar + PropertySet.MODEL
+                + File.separatorChar + model.getConfig().getModel()
                 + File.separatorChar + model.seed()
                 + File.separatorChar;
 
@@ -121,13 +123,13 @@ public class PhysicaDataTracker implements DataTracker {
 
 
         try {
-            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + PropertySet.MODEL + "_" + RVOModel.publicInstance.seed() + "_"  + RVOAgent.RADIUS + "_"
+            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + model.getConfig().getModel() + "_" + model.seed() + "_"  + model.getConfig().getAgentRadius() + "_"
                     + "Velocity", velocityListForTimeStep);
-            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + PropertySet.MODEL + "_" + RVOModel.publicInstance.seed() + "_" + RVOAgent.RADIUS + "_"
+            writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + model.getConfig().getModel() + "_" + model.seed() + "_" + model.getConfig().getAgentRadius() + "_"
                     + "Position", positionListForTimeStep);
 
-            if (PropertySet.LATTICEMODEL) {
-                writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + PropertySet.MODEL + "_" + RVOModel.publicInstance.seed() + "_"
+            if (model.getConfig().isLatticeModel()) {
+                writeToFileAgentTuple2dList(currentFolder + model.getScenarioName() + "_" + model.getConfig().getModel() + "_" + model.seed() + "_"
                         + "LatticeState", latticeStateForTimeStep);
             }
         } catch (IOException ex) {
@@ -148,7 +150,7 @@ public class PhysicaDataTracker implements DataTracker {
         return null;
     }
 
-    private static <E extends Tuple2d> void writeToFileAgentTuple2dList(String fileName, ArrayListMultimap<Integer, E> dataForAgent) throws IOException {
+    private <E extends Tuple2d> void writeToFileAgentTuple2dList(String fileName, ArrayListMultimap<Integer, E> dataForAgent) throws IOException {
         System.out.println("Creating " + fileName);
         File fileX = new File(fileName + "_x");
         File fileY = new File(fileName + "_y");
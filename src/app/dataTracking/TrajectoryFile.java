@@ -0,0 +1,408 @@
+package app.dataTracking;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * TrajectoryFile
+ *
+ * Reader for the files written by BinaryTrajectoryWriter. The file is memory
+ * mapped (see MappedFile) and indexed once when it is opened, by reading the
+ * small header of every record, after which any (step, agent) value can be
+ * read directly. The steps can also be streamed with iterator(), and the
+ * whole trajectory exported as numpy arrays (exportColumns).
+ *
+ * Steps are numbered from 0 in the order they were recorded, agents from 0 to
+ * getNumberOfAgents(step) - 1 in the order of the record (getId gives the
+ * agent's id).
+ *
+ * @author vaisagh
+ */
+public class TrajectoryFile implements Iterable<TrajectoryFile.Step> {
+
+    private final File inputFile;
+    private final MappedFile data;
+    private final int initialNumberOfAgents;
+    private final String[] columns;
+    private int numberOfSteps = 0;
+    /**
+     * Position of every record and its number of agents
+     */
+    private long[] recordStart = new long[1024];
+    private int[] recordAgents = new int[1024];
+    private long totalRows = 0;
+
+    public TrajectoryFile(File inputFile) throws IOException {
+        this.inputFile = inputFile;
+        data = new MappedFile(inputFile, ByteOrder.LITTLE_ENDIAN);
+        if (data.size() < 16 || data.getInt(0) != BinaryTrajectoryWriter.MAGIC) {
+            data.close();
+            throw new IOException(inputFile + " is not a trajectory file");
+        }
+        if (data.getInt(4) != BinaryTrajectoryWriter.VERSION) {
+            data.close();
+            throw new IOException(inputFile + " has unknown version " + data.getInt(4));
+        }
+        initialNumberOfAgents = data.getInt(8);
+        columns = new String[data.getInt(12)];
+        long at = 16;
+        for (int i = 0; i < columns.length; i++) {
+            at++;
+            final int length = data.getShort(at);
+            at += 2;
+            StringBuilder name = new StringBuilder(length);
+            for (int c = 0; c < length; c++) {
+                name.append((char) data.get(at++));
+            }
+            columns[i] = name.toString();
+        }
+        index(at);
+    }
+
+    private void index(long at) {
+        while (at + BinaryTrajectoryWriter.RECORD_HEADER_BYTES <= data.size()) {
+            final int agents = data.getInt(at + 4);
+            final long end = at + BinaryTrajectoryWriter.RECORD_HEADER_BYTES
+                    + (long) agents * BinaryTrajectoryWriter.AGENT_BYTES;
+            if (end > data.size()) {
+                /*
+                 * the run stopped while the record was being written
+                 */
+                break;
+            }
+            if (numberOfSteps == recordStart.length) {
+                long[] newStart = new long[numberOfSteps * 2];
+                System.arraycopy(recordStart, 0, newStart, 0, numberOfSteps);
+                recordStart = newStart;
+                int[] newAgents = new int[numberOfSteps * 2];
+                System.arraycopy(recordAgents, 0, newAgents, 0, numberOfSteps);
+                recordAgents = newAgents;
+            }
+            recordStart[numberOfSteps] = at;
+            recordAgents[numberOfSteps] = agents;
+            numberOfSteps++;
+            totalRows += agents;
+            at = end;
+        }
+    }
+
+    public int getNumberOfSteps() {
+        return numberOfSteps;
+    }
+
+    /**
+     * Number of agents when the tracking started
+     */
+    public int getInitialNumberOfAgents() {
+        return initialNumberOfAgents;
+    }
+
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    public int getNumberOfAgents(int step) {
+        return recordAgents[checkStep(step)];
+    }
+
+    /**
+     * Schedule step at which the record was taken
+     */
+    public int getTime(int step) {
+        return data.getInt(recordStart[checkStep(step)]);
+    }
+
+    public int getId(int step, int agent) {
+        return data.getInt(idStart(step) + 4L * checkAgent(step, agent));
+    }
+
+    public double getX(int step, int agent) {
+        return data.getDouble(columnStart(step, 0) + 8L * checkAgent(step, agent));
+    }
+
+    public double getY(int step, int agent) {
+        return data.getDouble(columnStart(step, 1) + 8L * checkAgent(step, agent));
+    }
+
+    public double getVelocityX(int step, int agent) {
+        return data.getDouble(columnStart(step, 2) + 8L * checkAgent(step, agent));
+    }
+
+    public double getVelocityY(int step, int agent) {
+        return data.getDouble(columnStart(step, 3) + 8L * checkAgent(step, agent));
+    }
+
+    private int checkStep(int step) {
+        if (step < 0 || step >= numberOfSteps) {
+            throw new IndexOutOfBoundsException("step " + step + " of " + numberOfSteps);
+        }
+        return step;
+    }
+
+    private int checkAgent(int step, int agent) {
+        if (agent < 0 || agent >= getNumberOfAgents(step)) {
+            throw new IndexOutOfBoundsException("agent " + agent + " of " + getNumberOfAgents(step));
+        }
+        return agent;
+    }
+
+    private long idStart(int step) {
+        return recordStart[step] + BinaryTrajectoryWriter.RECORD_HEADER_BYTES;
+    }
+
+    /**
+     * Start of the double column (0 = x, 1 = y, 2 = vx, 3 = vy) of the step
+     */
+    private long columnStart(int step, int column) {
+        final long agents = recordAgents[step];
+        return idStart(step) + 4 * agents + 8 * agents * column;
+    }
+
+    /**
+     * Streams the steps in order. The same Step is returned every time, with
+     * the arrays of the current step, so nothing is allocated per step once
+     * the arrays are large enough.
+     */
+    @Override
+    public Iterator<Step> iterator() {
+        return new Iterator<Step>() {
+
+            private final Step current = new Step();
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < numberOfSteps;
+            }
+
+            @Override
+            public Step next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                current.load(next++);
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * One step of the trajectory, as filled in by the iterator
+     */
+    public final class Step {
+
+        private int step;
+        private int time;
+        private int numberOfAgents;
+        private int[] ids = new int[0];
+        private double[] x = new double[0];
+        private double[] y = new double[0];
+        private double[] velocityX = new double[0];
+        private double[] velocityY = new double[0];
+
+        private void load(int newStep) {
+            step = newStep;
+            time = TrajectoryFile.this.getTime(newStep);
+            numberOfAgents = recordAgents[newStep];
+            if (ids.length < numberOfAgents) {
+                ids = new int[numberOfAgents];
+                x = new double[numberOfAgents];
+                y = new double[numberOfAgents];
+                velocityX = new double[numberOfAgents];
+                velocityY = new double[numberOfAgents];
+            }
+            data.getInts(idStart(newStep), ids, 0, numberOfAgents);
+            data.getDoubles(columnStart(newStep, 0), x, 0, numberOfAgents);
+            data.getDoubles(columnStart(newStep, 1), y, 0, numberOfAgents);
+            data.getDoubles(columnStart(newStep, 2), velocityX, 0, numberOfAgents);
+            data.getDoubles(columnStart(newStep, 3), velocityY, 0, numberOfAgents);
+        }
+
+        public int getStep() {
+            return step;
+        }
+
+        public int getTime() {
+            return time;
+        }
+
+        public int getNumberOfAgents() {
+            return numberOfAgents;
+        }
+
+        /**
+         * The arrays are only valid up to getNumberOfAgents() and until the
+         * iterator moves on.
+         */
+        public int[] getIds() {
+            return ids;
+        }
+
+        public double[] getX() {
+            return x;
+        }
+
+        public double[] getY() {
+            return y;
+        }
+
+        public double[] getVelocityX() {
+            return velocityX;
+        }
+
+        public double[] getVelocityY() {
+            return velocityY;
+        }
+    }
+
+    /**
+     * Writes the trajectory as numpy arrays into the directory: time and
+     * agents (one value per step), start (the first row of each step) and
+     * id, x, y, vx and vy (one value per agent and step). Row start[s] + a is
+     * agent a of step s, so e.g. numpy.load("x.npy")[start[s]:start[s] +
+     * agents[s]] are the x coordinates of step s.
+     */
+    public void exportColumns(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        if (totalRows > Integer.MAX_VALUE) {
+            throw new IOException(inputFile + " has too many rows to export");
+        }
+        final int rows = (int) totalRows;
+        NpyWriter time = new NpyWriter(new File(directory, "time.npy"), "<i4", numberOfSteps);
+        NpyWriter agents = new NpyWriter(new File(directory, "agents.npy"), "<i4", numberOfSteps);
+        NpyWriter start = new NpyWriter(new File(directory, "start.npy"), "<i8", numberOfSteps);
+        NpyWriter[] columnWriters = {
+            new NpyWriter(new File(directory, "id.npy"), "<i4", rows),
+            new NpyWriter(new File(directory, "x.npy"), "<f8", rows),
+            new NpyWriter(new File(directory, "y.npy"), "<f8", rows),
+            new NpyWriter(new File(directory, "vx.npy"), "<f8", rows),
+            new NpyWriter(new File(directory, "vy.npy"), "<f8", rows)
+        };
+        try {
+            long row = 0;
+            for (Step step : this) {
+                final int n = step.getNumberOfAgents();
+                time.putInt(step.getTime());
+                agents.putInt(n);
+                start.putLong(row);
+                columnWriters[0].putInts(step.getIds(), n);
+                columnWriters[1].putDoubles(step.getX(), n);
+                columnWriters[2].putDoubles(step.getY(), n);
+                columnWriters[3].putDoubles(step.getVelocityX(), n);
+                columnWriters[4].putDoubles(step.getVelocityY(), n);
+                row += n;
+            }
+        } finally {
+            time.close();
+            agents.close();
+            start.close();
+            for (NpyWriter writer : columnWriters) {
+                writer.close();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        data.close();
+    }
+
+    /**
+     * Writes a one dimensional numpy array (format version 1.0) of known
+     * length through a buffer
+     */
+    private static final class NpyWriter {
+
+        private final FileOutputStream output;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+        NpyWriter(File file, String type, long length) throws IOException {
+            output = new FileOutputStream(file);
+            channel = output.getChannel();
+            StringBuilder header = new StringBuilder();
+            header.append("{'descr': '").append(type).append("', 'fortran_order': False, 'shape': (")
+                    .append(length).append(",), }");
+            /*
+             * magic, version and header length take 10 bytes, the data has to
+             * start at a multiple of 16
+             */
+            while ((10 + header.length() + 1) % 16 != 0) {
+                header.append(' ');
+            }
+            header.append('\n');
+            buffer.put((byte) 0x93);
+            buffer.put("NUMPY".getBytes("US-ASCII"));
+            buffer.put((byte) 1);
+            buffer.put((byte) 0);
+            buffer.putShort((short) header.length());
+            buffer.put(header.toString().getBytes("US-ASCII"));
+        }
+
+        private void ensureRoom(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void putInt(int value) throws IOException {
+            ensureRoom(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensureRoom(8);
+            buffer.putLong(value);
+        }
+
+        void putInts(int[] values, int n) throws IOException {
+            int from = 0;
+            while (from < n) {
+                ensureRoom(4);
+                final int chunk = Math.min(n - from, buffer.remaining() / 4);
+                buffer.asIntBuffer().put(values, from, chunk);
+                buffer.position(buffer.position() + chunk * 4);
+                from += chunk;
+            }
+        }
+
+        void putDoubles(double[] values, int n) throws IOException {
+            int from = 0;
+            while (from < n) {
+                ensureRoom(8);
+                final int chunk = Math.min(n - from, buffer.remaining() / 8);
+                buffer.asDoubleBuffer().put(values, from, chunk);
+                buffer.position(buffer.position() + chunk * 8);
+                from += chunk;
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                output.close();
+            }
+        }
+    }
+}
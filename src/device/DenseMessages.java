@@ -0,0 +1,111 @@
+package device;
+
+import java.util.Arrays;
+import sim.engine.SimState;
+import sim.engine.Steppable;
+import sim.util.Bag;
+
+/**
+ * DenseMessages
+ *
+ * Passes on the "too dense" messages of the devices of a simulation. A device
+ * that senses more devices around it than the threshold sends a message, which
+ * goes from device to neighbouring device up to the maximum number of hops,
+ * the sender itself being hop 1. Every device counts the senders whose message
+ * reached it (see Device.isDense).
+ *
+ * The senders of a tick are collected and their messages are then propagated
+ * together when this is stepped, breadth first from one sender after the
+ * other. A device is reached by a message at its smallest hop count and only
+ * once, which is recorded in an array indexed by device id, so every message
+ * visits each device at most once instead of once per path to it.
+ *
+ * @author angela
+ */
+public class DenseMessages implements Steppable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int maxHops;
+    private Device[] senders = new Device[16];
+    private int numberOfSenders = 0;
+    /**
+     * The message that last reached the device with that id. As messages are
+     * propagated breadth first it reached it at its smallest hop count.
+     */
+    private int[] reachedBy = new int[16];
+    private int message = 0;
+    private Device[] frontier = new Device[16];
+    private Device[] nextFrontier = new Device[16];
+
+    public DenseMessages(int maxHops) {
+        this.maxHops = maxHops;
+    }
+
+    /**
+     * Queues the message of the device for this tick
+     */
+    public void send(Device sender) {
+        if (numberOfSenders == senders.length) {
+            senders = Arrays.copyOf(senders, numberOfSenders * 2);
+        }
+        senders[numberOfSenders++] = sender;
+    }
+
+    @Override
+    public void step(SimState state) {
+        for (int s = 0; s < numberOfSenders; s++) {
+            propagate(senders[s]);
+            senders[s] = null;
+        }
+        numberOfSenders = 0;
+    }
+
+    private void propagate(Device sender) {
+        if (maxHops < 1) {
+            return;
+        }
+        if (message == Integer.MAX_VALUE) {
+            Arrays.fill(reachedBy, 0);
+            message = 0;
+        }
+        message++;
+
+        reach(sender);
+        frontier[0] = sender;
+        int frontierSize = 1;
+        for (int hops = 1; hops < maxHops && frontierSize > 0; hops++) {
+            int nextSize = 0;
+            for (int f = 0; f < frontierSize; f++) {
+                final Bag neighbours = frontier[f].getNeighbours();
+                for (int n = 0; n < neighbours.numObjs; n++) {
+                    final Device device = (Device) neighbours.objs[n];
+                    final int id = device.getDeviceId();
+                    if (id < reachedBy.length && reachedBy[id] == message) {
+                        continue;
+                    }
+                    reach(device);
+                    if (nextSize == nextFrontier.length) {
+                        nextFrontier = Arrays.copyOf(nextFrontier, nextSize * 2);
+                    }
+                    nextFrontier[nextSize++] = device;
+                }
+                frontier[f] = null;
+            }
+            final Device[] temp = frontier;
+            frontier = nextFrontier;
+            nextFrontier = temp;
+            frontierSize = nextSize;
+        }
+        Arrays.fill(frontier, 0, frontierSize, null);
+    }
+
+    private void reach(Device device) {
+        final int id = device.getDeviceId();
+        if (id >= reachedBy.length) {
+            reachedBy = Arrays.copyOf(reachedBy, Math.max(id + 1, reachedBy.length * 2));
+        }
+        reachedBy[id] = message;
+        device.receiveTooDense();
+    }
+}
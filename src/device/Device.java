@@ -5,8 +5,8 @@
 package device;
 
 import agent.RVOAgent;
+import app.SimulationConfig;
 import environment.RVOSpace;
-import java.util.HashMap;
 import javax.vecmath.Point2d;
 import javax.vecmath.Vector2d;
 import sim.engine.*;
@@ -28,6 +28,11 @@ public class Device extends DevicePortrayal implements Proxiable {
     private int deviceId;
     public static int deviceIdCount = 0;
     protected RVOSpace mySpace;
+    /**
+     * Configuration of the simulation the device belongs to. The static
+     * parameters below are only set for the GUI.
+     */
+    protected SimulationConfig config;
     protected RVOAgent attachedAgent; //device has an attached agent
     public static double RADIUS;
     public static int SENSOR_RANGE; //sensor range in proportion to device radius
@@ -39,9 +44,15 @@ public class Device extends DevicePortrayal implements Proxiable {
 
     public static int STOP_LENGTH = 10; //number of ticks to stop for when too dense
     public static int deviceCount = 0; // no. of devices
-    private HashMap<Integer, Integer> denseMap; //map of denseness of neighbours
+    private int denseMessages = 0; //number of dense neighbours whose message reached this device
     protected PrecisePoint currentPosition;
     protected Bag neighbours = new Bag();
+    /**
+     * Neighbours found by the attached agent's sensing and the step they were
+     * found in
+     */
+    private Bag sensedNeighbours = null;
+    private long sensedStep = -1;
     private SenseThinkDevice senseThinkDevice; //for steppable
     private ActDevice actDevice; //for steppable
     private int stopCounter = 0;
@@ -58,9 +69,10 @@ public class Device extends DevicePortrayal implements Proxiable {
     public Device(RVOSpace mySpace) {
         super();
         this.mySpace = mySpace;
+        this.config = mySpace.getRvoModel().getConfig();
+        radius = config.getAgentRadius();
         currentPosition = new PrecisePoint();
-        denseMap = new HashMap<Integer, Integer>();
-        deviceId = deviceIdCount++;
+        deviceId = mySpace.getRvoModel().nextDeviceId();
     }
 
     public int getDeviceId() {
@@ -78,47 +90,51 @@ public class Device extends DevicePortrayal implements Proxiable {
 
     public boolean isDense() {
         return (
-                (neighbours.size() > Device.DEVICE_THRESHOLD 
+                (neighbours.size() > config.getDeviceThreshold() 
                 || 
-                denseMap.size() > Device.DEVICE_MSG_THRESHOLD) 
+                denseMessages > config.getDeviceMsgThreshold()) 
                 );
     }
 
     public Bag getNeighbours() {
         if (neighbours.isEmpty()) {
-            neighbours = mySpace.findDeviceNeighbours(this.getCurrentPosition(), Device.SENSOR_RANGE);
+            neighbours = mySpace.senseNeighbours(this);
         }
         return neighbours;
     }
 
+    /**
+     * Hands the device its neighbours, found together with those of its agent
+     * in the given step
+     */
+    public void setSensedNeighbours(Bag devices, long step) {
+        sensedNeighbours = devices;
+        sensedStep = step;
+    }
+
+    /**
+     * @return the neighbours handed to the device in the given step, null if
+     * there were none
+     */
+    public Bag getSensedNeighbours(long step) {
+        return (step == sensedStep) ? sensedNeighbours : null;
+    }
+
     public void clearNeighbours() {
         neighbours.clear();
     }
 
     public void clearDenseMap() {
-        denseMap.clear();
+        denseMessages = 0;
     }
 
-    public void sendTooDense(int devId, int hops) {
-
-        if (hops <= Device.DEVICE_MAX_HOPS) {   //within range, update dense map
-            if (!denseMap.containsKey(devId)) {
-                denseMap.put(devId, hops);
-            } else {
-                if (hops < denseMap.get(devId)) {
-                    denseMap.put(devId, hops); //does this to replace the ID, hops key-value pair??
-                }
-
-            }
-
-            for (Object neighbour : getNeighbours()) {
-                Device dev = (Device) neighbour;
-                if (dev.getDeviceId() != devId) {   // added to prevent sending to itself
-                    dev.sendTooDense(devId, hops + 1);
-                }
-            }
-
-        }
+    /**
+     * Sends the message that this device is in a dense situation to the
+     * devices within the maximum number of hops. It is delivered with the
+     * other messages of the tick by the simulation's DenseMessages.
+     */
+    public void sendTooDense() {
+        mySpace.getRvoModel().getDenseMessages().send(this);
 //        if (
 //                (neighbours.size() > Device.DEVICE_THRESHOLD 
 //                || 
@@ -131,6 +147,13 @@ public class Device extends DevicePortrayal implements Proxiable {
 //        }
     }
 
+    /**
+     * The message of one dense device reached this device
+     */
+    void receiveTooDense() {
+        denseMessages++;
+    }
+
 
     public ClearDeviceMemory getClearDeviceMemory() {
         return this.clearDevice;
@@ -206,8 +229,8 @@ public class Device extends DevicePortrayal implements Proxiable {
 
         //original device that sends to neighbours that it is in the dense situation
             neighbours = getNeighbours();
-            if (neighbours.size() > Device.DEVICE_THRESHOLD) {
-                sendTooDense(getDeviceId(), 1);
+            if (neighbours.size() > config.getDeviceThreshold()) {
+                sendTooDense();
             } 
 //        else {
 //            dense = false;
@@ -222,7 +245,7 @@ public class Device extends DevicePortrayal implements Proxiable {
         public void step(SimState ss) {
            
                 //edited on 30th September 2013
-            if (FORBIDDENAREA_APPROACH) {
+            if (config.isForbiddenAreaApproach()) {
                 calculateForbiddenArea();
             } else if (isDense() && !isStopped()) {
 //                System.out.println("start stop executed!");
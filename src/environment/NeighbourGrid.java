@@ -0,0 +1,267 @@
+package environment;
+
+import agent.RVOAgent;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * NeighbourGrid
+ *
+ * Uniform grid over the agents' positions, used instead of the Continuous2D
+ * agent space for neighbour queries. Positions are recorded as the agents move
+ * and the grid is rebuilt at most once per tick, the first time it is queried
+ * after something moved, by a counting sort of the agents on their cells. The
+ * positions are copied in cell order so that a query only scans contiguous
+ * primitive arrays.
+ *
+ * Queries fill an int buffer supplied by the caller with agent indices (see
+ * getAgent) and do not allocate. Within the radius the agents are returned
+ * cell by cell, x outer and y inner like Continuous2D, and within a cell in
+ * the order they were first added, so the result does not depend on the order
+ * in which the agents moved or on the thread that asks.
+ *
+ * Queries may run on several threads at once, the rebuild is synchronized.
+ * Positions must not be changed while queries are running.
+ *
+ * @author michaellees
+ */
+public class NeighbourGrid implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final double cellSize;
+    private final int xCells;
+    private final int yCells;
+    private final Map<RVOAgent, Integer> indices = new IdentityHashMap<RVOAgent, Integer>();
+    private RVOAgent[] agents = new RVOAgent[64];
+    private double[] positionX = new double[64];
+    private double[] positionY = new double[64];
+    private int size = 0;
+    /**
+     * cellStart[c] to cellStart[c + 1] - 1 are the sorted entries in cell c
+     */
+    private final int[] cellStart;
+    private int[] cellOfAgent = new int[64];
+    private int[] sortedIndex = new int[64];
+    private double[] sortedX = new double[64];
+    private double[] sortedY = new double[64];
+    private volatile boolean dirty = false;
+
+    public NeighbourGrid(double cellSize, double width, double height) {
+        this.cellSize = cellSize;
+        xCells = Math.max(1, (int) Math.ceil(width / cellSize));
+        yCells = Math.max(1, (int) Math.ceil(height / cellSize));
+        cellStart = new int[xCells * yCells + 1];
+    }
+
+    /**
+     * Records the agent's position, adding the agent to the grid the first
+     * time. Takes effect for the queries after the next rebuild.
+     */
+    public void setPosition(RVOAgent agent, double x, double y) {
+        Integer index = indices.get(agent);
+        if (index == null) {
+            index = add(agent);
+        }
+        positionX[index] = x;
+        positionY[index] = y;
+        dirty = true;
+    }
+
+    private int add(RVOAgent agent) {
+        if (size == agents.length) {
+            int capacity = size * 2;
+            RVOAgent[] newAgents = new RVOAgent[capacity];
+            System.arraycopy(agents, 0, newAgents, 0, size);
+            agents = newAgents;
+            positionX = copyOf(positionX, capacity);
+            positionY = copyOf(positionY, capacity);
+            cellOfAgent = new int[capacity];
+            sortedIndex = new int[capacity];
+            sortedX = new double[capacity];
+            sortedY = new double[capacity];
+        }
+        agents[size] = agent;
+        indices.put(agent, size);
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public RVOAgent getAgent(int index) {
+        return agents[index];
+    }
+
+    /**
+     * Fills result with the indices of the agents within radius of (x, y),
+     * boundary included.
+     *
+     * @return the number of agents found. If it is larger than result.length
+     * only the first result.length were stored and the query has to be
+     * repeated with a larger buffer.
+     */
+    public int findWithinDistance(double x, double y, double radius, int[] result) {
+        return findWithinDistance(x, y, radius, result, null);
+    }
+
+    /**
+     * findWithinDistance that also stores the squared distances of the agents
+     * found in distancesSq (of the same length as result), so that the caller
+     * can narrow the result down to smaller radii. distancesSq may be null.
+     */
+    public int findWithinDistance(double x, double y, double radius, int[] result, double[] distancesSq) {
+        update();
+        final double radiusSq = radius * radius;
+        final int minX = cellX(x - radius);
+        final int maxX = cellX(x + radius);
+        final int minY = cellY(y - radius);
+        final int maxY = cellY(y + radius);
+
+        int found = 0;
+        for (int cellX = minX; cellX <= maxX; cellX++) {
+            final int column = cellX * yCells;
+            final int from = cellStart[column + minY];
+            final int to = cellStart[column + maxY + 1];
+            for (int i = from; i < to; i++) {
+                final double dx = sortedX[i] - x;
+                final double dy = sortedY[i] - y;
+                final double distSq = dx * dx + dy * dy;
+                if (distSq <= radiusSq) {
+                    if (found < result.length) {
+                        result[found] = sortedIndex[i];
+                        if (distancesSq != null) {
+                            distancesSq[found] = distSq;
+                        }
+                    }
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Fills result with the indices of at most maxNeighbours agents within
+     * radius of (x, y), nearest first. This is how RVO2 limits its neighbours:
+     * an agent only replaces the farthest one kept if it is strictly closer,
+     * so of several agents at the same distance the ones found first are kept.
+     *
+     * @param excluded index of an agent that is never returned (the asking
+     * agent itself), or -1
+     * @param distancesSq scratch space of at least maxNeighbours elements, it
+     * ends up holding the squared distances of the returned agents
+     * @return the number of agents stored in result, at most maxNeighbours
+     */
+    public int findNearest(double x, double y, double radius, int maxNeighbours, int excluded,
+            int[] result, double[] distancesSq) {
+        if (maxNeighbours <= 0) {
+            return 0;
+        }
+        update();
+        final double radiusSq = radius * radius;
+        final int minX = cellX(x - radius);
+        final int maxX = cellX(x + radius);
+        final int minY = cellY(y - radius);
+        final int maxY = cellY(y + radius);
+
+        int found = 0;
+        double rangeSq = radiusSq;
+        for (int cellX = minX; cellX <= maxX; cellX++) {
+            final int column = cellX * yCells;
+            final int from = cellStart[column + minY];
+            final int to = cellStart[column + maxY + 1];
+            for (int i = from; i < to; i++) {
+                final double dx = sortedX[i] - x;
+                final double dy = sortedY[i] - y;
+                final double distSq = dx * dx + dy * dy;
+                if (distSq > rangeSq || sortedIndex[i] == excluded) {
+                    continue;
+                }
+                if (found < maxNeighbours) {
+                    found++;
+                } else if (distSq == rangeSq) {
+                    continue;
+                }
+                int j = found - 1;
+                while (j != 0 && distSq < distancesSq[j - 1]) {
+                    result[j] = result[j - 1];
+                    distancesSq[j] = distancesSq[j - 1];
+                    j--;
+                }
+                result[j] = sortedIndex[i];
+                distancesSq[j] = distSq;
+                if (found == maxNeighbours) {
+                    rangeSq = distancesSq[found - 1];
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Index under which the agent was added, -1 if it never was
+     */
+    public int indexOf(RVOAgent agent) {
+        Integer index = indices.get(agent);
+        return (index == null) ? -1 : index;
+    }
+
+    private int cellX(double x) {
+        int cell = (int) Math.floor(x / cellSize);
+        return (cell < 0) ? 0 : ((cell >= xCells) ? xCells - 1 : cell);
+    }
+
+    private int cellY(double y) {
+        int cell = (int) Math.floor(y / cellSize);
+        return (cell < 0) ? 0 : ((cell >= yCells) ? yCells - 1 : cell);
+    }
+
+    private void update() {
+        if (dirty) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Counting sort of the agents on their cells.
+     */
+    private synchronized void rebuild() {
+        if (!dirty) {
+            return;
+        }
+        final int cells = cellStart.length - 1;
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < size; i++) {
+            final int cell = cellX(positionX[i]) * yCells + cellY(positionY[i]);
+            cellOfAgent[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int cell = 0; cell < cells; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        for (int i = 0; i < size; i++) {
+            final int position = cellStart[cellOfAgent[i]]++;
+            sortedIndex[position] = i;
+            sortedX[position] = positionX[i];
+            sortedY[position] = positionY[i];
+        }
+        /*
+         * the placement loop moved every start to the start of the next cell
+         */
+        for (int cell = cells; cell > 0; cell--) {
+            cellStart[cell] = cellStart[cell - 1];
+        }
+        cellStart[0] = 0;
+        dirty = false;
+    }
+
+    private static double[] copyOf(double[] array, int capacity) {
+        double[] copy = new double[capacity];
+        System.arraycopy(array, 0, copy, 0, array.length);
+        return copy;
+    }
+}
@@ -27,6 +27,11 @@ public class RVO2Obstacle extends RVOObstacle{
 
     boolean convex;
     Point2d point;
+    /**
+     * Position of this vertex in the space's obstacle list. Used as a stable
+     * tie-breaker when ordering obstacles so that runs are reproducible.
+     */
+    int id;
 
 
     RVO2Obstacle nextObstacle;
@@ -45,6 +50,14 @@ public class RVO2Obstacle extends RVOObstacle{
         this.convex = isConvex;
     }
 
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
     public Point2d getPoint() {
         return point;
     }
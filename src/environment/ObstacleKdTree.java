@@ -0,0 +1,229 @@
+package environment;
+
+import environment.Obstacle.RVO2Obstacle;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import javax.vecmath.Point2d;
+import utility.Geometry;
+
+/**
+ * ObstacleKdTree
+ *
+ * Static k-d tree over the obstacle segments (each RVO2Obstacle stands for the
+ * segment from its point to the point of the next vertex), built once the
+ * obstacles are loaded. Unlike the tree of the RVO2 library the segments are
+ * not split: each node partitions its segments at the median of their
+ * midpoints along the wider axis and keeps the bounding box of all of them,
+ * so the segments in the tree are the original obstacles.
+ *
+ * Two queries are supported. queryRange gives the segments within a distance
+ * of a point, ordered by that distance as RVO_2_1 wants them. queryVisibility
+ * tells whether a straight line between two points is free of segments, using
+ * the same intersection test as a linear scan and only skipping nodes whose
+ * (slightly enlarged) bounds can not be crossed.
+ *
+ * The tree is never modified after it is built, so it can be queried from
+ * several threads at once.
+ *
+ * @author michaellees
+ */
+public class ObstacleKdTree implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int MAX_LEAF_SIZE = 4;
+    private final RVO2Obstacle[] segments;
+    /**
+     * Tree nodes in depth first order. For node n its segments are
+     * segments[from[n]] to segments[to[n] - 1], its children are n + 1 and
+     * right[n] (-1 for a leaf).
+     */
+    private int[] from;
+    private int[] to;
+    private int[] right;
+    private double[] minX;
+    private double[] minY;
+    private double[] maxX;
+    private double[] maxY;
+    /**
+     * Length of the longest segment below the node, to enlarge its bounds by
+     * the tolerance of Geometry.lineSegmentIntersectionTest
+     */
+    private double[] maxLength;
+    private final double epsilon;
+    private int nodeCount = 0;
+
+    /**
+     * @param epsilon tolerance of the intersection test, RVOEpsilon of the
+     * simulation
+     */
+    public ObstacleKdTree(List<RVO2Obstacle> obstacles, double epsilon) {
+        this.epsilon = epsilon;
+        segments = obstacles.toArray(new RVO2Obstacle[obstacles.size()]);
+        int capacity = Math.max(1, 2 * segments.length);
+        from = new int[capacity];
+        to = new int[capacity];
+        right = new int[capacity];
+        minX = new double[capacity];
+        minY = new double[capacity];
+        maxX = new double[capacity];
+        maxY = new double[capacity];
+        maxLength = new double[capacity];
+        if (segments.length > 0) {
+            build(0, segments.length);
+        }
+    }
+
+    public int size() {
+        return segments.length;
+    }
+
+    private int build(int begin, int end) {
+        final int node = nodeCount++;
+        from[node] = begin;
+        to[node] = end;
+        right[node] = -1;
+        minX[node] = Double.POSITIVE_INFINITY;
+        minY[node] = Double.POSITIVE_INFINITY;
+        maxX[node] = Double.NEGATIVE_INFINITY;
+        maxY[node] = Double.NEGATIVE_INFINITY;
+        maxLength[node] = 0;
+        double minMidX = Double.POSITIVE_INFINITY, maxMidX = Double.NEGATIVE_INFINITY;
+        double minMidY = Double.POSITIVE_INFINITY, maxMidY = Double.NEGATIVE_INFINITY;
+        for (int i = begin; i < end; i++) {
+            final Point2d p1 = segments[i].getPoint();
+            final Point2d p2 = segments[i].getNext().getPoint();
+            minX[node] = Math.min(minX[node], Math.min(p1.x, p2.x));
+            minY[node] = Math.min(minY[node], Math.min(p1.y, p2.y));
+            maxX[node] = Math.max(maxX[node], Math.max(p1.x, p2.x));
+            maxY[node] = Math.max(maxY[node], Math.max(p1.y, p2.y));
+            maxLength[node] = Math.max(maxLength[node], p1.distance(p2));
+            final double midX = (p1.x + p2.x) * 0.5;
+            final double midY = (p1.y + p2.y) * 0.5;
+            minMidX = Math.min(minMidX, midX);
+            maxMidX = Math.max(maxMidX, midX);
+            minMidY = Math.min(minMidY, midY);
+            maxMidY = Math.max(maxMidY, midY);
+        }
+
+        if (end - begin > MAX_LEAF_SIZE) {
+            final boolean alongX = (maxMidX - minMidX) >= (maxMidY - minMidY);
+            Arrays.sort(segments, begin, end, new Comparator<RVO2Obstacle>() {
+                @Override
+                public int compare(RVO2Obstacle o1, RVO2Obstacle o2) {
+                    int comparison = Double.compare(midpoint(o1, alongX), midpoint(o2, alongX));
+                    return (comparison != 0) ? comparison : o1.getId() - o2.getId();
+                }
+            });
+            final int middle = (begin + end) >>> 1;
+            build(begin, middle);
+            right[node] = build(middle, end);
+        }
+        return node;
+    }
+
+    private static double midpoint(RVO2Obstacle obstacle, boolean alongX) {
+        if (alongX) {
+            return (obstacle.getPoint().x + obstacle.getNext().getPoint().x) * 0.5;
+        } else {
+            return (obstacle.getPoint().y + obstacle.getNext().getPoint().y) * 0.5;
+        }
+    }
+
+    /**
+     * Fills result with the segments whose distance to (x, y) is at most
+     * range, ordered by that distance and then by id, and distances with the
+     * matching distances.
+     *
+     * @return the number of segments found. If it is larger than
+     * result.length only the nearest result.length were stored.
+     */
+    public int queryRange(double x, double y, double range, RVO2Obstacle[] result, double[] distances) {
+        if (segments.length == 0) {
+            return 0;
+        }
+        return queryRange(0, x, y, range, result, distances, 0);
+    }
+
+    private int queryRange(int node, double x, double y, double range,
+            RVO2Obstacle[] result, double[] distances, int found) {
+        final double dx = Math.max(0, Math.max(minX[node] - x, x - maxX[node]));
+        final double dy = Math.max(0, Math.max(minY[node] - y, y - maxY[node]));
+        if (dx * dx + dy * dy > range * range) {
+            return found;
+        }
+        if (right[node] != -1) {
+            found = queryRange(node + 1, x, y, range, result, distances, found);
+            return queryRange(right[node], x, y, range, result, distances, found);
+        }
+
+        for (int i = from[node]; i < to[node]; i++) {
+            final RVO2Obstacle obstacle = segments[i];
+            final Point2d point = obstacle.getPoint();
+            final Point2d nextPoint = obstacle.getNext().getPoint();
+            final double distance = Geometry.calcDistanceToLineSegment(
+                    point.x, point.y, nextPoint.x, nextPoint.y, x, y);
+            if (distance > range) {
+                continue;
+            }
+            int j = Math.min(found, result.length);
+            while (j > 0 && (distance < distances[j - 1]
+                    || (distance == distances[j - 1] && obstacle.getId() < result[j - 1].getId()))) {
+                if (j < result.length) {
+                    result[j] = result[j - 1];
+                    distances[j] = distances[j - 1];
+                }
+                j--;
+            }
+            if (j < result.length) {
+                result[j] = obstacle;
+                distances[j] = distance;
+            }
+            found++;
+        }
+        return found;
+    }
+
+    /**
+     * @return true if the segment from q1 to q2 does not cross any obstacle
+     * segment according to Geometry.lineSegmentIntersectionTest
+     */
+    public boolean queryVisibility(Point2d q1, Point2d q2) {
+        if (segments.length == 0) {
+            return true;
+        }
+        final double tolerance = Math.abs(epsilon);
+        final double queryMargin = tolerance * q1.distance(q2);
+        return queryVisibility(0, q1, q2,
+                Math.min(q1.x, q2.x) - queryMargin, Math.min(q1.y, q2.y) - queryMargin,
+                Math.max(q1.x, q2.x) + queryMargin, Math.max(q1.y, q2.y) + queryMargin,
+                tolerance);
+    }
+
+    private boolean queryVisibility(int node, Point2d q1, Point2d q2,
+            double queryMinX, double queryMinY, double queryMaxX, double queryMaxY, double tolerance) {
+        /*
+         * The intersection test accepts crossings slightly beyond the ends of
+         * both segments, so the bounds are compared with that much margin (and
+         * a little more for rounding).
+         */
+        final double margin = tolerance * maxLength[node] + 1e-9;
+        if (minX[node] - margin > queryMaxX || maxX[node] + margin < queryMinX
+                || minY[node] - margin > queryMaxY || maxY[node] + margin < queryMinY) {
+            return true;
+        }
+        if (right[node] != -1) {
+            return queryVisibility(node + 1, q1, q2, queryMinX, queryMinY, queryMaxX, queryMaxY, tolerance)
+                    && queryVisibility(right[node], q1, q2, queryMinX, queryMinY, queryMaxX, queryMaxY, tolerance);
+        }
+        for (int i = from[node]; i < to[node]; i++) {
+            if (Geometry.lineSegmentIntersectionTest(q1, q2,
+                    segments[i].getPoint(), segments[i].getNext().getPoint(), epsilon)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,20 +1,26 @@
 package environment;
 
 import agent.RVOAgent;
-import app.PropertySet;
 import app.PropertySet.Model;
 import app.RVOModel;
+import app.SimulationConfig;
 import device.Device;
 import environment.Obstacle.RVO2Obstacle;
 import environment.Obstacle.RVOObstacle;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import javax.vecmath.Point2d;
 import sim.field.continuous.Continuous2D;
 import sim.util.Bag;
 import sim.util.Double2D;
+import sim.util.MutableInt2D;
 import utility.Geometry;
 
 /**
@@ -29,11 +35,13 @@ import utility.Geometry;
  * This class defines the environment. It has two layers : an agent layer with
  * all the agents on it and an obstacleSpace layer with all the obstacles on it.
  */
-public class RVOSpace {
+public class RVOSpace implements Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     protected double gridDimension;
-    public static double xRealSize;
-    public static double yRealSize;
+    protected double xRealSize;
+    protected double yRealSize;
     /**
      * This is the space were all the agents are stored
      */
@@ -42,16 +50,38 @@ public class RVOSpace {
      * This space contains the obstacle information
      */
     protected Continuous2D obstacleSpace;
-    
-     /**
-     * This space contains the wireless devices
-     */
-    protected Continuous2D deviceSpace;
     /**
      * This is the model for local reference
      */
     protected List<RVO2Obstacle> obstacleList = new ArrayList<RVO2Obstacle>();
     protected RVOModel rvoModel;
+    protected final SimulationConfig config;
+    /**
+     * Index used for the agents' neighbour queries instead of agentSpace, null
+     * unless the configuration asks for a neighbour grid
+     */
+    protected NeighbourGrid neighbourGrid = null;
+    /**
+     * k-d tree over obstacleList for the visibility and (with an obstacle
+     * tree configured) obstacle queries. Built on first use and
+     * dropped whenever an obstacle is added.
+     */
+    private volatile ObstacleKdTree obstacleTree = null;
+    /**
+     * Locations of the agents in agentSpace, in the order of its allObjects,
+     * as read from a checkpoint and until awakeFromCheckpoint rebuilds
+     * agentSpace from them
+     */
+    private transient double[] checkpointLocations = null;
+    /**
+     * Per thread buffers for the neighbour grid queries
+     */
+    private static final ThreadLocal<QueryBuffers> QUERY_BUFFERS = new ThreadLocal<QueryBuffers>() {
+        @Override
+        protected QueryBuffers initialValue() {
+            return new QueryBuffers();
+        }
+    };
 
     public RVOSpace(int xSize, int ySize, double gridSize, RVOModel rm) {
 
@@ -62,15 +92,63 @@ public class RVOSpace {
 
         agentSpace = new Continuous2D(gridDimension, xRealSize, yRealSize);
         obstacleSpace = new Continuous2D(gridDimension, xRealSize, yRealSize);
-        deviceSpace = new Continuous2D(gridDimension, xRealSize, yRealSize);
         rvoModel = rm;
+        config = rm.getConfig();
+        if (config.isNeighbourGrid() && !config.isUseClustering()) {
+            neighbourGrid = new NeighbourGrid(gridDimension, xRealSize, yRealSize);
+        }
     }
 
     public Continuous2D getCurrentAgentSpace() {
         return agentSpace;
     }
-    public Continuous2D getDeviceAgentSpace() {
-        return deviceSpace;
+
+    /**
+     * Rebuilds agentSpace once the whole model is read from a checkpoint.
+     * Continuous2D keeps the agents in HashMaps keyed by the agents, whose
+     * hash codes depend on their ids, and the object graph is cyclic: those
+     * maps can be read back while some agents are not read yet. The agents
+     * are put back at the locations written with the checkpoint, in the order
+     * they had in every cell so that the neighbour queries find them in the
+     * same order.
+     */
+    public void awakeFromCheckpoint() {
+        if (checkpointLocations == null) {
+            return;
+        }
+        final Continuous2D read = agentSpace;
+        final Continuous2D space = new Continuous2D(read.discretization, read.width, read.height);
+        for (int i = 0; i < read.allObjects.numObjs; i++) {
+            space.setObjectLocation(read.allObjects.objs[i],
+                    new Double2D(checkpointLocations[2 * i], checkpointLocations[2 * i + 1]));
+        }
+        for (Object entry : read.objectHash.entrySet()) {
+            final Bag order = (Bag) ((Map.Entry) entry).getValue();
+            final Bag cell = (Bag) space.objectHash.get(((Map.Entry) entry).getKey());
+            if (cell != null) {
+                cell.clear();
+                cell.addAll(order);
+            }
+        }
+        agentSpace = space;
+        checkpointLocations = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        final Bag agents = agentSpace.allObjects;
+        final double[] locations = new double[2 * agents.numObjs];
+        for (int i = 0; i < agents.numObjs; i++) {
+            final Double2D location = agentSpace.getObjectLocation(agents.objs[i]);
+            locations[2 * i] = location.x;
+            locations[2 * i + 1] = location.y;
+        }
+        out.writeObject(locations);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        checkpointLocations = (double[]) in.readObject();
     }
     public RVOModel getRvoModel() {
         return rvoModel;
@@ -99,7 +177,7 @@ public class RVOSpace {
 
     public void addNewObstacle(RVOObstacle obstacle) {
 
-        if (PropertySet.MODEL == Model.RVO2 || PropertySet.MODEL == Model.SocialForce) {
+        if (config.getModel() == Model.RVO2 || config.getModel() == Model.SocialForce) {
             //If RVO2 is the model then the RVO2 obstacle requires obstacles to
             //broken down
             ArrayList<RVO2Obstacle> obstacles = new ArrayList<RVO2Obstacle>();
@@ -136,7 +214,9 @@ public class RVOSpace {
                             obstacles.get(i).getNext().getPoint()));
 
                 }
+                obstacles.get(i).setId(this.obstacleList.size());
                 this.obstacleList.add(obstacles.get(i));
+                obstacleTree = null;
                 obstacleSpace.setObjectLocation(obstacles.get(i), new Double2D(
                         obstacles.get(i).getPoint().getX(),
                         obstacles.get(i).getPoint().getY()));
@@ -159,13 +239,19 @@ public class RVOSpace {
         //TODO: vvt: check whether the agent was created on an existing obstacle
 //        agent.setCurrentPosition(x, y);
         agentSpace.setObjectLocation(agent, new Double2D(x, y));
-        if(agent.hasDevice()){
-             deviceSpace.setObjectLocation(agent.getDevice(), new Double2D(x, y));
+        if (neighbourGrid != null) {
+            neighbourGrid.setPosition(agent, x, y);
         }
     }
 
     public Bag senseNeighbours(RVOAgent me) {
-        double sensorRange = RVOAgent.SENSOR_RANGE;
+        double sensorRange = config.getSensorRange();
+        if (me.hasDevice() && (neighbourGrid == null || config.getMaxNeighbours() <= 0)) {
+            return senseNeighboursAndDevices(me, sensorRange * me.getRadius());
+        }
+        if (neighbourGrid != null) {
+            return findNeighboursInGrid(me, sensorRange * me.getRadius());
+        }
         Bag neighbours = findNeighbours(me.getCurrentPosition(), sensorRange * me.getRadius());
 
 //        do {
@@ -191,49 +277,292 @@ public class RVOSpace {
 
     }
 
-    public Bag senseNeighbours(Device me) {
-        double sensorRange = Device.SENSOR_RANGE;
-        Bag neighbours = findDeviceNeighbours(me.getCurrentPosition(), sensorRange);
-        return neighbours; 
+    /**
+     * Neighbour query on the grid. With a maximum number of neighbours set only
+     * that many nearest neighbours are returned, nearest first, and the agent
+     * itself is left out (as in RVO2). Otherwise all agents within radius are
+     * returned, the agent itself included, as with findNeighbours.
+     */
+    private Bag findNeighboursInGrid(RVOAgent me, double radius) {
+        final QueryBuffers buffers = QUERY_BUFFERS.get();
+        final Point2d position = me.getCurrentPosition();
+        int found;
+        final int maxNeighbours = config.getMaxNeighbours();
+        if (maxNeighbours > 0) {
+            buffers.ensureCapacity(maxNeighbours);
+            found = neighbourGrid.findNearest(position.x, position.y, radius, maxNeighbours,
+                    neighbourGrid.indexOf(me), buffers.indices, buffers.distancesSq);
+        } else {
+            found = neighbourGrid.findWithinDistance(position.x, position.y, radius, buffers.indices);
+            if (found > buffers.indices.length) {
+                buffers.ensureCapacity(found);
+                found = neighbourGrid.findWithinDistance(position.x, position.y, radius, buffers.indices);
+            }
+        }
+        Bag neighbours = new Bag(found);
+        for (int i = 0; i < found; i++) {
+            neighbours.objs[i] = neighbourGrid.getAgent(buffers.indices[i]);
+        }
+        neighbours.numObjs = found;
+        return neighbours;
+    }
 
+    /**
+     * The agents within radius of the agent, as senseNeighbours gives them,
+     * and in the same pass over the agents the devices within the device
+     * sensor range, which are handed to the agent's device for
+     * senseNeighbours(Device) in this step.
+     */
+    private Bag senseNeighboursAndDevices(RVOAgent me, double radius) {
+        final double deviceRadius = config.getDeviceSensorRange();
+        final Point2d position = me.getCurrentPosition();
+        final Bag neighbours;
+        final Bag devices = new Bag();
+        if (neighbourGrid != null) {
+            final double range = Math.max(radius, deviceRadius);
+            final QueryBuffers buffers = QUERY_BUFFERS.get();
+            int found = neighbourGrid.findWithinDistance(position.x, position.y, range,
+                    buffers.indices, buffers.distancesSq);
+            if (found > buffers.indices.length) {
+                buffers.ensureCapacity(found);
+                found = neighbourGrid.findWithinDistance(position.x, position.y, range,
+                        buffers.indices, buffers.distancesSq);
+            }
+            final double radiusSq = radius * radius;
+            final double deviceRadiusSq = deviceRadius * deviceRadius;
+            neighbours = new Bag(found);
+            for (int i = 0; i < found; i++) {
+                final RVOAgent agent = neighbourGrid.getAgent(buffers.indices[i]);
+                if (buffers.distancesSq[i] <= radiusSq) {
+                    neighbours.add(agent);
+                }
+                if (buffers.distancesSq[i] <= deviceRadiusSq && agent.hasDevice()) {
+                    devices.add(agent.getDevice());
+                }
+            }
+        } else {
+            neighbours = new Bag(1);
+            final Bag deviceAgents = new Bag(1);
+            collectCells(agentSpace, position.x, position.y, radius, neighbours, deviceRadius, deviceAgents);
+            removeBeyond(agentSpace, position.x, position.y, radius, neighbours);
+            removeBeyond(agentSpace, position.x, position.y, deviceRadius, deviceAgents);
+            addDevices(deviceAgents, devices);
+        }
+        me.getDevice().setSensedNeighbours(devices, rvoModel.schedule.getSteps());
+        return neighbours;
     }
-    
+
+    /**
+     * The devices within the device sensor range of the device. They are
+     * normally found by the sensing of the device's agent earlier in the step.
+     */
+    public Bag senseNeighbours(Device me) {
+        Bag neighbours = me.getSensedNeighbours(rvoModel.schedule.getSteps());
+        if (neighbours == null) {
+            double sensorRange = config.getDeviceSensorRange();
+            neighbours = findDeviceNeighbours(me.getCurrentPosition(), sensorRange);
+        }
+        return neighbours;
+    }
+
+    /**
+     * The devices of the agents within radius of the position
+     */
     public Bag findDeviceNeighbours(Point2d currentPosition, double radius) {
-        Bag neighbours = deviceSpace.getObjectsExactlyWithinDistance(new Double2D(currentPosition.x, currentPosition.y), radius);
+        Bag agents = getObjectsExactlyWithinDistance(agentSpace, currentPosition.x, currentPosition.y, radius);
+        Bag neighbours = new Bag();
+        addDevices(agents, neighbours);
         return neighbours;
     }
+
+    private static void addDevices(Bag agents, Bag devices) {
+        for (int i = 0; i < agents.numObjs; i++) {
+            final RVOAgent agent = (RVOAgent) agents.objs[i];
+            if (agent.hasDevice()) {
+                devices.add(agent.getDevice());
+            }
+        }
+    }
     
     public Bag findNeighbours(Double2D currentPosition, double radius) {
-        Bag neighbours = agentSpace.getObjectsExactlyWithinDistance(currentPosition, radius);
+        Bag neighbours = getObjectsExactlyWithinDistance(agentSpace, currentPosition.x, currentPosition.y, radius);
         return neighbours;
     }
 
     public Bag senseObstacles(RVOAgent me) {
-        Bag initialObstacleList = findObstacles(me.getCurrentPosition(), RVOAgent.SENSOR_RANGE * me.getRadius());
+        if (config.isObstacleTree() && !obstacleList.isEmpty()) {
+            return findObstaclesInTree(me.getCurrentPosition(), config.getSensorRange() * me.getRadius());
+        }
+        Bag initialObstacleList = findObstacles(me.getCurrentPosition(), config.getSensorRange() * me.getRadius());
         return initialObstacleList;
 
     }
 
     private Bag findObstacles(Point2d currentPosition, double radius) {
-        Bag obstacles = obstacleSpace.getObjectsExactlyWithinDistance(new Double2D(currentPosition.x, currentPosition.y), radius);
+        Bag obstacles = getObjectsExactlyWithinDistance(obstacleSpace, currentPosition.x, currentPosition.y, radius);
+        return obstacles;
+    }
+
+    /**
+     * The obstacle segments within radius of the position, by increasing
+     * distance and then id. Unlike findObstacles this measures the distance to
+     * the whole segment and not to its first vertex, so long walls are found
+     * from anywhere along them.
+     */
+    private Bag findObstaclesInTree(Point2d currentPosition, double radius) {
+        final ObstacleKdTree tree = getObstacleTree();
+        final QueryBuffers buffers = QUERY_BUFFERS.get();
+        int found = tree.queryRange(currentPosition.x, currentPosition.y, radius,
+                buffers.obstacles, buffers.obstacleDistances);
+        if (found > buffers.obstacles.length) {
+            buffers.ensureObstacleCapacity(found);
+            found = tree.queryRange(currentPosition.x, currentPosition.y, radius,
+                    buffers.obstacles, buffers.obstacleDistances);
+        }
+        Bag obstacles = new Bag(Math.max(found, 1));
+        System.arraycopy(buffers.obstacles, 0, obstacles.objs, 0, found);
+        obstacles.numObjs = found;
         return obstacles;
     }
 
+    private ObstacleKdTree getObstacleTree() {
+        ObstacleKdTree tree = obstacleTree;
+        if (tree == null) {
+            synchronized (this) {
+                tree = obstacleTree;
+                if (tree == null) {
+                    tree = new ObstacleKdTree(obstacleList, config.getEpsilon());
+                    obstacleTree = tree;
+                }
+            }
+        }
+        return tree;
+    }
+
     public Bag findNeighbours(Point2d currentPosition, double radius) {
-        Bag neighbours = agentSpace.getObjectsExactlyWithinDistance(new Double2D(currentPosition.x, currentPosition.y), radius);
+        Bag neighbours = getObjectsExactlyWithinDistance(agentSpace, currentPosition.x, currentPosition.y, radius);
         return neighbours;
     }
 
-    public boolean visibleFrom(Point2d goal, Point2d position) {
-        Point2d p1 = new Point2d(position.getX(), position.getY());
-        Point2d p2 = new Point2d(goal.getX(), goal.getY());
-        for (RVO2Obstacle obstacle : this.obstacleList) {
-            if (Geometry.lineSegmentIntersectionTest(p1, p2,
-                    obstacle.getPoint(), obstacle.getNext().getPoint())) {
-                return false;
+    /**
+     * Gives the same objects, in the same order, as
+     * Continuous2D.getObjectsExactlyWithinDistance (non toroidal). Continuous2D
+     * walks the cells with a single MutableInt2D that is shared by all callers,
+     * so it can't be queried from several threads at once. This walks the cells
+     * with its own location instead and can be used by the parallel SenseThink
+     * as long as nobody is moving objects on the field at the same time.
+     */
+    protected static Bag getObjectsExactlyWithinDistance(Continuous2D field, double x, double y, double radius) {
+        // collected in the thread's scratch bag, so the result is allocated
+        // once at its final size instead of growing from one object
+        final Bag found = QUERY_BUFFERS.get().found;
+        collectCells(field, x, y, radius, found, radius, null);
+        removeBeyond(field, x, y, radius, found);
+        Bag result = new Bag(Math.max(found.numObjs, 1));
+        System.arraycopy(found.objs, 0, result.objs, 0, found.numObjs);
+        result.numObjs = found.numObjs;
+        found.clear();
+        return result;
+    }
+
+    /**
+     * Adds the objects of the cells within radius of (x, y) to result and, in
+     * the same walk over the cells, those of the cells within otherRadius to
+     * otherResult (if it is not null), each in the order
+     * getObjectsExactlyWithinDistance finds them
+     */
+    private static void collectCells(Continuous2D field, double x, double y, double radius, Bag result,
+            double otherRadius, Bag otherResult) {
+        final double discretizedRadius = radius / field.discretization;
+        final double discretizedX = x / field.discretization;
+        final double discretizedY = y / field.discretization;
+        final int minX = (int) StrictMath.floor(discretizedX - discretizedRadius);
+        final int maxX = (int) StrictMath.floor(discretizedX + discretizedRadius);
+        final int minY = (int) StrictMath.floor(discretizedY - discretizedRadius);
+        final int maxY = (int) StrictMath.floor(discretizedY + discretizedRadius);
+        final double otherDiscretizedRadius = otherRadius / field.discretization;
+        final int otherMinX = (int) StrictMath.floor(discretizedX - otherDiscretizedRadius);
+        final int otherMaxX = (int) StrictMath.floor(discretizedX + otherDiscretizedRadius);
+        final int otherMinY = (int) StrictMath.floor(discretizedY - otherDiscretizedRadius);
+        final int otherMaxY = (int) StrictMath.floor(discretizedY + otherDiscretizedRadius);
+        final boolean other = otherResult != null;
+        final int fromX = other ? Math.min(minX, otherMinX) : minX;
+        final int toX = other ? Math.max(maxX, otherMaxX) : maxX;
+        final int fromY = other ? Math.min(minY, otherMinY) : minY;
+        final int toY = other ? Math.max(maxY, otherMaxY) : maxY;
+
+        MutableInt2D cell = new MutableInt2D();
+        for (int cellX = fromX; cellX <= toX; cellX++) {
+            for (int cellY = fromY; cellY <= toY; cellY++) {
+                cell.x = cellX;
+                cell.y = cellY;
+                Bag objects = field.getObjectsAtLocation(cell);
+                if (objects != null && !objects.isEmpty()) {
+                    if (cellX >= minX && cellX <= maxX && cellY >= minY && cellY <= maxY) {
+                        addObjects(objects, result);
+                    }
+                    if (other && cellX >= otherMinX && cellX <= otherMaxX && cellY >= otherMinY && cellY <= otherMaxY) {
+                        addObjects(objects, otherResult);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addObjects(Bag objects, Bag result) {
+        if (objects.numObjs == 1) {
+            result.add(objects.objs[0]);
+        } else {
+            result.addAll(objects);
+        }
+    }
+
+    /**
+     * Removes the objects of result that are farther than radius from (x, y)
+     */
+    private static void removeBeyond(Continuous2D field, double x, double y, double radius, Bag result) {
+        final double radiusSq = radius * radius;
+        for (int i = 0; i < result.numObjs; i++) {
+            Double2D location = field.getObjectLocation(result.objs[i]);
+            double dx = location.x - x;
+            double dy = location.y - y;
+            if (dx * dx + dy * dy > radiusSq) {
+                result.remove(i);
+                i--;
+            }
+        }
+    }
+
+    private static final class QueryBuffers {
+
+        int[] indices = new int[64];
+        double[] distancesSq = new double[64];
+        RVO2Obstacle[] obstacles = new RVO2Obstacle[16];
+        double[] obstacleDistances = new double[16];
+        Bag found = new Bag(64);
+
+        void ensureCapacity(int capacity) {
+            if (indices.length < capacity) {
+                indices = new int[capacity];
+                distancesSq = new double[capacity];
             }
         }
-        return true;
+
+        void ensureObstacleCapacity(int capacity) {
+            if (obstacles.length < capacity) {
+                obstacles = new RVO2Obstacle[capacity];
+                obstacleDistances = new double[capacity];
+            }
+        }
+    }
+
+    /**
+     * Whether the straight line from position to goal crosses no obstacle.
+     * Gives the same answer as testing every obstacle segment, but only tests
+     * the segments of the obstacle tree nodes the line may cross.
+     */
+    public boolean visibleFrom(Point2d goal, Point2d position) {
+        return getObstacleTree().queryVisibility(position, goal);
     }
 
     /*
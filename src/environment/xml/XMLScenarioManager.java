@@ -4,6 +4,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -26,15 +28,20 @@ import org.xml.sax.InputSource;
  */
 public class XMLScenarioManager {
 
-    private static XMLScenarioManager instance = null;
+    /**
+     * One manager per package, so that reading the properties and the
+     * scenario in turn doesn't create a new JAXBContext every time
+     */
+    private static final Map<String, XMLScenarioManager> instances = new HashMap<String, XMLScenarioManager>();
     private JAXBContext context = null;
     private Marshaller marshaller = null;
     private Unmarshaller unmarshaller = null;
-    private static String name;
+
     public static synchronized XMLScenarioManager instance(String packageName) {
-        if (instance == null || !name.equals(packageName)) {
-            name = packageName;
+        XMLScenarioManager instance = instances.get(packageName);
+        if (instance == null) {
             instance = new XMLScenarioManager(packageName);
+            instances.put(packageName, instance);
         }
         
         return instance;
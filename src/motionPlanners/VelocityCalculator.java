@@ -6,6 +6,7 @@
 package motionPlanners;
 
 import agent.RVOAgent;
+import java.io.Serializable;
 import javax.vecmath.Vector2d;
 import sim.util.Bag;
 
@@ -14,11 +15,17 @@ import sim.util.Bag;
  * @author michaellees
  *
  * The interface which needs to implemented by all classes that implement 
- * collision detection algorithms
+ * collision detection algorithms. Calculators are part of the state of a
+ * simulation that is checkpointed (see Checkpoint).
  *
  */
-public interface VelocityCalculator {
+public interface VelocityCalculator extends Serializable {
 
+       /**
+        * The new velocity of the agent. A calculator may return the same
+        * vector again from its next call on the same thread, so callers copy
+        * what they keep.
+        */
        public Vector2d calculateVelocity(RVOAgent me,
             Bag neighbors, Bag obses, Vector2d preferredVelocity, double timeStep);
 }
@@ -0,0 +1,294 @@
+package motionPlanners.rvo1;
+
+import agent.RVOAgent;
+import environment.Obstacle.RVO1Obstacle;
+import java.io.Serializable;
+import java.util.Arrays;
+import javax.vecmath.Point2d;
+import javax.vecmath.Vector2d;
+import sim.util.Bag;
+import utility.Geometry;
+
+/**
+ * CandidateSampler
+ *
+ * Sampling of the candidate velocities of the RVO1 planners over primitive
+ * arrays. The objects around the agent are gathered once into flat columns,
+ * the sines and cosines of the candidate angles are tabulated, and every
+ * candidate is checked against the objects in one loop without allocating.
+ *
+ * The loop stops early as soon as a candidate can no longer beat the best
+ * penalty found so far: the time to collision only decreases as more objects
+ * are checked, and with it the candidate's penalty only increases. The
+ * velocity chosen is therefore exactly the one RVOBase's per candidate
+ * evaluation chooses.
+ *
+ * Adaptive sampling first tries every third angle and then only the angles
+ * around the best of those. It checks fewer than half the candidates but may
+ * choose a different velocity than the full sampling.
+ *
+ * A sampler keeps scratch arrays and must only be used by one thread at a
+ * time.
+ *
+ * @author michaellees
+ */
+final strictfp class CandidateSampler implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Every COARSE_STRIDE-th angle is tried first by the adaptive sampling,
+     * then the angles less than COARSE_STRIDE away from the best of them
+     */
+    private static final int COARSE_STRIDE = 3;
+    private int numberOfAngles = -1;
+    /**
+     * Whether the sine and cosine tables were computed with StrictMath, the
+     * tables are recomputed when the agent's SimulationConfig says otherwise
+     */
+    private boolean tablesDeterministic;
+    private boolean deterministic;
+    private double[] cos;
+    private double[] sin;
+    private double[] magnitudes = new double[0];
+    /**
+     * The objects around the agent: offset from the agent, velocity (agents
+     * only), combined radius including the agent's personal space
+     */
+    private int size = 0;
+    private boolean[] agent = new boolean[16];
+    private double[] offsetX = new double[16];
+    private double[] offsetY = new double[16];
+    private double[] velocityX = new double[16];
+    private double[] velocityY = new double[16];
+    private double[] radius = new double[16];
+    private boolean collision;
+    private double myVelocityX;
+    private double myVelocityY;
+    private double maxSpeed;
+    private double timeStep;
+    private double penalty;
+    private double selectedX;
+    private double selectedY;
+    private int selectedAngle;
+
+    /**
+     * Gathers the objects around the agent as RVOBase.getObjectsAround does:
+     * if the agent already collides with some of them only those
+     *
+     * @return whether the agent collides with any of them
+     */
+    boolean gather(RVOAgent me, Bag neighbors, Bag obses, double timeStep) {
+        this.timeStep = timeStep;
+        deterministic = me.getConfig().isDeterministic();
+        maxSpeed = me.getMaxSpeed();
+        final Vector2d myVelocity = me.getVelocity();
+        myVelocityX = myVelocity.x;
+        myVelocityY = myVelocity.y;
+        final Point2d myPosition = me.getCurrentPosition();
+        final double myRadius = me.getRadius();
+        final double personalSpace = myRadius * me.getPersonalSpaceFactor();
+
+        size = 0;
+        collision = false;
+        for (int i = 0; i < neighbors.numObjs; i++) {
+            final RVOAgent tempAgt = (RVOAgent) neighbors.objs[i];
+            if (tempAgt == me) {
+                continue;
+            }
+            final Point2d position = tempAgt.getCurrentPosition();
+            final boolean collisionWithThis = position.distance(myPosition) < (myRadius + tempAgt.getRadius());
+            if (collisionWithThis || !collision) {
+                if (collisionWithThis && !collision) {
+                    size = 0;
+                    collision = true;
+                }
+                final Vector2d velocity = tempAgt.getVelocity();
+                add(true, position, myPosition, velocity.x, velocity.y,
+                        myRadius + tempAgt.getRadius() + personalSpace);
+            }
+        }
+        if (obses != null) {
+            for (int i = 0; i < obses.numObjs; i++) {
+                final RVO1Obstacle tempObs = (RVO1Obstacle) obses.objs[i];
+                final Point2d position = tempObs.getPosition();
+                final boolean collisionWithThis = position.distance(myPosition) < (myRadius + tempObs.getSize() * 0.707);
+                if (collisionWithThis || !collision) {
+                    if (collisionWithThis && !collision) {
+                        size = 0;
+                        collision = true;
+                    }
+                    add(false, position, myPosition, 0, 0, myRadius + tempObs.getSize() * 0.707 + personalSpace);
+                }
+            }
+        }
+        return collision;
+    }
+
+    private void add(boolean isAgent, Point2d position, Point2d myPosition, double vx, double vy, double combinedRadius) {
+        if (size == agent.length) {
+            final int capacity = size * 2;
+            agent = Arrays.copyOf(agent, capacity);
+            offsetX = Arrays.copyOf(offsetX, capacity);
+            offsetY = Arrays.copyOf(offsetY, capacity);
+            velocityX = Arrays.copyOf(velocityX, capacity);
+            velocityY = Arrays.copyOf(velocityY, capacity);
+            radius = Arrays.copyOf(radius, capacity);
+        }
+        agent[size] = isAgent;
+        offsetX[size] = position.x - myPosition.x;
+        offsetY[size] = position.y - myPosition.y;
+        velocityX[size] = vx;
+        velocityY[size] = vy;
+        radius[size] = combinedRadius;
+        size++;
+    }
+
+    /**
+     * Number of gathered objects
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Smallest time to collision with the gathered objects when moving with
+     * the candidate velocity, as RVOBase.getMinTimeToCollision gives it.
+     *
+     * Once safetyFactor / time + deviation reaches bound the candidate cannot
+     * have a penalty below bound any more and the time found so far is
+     * returned, use Double.POSITIVE_INFINITY to check all the objects.
+     */
+    double minTimeToCollision(double vcx, double vcy, double safetyFactor, double deviation, double bound) {
+        double minimumCollisionTime = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < size; i++) {
+            double vx = vcx;
+            double vy = vcy;
+            if (agent[i]) {
+                vx = 2 * vx - velocityX[i] - myVelocityX;
+                vy = 2 * vy - velocityY[i] - myVelocityY;
+            }
+            final double time = Geometry.timeToCollision(offsetX[i], offsetY[i], vx, vy, radius[i], collision);
+
+            double collisionTimeToTemp;
+            if (collision) {
+                collisionTimeToTemp = -Math.ceil(time / timeStep);
+                collisionTimeToTemp -= (vcx * vcx + vcy * vcy) / (maxSpeed * maxSpeed);
+            } else {
+                collisionTimeToTemp = time;
+            }
+            if (collisionTimeToTemp < minimumCollisionTime) {
+                minimumCollisionTime = collisionTimeToTemp;
+                if (safetyFactor / minimumCollisionTime + deviation >= bound) {
+                    return minimumCollisionTime;
+                }
+            }
+        }
+        return minimumCollisionTime;
+    }
+
+    /**
+     * Tries the candidate velocities around the circles of numberOfMagnitudes
+     * radii up to maxMagnitude, centred on the origin or (if relative) on the
+     * agent's current velocity, angles outer and magnitudes inner as
+     * RVO_1_Standard and RVO_1_WithAccel always did. Candidates faster than
+     * speedLimit are skipped.
+     *
+     * @param minPenalty penalty to beat, the penalty of the velocity already
+     * chosen
+     * @return whether a candidate beat minPenalty, then available from
+     * getSelectedX, getSelectedY and getPenalty
+     */
+    boolean sample(int numberOfAngles, int numberOfMagnitudes, double maxMagnitude, boolean relative,
+            double speedLimit, Vector2d preferredVelocity, double safetyFactor, double minPenalty, boolean adaptive) {
+        prepareTables(numberOfAngles, numberOfMagnitudes, maxMagnitude);
+        penalty = minPenalty;
+        selectedAngle = -1;
+        final double prefX = preferredVelocity.x;
+        final double prefY = preferredVelocity.y;
+        if (!adaptive) {
+            for (int n = 0; n < numberOfAngles; n++) {
+                tryAngle(n, numberOfMagnitudes, relative, speedLimit, prefX, prefY, safetyFactor);
+            }
+            return selectedAngle >= 0;
+        }
+
+        for (int n = 0; n < numberOfAngles; n += COARSE_STRIDE) {
+            tryAngle(n, numberOfMagnitudes, relative, speedLimit, prefX, prefY, safetyFactor);
+        }
+        int centre = selectedAngle;
+        if (centre < 0) {
+            // nothing better yet, look around the preferred direction
+            final double heading = Geometry.atan2(prefY, prefX, deterministic);
+            centre = (int) Math.round(heading / (2 * Math.PI) * numberOfAngles);
+        }
+        for (int k = 1 - COARSE_STRIDE; k < COARSE_STRIDE; k++) {
+            final int n = ((centre + k) % numberOfAngles + numberOfAngles) % numberOfAngles;
+            if (n % COARSE_STRIDE != 0) {
+                tryAngle(n, numberOfMagnitudes, relative, speedLimit, prefX, prefY, safetyFactor);
+            }
+        }
+        return selectedAngle >= 0;
+    }
+
+    private void tryAngle(int n, int numberOfMagnitudes, boolean relative, double speedLimit,
+            double prefX, double prefY, double safetyFactor) {
+        for (int j = 0; j < numberOfMagnitudes; j++) {
+            double vcx = magnitudes[j] * cos[n];
+            double vcy = magnitudes[j] * sin[n];
+            if (relative) {
+                vcx = myVelocityX + vcx;
+                vcy = myVelocityY + vcy;
+                if (Math.sqrt(vcx * vcx + vcy * vcy) > speedLimit) {
+                    continue;
+                }
+            }
+            double distanceOfVels = 0;
+            if (!collision) {
+                final double dx = vcx - prefX;
+                final double dy = vcy - prefY;
+                distanceOfVels = Math.sqrt(dx * dx + dy * dy);
+            }
+            final double tc = minTimeToCollision(vcx, vcy, safetyFactor, distanceOfVels, penalty);
+            final double candidatePenalty = safetyFactor / tc + distanceOfVels;
+            if (candidatePenalty < penalty) {
+                penalty = candidatePenalty;
+                selectedX = vcx;
+                selectedY = vcy;
+                selectedAngle = n;
+            }
+        }
+    }
+
+    private void prepareTables(int numberOfAngles, int numberOfMagnitudes, double maxMagnitude) {
+        if (numberOfAngles != this.numberOfAngles || deterministic != tablesDeterministic) {
+            this.numberOfAngles = numberOfAngles;
+            tablesDeterministic = deterministic;
+            cos = new double[numberOfAngles];
+            sin = new double[numberOfAngles];
+            for (int n = 0; n < numberOfAngles; n++) {
+                final double angle = 2 * Math.PI * n / numberOfAngles;
+                cos[n] = Geometry.cos(angle, deterministic);
+                sin[n] = Geometry.sin(angle, deterministic);
+            }
+        }
+        if (magnitudes.length != numberOfMagnitudes) {
+            magnitudes = new double[numberOfMagnitudes];
+        }
+        for (int j = 0; j < numberOfMagnitudes; j++) {
+            magnitudes[j] = maxMagnitude * ((double) j + 1) / ((double) numberOfMagnitudes);
+        }
+    }
+
+    double getSelectedX() {
+        return selectedX;
+    }
+
+    double getSelectedY() {
+        return selectedY;
+    }
+
+    double getPenalty() {
+        return penalty;
+    }
+}
@@ -8,6 +8,7 @@ import javax.vecmath.Point2d; //from Java3d - make sure installed on system
 import javax.vecmath.Vector2d;
 import motionPlanners.VelocityCalculator;
 import sim.util.Bag;
+import utility.Geometry;
 
 /**
  * RVOVelocityCalculator
@@ -24,8 +25,9 @@ import sim.util.Bag;
  * berg code.
  *
  */
-public abstract class RVOBase implements VelocityCalculator{
+public abstract strictfp class RVOBase implements VelocityCalculator{
 
+    private static final long serialVersionUID = 1L;
 
 
     //RVO specific parameters
@@ -179,46 +181,7 @@ public abstract class RVOBase implements VelocityCalculator{
      */
     protected double timeTocollision(Point2d p, Vector2d v, Point2d p2,
             double radius, boolean collision) {
-
-        Vector2d ba = new Vector2d(p2);
-        ba.sub(p);
-
-        double sq_diam = radius * radius;
-
-        double time;
-
-        //determinant not supplied by Vector2d so...
-        //double vDetBa = v.det(ba);
-        double vDetBa = v.x * ba.y - v.y * ba.x;
-
-
-        double discr = sq_diam * v.dot(v) - vDetBa * vDetBa;
-
-        if (discr > 0) {
-            if (collision) {
-                time = (v.dot(ba) + Math.sqrt(discr)) / v.dot(v);
-
-                if (time < 0) {
-                    time = Double.NEGATIVE_INFINITY;
-
-                }
-            } else {
-                time = (v.dot(ba) - Math.sqrt(discr)) / v.dot(v);
-                if (time < 0) {
-                    time = Double.POSITIVE_INFINITY;//MAX_VALUE;
-                }
-            }
-        } else {
-            if (collision) {
-                time = Double.NEGATIVE_INFINITY;
-
-            } else {
-                time = Double.POSITIVE_INFINITY;//MAX_VALUE;
-
-            }
-        }
-        return time;
-
+        return Geometry.timeToCollision(p2.x - p.x, p2.y - p.y, v.x, v.y, radius, collision);
     }
 
     protected ArrayList<Double> generateCandidateMagnitudes(int numOfCandidateMagnitudes, double maxRadius) {
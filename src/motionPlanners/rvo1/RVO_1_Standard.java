@@ -6,8 +6,6 @@
 package motionPlanners.rvo1;
 
 import agent.RVOAgent;
-import java.util.ArrayList;
-import java.util.List;
 import javax.vecmath.Vector2d;
 import sim.util.Bag;
 
@@ -23,7 +21,12 @@ import sim.util.Bag;
  * Description:
  *
  */
-public class RVO_1_Standard extends RVOBase{
+public strictfp class RVO_1_Standard extends RVOBase{
+
+    private static final long serialVersionUID = 1L;
+
+    private final CandidateSampler sampler = new CandidateSampler();
+
   /**
      * Calculate new velocity without kinematic constraints. Here the velocity
      * sampling is done around the MaXSpeed circle and vCand is not relative to current velocity.
@@ -45,38 +48,24 @@ public class RVO_1_Standard extends RVOBase{
     public Vector2d calculateVelocity(RVOAgent me,
             Bag neighbors, Bag obses, Vector2d preferredVelocity, double timeStep) {
 
-
-         /**
-         * TODO: mhl, why the hell is this here??
-         */
-        Vector2d vCand = null;
-
-       
         Vector2d selectedVelocity = new Vector2d(preferredVelocity);
 
-
         double minPenalty = Double.MAX_VALUE;
-        double selectedTc = 0;
-        double selectedDv = 0;
-     
 
-        List<RVOObject> objectsAround = getObjectsAround(me,
-                neighbors, obses);
+        collision = sampler.gather(me, neighbors, obses, timeStep);
 
         //Check preferred velocity first.
-        double tc = getMinTimeToCollision(me, objectsAround, preferredVelocity, collision, timeStep);
+        double tc = sampler.minTimeToCollision(preferredVelocity.x, preferredVelocity.y,
+                Saftey_Factor, 0, Double.POSITIVE_INFINITY);
         double penalty = Saftey_Factor / tc; //note that preferred velocity has zero deviation.
 
-
-
         if (penalty < minPenalty) {
             minPenalty = penalty;
             selectedVelocity.x = preferredVelocity.x;
             selectedVelocity.y = preferredVelocity.y;
         }
 
-
-        if (objectsAround.size() > 0 && tc < Double.POSITIVE_INFINITY) {
+        if (sampler.size() > 0 && tc < Double.POSITIVE_INFINITY) {
 
 //            //check zero velocity as special case
 //            Vector2d zeroVelocity = new Vector2d(0, 0);
@@ -89,46 +78,13 @@ public class RVO_1_Standard extends RVOBase{
 //                selectedVelocity.y = 0;
 //            }
 
-            //get a set of candidate angles and magnitudes
-            ArrayList<Double> candidateAngles = generateCandidateAngles(NOOfCandidatAngle);
-            ArrayList<Double> candidateMagnitudes = generateCandidateMagnitudes(NOOfCandidatMagnitude, me.getMaxSpeed());
-
-            for (Double angle : candidateAngles) {
-                for (Double magnitude : candidateMagnitudes) {
-
-                    vCand = new Vector2d(magnitude
-                            * Math.cos(angle), magnitude
-                            * Math.sin(angle));
-
-
-                    double distanceOfVels = 0;
-
-                    if (collision == true) {
-                        distanceOfVels = 0;
-                    } else {
-                        Vector2d distVec = new Vector2d(vCand);
-                        distVec.sub(preferredVelocity);
-                        distanceOfVels = distVec.length();
-                    }
-
-                    tc = this.getMinTimeToCollision(me, objectsAround, vCand, collision, timeStep);
-                    penalty = Saftey_Factor / tc + distanceOfVels;
-
-                    if (penalty < minPenalty) {
-                        minPenalty = penalty;
-                        selectedTc = tc;
-                        selectedDv = distanceOfVels;
-                        selectedVelocity.x = vCand.x;
-                        selectedVelocity.y = vCand.y;
-                    }
-                }
+            //candidates around the maxSpeed circle, not relative to the current velocity
+            if (sampler.sample(NOOfCandidatAngle, NOOfCandidatMagnitude, me.getMaxSpeed(), false,
+                    Double.POSITIVE_INFINITY, preferredVelocity, Saftey_Factor, minPenalty,
+                    me.getConfig().isRvo1AdaptiveSampling())) {
+                selectedVelocity.x = sampler.getSelectedX();
+                selectedVelocity.y = sampler.getSelectedY();
             }
-
-            System.out.println(
-                    "Selected: " + selectedVelocity.x + " " + selectedVelocity.y 
-                    + " tc " + selectedTc 
-                    + " dv " + selectedDv 
-                    + " p " + minPenalty);
         }
         return selectedVelocity;
 
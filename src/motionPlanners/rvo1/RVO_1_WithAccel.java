@@ -1,8 +1,6 @@
 package motionPlanners.rvo1;
 
 import agent.RVOAgent;
-import java.util.ArrayList;
-import java.util.List;
 import javax.vecmath.Vector2d;
 import sim.util.Bag;
 
@@ -24,7 +22,11 @@ import sim.util.Bag;
  * between all these isn't clear to me...
  *
  */
-public class RVO_1_WithAccel extends RVOBase{
+public strictfp class RVO_1_WithAccel extends RVOBase{
+
+    private static final long serialVersionUID = 1L;
+
+    private final CandidateSampler sampler = new CandidateSampler();
 
      /**
      * Calculate new velocity using acceleration. Here sampling is done around
@@ -53,8 +55,6 @@ public class RVO_1_WithAccel extends RVOBase{
         //ger current velocity
         Vector2d currentVelocity = me.getVelocity();
 
-        Vector2d vCand = null;
-
         /**
          *
          */
@@ -62,11 +62,11 @@ public class RVO_1_WithAccel extends RVOBase{
 
         double minPenalty = Double.MAX_VALUE;
 
-        List<RVOObject> objectsAround = getObjectsAround(me,
-                neighbors, obses);
+        collision = sampler.gather(me, neighbors, obses, timeStep);
 
         //Check current velocity first.
-        double tc = getMinTimeToCollision(me, objectsAround, currentVelocity, collision, timeStep);
+        double tc = sampler.minTimeToCollision(currentVelocity.x, currentVelocity.y,
+                Saftey_Factor, 0, Double.POSITIVE_INFINITY);
         double penalty = Saftey_Factor / tc; //note that preferred velocity has zero deviation.
 
         if (penalty < minPenalty) {
@@ -75,40 +75,13 @@ public class RVO_1_WithAccel extends RVOBase{
             selectedVelocity.y = currentVelocity.y;
         }
 
-        if (objectsAround.size() > 0) {
-
-            ArrayList<Double> candidateAngles = generateCandidateAngles(NOOfCandidatAngle);
-            ArrayList<Double> candidateMagnitudes = generateCandidateMagnitudes(NOOfCandidatMagnitude, me.getPreferredSpeed());
-
-            for (Double angle : candidateAngles) {
-                for (Double magnitude : candidateMagnitudes) {
-
-                    vCand = new Vector2d(me.getVelocity().getX() + magnitude
-                            * Math.cos(angle), me.getVelocity().getY() + magnitude
-                            * Math.sin(angle));
-                    if (vCand.length() > me.getMaxSpeed()) {
-                        continue;
-                    }
-
-                    double distanceOfVels = 0;
-
-                    if (collision == true) {
-                        distanceOfVels = 0;
-                    } else {
-                        Vector2d distVec = new Vector2d(vCand);
-                        distVec.sub(preferredVelocity);
-                        distanceOfVels = distVec.length();
-                    }
-
-                    tc = getMinTimeToCollision(me, objectsAround, vCand, collision,timeStep);
-                    penalty = Saftey_Factor / tc + distanceOfVels;
-
-                    if (penalty < minPenalty) {
-                        minPenalty = penalty;
-                        selectedVelocity.x = vCand.x;
-                        selectedVelocity.y = vCand.y;
-                    }
-                }
+        if (sampler.size() > 0) {
+            //candidates around the current velocity, no faster than maxSpeed
+            if (sampler.sample(NOOfCandidatAngle, NOOfCandidatMagnitude, me.getPreferredSpeed(), true,
+                    me.getMaxSpeed(), preferredVelocity, Saftey_Factor, minPenalty,
+                    me.getConfig().isRvo1AdaptiveSampling())) {
+                selectedVelocity.x = sampler.getSelectedX();
+                selectedVelocity.y = sampler.getSelectedY();
             }
         }
         return selectedVelocity;
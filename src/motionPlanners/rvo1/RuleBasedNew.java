@@ -4,8 +4,10 @@ package motionPlanners.rvo1;
 import agent.RVOAgent;
 import java.util.ArrayList;
 import java.util.List;
+import javax.vecmath.Point2d;
 import javax.vecmath.Vector2d;
 import sim.util.Bag;
+import utility.Geometry;
 
 /**
  * TWContextBuilder
@@ -19,7 +21,9 @@ import sim.util.Bag;
  * Description: This doesn't use a safety factor. Threshold set for time to collision
  * and smaller to larger magnitudes considered.For each magnitude all angles are considered
  */
-public class RuleBasedNew extends RVOBase {
+public strictfp class RuleBasedNew extends RVOBase {
+
+    private static final long serialVersionUID = 1L;
 
     /**
      * Threshold for time to collision at which we stop sampling.
@@ -27,13 +31,25 @@ public class RuleBasedNew extends RVOBase {
     private double tcThreshold = 2.0; //(2 seconds)
     private double SAMPLE_RADIUS = 2;
 
+    /**
+     * The objects around the agent packed for Geometry.minTimesToCollision,
+     * and the candidates of one magnitude with their times to collision
+     */
+    private int numberOfObjects = 0;
+    private double[] offsetX = new double[16];
+    private double[] offsetY = new double[16];
+    private double[] velocityX = new double[16];
+    private double[] velocityY = new double[16];
+    private double[] weight = new double[16];
+    private double[] radius = new double[16];
+    private double[] candidateX = new double[0];
+    private double[] candidateY = new double[0];
+    private double[] minTimes = new double[0];
+
     @Override
     public Vector2d calculateVelocity(RVOAgent me,
             Bag neighbors, Bag obses, Vector2d preferredVelocity, double timeStep) {
 
-        
-        Vector2d vCand = null;
-
         Vector2d selectedVelocity = new Vector2d(preferredVelocity);
 
         double minTc = Double.MAX_VALUE;
@@ -44,10 +60,20 @@ public class RuleBasedNew extends RVOBase {
             return getCollisionStopVelocity(me, objectsAround);
         }
 
-
+        pack(me, objectsAround);
+        final Vector2d myVelocity = me.getVelocity();
+        if (candidateX.length < Math.max(NOOfCandidatAngle, 1)) {
+            candidateX = new double[Math.max(NOOfCandidatAngle, 1)];
+            candidateY = new double[candidateX.length];
+            minTimes = new double[candidateX.length];
+        }
 
         //Check current velocity first.
-        double tc = getMinTimeToCollision(me, objectsAround, preferredVelocity, collision,timeStep);
+        candidateX[0] = preferredVelocity.x;
+        candidateY[0] = preferredVelocity.y;
+        Geometry.minTimesToCollision(offsetX, offsetY, velocityX, velocityY, weight, radius, numberOfObjects,
+                myVelocity.x, myVelocity.y, candidateX, candidateY, 1, minTimes);
+        double tc = minTimes[0];
 
         //current velocity suitable so return
         if (tc > tcThreshold) {
@@ -61,30 +87,37 @@ public class RuleBasedNew extends RVOBase {
             ArrayList<Double> candidateMagnitudes = generateCandidateMagnitudes(NOOfCandidatMagnitude, SAMPLE_RADIUS);
 
             //In this case we check increasing magnitudes away from preferred velocity,
-            // i.e., all angles for each magnitude in turn
+            // i.e., all angles for each magnitude in turn. The candidates of a
+            // magnitude are checked together and then taken in turn.
 
             Vector2d initialVector;
             for (Double magnitude : candidateMagnitudes) {
                 initialVector = new Vector2d(preferredVelocity);
                 initialVector.scale(magnitude);
                 initialVector.add(preferredVelocity, initialVector);
+                int numberOfCandidates = 0;
                 for (Double angle : candidateAngles) {
-                    vCand = rotate2d(initialVector, angle);
-
-                    System.out.println("X: " + vCand.x + " Y: "+ vCand.y);
+                    Vector2d vCand = rotate2d(initialVector, angle, me.getConfig().isDeterministic());
                     if (vCand.length() > me.getMaxSpeed()) {
                         continue;
                     }
-                    tc = this.getMinTimeToCollision(me, objectsAround, vCand, collision,timeStep);
+                    candidateX[numberOfCandidates] = vCand.x;
+                    candidateY[numberOfCandidates] = vCand.y;
+                    numberOfCandidates++;
+                }
+                Geometry.minTimesToCollision(offsetX, offsetY, velocityX, velocityY, weight, radius, numberOfObjects,
+                        myVelocity.x, myVelocity.y, candidateX, candidateY, numberOfCandidates, minTimes);
 
+                for (int k = 0; k < numberOfCandidates; k++) {
+                    tc = minTimes[k];
                     if (tc > tcThreshold) {
-                        selectedVelocity.x = vCand.x;
-                        selectedVelocity.y = vCand.y;
+                        selectedVelocity.x = candidateX[k];
+                        selectedVelocity.y = candidateY[k];
                         return selectedVelocity;
                     } else if (tc < minTc) {
                         minTc = tc;
-                        selectedVelocity.x = vCand.x;
-                        selectedVelocity.y = vCand.y;
+                        selectedVelocity.x = candidateX[k];
+                        selectedVelocity.y = candidateY[k];
                     }
                 }
             }
@@ -93,6 +126,40 @@ public class RuleBasedNew extends RVOBase {
 
     }
 
+    /**
+     * Packs the objects around the agent with the combined radii of
+     * getMinTimeToCollision
+     */
+    private void pack(RVOAgent me, List<RVOObject> objectsAround) {
+        final int size = objectsAround.size();
+        if (offsetX.length < size) {
+            offsetX = new double[size];
+            offsetY = new double[size];
+            velocityX = new double[size];
+            velocityY = new double[size];
+            weight = new double[size];
+            radius = new double[size];
+        }
+        final Point2d myPosition = me.getCurrentPosition();
+        numberOfObjects = 0;
+        for (RVOObject tempObject : objectsAround) {
+            offsetX[numberOfObjects] = tempObject.position.x - myPosition.x;
+            offsetY[numberOfObjects] = tempObject.position.y - myPosition.y;
+            if (tempObject.isAgent) {
+                weight[numberOfObjects] = 2;
+                velocityX[numberOfObjects] = tempObject.velocity.x;
+                velocityY[numberOfObjects] = tempObject.velocity.y;
+            } else {
+                weight[numberOfObjects] = 1;
+                velocityX[numberOfObjects] = 0;
+                velocityY[numberOfObjects] = 0;
+            }
+            radius[numberOfObjects] = me.getRadius()
+                    + tempObject.radius + me.getRadius() * me.getPersonalSpaceFactor();
+            numberOfObjects++;
+        }
+    }
+
     /**
      * Rotates a given vector in 2d in counterclockwise direction about Z-axis
      *
@@ -100,8 +167,10 @@ public class RuleBasedNew extends RVOBase {
      * @param angle
      * @return
      */
-    private Vector2d rotate2d(Vector2d v, double angle) {
-        return new Vector2d(v.x * Math.cos(angle) - v.y * Math.sin(angle), v.x * Math.sin(angle) + v.y * Math.cos(angle));
+    private Vector2d rotate2d(Vector2d v, double angle, boolean deterministic) {
+        final double cos = Geometry.cos(angle, deterministic);
+        final double sin = Geometry.sin(angle, deterministic);
+        return new Vector2d(v.x * cos - v.y * sin, v.x * sin + v.y * cos);
     }
 
     @Override
@@ -3,13 +3,9 @@ package motionPlanners.rvo2;
 import utility.Line;
 import environment.Obstacle.RVO2Obstacle;
 import agent.RVOAgent;
+import app.SimulationConfig;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import javax.vecmath.Point2d;
 import javax.vecmath.Vector2d;
 import motionPlanners.VelocityCalculator;
@@ -26,13 +22,31 @@ import utility.Geometry;
  *
  * Description: implementation of RVO2 library
  *
+ * The ORCA lines and all intermediate vectors are kept as primitive doubles in
+ * a per-thread Workspace, and so is the returned velocity, so a call does not
+ * allocate once the buffers have grown to the size of the neighbourhood. The
+ * returned velocity is therefore only valid until the next call on the same
+ * thread. The
+ * arithmetic is done in the same order as the former Vector2d based code
+ * (including the float casts), so the velocities are identical to it, i.e. the
+ * tolerance is 0 and not merely the RVOEpsilon of the simulation.
+ *
  */
-public class RVO_2_1 implements VelocityCalculator {
+public strictfp class RVO_2_1 implements VelocityCalculator {
+
+    private static final long serialVersionUID = 1L;
 
     /**
-     * Stores the orcalines for calculation
+     * Scratch state used while calculating a velocity. Each thread gets its
+     * own, so a single RVO_2_1 can be shared by all the agents even when they
+     * are stepped in parallel.
      */
-    List<Line> orcaLines;
+    private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
     /**
      * TIME_HORIZON float (time) The minimal amount of time for which the
      * agent's velocities that are computed by the simulation are safe with
@@ -53,122 +67,65 @@ public class RVO_2_1 implements VelocityCalculator {
     /* Search for the best new velocity. */
     public RVO_2_1() {
         super();
-        orcaLines = new ArrayList<Line>();
-    }
-
-    public List<Line> getOrcaLines() {
-        return orcaLines;
     }
 
     @Override
     public Vector2d calculateVelocity(RVOAgent me,
             Bag guys, Bag obstacleBag, Vector2d preferredVelocity, double timeStep) {
 
-
-//        preferredVelocity.normalize();
+        final Workspace workspace = WORKSPACE.get();
+        final LineBuffer orcaLines = workspace.orcaLines;
         orcaLines.clear();
 
+        final Point2d agentPosition = me.getCurrentPosition();
+        final double agentX = agentPosition.x;
+        final double agentY = agentPosition.y;
+        final double velocityX = me.getVelocityX();
+        final double velocityY = me.getVelocityY();
+        final double radius = me.getRadius();
+        final SimulationConfig config = me.getConfig();
+        final double epsilon = config.getEpsilon();
+        final boolean deterministic = config.isDeterministic();
 
+        workspace.sortObstacles(obstacleBag, agentX, agentY, !config.isObstacleTree());
 
-
-        final Map<RVO2Obstacle, Double> obstacleDistances = new LinkedHashMap<RVO2Obstacle, Double>();
-        final Point2d agentPosition = new Point2d(me.getCurrentPosition());
-        TreeSet<RVO2Obstacle> obses = new TreeSet<RVO2Obstacle>(new Comparator<RVO2Obstacle>() {
-            //Note that all externally-referenced variables must be final.
-            //This means: obstacleDistances & agent.            
-            @Override
-            public int compare(RVO2Obstacle o1, RVO2Obstacle o2) {
-                double o1Distance = getObstacleDistanceToAgent(o1), o2Distance = getObstacleDistanceToAgent(o2);
-                if (Double.compare(o1Distance, o2Distance) == 0) {
-                    return (o1.hashCode() - o2.hashCode());
-                } else {
-                    return Double.compare(o1Distance, o2Distance);
-                }
-
-            }
-
-            //Method to compute distance to agent. Caches the value for later use.
-            public double getObstacleDistanceToAgent(RVO2Obstacle obstacle) {
-                if (obstacleDistances.containsKey(obstacle)) {
-                    return obstacleDistances.get(obstacle);
-                }
-
-                double distance =
-                        Geometry.calcDistanceToLineSegment(obstacle.getPoint(),
-                        obstacle.getNext().getPoint(),
-                        agentPosition);
-                obstacleDistances.put(obstacle, distance);
-
-                return distance;
-            }
-        });
-        
-//        TreeSet<RVOAgent> neighbors = new TreeSet<RVOAgent>(new Comparator<RVOAgent>() {
-//            //Note that all externally-referenced variables must be final.
-//            //This means: obstacleDistances & agent.            
-//            @Override
-//            public int compare(RVOAgent o1, RVOAgent o2) {
-//                double o1Distance = o1.getCurrentPosition().distance(agentPosition), o2Distance = o2.getCurrentPosition().distance(agentPosition);
-//                if (Double.compare(o1Distance, o2Distance) == 0) {
-//                    return (o1.hashCode() - o2.hashCode());
-//                } else {
-//                    return Double.compare(o1Distance, o2Distance);
-//                }
-//
-//            }
-//
-//           
-//        });
-////        System.out.println(neighbors.size());
-////        HashSet<RVOAgentneighbors = new HashSet<RVOAgent>();
-//        for(Object guy: guys){
-//            
-//            neighbors.add((RVOAgent) guy);
-//           
-//        }
-
-        for (Object tempObject : obstacleBag) {
-            RVO2Obstacle tempObstacle = (RVO2Obstacle) tempObject;
-            obses.add(tempObstacle);
-            obses.add(tempObstacle.getPrev());
-
-        }
-
-
-//        obses = sortedObstacles;
-//
-////        List<RVO2Obstacle> obses = new ArrayList<RVO2Obstacle>(obstacleBag);
-
-        Vector2d newVelocity = new Vector2d(preferredVelocity);
-        final double invTimeHorizonObst = 1.0f / TIME_HORIZON_OBSTACLE;
+        final Vector2d newVelocity = workspace.newVelocity;
+        newVelocity.set(preferredVelocity);
+        final double invTimeHorizonObst = 1.0f / config.getTimeHorizonObstacle();
 
         /* Create obstacle ORCA lines. */
 
-        for (RVO2Obstacle obstacleFromList : obses) {
+        for (int k = 0; k < workspace.obstacleCount; k++) {
 
-            RVO2Obstacle obstacle1 = obstacleFromList;
+            RVO2Obstacle obstacle1 = workspace.obstacles[k];
             RVO2Obstacle obstacle2 = obstacle1.getNext();
-//            System.out.println(obstacle1.getPoint());
-            assert !obstacle1.getNext().getPoint().equals(obstacle1.getPoint());
-            Vector2d obstacle1UnitDir = new Vector2d(obstacle1.getNext().getPoint());
-            obstacle1UnitDir.sub(obstacle1.getPoint());
-            obstacle1UnitDir.normalize();
+            final Point2d point1 = obstacle1.getPoint();
+            final Point2d point2 = obstacle2.getPoint();
+            final Point2d point2Next = obstacle2.getNext().getPoint();
+            assert !point2.equals(point1);
+
+            double norm;
+            double obstacle1UnitDirX = point2.x - point1.x;
+            double obstacle1UnitDirY = point2.y - point1.y;
+            norm = 1.0 / Math.sqrt(obstacle1UnitDirX * obstacle1UnitDirX + obstacle1UnitDirY * obstacle1UnitDirY);
+            obstacle1UnitDirX *= norm;
+            obstacle1UnitDirY *= norm;
             assert !Double.isNaN(
-                    obstacle1UnitDir.y) && !Double.isInfinite(obstacle1UnitDir.y);
-            Vector2d obstacle2UnitDir = new Vector2d(obstacle2.getNext().getPoint());
-            obstacle2UnitDir.sub(obstacle2.getPoint());
-            obstacle2UnitDir.normalize();
+                    obstacle1UnitDirY) && !Double.isInfinite(obstacle1UnitDirY);
+            double obstacle2UnitDirX = point2Next.x - point2.x;
+            double obstacle2UnitDirY = point2Next.y - point2.y;
+            norm = 1.0 / Math.sqrt(obstacle2UnitDirX * obstacle2UnitDirX + obstacle2UnitDirY * obstacle2UnitDirY);
+            obstacle2UnitDirX *= norm;
+            obstacle2UnitDirY *= norm;
 
-//            System.out.println("for agent at "+me.getCurrentPosition()+"Avoiding obstacle from "+ obstacle1.getPoint()+ " to " + obstacle2.getPoint());
+            final double relativePosition1X = point1.x - agentX;
+            final double relativePosition1Y = point1.y - agentY;
 
-            Vector2d relativePosition1 = new Vector2d(obstacle1.getPoint());
-            relativePosition1.sub(agentPosition);
+            final double relativePosition2X = point2.x - agentX;
+            final double relativePosition2Y = point2.y - agentY;
 
-            Vector2d relativePosition2 = new Vector2d(obstacle2.getPoint());
-            relativePosition2.sub(agentPosition);
-
-            Vector2d obstacleVector = new Vector2d(obstacle2.getPoint());
-            obstacleVector.sub(obstacle1.getPoint());
+            final double obstacleVectorX = point2.x - point1.x;
+            final double obstacleVectorY = point2.y - point1.y;
 
 
             /*
@@ -177,11 +134,10 @@ public class RVO_2_1 implements VelocityCalculator {
              */
             boolean alreadyCovered = false;
 
-            for (int j = 0; j < orcaLines.size(); ++j) {
-                if (checkCovered(invTimeHorizonObst, relativePosition1,
-                        relativePosition2, orcaLines.get(j), me)) {
+            for (int j = 0; j < orcaLines.size; ++j) {
+                if (checkCovered(invTimeHorizonObst, relativePosition1X, relativePosition1Y,
+                        relativePosition2X, relativePosition2Y, orcaLines, j, radius, epsilon)) {
                     alreadyCovered = true;
-//                    System.out.println("Covered");
                     break;
                 }
             }
@@ -193,109 +149,57 @@ public class RVO_2_1 implements VelocityCalculator {
             /* Not yet covered. Check for collisions. */
 
 
-            float distSq1 = (float) relativePosition1.dot(relativePosition1);
-
-            float distSq2 = (float) relativePosition2.dot(relativePosition2);
+            float distSq1 = (float) (relativePosition1X * relativePosition1X + relativePosition1Y * relativePosition1Y);
 
-            double radiusSq = me.getRadius() * me.getRadius();
+            float distSq2 = (float) (relativePosition2X * relativePosition2X + relativePosition2Y * relativePosition2Y);
 
-            Vector2d leftLegDirection, rightLegDirection;
+            double radiusSq = radius * radius;
 
-            Vector2d negRelativePosition1 = new Vector2d(relativePosition1);
-            negRelativePosition1.negate();
-            double s = (negRelativePosition1.dot(obstacleVector) / obstacleVector.dot(obstacleVector));
-            Vector2d distSq = new Vector2d(obstacleVector);
-            distSq.scale(-s);
-            distSq.add(negRelativePosition1);
-            float distSqLine = (float) distSq.dot(distSq);
+            double leftLegDirectionX, leftLegDirectionY, rightLegDirectionX, rightLegDirectionY;
 
+            final double negRelativePosition1X = -relativePosition1X;
+            final double negRelativePosition1Y = -relativePosition1Y;
+            double s = ((negRelativePosition1X * obstacleVectorX + negRelativePosition1Y * obstacleVectorY)
+                    / (obstacleVectorX * obstacleVectorX + obstacleVectorY * obstacleVectorY));
+            final double distSqX = obstacleVectorX * -s + negRelativePosition1X;
+            final double distSqY = obstacleVectorY * -s + negRelativePosition1Y;
+            float distSqLine = (float) (distSqX * distSqX + distSqY * distSqY);
 
-            Vector2d negRelativePosition2 = new Vector2d(relativePosition2);
-            negRelativePosition2.negate();
 
-
-
-
-
-            Line line = new Line();
+            final double negRelativePosition2X = -relativePosition2X;
 
             if (s < 0 && distSq1 <= radiusSq) {
                 /* Collision with left vertex. Ignore if non-convex. */
-//                System.out.println("Left Vertex Collision");
                 if (obstacle1.isConvex()) {
-//                    System.out.println("COllision with left vertex");
-                    line.point = new Point2d(0, 0);
-
-                    line.direction = new Vector2d(-relativePosition1.y, relativePosition1.x);
-                    line.direction.normalize();
-                    orcaLines.add(line);
-                    assert !Double.isNaN(
-                            line.direction.y) && !Double.isInfinite(line.direction.y);
-                    assert !Double.isNaN(
-                            line.direction.x) && !Double.isInfinite(line.direction.x);
-                    assert !Double.isNaN(
-                            line.point.y) && !Double.isInfinite(line.point.y);
-                    assert !Double.isNaN(
-                            line.point.x) && !Double.isInfinite(line.point.x);
-
-
+                    double directionX = -relativePosition1Y;
+                    double directionY = relativePosition1X;
+                    norm = 1.0 / Math.sqrt(directionX * directionX + directionY * directionY);
+                    orcaLines.add(0, 0, directionX * norm, directionY * norm);
                 }
 
                 continue;
             } else if (s > 1 && distSq2 <= radiusSq) {
                 /* Collision with right vertex. Ignore if non-convex*/
-//                System.out.println("Right Vertex Collision");
 
-                if (obstacle2.isConvex() && Geometry.det(relativePosition2, obstacle2UnitDir) >= 0) {
+                if (obstacle2.isConvex() && relativePosition2X * obstacle2UnitDirY - relativePosition2Y * obstacle2UnitDirX >= 0) {
                     /*ignore obstacle*/
-//                    System.out.println("COllision with right vertex");
-                    line.point = new Point2d(0, 0);
-
-                    line.direction = new Vector2d(-relativePosition2.y, relativePosition2.x);
-                    line.direction.normalize();
-                    orcaLines.add(line);
-                    assert !Double.isNaN(
-                            line.direction.y) && !Double.isInfinite(line.direction.y);
-                    assert !Double.isNaN(
-                            line.direction.x) && !Double.isInfinite(line.direction.x);
-                    assert !Double.isNaN(
-                            line.point.y) && !Double.isInfinite(line.point.y);
-                    assert !Double.isNaN(
-                            line.point.x) && !Double.isInfinite(line.point.x);
-
-
-
+                    double directionX = -relativePosition2Y;
+                    double directionY = relativePosition2X;
+                    norm = 1.0 / Math.sqrt(directionX * directionX + directionY * directionY);
+                    orcaLines.add(0, 0, directionX * norm, directionY * norm);
                 }
                 continue;
 
             } else if (s >= 0 && s < 1 && distSqLine <= radiusSq) {
                 /* Collision with obstacle segment. */
-
-//                System.out.println("COllision with a segment");
-                line.point = new Point2d(0, 0);
-
-                line.direction = new Vector2d(obstacle1UnitDir);
-                line.direction.negate();
-
-                orcaLines.add(line);
-                assert !Double.isNaN(
-                        line.direction.y) && !Double.isInfinite(line.direction.y);
-                assert !Double.isNaN(
-                        line.direction.x) && !Double.isInfinite(line.direction.x);
-                assert !Double.isNaN(
-                        line.point.y) && !Double.isInfinite(line.point.y);
-                assert !Double.isNaN(
-                        line.point.x) && !Double.isInfinite(line.point.x);
+                orcaLines.add(0, 0, -obstacle1UnitDirX, -obstacle1UnitDirY);
                 continue;
             }
             /*No collision
              Compute legs. When obliquely viewed, both legs can come from a single
              vertex. Legs extend cut-off line when nonconvex vertex.
              */
-//            System.out.println("No collision");
             if (s < 0 && distSqLine <= radiusSq) {
-//                System.out.println("oblique view from left");
-
 
                 if (!obstacle1.isConvex()) {
                     /* Ignore obstacle. */
@@ -304,21 +208,21 @@ public class RVO_2_1 implements VelocityCalculator {
 
                 obstacle2 = obstacle1;
 
-
-
-//                final double LEG1 = ((distSq1 - radiusSq) < 0) ? 0 : Math.sqrt(distSq1 - radiusSq);
                 final double LEG1 = Math.sqrt(Math.abs(distSq1 - radiusSq));
 
-                leftLegDirection = new Vector2d(relativePosition1.getX() * LEG1 - relativePosition1.getY() * me.getRadius(), relativePosition1.getX() * me.getRadius() + relativePosition1.getY() * LEG1);
-                rightLegDirection = new Vector2d(relativePosition1.getX() * LEG1 + relativePosition1.getY() * me.getRadius(), negRelativePosition1.getX() * me.getRadius() + relativePosition1.getY() * LEG1);
-                leftLegDirection.scale(1.0f / distSq1);
-                rightLegDirection.scale(1.0f / distSq1);
+                leftLegDirectionX = relativePosition1X * LEG1 - relativePosition1Y * radius;
+                leftLegDirectionY = relativePosition1X * radius + relativePosition1Y * LEG1;
+                rightLegDirectionX = relativePosition1X * LEG1 + relativePosition1Y * radius;
+                rightLegDirectionY = negRelativePosition1X * radius + relativePosition1Y * LEG1;
+                leftLegDirectionX *= 1.0f / distSq1;
+                leftLegDirectionY *= 1.0f / distSq1;
+                rightLegDirectionX *= 1.0f / distSq1;
+                rightLegDirectionY *= 1.0f / distSq1;
             } else if (s > 1 && distSqLine <= radiusSq) {
                 /*
                  * RVO2Obstacle viewed obliquely so that
                  * right vertex defines velocity obstacle.
                  */
-//                 System.out.println("oblique view from right");
                 if (!obstacle2.isConvex()) {
                     /* Ignore obstacle. */
                     continue;
@@ -326,42 +230,42 @@ public class RVO_2_1 implements VelocityCalculator {
 
                 obstacle1 = obstacle2;
 
-//                final double LEG2 = ((distSq2 - radiusSq) < 0) ? 0 : Math.sqrt(distSq2 - radiusSq);
                 final double LEG2 = Math.sqrt(Math.abs(distSq2 - radiusSq));
-                leftLegDirection = new Vector2d(relativePosition2.getX() * LEG2 - relativePosition2.getY() * me.getRadius(), relativePosition2.getX() * me.getRadius() + relativePosition2.getY() * LEG2);
-                rightLegDirection = new Vector2d(relativePosition2.getX() * LEG2 + relativePosition2.getY() * me.getRadius(), negRelativePosition2.getX() * me.getRadius() + relativePosition2.getY() * LEG2);
-                leftLegDirection.scale(1.0f / distSq2);
-                rightLegDirection.scale(1.0f / distSq2);
+                leftLegDirectionX = relativePosition2X * LEG2 - relativePosition2Y * radius;
+                leftLegDirectionY = relativePosition2X * radius + relativePosition2Y * LEG2;
+                rightLegDirectionX = relativePosition2X * LEG2 + relativePosition2Y * radius;
+                rightLegDirectionY = negRelativePosition2X * radius + relativePosition2Y * LEG2;
+                leftLegDirectionX *= 1.0f / distSq2;
+                leftLegDirectionY *= 1.0f / distSq2;
+                rightLegDirectionX *= 1.0f / distSq2;
+                rightLegDirectionY *= 1.0f / distSq2;
             } else {
                 /* Usual situation. */
 
-//                System.out.println("The usual");
                 if (obstacle1.isConvex()) {
                     final double LEG1 = Math.sqrt(Math.abs(distSq1 - radiusSq));
-                    leftLegDirection = new Vector2d(relativePosition1.getX() * LEG1 - relativePosition1.getY() * me.getRadius(), relativePosition1.getX() * me.getRadius() + relativePosition1.getY() * LEG1);
-                    leftLegDirection.scale(1.0f / distSq1);
+                    leftLegDirectionX = relativePosition1X * LEG1 - relativePosition1Y * radius;
+                    leftLegDirectionY = relativePosition1X * radius + relativePosition1Y * LEG1;
+                    leftLegDirectionX *= 1.0f / distSq1;
+                    leftLegDirectionY *= 1.0f / distSq1;
                 } else {
                     /* Left vertex non-convex; left LEG extends cut-off line. */
-
-
-                    leftLegDirection = new Vector2d(obstacle1UnitDir);
-                    leftLegDirection.negate();
-
+                    leftLegDirectionX = -obstacle1UnitDirX;
+                    leftLegDirectionY = -obstacle1UnitDirY;
                 }
 
                 if (obstacle2.isConvex()) {
                     final double LEG2 = Math.sqrt(Math.abs(distSq2 - radiusSq));
-                    rightLegDirection = new Vector2d(relativePosition2.getX() * LEG2 + relativePosition2.getY() * me.getRadius(), negRelativePosition2.getX() * me.getRadius() + relativePosition2.getY() * LEG2);
-                    rightLegDirection.scale(1.0f / distSq2);
+                    rightLegDirectionX = relativePosition2X * LEG2 + relativePosition2Y * radius;
+                    rightLegDirectionY = negRelativePosition2X * radius + relativePosition2Y * LEG2;
+                    rightLegDirectionX *= 1.0f / distSq2;
+                    rightLegDirectionY *= 1.0f / distSq2;
                     assert !Double.isNaN(
-                            rightLegDirection.y) && !Double.isInfinite(rightLegDirection.y);
+                            rightLegDirectionY) && !Double.isInfinite(rightLegDirectionY);
                 } else {
                     /* Right vertex non-convex; right LEG extends cut-off line. */
-                    rightLegDirection = new Vector2d(obstacle1UnitDir);
-
-                    assert !Double.isNaN(
-                            rightLegDirection.y) && !Double.isInfinite(rightLegDirection.y);
-
+                    rightLegDirectionX = obstacle1UnitDirX;
+                    rightLegDirectionY = obstacle1UnitDirY;
                 }
             }
 
@@ -371,118 +275,83 @@ public class RVO_2_1 implements VelocityCalculator {
              * "foreign" LEG, no constraint is added.
              */
 
-            //final RVO2Obstacle leftNeighbor = obstacle1.getPrev();
-
-
             boolean isLeftLegForeign = false;
             boolean isRightLegForeign = false;
 
-            Vector2d negLeftNeighborDirection = new Vector2d(obstacle1.getPrev().getPoint());
-            negLeftNeighborDirection.sub(obstacle1.getPoint());
-
-            negLeftNeighborDirection.normalize();
-
-//            leftNeighborDirection.sub(obstacle1.getPoint());
-
-//            Vector2d rightNeighborDirection = new Vector2d(rightNeighbor.getPoint());
-//            rightNeighborDirection.sub(obstacle2.getPoint());
+            final Point2d leftPoint = obstacle1.getPoint();
+            final Point2d leftNeighborPoint = obstacle1.getPrev().getPoint();
+            double negLeftNeighborDirectionX = leftNeighborPoint.x - leftPoint.x;
+            double negLeftNeighborDirectionY = leftNeighborPoint.y - leftPoint.y;
+            norm = 1.0 / Math.sqrt(negLeftNeighborDirectionX * negLeftNeighborDirectionX + negLeftNeighborDirectionY * negLeftNeighborDirectionY);
+            negLeftNeighborDirectionX *= norm;
+            negLeftNeighborDirectionY *= norm;
 
-
-
-            if (obstacle1.isConvex() && Geometry.det(leftLegDirection, negLeftNeighborDirection) >= 0.0f) {
+            if (obstacle1.isConvex() && leftLegDirectionX * negLeftNeighborDirectionY - leftLegDirectionY * negLeftNeighborDirectionX >= 0.0f) {
                 /* Left LEG points into obstacle. */
-//System.out.println("left leg into obstacle");
-
-                leftLegDirection = new Vector2d(negLeftNeighborDirection);
+                leftLegDirectionX = negLeftNeighborDirectionX;
+                leftLegDirectionY = negLeftNeighborDirectionY;
                 isLeftLegForeign = true;
             }
 
 
-            if (obstacle2.isConvex() && Geometry.det(rightLegDirection, obstacle2UnitDir) <= 0.0f) {
+            if (obstacle2.isConvex() && rightLegDirectionX * obstacle2UnitDirY - rightLegDirectionY * obstacle2UnitDirX <= 0.0f) {
                 /* Right LEG points into obstacle. */
-//                System.out.println("right leg into obstacle");
-                rightLegDirection = new Vector2d(obstacle2UnitDir);
+                rightLegDirectionX = obstacle2UnitDirX;
+                rightLegDirectionY = obstacle2UnitDirY;
                 assert !Double.isNaN(
-                        rightLegDirection.y) && !Double.isInfinite(rightLegDirection.y);
+                        rightLegDirectionY) && !Double.isInfinite(rightLegDirectionY);
                 isRightLegForeign = true;
             }
 
             /* Compute cut-off centers. */
-            Point2d vectorToObstacle1 = new Point2d(obstacle1.getPoint());
-            vectorToObstacle1.sub(agentPosition);
-            vectorToObstacle1.scale(invTimeHorizonObst);
-            final Vector2d LEFTCUTOFF = new Vector2d(vectorToObstacle1);
-
-            Point2d vectorToObstacle2 = new Point2d(obstacle2.getPoint());
-            vectorToObstacle2.sub(agentPosition);
-            vectorToObstacle2.scale(invTimeHorizonObst);
-            final Vector2d RIGHTCUTOFF = new Vector2d(vectorToObstacle2);
-
-            Point2d cutOffVecTemp = new Point2d(RIGHTCUTOFF);
-            cutOffVecTemp.sub(LEFTCUTOFF);
-            final Vector2d CUTOFFVEC = new Vector2d(cutOffVecTemp);
+            final Point2d rightPoint = obstacle2.getPoint();
+            final double leftCutOffX = (leftPoint.x - agentX) * invTimeHorizonObst;
+            final double leftCutOffY = (leftPoint.y - agentY) * invTimeHorizonObst;
+            final double rightCutOffX = (rightPoint.x - agentX) * invTimeHorizonObst;
+            final double rightCutOffY = (rightPoint.y - agentY) * invTimeHorizonObst;
+            final double cutOffVecX = rightCutOffX - leftCutOffX;
+            final double cutOffVecY = rightCutOffY - leftCutOffY;
 
             /* Project current velocity on velocity obstacle. */
 
             /* Check if current velocity is projected on cutoff circles. */
 
-            Vector2d velocityMinusLeft = new Vector2d(me.getVelocity());
-            velocityMinusLeft.sub(LEFTCUTOFF);
+            final double velocityMinusLeftX = velocityX - leftCutOffX;
+            final double velocityMinusLeftY = velocityY - leftCutOffY;
 
-            Vector2d velocityMinusRight = new Vector2d(me.getVelocity());
-            velocityMinusRight.sub(RIGHTCUTOFF);
+            final double velocityMinusRightX = velocityX - rightCutOffX;
+            final double velocityMinusRightY = velocityY - rightCutOffY;
 
+            final boolean sameVertex = obstacle1.equals(obstacle2);
 
-
-
-            final double T = ((obstacle1.equals(obstacle2)) ? 0.5f : (velocityMinusLeft.dot(CUTOFFVEC) / CUTOFFVEC.dot(CUTOFFVEC)));
-            final double TLEFT = (velocityMinusLeft.dot(leftLegDirection));
-            final double TRIGHT = (velocityMinusRight.dot(rightLegDirection));
+            final double T = (sameVertex ? 0.5f
+                    : ((velocityMinusLeftX * cutOffVecX + velocityMinusLeftY * cutOffVecY)
+                    / (cutOffVecX * cutOffVecX + cutOffVecY * cutOffVecY)));
+            final double TLEFT = (velocityMinusLeftX * leftLegDirectionX + velocityMinusLeftY * leftLegDirectionY);
+            final double TRIGHT = (velocityMinusRightX * rightLegDirectionX + velocityMinusRightY * rightLegDirectionY);
 
             if ((T < 0.0f && TLEFT < 0.0f)
-                    || (obstacle1.equals(obstacle2) && TLEFT < 0.0f && TRIGHT < 0.0f)) {
+                    || (sameVertex && TLEFT < 0.0f && TRIGHT < 0.0f)) {
                 /* Project on left cut-off circle. */
-
-//                System.out.println("Project on left cut off");
-
-                Vector2d unitW = new Vector2d(velocityMinusLeft);
-                unitW.normalize();
-
-                line.direction = new Vector2d(unitW.getY(), -unitW.getX());
-                unitW.scale(invTimeHorizonObst);
-                unitW.scale(me.getRadius());
-                unitW.add(LEFTCUTOFF);
-                line.point = new Point2d(unitW);
-                orcaLines.add(line);
-                assert !Double.isNaN(
-                        line.direction.y) && !Double.isInfinite(line.direction.y);
-                assert !Double.isNaN(
-                        line.direction.x) && !Double.isInfinite(line.direction.x);
-                assert !Double.isNaN(
-                        line.point.y) && !Double.isInfinite(line.point.y);
-                assert !Double.isNaN(
-                        line.point.x) && !Double.isInfinite(line.point.x);
+                norm = 1.0 / Math.sqrt(velocityMinusLeftX * velocityMinusLeftX + velocityMinusLeftY * velocityMinusLeftY);
+                final double unitWX = velocityMinusLeftX * norm;
+                final double unitWY = velocityMinusLeftY * norm;
+
+                orcaLines.add(
+                        unitWX * invTimeHorizonObst * radius + leftCutOffX,
+                        unitWY * invTimeHorizonObst * radius + leftCutOffY,
+                        unitWY, -unitWX);
                 continue;
             } else if (T > 1.0f && TRIGHT < 0.0f) {
                 /* Project on right cut-off circle. */
-//                System.out.println("Project on righ cut off");
-                Vector2d unitW = new Vector2d(velocityMinusRight);
-                unitW.normalize();
-
-                line.direction = new Vector2d(unitW.getY(), -unitW.getX());
-                unitW.scale(invTimeHorizonObst);
-                unitW.scale(me.getRadius());
-                unitW.add(RIGHTCUTOFF);
-                line.point = new Point2d(unitW);
-                orcaLines.add(line);
-                assert !Double.isNaN(
-                        line.direction.y) && !Double.isInfinite(line.direction.y);
-                assert !Double.isNaN(
-                        line.direction.x) && !Double.isInfinite(line.direction.x);
-                assert !Double.isNaN(
-                        line.point.y) && !Double.isInfinite(line.point.y);
-                assert !Double.isNaN(
-                        line.point.x) && !Double.isInfinite(line.point.x);
+                norm = 1.0 / Math.sqrt(velocityMinusRightX * velocityMinusRightX + velocityMinusRightY * velocityMinusRightY);
+                final double unitWX = velocityMinusRightX * norm;
+                final double unitWY = velocityMinusRightY * norm;
+
+                orcaLines.add(
+                        unitWX * invTimeHorizonObst * radius + rightCutOffX,
+                        unitWY * invTimeHorizonObst * radius + rightCutOffY,
+                        unitWY, -unitWX);
                 continue;
 
             }
@@ -491,119 +360,68 @@ public class RVO_2_1 implements VelocityCalculator {
              * Project on left LEG, right LEG, or cut-off line, whichever is closest
              * to velocity.
              */
-            Vector2d vectorForCutOff = new Vector2d(CUTOFFVEC);
-            vectorForCutOff.scale(T);
-            vectorForCutOff.add(LEFTCUTOFF);
-            vectorForCutOff.negate();
-            vectorForCutOff.add(me.getVelocity());
-
+            final double vectorForCutOffX = -(cutOffVecX * T + leftCutOffX) + velocityX;
+            final double vectorForCutOffY = -(cutOffVecY * T + leftCutOffY) + velocityY;
 
-            final double DISTSQCUTOFF = ((T < 0.0f || T > 1.0f || obstacle1.equals(obstacle2)) ? Double.MAX_VALUE : vectorForCutOff.dot(vectorForCutOff));
+            final double DISTSQCUTOFF = ((T < 0.0f || T > 1.0f || sameVertex) ? Double.MAX_VALUE
+                    : vectorForCutOffX * vectorForCutOffX + vectorForCutOffY * vectorForCutOffY);
 
-            Vector2d vectorForLeftCutOff = new Vector2d(leftLegDirection);
-            vectorForLeftCutOff.scale(TLEFT);
-            vectorForLeftCutOff.add(LEFTCUTOFF);
-            vectorForLeftCutOff.negate();
-            vectorForLeftCutOff.add(me.getVelocity());
+            final double vectorForLeftCutOffX = -(leftLegDirectionX * TLEFT + leftCutOffX) + velocityX;
+            final double vectorForLeftCutOffY = -(leftLegDirectionY * TLEFT + leftCutOffY) + velocityY;
 
-            final double DISTSQLEFT = ((TLEFT < 0.0f) ? Double.MAX_VALUE : vectorForLeftCutOff.dot(vectorForLeftCutOff));
+            final double DISTSQLEFT = ((TLEFT < 0.0f) ? Double.MAX_VALUE
+                    : vectorForLeftCutOffX * vectorForLeftCutOffX + vectorForLeftCutOffY * vectorForLeftCutOffY);
 
+            final double vectorForRightCutOffX = -(rightLegDirectionX * TRIGHT + rightCutOffX) + velocityX;
+            final double vectorForRightCutOffY = -(rightLegDirectionY * TRIGHT + rightCutOffY) + velocityY;
 
-            Vector2d vectorForRightCutOff = new Vector2d(rightLegDirection);
-            vectorForRightCutOff.scale(TRIGHT);
-            vectorForRightCutOff.add(RIGHTCUTOFF);
-            vectorForRightCutOff.negate();
-            vectorForRightCutOff.add(me.getVelocity());
-
-            final double DISTSQRIGHT = ((TRIGHT < 0.0f) ? Double.MAX_VALUE : vectorForRightCutOff.dot(vectorForRightCutOff));
+            final double DISTSQRIGHT = ((TRIGHT < 0.0f) ? Double.MAX_VALUE
+                    : vectorForRightCutOffX * vectorForRightCutOffX + vectorForRightCutOffY * vectorForRightCutOffY);
 
             if (DISTSQCUTOFF <= DISTSQLEFT && DISTSQCUTOFF <= DISTSQRIGHT) {
                 /* Project on cut-off line. */
-//System.out.println("Project on cut off");
-
-                line.direction = new Vector2d(obstacle1UnitDir);
-
-                line.direction.negate();
+                final double directionX = -obstacle1UnitDirX;
+                final double directionY = -obstacle1UnitDirY;
 
-
-                Vector2d vectorForPoint = new Vector2d(-line.direction.getY(), line.direction.getX());
-                vectorForPoint.scale(invTimeHorizonObst);
-                vectorForPoint.scale(me.getRadius());
-                vectorForPoint.add(LEFTCUTOFF);
-                line.point = new Point2d(vectorForPoint);
-                orcaLines.add(line);
-                assert !Double.isNaN(
-                        line.direction.y) && !Double.isInfinite(line.direction.y);
-                assert !Double.isNaN(
-                        line.direction.x) && !Double.isInfinite(line.direction.x);
-                assert !Double.isNaN(
-                        line.point.y) && !Double.isInfinite(line.point.y);
-                assert !Double.isNaN(
-                        line.point.x) && !Double.isInfinite(line.point.x);
+                orcaLines.add(
+                        -directionY * invTimeHorizonObst * radius + leftCutOffX,
+                        directionX * invTimeHorizonObst * radius + leftCutOffY,
+                        directionX, directionY);
                 continue;
 
             } else if (DISTSQLEFT <= DISTSQRIGHT) { /* Project on left LEG. */
 
-//System.out.println("Project on left leg");
-
                 if (isLeftLegForeign) {
                     continue;
                 }
 
-                line.direction = new Vector2d(leftLegDirection);
-
-                Vector2d vectorForPoint = new Vector2d(-line.direction.getY(), line.direction.getX());
-                vectorForPoint.scale(invTimeHorizonObst);
-                vectorForPoint.scale(me.getRadius());
-                vectorForPoint.add(LEFTCUTOFF);
-                line.point = new Point2d(vectorForPoint);
-                orcaLines.add(line);
-                assert !Double.isNaN(
-                        line.direction.y) && !Double.isInfinite(line.direction.y);
-                assert !Double.isNaN(
-                        line.direction.x) && !Double.isInfinite(line.direction.x);
-                assert !Double.isNaN(
-                        line.point.y) && !Double.isInfinite(line.point.y);
-                assert !Double.isNaN(
-                        line.point.x) && !Double.isInfinite(line.point.x);
+                orcaLines.add(
+                        -leftLegDirectionY * invTimeHorizonObst * radius + leftCutOffX,
+                        leftLegDirectionX * invTimeHorizonObst * radius + leftCutOffY,
+                        leftLegDirectionX, leftLegDirectionY);
                 continue;
             } else { /* Project on right LEG. */
 
-//                System.out.println("Project on right leg");
                 if (isRightLegForeign) {
                     continue;
                 }
 
-                assert !Double.isNaN(
-                        rightLegDirection.y) && !Double.isInfinite(rightLegDirection.y);
-
-                line.direction = new Vector2d(rightLegDirection);
-                line.direction.negate();
+                final double directionX = -rightLegDirectionX;
+                final double directionY = -rightLegDirectionY;
 
-                Vector2d vectorForPoint = new Vector2d(-line.direction.getY(), line.direction.getX());
-                vectorForPoint.scale(invTimeHorizonObst);
-                vectorForPoint.scale(me.getRadius());
-                vectorForPoint.add(RIGHTCUTOFF);
-                line.point = new Point2d(vectorForPoint);
-                orcaLines.add(line);
-                assert !Double.isNaN(
-                        line.direction.y) && !Double.isInfinite(line.direction.y);
-                assert !Double.isNaN(
-                        line.direction.x) && !Double.isInfinite(line.direction.x);
-                assert !Double.isNaN(
-                        line.point.y) && !Double.isInfinite(line.point.y);
-                assert !Double.isNaN(
-                        line.point.x) && !Double.isInfinite(line.point.x);
+                orcaLines.add(
+                        -directionY * invTimeHorizonObst * radius + rightCutOffX,
+                        directionX * invTimeHorizonObst * radius + rightCutOffY,
+                        directionX, directionY);
                 continue;
             }
 
 
         }
-//        System.out.println("***********");
-        final int numObstLines = orcaLines.size();
+        final int numObstLines = orcaLines.size;
 
 
-        final double invTimeHorizon = 1.0f / TIME_HORIZON;
+        final double invTimeHorizon = 1.0f / config.getTimeHorizon();
 
         /* Create agent ORCA lines. */
         for (int i = 0; i < guys.size(); i++) {
@@ -612,127 +430,107 @@ public class RVO_2_1 implements VelocityCalculator {
                 continue;
             }
 
-            Vector2d relativePosition = new Vector2d(otherAgent.getCurrentPosition());
-            relativePosition.sub(agentPosition);
+            final Point2d otherPosition = otherAgent.getCurrentPosition();
+            final double relativePositionX = otherPosition.x - agentX;
+            final double relativePositionY = otherPosition.y - agentY;
 
+            final double relativeVelocityX = velocityX - otherAgent.getVelocityX();
+            final double relativeVelocityY = velocityY - otherAgent.getVelocityY();
 
-            Vector2d relativeVelocity = new Vector2d(me.getVelocity());
-            relativeVelocity.sub(otherAgent.getVelocity());
+            double distSq = relativePositionX * relativePositionX + relativePositionY * relativePositionY;
+            double combinedRadius = radius + otherAgent.getRadius();
 
-            double distSq = relativePosition.dot(relativePosition);
-            double combinedRadius = me.getRadius() + otherAgent.getRadius();
+            double combinedRadiusSq = Geometry.pow(combinedRadius, 2.0f, deterministic);
 
-            double combinedRadiusSq = Math.pow(combinedRadius, 2.0f);
-
-            Line line = new Line();
-            Vector2d u;
+            double directionX, directionY, uX, uY;
 
             if (distSq > combinedRadiusSq) {
                 /* No collision. */
-                Vector2d w = new Vector2d(relativePosition);
-                w.scale(invTimeHorizon);
-                w.sub(relativeVelocity);
-                w.negate();
+                final double wX = -(relativePositionX * invTimeHorizon - relativeVelocityX);
+                final double wY = -(relativePositionY * invTimeHorizon - relativeVelocityY);
 
                 /* Vector from cutoff center to relative velocity. */
-                final double wLengthSq = w.dot(w);
+                final double wLengthSq = wX * wX + wY * wY;
 
-                final double dotProduct1 = w.dot(relativePosition);
+                final double dotProduct1 = wX * relativePositionX + wY * relativePositionY;
 
-                if (dotProduct1 < 0.0f && Math.pow(dotProduct1, 2.0f) > combinedRadiusSq * wLengthSq) {
+                if (dotProduct1 < 0.0f && Geometry.pow(dotProduct1, 2.0f, deterministic) > combinedRadiusSq * wLengthSq) {
                     /* Project on cut-off circle. */
                     final double wLength = Math.sqrt(wLengthSq);
-                    Vector2d unitW = new Vector2d(w);
-                    unitW.scale(1.0f / wLength);
-
-
-                    line.direction = new Vector2d(unitW.getY(), -unitW.getX());
-                    u = new Vector2d(unitW);
-                    u.scale((combinedRadius * invTimeHorizon) - wLength);
+                    final double unitWX = wX * (1.0f / wLength);
+                    final double unitWY = wY * (1.0f / wLength);
+
+                    directionX = unitWY;
+                    directionY = -unitWX;
+                    final double scale = (combinedRadius * invTimeHorizon) - wLength;
+                    uX = unitWX * scale;
+                    uY = unitWY * scale;
                 } else {
                     /* Project on legs. */
 
-//                    final double LEG = ((distSq - combinedRadiusSq) > 0) ? Math.sqrt(distSq - combinedRadiusSq) : 0;
                     final double LEG = Math.sqrt(Math.abs(distSq - combinedRadiusSq));
 
-                    if (Geometry.det(relativePosition, w) > 0.0f) {
+                    if (relativePositionX * wY - relativePositionY * wX > 0.0f) {
                         /* Project on left LEG. */
 
-                        line.direction = new Vector2d(
-                                relativePosition.getX() * LEG - relativePosition.getY() * combinedRadius,
-                                relativePosition.getX() * combinedRadius + relativePosition.getY() * LEG);
-                        line.direction.scale(1.0f / distSq);
+                        directionX = relativePositionX * LEG - relativePositionY * combinedRadius;
+                        directionY = relativePositionX * combinedRadius + relativePositionY * LEG;
+                        directionX *= 1.0f / distSq;
+                        directionY *= 1.0f / distSq;
                     } else {
                         /* Project on right LEG. */
 
-                        line.direction = new Vector2d(
-                                relativePosition.getX() * LEG + relativePosition.getY() * combinedRadius,
-                                -relativePosition.getX() * combinedRadius + relativePosition.getY() * LEG);
-                        line.direction.scale(-1.0f / distSq);
+                        directionX = relativePositionX * LEG + relativePositionY * combinedRadius;
+                        directionY = -relativePositionX * combinedRadius + relativePositionY * LEG;
+                        directionX *= -1.0f / distSq;
+                        directionY *= -1.0f / distSq;
                     }
 
-                    final double dotProduct2 = relativeVelocity.dot(line.direction);
-                    u = new Vector2d(line.direction);
-                    u.scale(dotProduct2);
-                    u.sub(relativeVelocity);
+                    final double dotProduct2 = relativeVelocityX * directionX + relativeVelocityY * directionY;
+                    uX = directionX * dotProduct2 - relativeVelocityX;
+                    uY = directionY * dotProduct2 - relativeVelocityY;
 
                 }
             } else {
                 /* Collision. */
-//                System.out.println("Collision!!!");
 
                 final double invTimeStep = 1.0f / timeStep;
-                assert relativePosition.length() != 0;
-                Vector2d w = new Vector2d(relativePosition);
-                w.scale(invTimeStep);
-                w.sub(relativeVelocity);
+                assert distSq != 0;
+                final double wX = -(relativePositionX * invTimeStep - relativeVelocityX);
+                final double wY = -(relativePositionY * invTimeStep - relativeVelocityY);
 
-                w.negate();
+                double wLength = Math.sqrt(wX * wX + wY * wY);
 
-                double wLength = w.length();
-
-                Vector2d unitW = new Vector2d(w);
-                unitW.scale(1.0 / wLength);
+                final double unitWX = wX * (1.0 / wLength);
+                final double unitWY = wY * (1.0 / wLength);
                 assert wLength != 0;
 
-                line.direction = new Vector2d(unitW.getY(), -unitW.getX());
-                u = new Vector2d(unitW);
-                u.scale((combinedRadius * invTimeStep) - wLength);
-                assert !Double.isNaN(
-                        line.direction.y) && !Double.isInfinite(line.direction.y);
-
-
+                directionX = unitWY;
+                directionY = -unitWX;
+                final double scale = (combinedRadius * invTimeStep) - wLength;
+                uX = unitWX * scale;
+                uY = unitWY * scale;
             }
-            Vector2d newU = new Vector2d(u);
-            newU.scale(0.5f);
-            newU.add(me.getVelocity());
-
-            line.point = new Point2d(newU);
-
-            orcaLines.add(line);
-            assert !Double.isNaN(
-                    line.direction.y) && !Double.isInfinite(line.direction.y);
-            assert !Double.isNaN(
-                    line.direction.x) && !Double.isInfinite(line.direction.x);
-            assert !Double.isNaN(
-                    line.point.y) && !Double.isInfinite(line.point.y);
-            assert !Double.isNaN(
-                    line.point.x) && !Double.isInfinite(line.point.x);
-
-
 
+            orcaLines.add(uX * 0.5f + velocityX, uY * 0.5f + velocityY, directionX, directionY);
         }
         //These function should return the new velocity based on linear programming solution
 
-        int lineFail = linearProgram2(orcaLines, me.getMaxSpeed(), preferredVelocity, false, newVelocity);
+        int lineFail = linearProgram2(orcaLines, me.getMaxSpeed(), preferredVelocity.x, preferredVelocity.y, false, epsilon, deterministic, newVelocity);
+
+        if (lineFail < orcaLines.size) {
+            linearProgram3(workspace, orcaLines, numObstLines, lineFail, me.getMaxSpeed(), epsilon, deterministic, newVelocity);
+        }
 
-        if (lineFail < orcaLines.size()) {
-            linearProgram3(orcaLines, numObstLines, lineFail, me.getMaxSpeed(), newVelocity);
+        if (me.isShowingOrcaLines()) {
+            //the workspace lines are reused by the next call, so the agent
+            //gets its own copy to draw
+            me.setOrcaLines(orcaLines.toLines());
         }
 
         if (Double.isNaN(
                 newVelocity.x) || Double.isInfinite(newVelocity.x)) {
-            System.out.println(orcaLines.size());
+            System.out.println(orcaLines.size);
         }
 
         assert !Double.isNaN(
@@ -743,39 +541,41 @@ public class RVO_2_1 implements VelocityCalculator {
 
     }
 
-    private boolean checkCovered(double invTimeHorizonObst, Vector2d relativePosition1, Vector2d relativePosition2, Line line, RVOAgent me) {
+    private boolean checkCovered(double invTimeHorizonObst, double relativePosition1X, double relativePosition1Y,
+            double relativePosition2X, double relativePosition2Y, LineBuffer lines, int line, double radius,
+            double epsilon) {
 
-        Vector2d a = new Vector2d(relativePosition1);
-        a.scale(invTimeHorizonObst);
-        a.sub(line.point);
+        final double aX = relativePosition1X * invTimeHorizonObst - lines.pointX[line];
+        final double aY = relativePosition1Y * invTimeHorizonObst - lines.pointY[line];
 
+        final double bX = relativePosition2X * invTimeHorizonObst - lines.pointX[line];
+        final double bY = relativePosition2Y * invTimeHorizonObst - lines.pointY[line];
 
-        Vector2d b = new Vector2d(relativePosition2);
-        b.scale(invTimeHorizonObst);
-        b.sub(line.point);
+        final double directionX = lines.directionX[line];
+        final double directionY = lines.directionY[line];
 
-
-        return ((Double.compare((Geometry.det(a, line.direction) - invTimeHorizonObst * me.getRadius()), -Geometry.EPSILON) >= 0)
-                && (Double.compare((Geometry.det(b, line.direction) - invTimeHorizonObst * me.getRadius()), -Geometry.EPSILON) >= 0));
+        return ((Double.compare((aX * directionY - aY * directionX - invTimeHorizonObst * radius), -epsilon) >= 0)
+                && (Double.compare((bX * directionY - bY * directionX - invTimeHorizonObst * radius), -epsilon) >= 0));
 
     }
 
-    boolean linearProgram1(List<Line> lines, int lineNo, double radius, Vector2d optVelocity, boolean directionOpt, Vector2d result) {
-
+    boolean linearProgram1(LineBuffer lines, int lineNo, double radius, double optVelocityX, double optVelocityY,
+            boolean directionOpt, double epsilon, boolean deterministic, Vector2d result) {
 
-        Vector2d lineNoPoint = new Vector2d(lines.get(lineNo).point);
-        Vector2d lineNoDirection = new Vector2d(lines.get(lineNo).direction);
-        double dotProduct = lineNoPoint.dot(lineNoDirection);
+        final double lineNoPointX = lines.pointX[lineNo];
+        final double lineNoPointY = lines.pointY[lineNo];
+        final double lineNoDirectionX = lines.directionX[lineNo];
+        final double lineNoDirectionY = lines.directionY[lineNo];
+        double dotProduct = lineNoPointX * lineNoDirectionX + lineNoPointY * lineNoDirectionY;
         assert !Double.isNaN(
-                lineNoDirection.y) && !Double.isInfinite(lineNoDirection.y);
+                lineNoDirectionY) && !Double.isInfinite(lineNoDirectionY);
         assert !Double.isNaN(
-                lineNoPoint.x) && !Double.isInfinite(lineNoPoint.x);
+                lineNoPointX) && !Double.isInfinite(lineNoPointX);
 
-        //   final double detProduct = det(lines.get(lineNo).direction, lineNoPoint);
-        //final double detProduct2 = lineNoPoint.dot(lineNoPoint);
-        final double discriminant = Math.pow(dotProduct, 2.0) + Math.pow(radius, 2.0f) - lineNoPoint.dot(lineNoPoint);
+        final double discriminant = Geometry.pow(dotProduct, 2.0, deterministic) + Geometry.pow(radius, 2.0f, deterministic)
+                - (lineNoPointX * lineNoPointX + lineNoPointY * lineNoPointY);
 
-        if (Double.compare(discriminant, Geometry.EPSILON) < 0) {
+        if (Double.compare(discriminant, epsilon) < 0) {
             /* Max speed circle fully invalidates line lineNo. */
             return false;
         }
@@ -785,17 +585,17 @@ public class RVO_2_1 implements VelocityCalculator {
         double tRight = -(dotProduct) + sqrtDiscriminant;
 
         for (int i = 0; i < lineNo; ++i) {
-            final double denominator = Geometry.det(lineNoDirection, lines.get(i).direction);
+            final double denominator = lineNoDirectionX * lines.directionY[i] - lineNoDirectionY * lines.directionX[i];
 
-            Vector2d tempVector = new Vector2d(lineNoPoint);
-            tempVector.sub(new Vector2d(lines.get(i).point));
-            final double numerator = Geometry.det(lines.get(i).direction, tempVector);
+            final double tempX = lineNoPointX - lines.pointX[i];
+            final double tempY = lineNoPointY - lines.pointY[i];
+            final double numerator = lines.directionX[i] * tempY - lines.directionY[i] * tempX;
 
             if (Double.compare(
-                    Math.abs(denominator), Geometry.EPSILON) <= 0) {
+                    Math.abs(denominator), epsilon) <= 0) {
                 /* Lines lineNo and i are (almost) parallel. */
 
-                if (Double.compare(numerator, Geometry.EPSILON) < 0) {
+                if (Double.compare(numerator, epsilon) < 0) {
                     /* Line i fully invalidates line lineNo. */
                     return false;
                 } else {
@@ -818,70 +618,50 @@ public class RVO_2_1 implements VelocityCalculator {
             }
         }
 
+        final double t;
         if (directionOpt) {
             /* Optimize direction. */
-            Vector2d tempLineNoDirection = new Vector2d(lineNoDirection);
-            if (Double.compare(optVelocity.dot(tempLineNoDirection), -Geometry.EPSILON) > 0) {
+            if (Double.compare(optVelocityX * lineNoDirectionX + optVelocityY * lineNoDirectionY, -epsilon) > 0) {
                 /* Take right extreme. */
-                tempLineNoDirection.scale(tRight);
+                t = tRight;
             } else {
                 /* Take left extreme. */
-                tempLineNoDirection.scale(tLeft);
+                t = tLeft;
             }
-            tempLineNoDirection.add(new Vector2d(lineNoPoint));
-            result.x = tempLineNoDirection.x;
-            result.y = tempLineNoDirection.y;
-            assert !Double.isNaN(
-                    result.x) && !Double.isInfinite(result.x);
-            assert !Double.isNaN(
-                    result.y) && !Double.isInfinite(result.y);
         } else {
             /* Optimize closest point. */
 
             assert !Double.isNaN(
-                    optVelocity.x) && !Double.isInfinite(optVelocity.x);
-            assert !Double.isNaN(
-                    optVelocity.y) && !Double.isInfinite(optVelocity.y);
+                    optVelocityX) && !Double.isInfinite(optVelocityX);
             assert !Double.isNaN(
-                    lineNoDirection.x) && !Double.isInfinite(lineNoDirection.x);
-            assert !Double.isNaN(
-                    lineNoDirection.y) && !Double.isInfinite(lineNoDirection.y);
-            assert !Double.isNaN(
-                    lineNoPoint.x) && !Double.isInfinite(lineNoPoint.x);
-            assert !Double.isNaN(
-                    lineNoPoint.y) && !Double.isInfinite(lineNoPoint.y);
-            Vector2d tempOptVector = new Vector2d(optVelocity);
-            tempOptVector.sub(lineNoPoint);
-            final double t = lineNoDirection.dot(tempOptVector);
+                    optVelocityY) && !Double.isInfinite(optVelocityY);
+            final double tOpt = lineNoDirectionX * (optVelocityX - lineNoPointX)
+                    + lineNoDirectionY * (optVelocityY - lineNoPointY);
 
-
-            assert !Double.isNaN(t) && !Double.isInfinite(t);
+            assert !Double.isNaN(tOpt) && !Double.isInfinite(tOpt);
             assert !Double.isNaN(tLeft) && !Double.isInfinite(tLeft);
             assert !Double.isNaN(tRight) && !Double.isInfinite(tRight);
 
-
-            Vector2d tempLineNoDirection = new Vector2d(lineNoDirection);
-            if (Double.compare(t, tLeft) < 0) {
-                tempLineNoDirection.scale(tLeft);
-            } else if (Double.compare(t, tRight) > 0) {
-                tempLineNoDirection.scale(tRight);
+            if (Double.compare(tOpt, tLeft) < 0) {
+                t = tLeft;
+            } else if (Double.compare(tOpt, tRight) > 0) {
+                t = tRight;
             } else {
-                tempLineNoDirection.scale(t);
+                t = tOpt;
             }
-            tempLineNoDirection.add(new Vector2d(lineNoPoint));
-            result.x = tempLineNoDirection.x;
-            result.y = tempLineNoDirection.y;
-            assert !Double.isNaN(
-                    result.x) && !Double.isInfinite(result.x);
-            assert !Double.isNaN(
-                    result.y) && !Double.isInfinite(result.y);
-
         }
+        result.x = lineNoDirectionX * t + lineNoPointX;
+        result.y = lineNoDirectionY * t + lineNoPointY;
+        assert !Double.isNaN(
+                result.x) && !Double.isInfinite(result.x);
+        assert !Double.isNaN(
+                result.y) && !Double.isInfinite(result.y);
 
         return true;
     }
 
-    int linearProgram2(List<Line> lines, double radius, Vector2d optVelocity, boolean directionOpt, Vector2d result) {
+    int linearProgram2(LineBuffer lines, double radius, double optVelocityX, double optVelocityY,
+            boolean directionOpt, double epsilon, boolean deterministic, Vector2d result) {
 
 
         if (directionOpt) {
@@ -889,138 +669,246 @@ public class RVO_2_1 implements VelocityCalculator {
              * Optimize direction. Note that the optimization velocity is of unit
              * length in this case.
              */
-            if (Double.compare(Math.abs(optVelocity.length() - 1), Geometry.EPSILON) > 0) {
+            if (Double.compare(Math.abs(Math.sqrt(optVelocityX * optVelocityX + optVelocityY * optVelocityY) - 1), epsilon) > 0) {
                 System.out.println("what?? how??");
             }
-            Vector2d tempOpt = new Vector2d(optVelocity);
 
-            result.x = tempOpt.x;
-            result.y = tempOpt.y;
-            result.scale(radius);
-            assert !Double.isNaN(
-                    result.x) && !Double.isInfinite(result.x);
-            assert !Double.isNaN(
-                    result.y) && !Double.isInfinite(result.y);
-        } else if (optVelocity.dot(optVelocity) > Math.pow(radius, 2.0f)) {
+            result.x = optVelocityX * radius;
+            result.y = optVelocityY * radius;
+        } else if (optVelocityX * optVelocityX + optVelocityY * optVelocityY > Geometry.pow(radius, 2.0f, deterministic)) {
             /* Optimize closest point and outside circle. */
 
-            result.x = optVelocity.x;
-            result.y = optVelocity.y;
-            result.normalize();//mhl: why normalize
-
-            result.scale(radius);
-            assert !Double.isNaN(
-                    result.x) && !Double.isInfinite(result.x);
-            assert !Double.isNaN(
-                    result.y) && !Double.isInfinite(result.y);
+            final double norm = 1.0 / Math.sqrt(optVelocityX * optVelocityX + optVelocityY * optVelocityY);//mhl: why normalize
+            result.x = optVelocityX * norm * radius;
+            result.y = optVelocityY * norm * radius;
         } else {
             /* Optimize closest point and inside circle. */
 
-            result.x = optVelocity.x;
-            result.y = optVelocity.y;
-            assert !Double.isNaN(
-                    result.x) && !Double.isInfinite(result.x);
-            assert !Double.isNaN(
-                    result.y) && !Double.isInfinite(result.y);
+            result.x = optVelocityX;
+            result.y = optVelocityY;
         }
+        assert !Double.isNaN(
+                result.x) && !Double.isInfinite(result.x);
+        assert !Double.isNaN(
+                result.y) && !Double.isInfinite(result.y);
 
-        for (int i = 0; i < lines.size(); ++i) {
-
-            Vector2d tempPoint = new Vector2d(lines.get(i).point);
-            tempPoint.sub(new Vector2d(result));
+        for (int i = 0; i < lines.size; ++i) {
 
+            final double tempPointX = lines.pointX[i] - result.x;
+            final double tempPointY = lines.pointY[i] - result.y;
 
             if (Double.compare(
-                    Geometry.det(lines.get(i).direction, tempPoint), 0) > 0) {
+                    lines.directionX[i] * tempPointY - lines.directionY[i] * tempPointX, 0) > 0) {
                 /* Result does not satisfy constraint i. Compute new optimal result. */
-                Vector2d tempResult = new Vector2d(result);
-                if (!linearProgram1(lines, i, radius, optVelocity, directionOpt, result)) {
-                    result.x = tempResult.x;
-                    result.y = tempResult.y;
-                    assert !Double.isNaN(
-                            result.x) && !Double.isInfinite(result.x);
-                    assert !Double.isNaN(
-                            result.y) && !Double.isInfinite(result.y);
+                final double tempResultX = result.x;
+                final double tempResultY = result.y;
+                if (!linearProgram1(lines, i, radius, optVelocityX, optVelocityY, directionOpt, epsilon, deterministic, result)) {
+                    result.x = tempResultX;
+                    result.y = tempResultY;
                     return i;
                 }
             }
         }
 
-        return lines.size();
+        return lines.size;
     }
 
-    void linearProgram3(List<Line> lines, int numObstLines, int beginLine, double radius, Vector2d result) {
+    void linearProgram3(Workspace workspace, LineBuffer lines, int numObstLines, int beginLine, double radius,
+            double epsilon, boolean deterministic, Vector2d result) {
 
         double distance = 0.0f;
+        final LineBuffer projLines = workspace.projLines;
 
-        for (int i = beginLine; i < lines.size(); i++) {
-            Vector2d tempPoint = new Vector2d(lines.get(i).point);
-            tempPoint.sub(result);
+        for (int i = beginLine; i < lines.size; i++) {
+            final double pointIX = lines.pointX[i];
+            final double pointIY = lines.pointY[i];
+            final double directionIX = lines.directionX[i];
+            final double directionIY = lines.directionY[i];
 
-            if (Geometry.det(lines.get(i).direction, tempPoint) > distance) {
+            if (directionIX * (pointIY - result.y) - directionIY * (pointIX - result.x) > distance) {
                 /* Result does not satisfy constraint of line i. */
-                List<Line> projLines = new ArrayList<Line>();
+                projLines.clear();
                 for (int j = 0; j < numObstLines; j++) {
-                    projLines.add(new Line(lines.get(j)));
-
+                    projLines.add(lines.pointX[j], lines.pointY[j], lines.directionX[j], lines.directionY[j]);
                 }
 
                 for (int j = numObstLines; j < i; j++) {
-                    Line line = new Line();
-
-                    double determinant = Geometry.det(lines.get(i).direction, lines.get(j).direction);
-                    if (Double.compare(Math.abs(determinant), Geometry.EPSILON) <= 0) {
+                    final double pointJX = lines.pointX[j];
+                    final double pointJY = lines.pointY[j];
+                    final double directionJX = lines.directionX[j];
+                    final double directionJY = lines.directionY[j];
+                    final double pointX, pointY;
+
+                    double determinant = directionIX * directionJY - directionIY * directionJX;
+                    if (Double.compare(Math.abs(determinant), epsilon) <= 0) {
                         /* Line i and line j are (almost) parallel. */
-                        if (Double.compare(lines.get(i).direction.dot(lines.get(j).direction), -Geometry.EPSILON) > 0) {
+                        if (Double.compare(directionIX * directionJX + directionIY * directionJY, -epsilon) > 0) {
                             /* Line i and line j point in the same direction. */
                             continue;
                         } else {
                             /* Line i and line j point in opposite direction. */
-                            line.point = new Point2d(lines.get(j).point);
-                            line.point.add(lines.get(i).point);
-                            line.point.scale(0.5f);
-
+                            pointX = (pointJX + pointIX) * 0.5f;
+                            pointY = (pointJY + pointIY) * 0.5f;
                         }
                     } else {
+                        final double tempX = pointIX - pointJX;
+                        final double tempY = pointIY - pointJY;
+                        final double scale = (directionJX * tempY - directionJY * tempX) / determinant;
 
-                        Vector2d tempVector = new Vector2d(lines.get(i).point);
-                        tempVector.sub(new Vector2d(lines.get(j).point));
-                        Vector2d newTempVector = new Vector2d(lines.get(i).direction);
-                        newTempVector.scale(Geometry.det(lines.get(j).direction, tempVector) / determinant);
-
-                        line.point = new Point2d(lines.get(i).point);
-                        line.point.add(newTempVector);
-
-
+                        pointX = pointIX + directionIX * scale;
+                        pointY = pointIY + directionIY * scale;
                     }
-                    line.direction = new Vector2d(lines.get(j).direction);
-                    line.direction.sub(lines.get(i).direction);
-                    line.direction.normalize();
+                    double directionX = directionJX - directionIX;
+                    double directionY = directionJY - directionIY;
+                    final double norm = 1.0 / Math.sqrt(directionX * directionX + directionY * directionY);
 
-                    projLines.add(line);
+                    projLines.add(pointX, pointY, directionX * norm, directionY * norm);
                 }
 
-                final Vector2d tempResult = new Vector2d(result);
+                final double tempResultX = result.x;
+                final double tempResultY = result.y;
 
-                if (linearProgram2(projLines, radius, new Vector2d(-lines.get(i).direction.y, lines.get(i).direction.x), true, result) < projLines.size()) {
+                if (linearProgram2(projLines, radius, -directionIY, directionIX, true, epsilon, deterministic, result) < projLines.size) {
                     /* This should in principle not happen.  The result is by definition
                      * already in the feasible region of this linear program. If it fails,
                      * it is due to small floating point error, and the current result is
                      * kept.
                      */
-//
-                    result.x = tempResult.x;
-                    result.y = tempResult.y;
+                    result.x = tempResultX;
+                    result.y = tempResultY;
+                }
 
-//                    result.x = 0.0f;
-//                    result.y = 0.0f;
+                distance = directionIX * (pointIY - result.y) - directionIY * (pointIX - result.x);
+            }
+        }
+    }
 
+    /**
+     * ORCA lines stored as parallel arrays of primitive doubles. The arrays
+     * only grow, so once they are large enough adding lines does not allocate.
+     */
+    static final class LineBuffer {
+
+        double[] pointX = new double[16];
+        double[] pointY = new double[16];
+        double[] directionX = new double[16];
+        double[] directionY = new double[16];
+        int size;
+
+        void clear() {
+            size = 0;
+        }
+
+        void add(double px, double py, double dx, double dy) {
+            if (size == pointX.length) {
+                int capacity = size * 2;
+                pointX = copyOf(pointX, capacity);
+                pointY = copyOf(pointY, capacity);
+                directionX = copyOf(directionX, capacity);
+                directionY = copyOf(directionY, capacity);
+            }
+            assert !Double.isNaN(px) && !Double.isInfinite(px);
+            assert !Double.isNaN(py) && !Double.isInfinite(py);
+            assert !Double.isNaN(dx) && !Double.isInfinite(dx);
+            assert !Double.isNaN(dy) && !Double.isInfinite(dy);
+            pointX[size] = px;
+            pointY[size] = py;
+            directionX[size] = dx;
+            directionY[size] = dy;
+            size++;
+        }
+
+        /**
+         * Copies the lines into new Line objects, used for drawing
+         */
+        List<Line> toLines() {
+            List<Line> lines = new ArrayList<Line>(size);
+            for (int i = 0; i < size; i++) {
+                Line line = new Line();
+                line.point.set(pointX[i], pointY[i]);
+                line.direction.set(directionX[i], directionY[i]);
+                lines.add(line);
+            }
+            return lines;
+        }
+
+        private static double[] copyOf(double[] array, int capacity) {
+            double[] copy = new double[capacity];
+            System.arraycopy(array, 0, copy, 0, array.length);
+            return copy;
+        }
+    }
+
+    /**
+     * Buffers reused from one call to the next on the same thread: the ORCA
+     * lines, the projected lines of linearProgram3 and the obstacles sorted by
+     * their distance to the agent.
+     */
+    static final class Workspace {
+
+        final LineBuffer orcaLines = new LineBuffer();
+        final LineBuffer projLines = new LineBuffer();
+        /**
+         * The velocity returned by calculateVelocity
+         */
+        final Vector2d newVelocity = new Vector2d();
+        RVO2Obstacle[] obstacles = new RVO2Obstacle[16];
+        double[] obstacleDistances = new double[16];
+        int obstacleCount;
+
+        /**
+         * Fills obstacles with the sensed obstacles and their previous
+         * vertices, without duplicates, sorted by distance to the agent and
+         * then by id. The obstacle tree already senses whole segments in this
+         * order, so with the tree the previous vertices are not added.
+         */
+        void sortObstacles(Bag obstacleBag, double agentX, double agentY, boolean addPrevious) {
+            obstacleCount = 0;
+            for (int i = 0; i < obstacleBag.numObjs; i++) {
+                RVO2Obstacle obstacle = (RVO2Obstacle) obstacleBag.objs[i];
+                insertObstacle(obstacle, agentX, agentY);
+                if (addPrevious) {
+                    insertObstacle(obstacle.getPrev(), agentX, agentY);
                 }
+            }
+        }
+
+        private void insertObstacle(RVO2Obstacle obstacle, double agentX, double agentY) {
+            final Point2d point = obstacle.getPoint();
+            final Point2d nextPoint = obstacle.getNext().getPoint();
+            final double distance = Geometry.calcDistanceToLineSegment(
+                    point.x, point.y, nextPoint.x, nextPoint.y, agentX, agentY);
+            final int id = obstacle.getId();
+
+            int low = 0;
+            int high = obstacleCount - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                int comparison = Double.compare(obstacleDistances[middle], distance);
+                if (comparison == 0) {
+                    comparison = obstacles[middle].getId() - id;
+                }
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    /* already added */
+                    return;
+                }
+            }
 
-                Vector2d tempVector = new Vector2d(lines.get(i).point);
-                tempVector.sub(result);
-                distance = Geometry.det(lines.get(i).direction, tempVector);
+            if (obstacleCount == obstacles.length) {
+                RVO2Obstacle[] newObstacles = new RVO2Obstacle[obstacleCount * 2];
+                System.arraycopy(obstacles, 0, newObstacles, 0, obstacleCount);
+                obstacles = newObstacles;
+                obstacleDistances = LineBuffer.copyOf(obstacleDistances, obstacleCount * 2);
             }
+            System.arraycopy(obstacles, low, obstacles, low + 1, obstacleCount - low);
+            System.arraycopy(obstacleDistances, low, obstacleDistances, low + 1, obstacleCount - low);
+            obstacles[low] = obstacle;
+            obstacleDistances[low] = distance;
+            obstacleCount++;
         }
     }
 }
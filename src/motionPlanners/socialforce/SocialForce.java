@@ -4,42 +4,48 @@ import agent.RVOAgent;
 import app.PropertySet;
 import app.RVOModel;
 import environment.geography.Obstacle;
-import environment.geography.Position;
+import java.io.File;
 import javax.vecmath.Vector2d;
 import motionPlanners.VelocityCalculator;
 import sim.util.Bag;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
  *
  * @author steven
  */
-public class SocialForce implements VelocityCalculator {
-
-    public static int Xmax;
-    public static int Ymax;
-    static double[][] Fw;
-    static double[][] Fwx;
-    static double[][] Fwy;
-    static int N0x;                 // Total number of cell in X direction
-    static int N0y;                 // Total number of cell in Y direction
+public strictfp class SocialForce implements VelocityCalculator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Weight of the neighbours' average heading in the desired direction (0
+     * = only the agent's own preferred direction)
+     */
+    private static final double PANIC_FACTOR = 0;
+    /**
+     * Scratch state used while calculating a velocity. Each thread gets its
+     * own, as the calculator is shared by all the agents.
+     */
+    private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    /*
+     * The wall force field belongs to the simulation this calculator is shared
+     * by (see RVOModel.getSharedVelocityCalculator)
+     */
+    private int Xmax;
+    private int Ymax;
+    private WallForceField wallForce;
     static double Xmin = 0;                              // Minimum x point of terrain
 //    static double Xmax = worldXSize;         // Maximum x point of terrain (+5 is for buffer zone)
     static double Ymin = 0;                              // Minimum y point of terrain
 //    static double Ymax = worldYSize;         // Maximum y point of terrain
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Psudeo function
-    // /////////////////////////////////////////////////////////////////////////
-    private double g(double x) {
-        if (x >= 0) {
-            return x;
-        } else {
-            return 0;
-        }
-    }
-
     // /////////////////////////////////////////////////////////////////////////
     // Bound the force so that agent don't "explode" (unit = Newton)
     // /////////////////////////////////////////////////////////////////////////
@@ -55,25 +61,6 @@ public class SocialForce implements VelocityCalculator {
         return v;
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // MATLAB linspace function
-    // /////////////////////////////////////////////////////////////////////////
-    private static double[] linearSpaceVector(double a, double b, int c) {
-        // Create a vector of c elements starting with a, interval difference
-        // of intervalValue until b.
-        double intervalValue = (b - a) / (c - 1);
-        double[] resultVector = new double[c];
-
-        resultVector[0] = a;
-
-        for (int i = 0; i < c - 1; i++) {
-            resultVector[i + 1] += resultVector[i] + intervalValue;
-        }
-        resultVector[c - 1] = b;
-
-        return resultVector;
-    }
-
     // /////////////////////////////////////////////////////////////////////////
     // Average function
     // /////////////////////////////////////////////////////////////////////////
@@ -92,7 +79,9 @@ public class SocialForce implements VelocityCalculator {
     // /////////////////////////////////////////////////////////////////////////
     // Average over surrounding (8 cell) forces
     // /////////////////////////////////////////////////////////////////////////
-    private static double[] averageSurroundForce(double Pxi, double Pyi, double Xmax, double Ymax, int N0x, int N0y, double[][] F, double[][] Fx, double[][] Fy) {
+    private static double[] averageSurroundForce(double Pxi, double Pyi, double Xmax, double Ymax, WallForceField field) {
+        final int N0x = field.getCellsX();
+        final int N0y = field.getCellsY();
 //        System.out.println("(" + Pxi + ", " + Pyi + ")");
 //        System.out.println("(" + (Pxi/Xmax)*(N0x) + ", " + (Pyi/Ymax)*(N0y) + ")");
         double bcellix = (Pxi / Xmax) * (N0x);    // X cell number of agent
@@ -149,14 +138,14 @@ public class SocialForce implements VelocityCalculator {
         double[] FyAvg = new double[Nneighbour];
         for (int i = 0; i < Nneighbour; i++) {
             // Assigning value into buffer
-            FAvg[i] = F[neighbouricelly[i]][neighbouricellx[i]];
-            FxAvg[i] = Fx[neighbouricelly[i]][neighbouricellx[i]];
-            FyAvg[i] = Fy[neighbouricelly[i]][neighbouricellx[i]];
+            FAvg[i] = field.force(neighbouricelly[i], neighbouricellx[i]);
+            FxAvg[i] = field.forceX(neighbouricelly[i], neighbouricellx[i]);
+            FyAvg[i] = field.forceY(neighbouricelly[i], neighbouricellx[i]);
 
         }
-        FAvg[Nneighbour - 1] = F[celliy][cellix];
-        FxAvg[Nneighbour - 1] = Fx[celliy][cellix];
-        FyAvg[Nneighbour - 1] = Fy[celliy][cellix];
+        FAvg[Nneighbour - 1] = field.force(celliy, cellix);
+        FxAvg[Nneighbour - 1] = field.forceX(celliy, cellix);
+        FyAvg[Nneighbour - 1] = field.forceY(celliy, cellix);
 
         // Average over force
         double meanFAvg = average(FAvg);
@@ -170,203 +159,33 @@ public class SocialForce implements VelocityCalculator {
     }
 
     // /////////////////////////////////////////////////////////////////////////
-    // Pre-calculate wall force matrix
+    // Building the wall force field
     // /////////////////////////////////////////////////////////////////////////
-    private static double[][][] PreCalcForce(int N0x, int N0y, double[] vertexx, double[] vertexy, double Xmin, double Xmax, double Ymin, double Ymax) {
-
-        double[] x = linearSpaceVector(Xmin, Xmax, N0x);
-        double[] y = linearSpaceVector(Ymin, Ymax, N0y);
-
-        // Exponential force constant
-        double A_wall = 100000;             //10  Diameter of the wall
-        double B_wall = 50;             //10  Steepness of the wall
-        double A_corner = A_wall;      //5 Diameter of the pole
-        double B_corner = B_wall;	//5 Steepness of the pole
-
-        // Initialize every cell of force
-        double[][] F = new double[N0y][N0x];
-        double[][] Fx = new double[N0y][N0x];
-        double[][] Fy = new double[N0y][N0x];
-        for (int i = 0; i < N0x; i++) {
-            for (int j = 0; j < N0y; j++) {
-                F[j][i] = 0;
-                Fx[j][i] = 0;
-                Fy[j][i] = 0;
-            }
-        }
-
-        int Nvertex = vertexx.length;  // total number of vertex 
-
-        for (int p = 0; p < Nvertex - 1; p++) {
-            // Vector point from vertex p+1 to p
-            double bx = vertexx[p + 1] - vertexx[p];
-            double by = vertexy[p + 1] - vertexy[p];
-            double normb = Math.sqrt(bx * bx + by * by);
-            double bxhat = bx / normb;
-            double byhat = by / normb;
-
-            for (int i = 0; i < N0x; i++) {
-                for (int j = 0; j < N0y; j++) {
-
-                    ////////////////////////////////////////////////////////////
-                    // Wall Potential //////////////////////////////////////////
-                    ////////////////////////////////////////////////////////////
-                    double a = (x[i] - vertexx[p]) * bxhat + (y[j] - vertexy[p]) * byhat;
-                    if (a >= 0 && a <= normb) {
-                        // Vector points on wall's line
-                        double wx = a * bxhat + vertexx[p];
-                        double wy = a * byhat + vertexy[p];
-                        //double normw = Math.sqrt(wx*wx+wy*wy);
-
-                        // Vector point perpendicular to wall's line
-                        double rx = x[i] - wx;
-                        double ry = y[j] - wy;
-                        double normr = Math.sqrt(rx * rx + ry * ry);
-
-                        // Speed magnitude (Exponential potential)
-                        double F0 = A_wall * Math.exp(-B_wall * normr);
-                        F[j][i] += F0;
-                    }
-
-                    ////////////////////////////////////////////////////////////
-                    // Half pole at 1st (p) end of wall ////////////////////////
-                    ////////////////////////////////////////////////////////////
-                    double rx = x[i] - vertexx[p];
-                    double ry = y[j] - vertexy[p];
-                    double normr = Math.sqrt(rx * rx + ry * ry);
-
-                    double ax = -bx;
-                    double ay = -by;
-                    double norma = Math.sqrt(ax * ax + ay * ay);
-
-                    // Only calc for half a circle
-                    if ((rx * ax + ry * ay) / (normr * norma) > Math.cos(Math.PI / 2)) {
-                        // Speed magnitude (Exponential potential)
-                        F[j][i] += A_corner * Math.exp(-B_corner * normr);
-                    }
-
-                    ////////////////////////////////////////////////////////////
-                    // Half pole at 2nd (p+1) end of wall //////////////////////
-                    ////////////////////////////////////////////////////////////
-                    rx = x[i] - vertexx[p + 1];
-                    ry = y[j] - vertexy[p + 1];
-                    normr = Math.sqrt(rx * rx + ry * ry);
-
-                    ax = bx;
-                    ay = by;
-                    norma = Math.sqrt(ax * ax + ay * ay);
-
-                    if ((rx * ax + ry * ay) / (normr * norma) > Math.cos(Math.PI / 2)) {
-                        // Speed magnitude (Exponential potential)
-                        F[j][i] += A_corner * Math.exp(-B_corner * normr);
-                    }
-
-                    ////////////////////////////////////////////////////////////
-                    // Pole deletion at intersection corner ////////////////////
-                    ////////////////////////////////////////////////////////////
-                    if ((p > 1 && p < Nvertex) || (vertexx[1] == vertexx[Nvertex - 1] && vertexy[1] == vertexy[Nvertex - 1])) {
-                        rx = x[i] - vertexx[p];
-                        ry = y[j] - vertexy[p];
-                        normr = Math.sqrt(rx * rx + ry * ry);
-
-                        // Speed magnitude (Exponential potential)
-                        F[j][i] -= A_corner * Math.exp(-B_corner * normr);
-
-                    }
-
-                }//end for j loop
-            }// end for i loop
-        }//end for p loop
-
-        ////////////////////////////////////////////////////////////////////////
-        // Force field direction 
-        ////////////////////////////////////////////////////////////////////////
-        double deltay = y[2] - y[1];
-        for (int i = 0; i < N0x; i++) {
-            // First row
-            Fy[0][i] = (F[1][i] - F[0][i]) / deltay;
-            // Last row
-            Fy[N0y - 1][i] = (F[N0y - 1][i] - F[N0y - 2][i]) / deltay;
-            // Middle row
-            for (int j = 1; j <= N0y - 2; j++) {
-                Fy[j][i] = (F[j + 1][i] - F[j - 1][i]) / deltay;
-            }
-        }
-
-        double deltax = x[2] - x[1];
-        for (int j = 0; j < N0y; j++) {
-            // First column
-            Fx[j][0] = (F[j][1] - F[j][0]) / deltax;
-            // Last column
-            Fx[j][N0x - 1] = (F[j][N0x - 1] - F[j][N0x - 2]) / deltax;
-            // Middle row
-            for (int i = 1; i <= N0x - 2; i++) {
-                // CHCECK WHETHER IS 2 deltax or deltax!!!!!!!
-                Fx[j][i] = (F[j][i + 1] - F[j][i - 1]) / deltax;
-            }
-        }
-
-        // Dot product of the force field matrix
-        for (int i = 0; i < N0x; i++) {
-            for (int j = 0; j < N0y; j++) {
-                Fx[j][i] = Fx[j][i] * F[j][i];
-                Fy[j][i] = Fy[j][i] * F[j][i];
-            }
-        }
-
-        // Prepare to output the 3 2D matrix
-        double[][][] result = new double[3][][];
-        result[0] = F;
-        result[1] = Fx;
-        result[2] = Fy;
-
-        return result;
+    public void initializeObstacleSet(List<Obstacle> xmlObstacleList, int Xmax, int Ymax, boolean deterministic) {
+        initializeObstacleSet(xmlObstacleList, Xmax, Ymax, deterministic, null);
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Building the wall force matrix
-    // /////////////////////////////////////////////////////////////////////////
-    public static void initializeObstacleSet(List<Obstacle> xmlObstacleList) {
+    /**
+     * @param deterministic whether the field is computed with StrictMath, see
+     * SimulationConfig.isDeterministic
+     * @param cacheDirectory directory of the wall force cache files, or null
+     * to compute the field without a cache
+     */
+    public synchronized void initializeObstacleSet(List<Obstacle> xmlObstacleList, int Xmax, int Ymax,
+            boolean deterministic, File cacheDirectory) {
         /**
-         * By the end of this function set of vertices and static forces will be created.
+         * The field is only computed, tile by tile, where the agents need it,
+         * or read from the cache (see WallForceField). It is complete before
+         * it is published so that agents stepped in other threads never see it
+         * half set up.
          */
-        // For every building
-        N0x = 20 * Xmax;
-        N0y = 20 * Ymax;
-
-        Fw = new double[N0y][N0x];
-        Fwx = new double[N0y][N0x];
-        Fwy = new double[N0y][N0x];
-
-        for (Obstacle building : xmlObstacleList) {
-            ArrayList<Position> vertices = (ArrayList<Position>) building.getVertices();
-            double vertexX[] = new double[vertices.size() + 1];
-            double vertexY[] = new double[vertices.size() + 1];
-
-            // For every vertices
-            for (int i = 0; i < vertices.size(); i++) {
-                vertexX[i] = vertices.get(i).getX();
-                vertexY[i] = vertices.get(i).getY();    // Vertex coordinate y
-            }
-            vertexX[vertices.size()] = vertexX[0];
-            vertexY[vertices.size()] = vertexY[0];
-
-            double[][][] preFw = PreCalcForce(N0x, N0y, vertexX, vertexY, Xmin, Xmax, Ymin, Ymax);
-
-            double[][] bufFw = preFw[0];
-            double[][] bufFwx = preFw[1];
-            double[][] bufFwy = preFw[2];
-            // For multiple building we accumulate the potential
-            for (int i = 0; i < N0x; i++) {
-                for (int j = 0; j < N0y; j++) {
-                    Fw[j][i] += bufFw[j][i];
-                    Fwx[j][i] += bufFwx[j][i];
-                    Fwy[j][i] += bufFwy[j][i];
-                }
-            }
-
-        }
+        WallForceField wallForce = (cacheDirectory == null)
+                ? new WallForceField(xmlObstacleList, Xmin, Xmax, Ymin, Ymax, deterministic)
+                : WallForceField.cached(xmlObstacleList, Xmin, Xmax, Ymin, Ymax, deterministic, cacheDirectory);
 
+        this.Xmax = Xmax;
+        this.Ymax = Ymax;
+        this.wallForce = wallForce;
     }
 
     // /////////////////////////////////////////////////////////////////////////
@@ -379,85 +198,30 @@ public class SocialForce implements VelocityCalculator {
         //System.out.println(worldXSize + " " + worldYSize);
         
         // INITIALIZE VARIABLES
-        double Pxi = me.getCurrentPosition().getX();    // X-position
-        double Pyi = me.getCurrentPosition().getY();    // Y-position
-        double Vxi = me.getVelocity().getX();           // X-velocity
-        double Vyi = me.getVelocity().getY();           // Y-velocity
-        double Ri = me.getRadius();                     // Agent's radius
-        double Mi = me.getMass();                       // Agent's mass
-        double fijx = 0;    //  X-direction interaction force initialization
-        double fijy = 0;    //  Y-direction interaction force initialization
+        double Pxi = me.getX();             // X-position
+        double Pyi = me.getY();             // Y-position
+        double Ri = me.getRadius();         // Agent's radius
+        double Mi = me.getMass();           // Agent's mass
 
         // #####################################################################
-        // Update everytime step for every neighbour
+        // Interaction force of all the neighbours at once
         // #####################################################################
-        
+        final Workspace workspace = WORKSPACE.get();
+        final SocialForceKernel kernel = workspace.kernel;
+        kernel.gather(neighbors, me);
+        kernel.interactionForce(Pxi, Pyi, me.getVelocityX(), me.getVelocityY(), Ri, workspace.force);
+        double fijx = workspace.force[0];   //  X-direction interaction force
+        double fijy = workspace.force[1];   //  Y-direction interaction force
+
         double exjavg = 0;
         double eyjavg = 0;
-        
-        for (int i = 0; i < neighbors.size(); i++) {
-
-            RVOAgent tempAgent = (RVOAgent) neighbors.get(i);
-
-            if (tempAgent.equals(me)) {
-                continue;   // skip agent i itself for the calculation
-            }
-
-            double Pxj = tempAgent.getCurrentPosition().getX();
-            double Pyj = tempAgent.getCurrentPosition().getY();
-            double Vxj = tempAgent.getVelocity().getX();
-            double Vyj = tempAgent.getVelocity().getY();
-            double Rj = tempAgent.getRadius();
-            
-            // If the agent has a neighbour
-            if (neighbors.size()>1) {
-                double normej = Math.sqrt(Vxj*Vxj+Vyj*Vyj);
-                if (normej==0){
-                    double exj = Vxj;
-                    double eyj = Vyj;
-                    exjavg += exj;
-                    eyjavg += eyj;
-                }else{
-                    double exj = Vxj/normej;
-                    double eyj = Vyj/normej;
-                    exjavg += exj;
-                    eyjavg += eyj;
-                }
-                
-                //System.out.println(normej);
-            }
-            //double Mj = tempAgent.getMass();
-
-            double Aj = 2000;        //2000;       //Published value = 2000 N
-            double Bj = 0.08;                    //Published value = 0.08 m
-            double kj = 12000;       //12000;      //Published value = 120000 kg/s^2
-            double kappaj = 24000;   //24000;      //Published value = 240000 kg/ms
-
-            //System.out.println("i:" + i + "; Ri: "+ Ri + "; Rj: "+ Rj);
-
-            double Rij = (Ri + Rj);   //System.out.println("Rij: "+Rij);
-            double Dij = Math.sqrt((Pxi - Pxj) * (Pxi - Pxj) + (Pyi - Pyj) * (Pyi - Pyj));
-
-            double RD = (Rij - Dij);
-            double Nijx = (Pxi - Pxj) / Dij;    // Normal X-direction unit vector
-            double Nijy = (Pyi - Pyj) / Dij;    // Normal Y-direction unit vector
-            double Tijx = -Nijy;            // Tangential X-direction unit vector
-            double Tijy = Nijx;             // Tangential Y-direction unit vector
-            double DeltaVtji = (Vxj - Vxi) * Tijx + (Vyj - Vyi) * Tijy;
-
-            double fsr = Aj * Math.exp((RD / Bj));  // Social Repulsion force
-            double fp = kj * g(RD);                 // Pushing force
-            double ff = kappaj * g(RD) * DeltaVtji; // Friction force
-
-            fijx += (fsr + fp) * Nijx + ff * Tijx;
-            fijy += (fsr + fp) * Nijy + ff * Tijy;
+        // Average heading of the neighbours, only used when panicking
+        if (PANIC_FACTOR != 0 && neighbors.size() > 1) {
+            kernel.headingSum(workspace.force);
+            exjavg = workspace.force[0] / neighbors.size();
+            eyjavg = workspace.force[1] / neighbors.size();
         }
 
-        if (neighbors.size()>1) {
-            exjavg = exjavg/neighbors.size();
-            eyjavg = eyjavg/neighbors.size();
-        }
-        
         double Vxint = (fijx) / Mi;
         double Vyint = (fijy) / Mi;
 
@@ -469,7 +233,7 @@ public class SocialForce implements VelocityCalculator {
         
         if ((Pxi>=1) && (Pyi>=1) && (Pxi<=Xmax) && (Pyi<=Ymax)){    // TO FIX OUT OF BOUND ERROR
             
-            double[] Fwi = averageSurroundForce(Pxi, Pyi, Xmax, Ymax, N0x, N0y, Fw, Fwx, Fwy);
+            double[] Fwi = averageSurroundForce(Pxi, Pyi, Xmax, Ymax, wallForce);
             double fiwx = Fwi[0];
             double fiwy = Fwi[1];
             Vxwall = (fiwx) / Mi;
@@ -484,9 +248,8 @@ public class SocialForce implements VelocityCalculator {
         // SUM AND BOUND TOTAL FORCE
         // #################################################################
 
-        double PanicFactor = 0;
-        double exi = (1-PanicFactor)*preferredVelocity.x + PanicFactor*exjavg;
-        double eyi = (1-PanicFactor)*preferredVelocity.y + PanicFactor*eyjavg;
+        double exi = (1-PANIC_FACTOR)*preferredVelocity.x + PANIC_FACTOR*exjavg;
+        double eyi = (1-PANIC_FACTOR)*preferredVelocity.y + PANIC_FACTOR*eyjavg;
         double normei = Math.sqrt(exi*exi + eyi*eyi);
         if (normei != 0 )   {
             exi = exi/normei;
@@ -503,4 +266,10 @@ public class SocialForce implements VelocityCalculator {
         calculatedVelocity = forceBound(calculatedVelocity, me);
         return calculatedVelocity;
     }
+
+    private static final class Workspace {
+
+        final SocialForceKernel kernel = new SocialForceKernel();
+        final double[] force = new double[2];
+    }
 }
@@ -0,0 +1,293 @@
+package motionPlanners.socialforce;
+
+import agent.RVOAgent;
+import java.util.Arrays;
+import sim.util.Bag;
+import utility.Geometry;
+
+/**
+ * SocialForceKernel
+ *
+ * The agent-agent interaction of the social force model (social repulsion,
+ * pushing and friction, Helbing et al. 2000) evaluated over primitive arrays.
+ * The neighbours of an agent are gathered into contiguous position, velocity
+ * and radius columns and the force of all of them is then summed in one tight
+ * loop, which the JIT can unroll and keep in registers, instead of going
+ * through the agents' objects for every pair.
+ *
+ * interactionForce gives exactly the force SocialForce always computed for
+ * the same neighbours in the same order. populationForces applies the same
+ * formula to a whole population at once, finding the pairs with a cell list
+ * and evaluating every pair only once (the interaction force is
+ * antisymmetric), so the sums are rounded differently from the per agent
+ * calculation.
+ *
+ * A kernel keeps scratch arrays and must only be used by one thread at a time.
+ *
+ * @author steven
+ */
+public final strictfp class SocialForceKernel {
+
+    /**
+     * Strength of the social repulsion (N), published value 2000 N
+     */
+    public static final double A = 2000;
+    /**
+     * Range of the social repulsion (m), published value 0.08 m
+     */
+    public static final double B = 0.08;
+    /**
+     * Body compression coefficient (kg/s^2), published value 120000 kg/s^2
+     */
+    public static final double K = 12000;
+    /**
+     * Sliding friction coefficient (kg/ms), published value 240000 kg/ms
+     */
+    public static final double KAPPA = 24000;
+    private double[] x = new double[32];
+    private double[] y = new double[32];
+    private double[] vx = new double[32];
+    private double[] vy = new double[32];
+    private double[] r = new double[32];
+    private int size = 0;
+    /**
+     * Whether the exponentials are computed with StrictMath, see
+     * SimulationConfig.isDeterministic
+     */
+    private boolean deterministic;
+    /**
+     * Cell list of populationForces: sorted[cellStart[c]] to
+     * sorted[cellStart[c + 1] - 1] are the agents in cell c
+     */
+    private int[] cellStart = new int[0];
+    private int[] cellOf = new int[0];
+    private int[] sorted = new int[0];
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void setDeterministic(boolean deterministic) {
+        this.deterministic = deterministic;
+    }
+
+    /**
+     * Number of gathered neighbours
+     */
+    public int size() {
+        return size;
+    }
+
+    public void add(double px, double py, double velocityX, double velocityY, double radius) {
+        if (size == x.length) {
+            final int capacity = size * 2;
+            x = Arrays.copyOf(x, capacity);
+            y = Arrays.copyOf(y, capacity);
+            vx = Arrays.copyOf(vx, capacity);
+            vy = Arrays.copyOf(vy, capacity);
+            r = Arrays.copyOf(r, capacity);
+        }
+        x[size] = px;
+        y[size] = py;
+        vx[size] = velocityX;
+        vy[size] = velocityY;
+        r[size] = radius;
+        size++;
+    }
+
+    /**
+     * Replaces the gathered neighbours by the agents in the bag, in bag order,
+     * leaving out me, and takes over whether me's model is deterministic
+     */
+    public void gather(Bag neighbours, RVOAgent me) {
+        clear();
+        deterministic = me.getConfig().isDeterministic();
+        for (int i = 0; i < neighbours.numObjs; i++) {
+            final RVOAgent agent = (RVOAgent) neighbours.objs[i];
+            if (agent.equals(me)) {
+                continue;
+            }
+            add(agent.getX(), agent.getY(), agent.getVelocityX(), agent.getVelocityY(), agent.getRadius());
+        }
+    }
+
+    /**
+     * Sum of the interaction forces of the gathered neighbours on the agent
+     * at (xi, yi) with velocity (vxi, vyi) and radius ri, stored in force[0]
+     * and force[1]
+     */
+    public void interactionForce(double xi, double yi, double vxi, double vyi, double ri, double[] force) {
+        final double[] x = this.x;
+        final double[] y = this.y;
+        final double[] vx = this.vx;
+        final double[] vy = this.vy;
+        final double[] r = this.r;
+        double fx = 0;
+        double fy = 0;
+        for (int j = 0; j < size; j++) {
+            final double dx = xi - x[j];
+            final double dy = yi - y[j];
+            final double distance = Math.sqrt(dx * dx + dy * dy);
+            final double overlap = (ri + r[j]) - distance;
+            final double nx = dx / distance;        // normal unit vector
+            final double ny = dy / distance;
+            final double tx = -ny;                  // tangential unit vector
+            final double ty = nx;
+            final double tangentialVelocity = (vx[j] - vxi) * tx + (vy[j] - vyi) * ty;
+            final double compression = (overlap >= 0) ? overlap : 0;
+
+            final double repulsion = A * Geometry.exp((overlap / B), deterministic);
+            final double pushing = K * compression;
+            final double friction = KAPPA * compression * tangentialVelocity;
+
+            fx += (repulsion + pushing) * nx + friction * tx;
+            fy += (repulsion + pushing) * ny + friction * ty;
+        }
+        force[0] = fx;
+        force[1] = fy;
+    }
+
+    /**
+     * Sum of the unit headings (zero for a neighbour standing still) of the
+     * gathered neighbours, stored in heading[0] and heading[1]
+     */
+    public void headingSum(double[] heading) {
+        double hx = 0;
+        double hy = 0;
+        for (int j = 0; j < size; j++) {
+            final double speed = Math.sqrt(vx[j] * vx[j] + vy[j] * vy[j]);
+            if (speed == 0) {
+                hx += vx[j];
+                hy += vy[j];
+            } else {
+                hx += vx[j] / speed;
+                hy += vy[j] / speed;
+            }
+        }
+        heading[0] = hx;
+        heading[1] = hy;
+    }
+
+    /**
+     * Interaction force on every agent of a population of n agents from all
+     * the others within range (centre to centre, boundary included), stored
+     * in fx and fy. The positions are assumed to lie in [0, width] x [0,
+     * height], agents outside are counted in the border cells.
+     */
+    public void populationForces(int n, double[] px, double[] py, double[] velocityX, double[] velocityY,
+            double[] radius, double range, double width, double height, double[] fx, double[] fy) {
+        final int xCells = Math.max(1, (int) Math.ceil(width / range));
+        final int yCells = Math.max(1, (int) Math.ceil(height / range));
+        sortIntoCells(n, px, py, range, xCells, yCells);
+        Arrays.fill(fx, 0, n, 0);
+        Arrays.fill(fy, 0, n, 0);
+        final double rangeSq = range * range;
+
+        for (int cellX = 0; cellX < xCells; cellX++) {
+            for (int cellY = 0; cellY < yCells; cellY++) {
+                final int cell = cellX * yCells + cellY;
+                for (int a = cellStart[cell]; a < cellStart[cell + 1]; a++) {
+                    final int i = sorted[a];
+                    /*
+                     * pairs within the cell after a, then the cells of the
+                     * upper half of the 3x3 block (the other half sees this
+                     * cell as its upper half)
+                     */
+                    pairs(i, a + 1, cellStart[cell + 1], px, py, velocityX, velocityY, radius, rangeSq, fx, fy);
+                    if (cellY + 1 < yCells) {
+                        pairs(i, cellStart[cell + 1], cellStart[cell + 2], px, py, velocityX, velocityY, radius, rangeSq, fx, fy);
+                    }
+                    if (cellX + 1 < xCells) {
+                        final int next = cell + yCells;
+                        final int from = cellStart[(cellY > 0) ? next - 1 : next];
+                        final int to = cellStart[((cellY + 1 < yCells) ? next + 1 : next) + 1];
+                        pairs(i, from, to, px, py, velocityX, velocityY, radius, rangeSq, fx, fy);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the interaction of agent i with the sorted entries from to to - 1
+     * to both, with opposite signs
+     */
+    private void pairs(int i, int from, int to, double[] px, double[] py, double[] velocityX,
+            double[] velocityY, double[] radius, double rangeSq, double[] fx, double[] fy) {
+        final double xi = px[i];
+        final double yi = py[i];
+        final double vxi = velocityX[i];
+        final double vyi = velocityY[i];
+        final double ri = radius[i];
+        double fxi = 0;
+        double fyi = 0;
+        for (int b = from; b < to; b++) {
+            final int j = sorted[b];
+            final double dx = xi - px[j];
+            final double dy = yi - py[j];
+            final double distanceSq = dx * dx + dy * dy;
+            if (distanceSq > rangeSq) {
+                continue;
+            }
+            final double distance = Math.sqrt(distanceSq);
+            final double overlap = (ri + radius[j]) - distance;
+            final double nx = dx / distance;
+            final double ny = dy / distance;
+            final double tx = -ny;
+            final double ty = nx;
+            final double tangentialVelocity = (velocityX[j] - vxi) * tx + (velocityY[j] - vyi) * ty;
+            final double compression = (overlap >= 0) ? overlap : 0;
+
+            final double normal = A * Geometry.exp((overlap / B), deterministic) + K * compression;
+            final double friction = KAPPA * compression * tangentialVelocity;
+            final double forceX = normal * nx + friction * tx;
+            final double forceY = normal * ny + friction * ty;
+            fxi += forceX;
+            fyi += forceY;
+            fx[j] -= forceX;
+            fy[j] -= forceY;
+        }
+        fx[i] += fxi;
+        fy[i] += fyi;
+    }
+
+    /**
+     * Counting sort of the agents on their cells, x outer and y inner as in
+     * NeighbourGrid
+     */
+    private void sortIntoCells(int n, double[] px, double[] py, double cellSize, int xCells, int yCells) {
+        final int cells = xCells * yCells;
+        if (cellStart.length < cells + 1) {
+            cellStart = new int[cells + 1];
+        } else {
+            Arrays.fill(cellStart, 0, cells + 1, 0);
+        }
+        if (sorted.length < n) {
+            sorted = new int[n];
+            cellOf = new int[n];
+        }
+        for (int i = 0; i < n; i++) {
+            final int cell = clamp((int) Math.floor(px[i] / cellSize), xCells) * yCells
+                    + clamp((int) Math.floor(py[i] / cellSize), yCells);
+            cellOf[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int cell = 0; cell < cells; cell++) {
+            cellStart[cell + 1] += cellStart[cell];
+        }
+        for (int i = 0; i < n; i++) {
+            sorted[cellStart[cellOf[i]]++] = i;
+        }
+        /*
+         * the placement loop moved every start to the start of the next cell
+         */
+        for (int cell = cells; cell > 0; cell--) {
+            cellStart[cell] = cellStart[cell - 1];
+        }
+        cellStart[0] = 0;
+    }
+
+    private static int clamp(int cell, int cells) {
+        return (cell < 0) ? 0 : ((cell >= cells) ? cells - 1 : cell);
+    }
+}
@@ -0,0 +1,670 @@
+package motionPlanners.socialforce;
+
+import environment.geography.Obstacle;
+import environment.geography.Position;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import utility.Geometry;
+
+/**
+ * WallForceField
+ *
+ * The static force field of the walls of the buildings on the SocialForce
+ * grid (20 cells per metre). Instead of filling the whole grid when the
+ * scenario is loaded, the grid is split into tiles of TILE x TILE cells that
+ * are computed the first time an agent needs them. Only the buildings, and
+ * of those only the walls, that can reach a tile are evaluated for it, and a
+ * tile that no wall can reach is not stored at all, so memory and set up time
+ * go with the part of the world the agents walk along walls rather than with
+ * the area of the world.
+ *
+ * The wall potential decays as exp(-B_WALL * distance) and is exactly zero
+ * (the exponential underflows) beyond REACH metres, so leaving out the walls
+ * that are further away does not change any value: the field is the same,
+ * to the last bit, as the one that was computed for the whole grid at once.
+ *
+ * The field can also be kept in a cache file (see cached), named after a
+ * hash of everything it depends on: the buildings, the size of the world and
+ * the grid. The first run computes all the tiles that are not empty and
+ * writes them to the file, later runs with the same buildings only map the
+ * file, read only, and read the tiles from the mapping, so that concurrent
+ * runs share one copy of the field in the page cache. The file is little
+ * endian:
+ *
+ * <pre>
+ * int      MAGIC ("WFFC")
+ * int      VERSION
+ * byte[20] SHA-1 key
+ * int      cells in x, cells in y, TILE
+ * int      number of tiles, number of stored tiles
+ * int[number of tiles] slot of every tile in the data, -1 for an empty tile
+ * padding to a multiple of 8
+ * per stored tile: double[TILE * TILE] F, Fx, Fy, row by row
+ * </pre>
+ *
+ * Tiles may be requested from several threads at once. A tile is immutable
+ * once built (its arrays are filled before it is created, so it is safely
+ * published through its final fields); two threads asking for the same new
+ * tile may both build it.
+ *
+ * @author steven
+ */
+strictfp class WallForceField implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Cells per metre
+     */
+    static final int RESOLUTION = 20;
+    static final int TILE = 64;
+    // Exponential force constant
+    private static final double A_WALL = 100000;        //10  Diameter of the wall
+    private static final double B_WALL = 50;            //10  Steepness of the wall
+    private static final double A_CORNER = A_WALL;      //5 Diameter of the pole
+    private static final double B_CORNER = B_WALL;      //5 Steepness of the pole
+    /**
+     * Distance beyond which A * exp(-B * distance) is 0 (exp underflows below
+     * -745), with a margin
+     */
+    private static final double REACH = 800 / B_WALL;
+    private static final Tile EMPTY = new Tile(new double[TILE * TILE], new double[TILE * TILE],
+            new double[TILE * TILE]);
+    static final int MAGIC = 0x57464643;
+    /**
+     * Increase whenever the calculation of the field changes, so that old
+     * cache files are not used
+     */
+    static final int VERSION = 1;
+    private static final int TILE_BYTES = 3 * TILE * TILE * 8;
+    /**
+     * Tiles in one mapped window of the cache file
+     */
+    private static final int TILES_PER_WINDOW = Integer.MAX_VALUE / TILE_BYTES;
+    private final int N0x;                 // Total number of cell in X direction
+    private final int N0y;                 // Total number of cell in Y direction
+    private final double[] x;              // Cell coordinates
+    private final double[] y;
+    private final double deltax;
+    private final double deltay;
+    /**
+     * Vertices of every building, the first repeated at the end
+     */
+    private final double[][] vertexX;
+    private final double[][] vertexY;
+    /**
+     * Bounding box of every building
+     */
+    private final double[] minX;
+    private final double[] maxX;
+    private final double[] minY;
+    private final double[] maxY;
+    private final int tilesX;
+    /**
+     * Whether the field is computed with StrictMath, see
+     * SimulationConfig.isDeterministic
+     */
+    private final boolean deterministic;
+    /**
+     * The tiles computed or read so far. They are not part of a checkpoint:
+     * a restored field computes its tiles again, to the same values, as they
+     * are needed.
+     */
+    private transient Tile[] tiles;
+    /**
+     * Set when the tiles are read from a cache file: the slot of every tile
+     * in the file (-1 for empty tiles) and the mapped windows of the data
+     */
+    private transient int[] slots;
+    private transient MappedByteBuffer[] windows;
+
+    WallForceField(List<Obstacle> buildings, double Xmin, double Xmax, double Ymin, double Ymax,
+            boolean deterministic) {
+        this.deterministic = deterministic;
+        N0x = (int) (RESOLUTION * (Xmax - Xmin));
+        N0y = (int) (RESOLUTION * (Ymax - Ymin));
+        x = linearSpaceVector(Xmin, Xmax, N0x);
+        y = linearSpaceVector(Ymin, Ymax, N0y);
+        deltax = x[2] - x[1];
+        deltay = y[2] - y[1];
+
+        final int n = buildings.size();
+        vertexX = new double[n][];
+        vertexY = new double[n][];
+        minX = new double[n];
+        maxX = new double[n];
+        minY = new double[n];
+        maxY = new double[n];
+        for (int b = 0; b < n; b++) {
+            List<Position> vertices = buildings.get(b).getVertices();
+            vertexX[b] = new double[vertices.size() + 1];
+            vertexY[b] = new double[vertices.size() + 1];
+            minX[b] = minY[b] = Double.POSITIVE_INFINITY;
+            maxX[b] = maxY[b] = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < vertices.size(); i++) {
+                vertexX[b][i] = vertices.get(i).getX();
+                vertexY[b][i] = vertices.get(i).getY();
+                minX[b] = Math.min(minX[b], vertexX[b][i]);
+                maxX[b] = Math.max(maxX[b], vertexX[b][i]);
+                minY[b] = Math.min(minY[b], vertexY[b][i]);
+                maxY[b] = Math.max(maxY[b], vertexY[b][i]);
+            }
+            vertexX[b][vertices.size()] = vertexX[b][0];
+            vertexY[b][vertices.size()] = vertexY[b][0];
+        }
+
+        tilesX = (N0x + TILE - 1) / TILE;
+        tiles = new Tile[tilesX * ((N0y + TILE - 1) / TILE)];
+    }
+
+    int getCellsX() {
+        return N0x;
+    }
+
+    int getCellsY() {
+        return N0y;
+    }
+
+    /**
+     * Magnitude of the force in cell (row j, column i)
+     */
+    double force(int j, int i) {
+        return tile(j, i).F.get(offset(j, i));
+    }
+
+    /**
+     * X direction of the force in cell (row j, column i), scaled by its
+     * magnitude
+     */
+    double forceX(int j, int i) {
+        return tile(j, i).Fx.get(offset(j, i));
+    }
+
+    /**
+     * Y direction of the force in cell (row j, column i), scaled by its
+     * magnitude
+     */
+    double forceY(int j, int i) {
+        return tile(j, i).Fy.get(offset(j, i));
+    }
+
+    /**
+     * Number of tiles computed so far that are not empty
+     */
+    int getNumberOfComputedTiles() {
+        int count = 0;
+        for (Tile tile : tiles) {
+            if (tile != null && tile != EMPTY) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        tiles = new Tile[tilesX * ((N0y + TILE - 1) / TILE)];
+    }
+
+    private static int offset(int j, int i) {
+        return (j % TILE) * TILE + (i % TILE);
+    }
+
+    private Tile tile(int j, int i) {
+        if (i < 0 || i >= N0x || j < 0 || j >= N0y) {
+            throw new ArrayIndexOutOfBoundsException("cell (" + j + ", " + i + ") of " + N0y + " x " + N0x);
+        }
+        final int index = (j / TILE) * tilesX + (i / TILE);
+        Tile tile = tiles[index];
+        if (tile == null) {
+            tile = (slots != null) ? mappedTile(index) : computeTile(j / TILE, i / TILE);
+            tiles[index] = tile;
+        }
+        return tile;
+    }
+
+    private Tile mappedTile(int index) {
+        final int slot = slots[index];
+        if (slot < 0) {
+            return EMPTY;
+        }
+        ByteBuffer data = windows[slot / TILES_PER_WINDOW].duplicate();
+        data.position((slot % TILES_PER_WINDOW) * TILE_BYTES);
+        data = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        return new Tile(part(data, 0), part(data, 1), part(data, 2));
+    }
+
+    private static DoubleBuffer part(ByteBuffer data, int part) {
+        ByteBuffer view = data.duplicate();
+        view.position(part * TILE * TILE * 8);
+        view.limit((part + 1) * TILE * TILE * 8);
+        return view.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Calculate the wall force of the tile, building by building
+    // /////////////////////////////////////////////////////////////////////////
+    private Tile computeTile(int tileY, int tileX) {
+        // Cells of the tile
+        final int i0 = tileX * TILE;
+        final int i1 = Math.min(N0x, i0 + TILE);
+        final int j0 = tileY * TILE;
+        final int j1 = Math.min(N0y, j0 + TILE);
+        // With the cells around it, for the direction of the force
+        final int hi0 = Math.max(0, i0 - 1);
+        final int hi1 = Math.min(N0x, i1 + 1);
+        final int hj0 = Math.max(0, j0 - 1);
+        final int hj1 = Math.min(N0y, j1 + 1);
+        final int width = hi1 - hi0;
+        final double left = x[hi0] - REACH;
+        final double right = x[hi1 - 1] + REACH;
+        final double bottom = y[hj0] - REACH;
+        final double top = y[hj1 - 1] + REACH;
+
+        double[] tileF = null;
+        double[] tileFx = null;
+        double[] tileFy = null;
+        double[] F = null;
+        for (int b = 0; b < vertexX.length; b++) {
+            if (maxX[b] < left || minX[b] > right || maxY[b] < bottom || minY[b] > top) {
+                continue;
+            }
+            if (tileF == null) {
+                tileF = new double[TILE * TILE];
+                tileFx = new double[TILE * TILE];
+                tileFy = new double[TILE * TILE];
+                F = new double[width * (hj1 - hj0)];
+            } else {
+                Arrays.fill(F, 0);
+            }
+            buildingPotential(vertexX[b], vertexY[b], hi0, hi1, hj0, hj1, left, right, bottom, top, F);
+
+            ////////////////////////////////////////////////////////////////////
+            // Force field direction, dot product with the magnitude and
+            // accumulation over the buildings
+            ////////////////////////////////////////////////////////////////////
+            for (int j = j0; j < j1; j++) {
+                final int row = (j - hj0) * width - hi0;
+                final int up = (j < N0y - 1) ? row + width : row;
+                final int down = (j > 0) ? row - width : row;
+                for (int i = i0; i < i1; i++) {
+                    final int next = (i < N0x - 1) ? i + 1 : i;
+                    final int previous = (i > 0) ? i - 1 : i;
+                    final double Fij = F[row + i];
+                    final double Fy = (F[up + i] - F[down + i]) / deltay;
+                    final double Fx = (F[row + next] - F[row + previous]) / deltax;
+                    final int k = (j - j0) * TILE + (i - i0);
+                    tileF[k] += Fij;
+                    tileFx[k] += Fx * Fij;
+                    tileFy[k] += Fy * Fij;
+                }
+            }
+        }
+        return (tileF == null) ? EMPTY : new Tile(tileF, tileFx, tileFy);
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Potential of one building on the cells hi0..hi1-1 x hj0..hj1-1, for the
+    // walls that reach [left, right] x [bottom, top]
+    // /////////////////////////////////////////////////////////////////////////
+    private void buildingPotential(double[] vertexx, double[] vertexy, int hi0, int hi1, int hj0, int hj1,
+            double left, double right, double bottom, double top, double[] F) {
+        final int width = hi1 - hi0;
+        int Nvertex = vertexx.length;  // total number of vertex
+
+        for (int p = 0; p < Nvertex - 1; p++) {
+            if (Math.max(vertexx[p], vertexx[p + 1]) < left || Math.min(vertexx[p], vertexx[p + 1]) > right
+                    || Math.max(vertexy[p], vertexy[p + 1]) < bottom || Math.min(vertexy[p], vertexy[p + 1]) > top) {
+                continue;
+            }
+            // Vector point from vertex p+1 to p
+            double bx = vertexx[p + 1] - vertexx[p];
+            double by = vertexy[p + 1] - vertexy[p];
+            double normb = Math.sqrt(bx * bx + by * by);
+            double bxhat = bx / normb;
+            double byhat = by / normb;
+
+            for (int i = hi0; i < hi1; i++) {
+                for (int j = hj0; j < hj1; j++) {
+                    final int cell = (j - hj0) * width + (i - hi0);
+
+                    ////////////////////////////////////////////////////////////
+                    // Wall Potential //////////////////////////////////////////
+                    ////////////////////////////////////////////////////////////
+                    double a = (x[i] - vertexx[p]) * bxhat + (y[j] - vertexy[p]) * byhat;
+                    if (a >= 0 && a <= normb) {
+                        // Vector points on wall's line
+                        double wx = a * bxhat + vertexx[p];
+                        double wy = a * byhat + vertexy[p];
+
+                        // Vector point perpendicular to wall's line
+                        double rx = x[i] - wx;
+                        double ry = y[j] - wy;
+                        double normr = Math.sqrt(rx * rx + ry * ry);
+
+                        // Speed magnitude (Exponential potential)
+                        double F0 = A_WALL * Geometry.exp(-B_WALL * normr, deterministic);
+                        F[cell] += F0;
+                    }
+
+                    ////////////////////////////////////////////////////////////
+                    // Half pole at 1st (p) end of wall ////////////////////////
+                    ////////////////////////////////////////////////////////////
+                    double rx = x[i] - vertexx[p];
+                    double ry = y[j] - vertexy[p];
+                    double normr = Math.sqrt(rx * rx + ry * ry);
+
+                    double ax = -bx;
+                    double ay = -by;
+                    double norma = Math.sqrt(ax * ax + ay * ay);
+
+                    // Only calc for half a circle
+                    if ((rx * ax + ry * ay) / (normr * norma) > Geometry.cos(Math.PI / 2, deterministic)) {
+                        // Speed magnitude (Exponential potential)
+                        F[cell] += A_CORNER * Geometry.exp(-B_CORNER * normr, deterministic);
+                    }
+
+                    ////////////////////////////////////////////////////////////
+                    // Half pole at 2nd (p+1) end of wall //////////////////////
+                    ////////////////////////////////////////////////////////////
+                    rx = x[i] - vertexx[p + 1];
+                    ry = y[j] - vertexy[p + 1];
+                    normr = Math.sqrt(rx * rx + ry * ry);
+
+                    ax = bx;
+                    ay = by;
+                    norma = Math.sqrt(ax * ax + ay * ay);
+
+                    if ((rx * ax + ry * ay) / (normr * norma) > Geometry.cos(Math.PI / 2, deterministic)) {
+                        // Speed magnitude (Exponential potential)
+                        F[cell] += A_CORNER * Geometry.exp(-B_CORNER * normr, deterministic);
+                    }
+
+                    ////////////////////////////////////////////////////////////
+                    // Pole deletion at intersection corner ////////////////////
+                    ////////////////////////////////////////////////////////////
+                    if ((p > 1 && p < Nvertex) || (vertexx[1] == vertexx[Nvertex - 1] && vertexy[1] == vertexy[Nvertex - 1])) {
+                        rx = x[i] - vertexx[p];
+                        ry = y[j] - vertexy[p];
+                        normr = Math.sqrt(rx * rx + ry * ry);
+
+                        // Speed magnitude (Exponential potential)
+                        F[cell] -= A_CORNER * Geometry.exp(-B_CORNER * normr, deterministic);
+
+                    }
+
+                }//end for j loop
+            }// end for i loop
+        }//end for p loop
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // MATLAB linspace function
+    // /////////////////////////////////////////////////////////////////////////
+    private static double[] linearSpaceVector(double a, double b, int c) {
+        // Create a vector of c elements starting with a, interval difference
+        // of intervalValue until b.
+        double intervalValue = (b - a) / (c - 1);
+        double[] resultVector = new double[c];
+
+        resultVector[0] = a;
+
+        for (int i = 0; i < c - 1; i++) {
+            resultVector[i + 1] += resultVector[i] + intervalValue;
+        }
+        resultVector[c - 1] = b;
+
+        return resultVector;
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Cache file
+    // /////////////////////////////////////////////////////////////////////////
+    /**
+     * The field of the buildings read from its cache file in the directory,
+     * which is created first if there is none yet. If the file can't be
+     * written or read the field is computed lazily as without a cache.
+     */
+    static WallForceField cached(List<Obstacle> buildings, double Xmin, double Xmax, double Ymin, double Ymax,
+            boolean deterministic, File directory) {
+        WallForceField field = new WallForceField(buildings, Xmin, Xmax, Ymin, Ymax, deterministic);
+        final byte[] key = field.key(Xmin, Xmax, Ymin, Ymax);
+        File file = new File(directory, toHex(key) + ".wff");
+        try {
+            if (!field.map(file, key)) {
+                field.write(file, key);
+                if (!field.map(file, key)) {
+                    throw new IOException("Can't read back " + file);
+                }
+            }
+        } catch (IOException ex) {
+            Logger.getLogger(WallForceField.class.getName()).log(Level.SEVERE, null, ex);
+            return new WallForceField(buildings, Xmin, Xmax, Ymin, Ymax, deterministic);
+        }
+        return field;
+    }
+
+    /**
+     * SHA-1 of the format, the grid and the vertices of the buildings in
+     * order. Fields computed with StrictMath (deterministic) get
+     * their own key, the others keep the key they always had.
+     */
+    private byte[] key(double Xmin, double Xmax, double Ymin, double Ymax) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocate(64);
+            buffer.putInt(VERSION).putInt(RESOLUTION).putInt(TILE).putInt(vertexX.length);
+            buffer.putDouble(Xmin).putDouble(Xmax).putDouble(Ymin).putDouble(Ymax);
+            if (deterministic) {
+                buffer.put((byte) 'S');
+            }
+            digest.update(buffer.array(), 0, buffer.position());
+            for (int b = 0; b < vertexX.length; b++) {
+                buffer.clear();
+                buffer.putInt(vertexX[b].length);
+                digest.update(buffer.array(), 0, buffer.position());
+                for (int v = 0; v < vertexX[b].length; v++) {
+                    buffer.clear();
+                    buffer.putDouble(vertexX[b][v]).putDouble(vertexY[b][v]);
+                    digest.update(buffer.array(), 0, buffer.position());
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private int headerBytes() {
+        final int bytes = 4 + 4 + 20 + 3 * 4 + 2 * 4 + 4 * tiles.length;
+        return (bytes + 7) / 8 * 8;
+    }
+
+    /**
+     * Maps the cache file if it exists and is the one of this field
+     *
+     * @return false if there is no such file
+     */
+    private boolean map(File file, byte[] key) throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            final int headerBytes = headerBytes();
+            if (channel.size() < headerBytes) {
+                return false;
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            byte[] fileKey = new byte[key.length];
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                return false;
+            }
+            header.get(fileKey);
+            if (!Arrays.equals(key, fileKey) || header.getInt() != N0x || header.getInt() != N0y
+                    || header.getInt() != TILE || header.getInt() != tiles.length) {
+                return false;
+            }
+            final int stored = header.getInt();
+            if (channel.size() != headerBytes + (long) stored * TILE_BYTES) {
+                return false;
+            }
+            int[] fileSlots = new int[tiles.length];
+            header.asIntBuffer().get(fileSlots);
+
+            MappedByteBuffer[] fileWindows = new MappedByteBuffer[(stored + TILES_PER_WINDOW - 1) / TILES_PER_WINDOW];
+            for (int w = 0; w < fileWindows.length; w++) {
+                final long start = headerBytes + (long) w * TILES_PER_WINDOW * TILE_BYTES;
+                final long length = (long) Math.min(TILES_PER_WINDOW, stored - w * TILES_PER_WINDOW) * TILE_BYTES;
+                fileWindows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+            }
+            slots = fileSlots;
+            windows = fileWindows;
+            return true;
+        } finally {
+            /*
+             * the mappings stay valid after the file is closed
+             */
+            input.close();
+        }
+    }
+
+    /**
+     * Computes every tile that a building can reach and writes the cache
+     * file. The file is written under a temporary name and renamed when it is
+     * complete, so runs that start at the same time never read a partial
+     * file.
+     */
+    private void write(File file, byte[] key) throws IOException {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        System.out.println("Creating " + file);
+        final boolean[] reached = reachedTiles();
+        final int[] fileSlots = new int[tiles.length];
+        final int headerBytes = headerBytes();
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+        try {
+            FileChannel channel = output.getChannel();
+            ByteBuffer data = ByteBuffer.allocateDirect(TILE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(headerBytes);
+            int stored = 0;
+            for (int index = 0; index < tiles.length; index++) {
+                Tile tile = reached[index] ? computeTile(index / tilesX, index % tilesX) : EMPTY;
+                if (tile == EMPTY) {
+                    fileSlots[index] = -1;
+                    continue;
+                }
+                data.clear();
+                for (DoubleBuffer part : new DoubleBuffer[]{tile.F, tile.Fx, tile.Fy}) {
+                    for (int k = 0; k < TILE * TILE; k++) {
+                        data.putDouble(part.get(k));
+                    }
+                }
+                data.flip();
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+                fileSlots[index] = stored++;
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).put(key);
+            header.putInt(N0x).putInt(N0y).putInt(TILE).putInt(tiles.length).putInt(stored);
+            for (int slot : fileSlots) {
+                header.putInt(slot);
+            }
+            header.clear();
+            channel.position(0);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+        } finally {
+            output.close();
+        }
+        if (!temporary.renameTo(file)) {
+            /*
+             * another run finished the same file first
+             */
+            if (!temporary.delete() || !file.isFile()) {
+                throw new IOException("Can't rename " + temporary + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Tiles whose cells some building can reach, found from the bounding
+     * boxes of the buildings
+     */
+    private boolean[] reachedTiles() {
+        final boolean[] reached = new boolean[tiles.length];
+        final int tilesY = tiles.length / tilesX;
+        final double cellX = x[1] - x[0];
+        final double cellY = y[1] - y[0];
+        for (int b = 0; b < vertexX.length; b++) {
+            final int fromX = tileOf(minX[b] - REACH - x[0], cellX, tilesX, -2);
+            final int toX = tileOf(maxX[b] + REACH - x[0], cellX, tilesX, 2);
+            final int fromY = tileOf(minY[b] - REACH - y[0], cellY, tilesY, -2);
+            final int toY = tileOf(maxY[b] + REACH - y[0], cellY, tilesY, 2);
+            for (int tileY = fromY; tileY <= toY; tileY++) {
+                Arrays.fill(reached, tileY * tilesX + fromX, tileY * tilesX + toX + 1, true);
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Tile of the coordinate, moved by a few cells to be on the safe side
+     */
+    private static int tileOf(double coordinate, double cell, int tiles, int margin) {
+        final double cellIndex = Math.floor(coordinate / cell) + margin;
+        final int tile = (int) Math.floor(cellIndex / TILE);
+        return Math.max(0, Math.min(tiles - 1, tile));
+    }
+
+    /**
+     * Force magnitude and direction of the cells of one tile, row by row
+     */
+    private static final class Tile {
+
+        final DoubleBuffer F;
+        final DoubleBuffer Fx;
+        final DoubleBuffer Fy;
+
+        Tile(double[] F, double[] Fx, double[] Fy) {
+            this(DoubleBuffer.wrap(F), DoubleBuffer.wrap(Fx), DoubleBuffer.wrap(Fy));
+        }
+
+        Tile(DoubleBuffer F, DoubleBuffer Fx, DoubleBuffer Fy) {
+            this.F = F;
+            this.Fx = Fx;
+            this.Fy = Fy;
+        }
+    }
+}
@@ -4,7 +4,6 @@
  */
 package utility;
 
-import agent.RVOAgent;
 import app.PropertySet;
 import javax.vecmath.Point2d;
 import javax.vecmath.Vector2d;
@@ -20,10 +19,44 @@ import javax.vecmath.Vector2d;
  * Description:
  *
  */
-public class Geometry {
+public strictfp class Geometry {
 
     public static float EPSILON;
 
+    /*
+     * The elementary functions used by the agents. In deterministic
+     * simulations (SimulationConfig.isDeterministic) they are the StrictMath
+     * ones, which give the same bits on every JVM and machine, otherwise the
+     * faster Math ones whose last bit may depend on the platform.
+     */
+    public static double exp(double a, boolean deterministic) {
+        return deterministic ? StrictMath.exp(a) : Math.exp(a);
+    }
+
+    public static double expm1(double a, boolean deterministic) {
+        return deterministic ? StrictMath.expm1(a) : Math.expm1(a);
+    }
+
+    public static double pow(double a, double b, boolean deterministic) {
+        return deterministic ? StrictMath.pow(a, b) : Math.pow(a, b);
+    }
+
+    public static double sin(double a, boolean deterministic) {
+        return deterministic ? StrictMath.sin(a) : Math.sin(a);
+    }
+
+    public static double cos(double a, boolean deterministic) {
+        return deterministic ? StrictMath.cos(a) : Math.cos(a);
+    }
+
+    public static double acos(double a, boolean deterministic) {
+        return deterministic ? StrictMath.acos(a) : Math.acos(a);
+    }
+
+    public static double atan2(double y, double x, boolean deterministic) {
+        return deterministic ? StrictMath.atan2(y, x) : Math.atan2(y, x);
+    }
+
     //returns the cos(theta) of the two vectors
     public static double sameDirection(Vector2d v1, Vector2d v2) {
         return v1.dot(v2) / (v1.length() * v2.length()); //0 - pi
@@ -65,6 +98,14 @@ public class Geometry {
     }
 
     public static boolean lineSegmentIntersectionTest(Point2d p1, Point2d p2, Point2d p3, Point2d p4) {
+        return lineSegmentIntersectionTest(p1, p2, p3, p4, EPSILON);
+    }
+
+    /**
+     * Same as lineSegmentIntersectionTest(p1, p2, p3, p4) with the tolerance
+     * of the simulation instead of the static EPSILON
+     */
+    public static boolean lineSegmentIntersectionTest(Point2d p1, Point2d p2, Point2d p3, Point2d p4, double epsilon) {
         double x1 = p1.getX();
         double x2 = p2.getX();
         double x3 = p3.getX();
@@ -82,10 +123,10 @@ public class Geometry {
             double num2 = ((x2 - x1) * (y1 - y3)) - ((y2 - y1) * (x1 - x3));
             double ua = num1 / denom;
             double ub = num2 / denom;
-            if (Double.compare(ua, -EPSILON) > 0
-                    && Double.compare(ua - 1, EPSILON) < 0
-                    && Double.compare(ub, -EPSILON) > 0
-                    && Double.compare(ub - 1, EPSILON) < 0) {
+            if (Double.compare(ua, -epsilon) > 0
+                    && Double.compare(ua - 1, epsilon) < 0
+                    && Double.compare(ub, -epsilon) > 0
+                    && Double.compare(ub - 1, epsilon) < 0) {
                 return true;
             } else {
                 return false;
@@ -96,26 +137,40 @@ public class Geometry {
     }
 
     public static double calcDistanceToLineSegment(Point2d p1, Point2d p2, Point2d p3) {
+        return calcDistanceToLineSegment(p1.getX(), p1.getY(), p2.getX(), p2.getY(), p3.getX(), p3.getY());
+    }
 
-        final double xDelta = p2.getX() - p1.getX();
-        final double yDelta = p2.getY() - p1.getY();
+    /**
+     * Same as calcDistanceToLineSegment(Point2d, Point2d, Point2d) on plain
+     * coordinates, without creating the closest point
+     */
+    public static double calcDistanceToLineSegment(double x1, double y1, double x2, double y2, double x3, double y3) {
+
+        final double xDelta = x2 - x1;
+        final double yDelta = y2 - y1;
 
         if ((xDelta == 0) && (yDelta == 0)) {
             throw new IllegalArgumentException("p1 and p2 cannot be the same point");
         }
 
-        final double u = ((p3.getX() - p1.getX()) * xDelta + (p3.getY() - p1.getY()) * yDelta) / (xDelta * xDelta + yDelta * yDelta);
+        final double u = ((x3 - x1) * xDelta + (y3 - y1) * yDelta) / (xDelta * xDelta + yDelta * yDelta);
 
-        final Point2d closestPoint;
+        final double closestX;
+        final double closestY;
         if (u < 0) {
-            closestPoint = p1;
+            closestX = x1;
+            closestY = y1;
         } else if (u > 1) {
-            closestPoint = p2;
+            closestX = x2;
+            closestY = y2;
         } else {
-            closestPoint = new Point2d(p1.getX() + u * xDelta, p1.getY() + u * yDelta);
+            closestX = x1 + u * xDelta;
+            closestY = y1 + u * yDelta;
         }
 
-        return closestPoint.distance(p3);
+        final double dx = closestX - x3;
+        final double dy = closestY - y3;
+        return Math.sqrt(dx * dx + dy * dy);
     }
     
     public static double calcTTC(Point2d p1, Vector2d v1, double r1, Point2d p2, Vector2d v2, double r2){
@@ -155,11 +210,90 @@ public class Geometry {
             double d1=intersection1.distance(p1);
             double d2=intersection2.distance(p1);
            
-            ttc =(Math.min(d1, d2) -RVOAgent.RADIUS)/v.length();
+            ttc =(Math.min(d1, d2) -r1)/v.length();
         }
         return ttc; //ttc in terms of time
     }
     
+    /**
+     * Time until a disc moving with the relative velocity (vx, vy) touches a
+     * disc at offset (bax, bay) from it, radius being the sum of their radii.
+     * Positive infinity if they never touch. If they already overlap
+     * (collision) the time until they separate instead, negative infinity if
+     * they do not.
+     */
+    public static double timeToCollision(double bax, double bay, double vx, double vy,
+            double radius, boolean collision) {
+        final double sqDiam = radius * radius;
+        final double vDetBa = vx * bay - vy * bax;
+        final double vv = vx * vx + vy * vy;
+        final double discr = sqDiam * vv - vDetBa * vDetBa;
+
+        double time;
+        if (discr > 0) {
+            if (collision) {
+                time = ((vx * bax + vy * bay) + Math.sqrt(discr)) / vv;
+                if (time < 0) {
+                    time = Double.NEGATIVE_INFINITY;
+                }
+            } else {
+                time = ((vx * bax + vy * bay) - Math.sqrt(discr)) / vv;
+                if (time < 0) {
+                    time = Double.POSITIVE_INFINITY;
+                }
+            }
+        } else {
+            time = collision ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+        }
+        return time;
+    }
+
+    /**
+     * Batch form of timeToCollision for discs that do not overlap: for every
+     * candidate velocity k, minTimes[k] is the smallest time to collision
+     * with the first numberOfObjects objects, positive infinity if there is
+     * none. Object i is at offset (offsetX[i], offsetY[i]) from the moving
+     * disc with the combined radius radius[i], and the relative velocity
+     * towards it is
+     *
+     * weight[i] * candidate - velocity[i] - (weight[i] - 1) * ownVelocity
+     *
+     * so weight 1 and zero velocity give a static obstacle and weight 2 the
+     * reciprocal velocity of RVO towards another agent.
+     *
+     * The candidates are the inner loop, run without calls or branches on
+     * flat arrays, so that the JIT can vectorise it.
+     */
+    public static void minTimesToCollision(double[] offsetX, double[] offsetY, double[] velocityX,
+            double[] velocityY, double[] weight, double[] radius, int numberOfObjects,
+            double ownVelocityX, double ownVelocityY,
+            double[] candidateX, double[] candidateY, int numberOfCandidates, double[] minTimes) {
+        for (int k = 0; k < numberOfCandidates; k++) {
+            minTimes[k] = Double.POSITIVE_INFINITY;
+        }
+        for (int i = 0; i < numberOfObjects; i++) {
+            final double bax = offsetX[i];
+            final double bay = offsetY[i];
+            final double w = weight[i];
+            final double ox = velocityX[i];
+            final double oy = velocityY[i];
+            final double sx = (w - 1) * ownVelocityX;
+            final double sy = (w - 1) * ownVelocityY;
+            final double sqDiam = radius[i] * radius[i];
+            for (int k = 0; k < numberOfCandidates; k++) {
+                final double vx = w * candidateX[k] - ox - sx;
+                final double vy = w * candidateY[k] - oy - sy;
+                final double vDetBa = vx * bay - vy * bax;
+                final double vv = vx * vx + vy * vy;
+                final double discr = sqDiam * vv - vDetBa * vDetBa;
+                // NaN when discr <= 0, which the test below rejects
+                final double time = ((vx * bax + vy * bay) - Math.sqrt(discr)) / vv;
+                final double t = (discr > 0 && time >= 0) ? time : Double.POSITIVE_INFINITY;
+                minTimes[k] = t < minTimes[k] ? t : minTimes[k];
+            }
+        }
+    }
+
     public static double absSq(Vector2d bMinusA) {
         return bMinusA.dot(bMinusA);
     }
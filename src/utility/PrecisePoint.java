@@ -4,6 +4,7 @@
  */
 package utility;
 
+import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import javax.vecmath.Point2d;
@@ -16,73 +17,169 @@ import static app.PropertySet.HIGH_PRECISION;
  * dense scenarios at very high scales where math errors are likely to result in
  * overlapping agents
  *
+ * With HIGH_PRECISION every coordinate is rounded to 7 significant decimal
+ * digits (MathContext.DECIMAL32) when it is set. The rounded value is computed
+ * directly on doubles and kept as a double, BigDecimal is only used for the
+ * rare values too close to a rounding tie to decide that way.
+ *
+ * Otherwise a point of a deterministic model (see
+ * SimulationConfig.isDeterministic) rounds every coordinate to a multiple of
+ * 2^-32, i.e. keeps it as a 32.32 fixed point number in a double. Rounding to
+ * the grid is exact, so positions only depend on the values computed and not
+ * on the way they were summed to the last bits.
+ *
  * @author vaisagh
  */
-public class PrecisePoint {
-
+public strictfp class PrecisePoint implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Units per metre of the fixed point coordinates of deterministic points
+     */
+    private static final double FIXED_POINT_ONE = 0x1p32;
+    /**
+     * The powers of ten that are exact doubles
+     */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
     private double x;
     private double y;
+    /**
+     * Whether the coordinates are kept on the fixed point grid
+     */
+    private final boolean deterministic;
     private Point2d pointValue;
     private Vector2d vectorValue;
-    private BigDecimal bigY;
-    private BigDecimal bigX;
 
     public PrecisePoint(double x, double y) {
-        if (HIGH_PRECISION) {
-            this.bigX = new BigDecimal(x, MathContext.DECIMAL32);
-            this.bigY = new BigDecimal(y, MathContext.DECIMAL32);
-        } else {
-            this.x = x;
-            this.y = y;
-        }
+        this(x, y, false);
+    }
+
+    /**
+     * @param deterministic whether the point belongs to a deterministic model
+     * and keeps its coordinates on the fixed point grid
+     */
+    public PrecisePoint(double x, double y, boolean deterministic) {
+        this.deterministic = deterministic;
+        this.x = round(x, deterministic);
+        this.y = round(y, deterministic);
         pointValue = null;
         vectorValue = null;
     }
 
     public PrecisePoint() {
-        if (HIGH_PRECISION) {
-            this.bigX = new BigDecimal("0.000");
-            this.bigY = new BigDecimal("0.000");
-        } else {
-            this.x = 0;
-            this.y = 0;
-        }
+        this.x = 0;
+        this.y = 0;
+        this.deterministic = false;
         pointValue = null;
         vectorValue = null;
     }
 
-    public final double getX() {
+    /**
+     * The value a PrecisePoint coordinate of a model that is not
+     * deterministic set to value would return
+     */
+    public static double round(double value) {
+        return round(value, false);
+    }
+
+    /**
+     * The value a PrecisePoint coordinate set to value would return, i.e.
+     * rounded to DECIMAL32 when HIGH_PRECISION is on, or else to the fixed
+     * point grid for a deterministic model.
+     */
+    public static double round(double value, boolean deterministic) {
         if (HIGH_PRECISION) {
-            return bigX.doubleValue();
+            return roundToDecimal32(value);
+        } else if (deterministic) {
+            return roundToFixedPoint(value);
         } else {
-            return x;
+            return value;
         }
     }
 
-    public void setX(double x) {
-        if (HIGH_PRECISION) {
-            this.bigX = new BigDecimal(x, MathContext.DECIMAL32);
-        } else {
-            this.x = x;
+    /**
+     * value rounded to the nearest multiple of 2^-32. Both the scaling by a
+     * power of two and the rounding are exact, and values of 2^20 or more
+     * already are on the grid.
+     */
+    static double roundToFixedPoint(double value) {
+        return Math.rint(value * FIXED_POINT_ONE) / FIXED_POINT_ONE;
+    }
+
+    /**
+     * value rounded to 7 significant digits, half even, exactly as
+     * new BigDecimal(value, MathContext.DECIMAL32).doubleValue() gives it.
+     *
+     * The value is scaled by a power of ten to 7 digits before the point.
+     * Scaling by an exact power of ten is off by less than 1e-9 there, so
+     * unless the digits after the point are within 1e-6 of one half the
+     * rounded digits are certain, and dividing them by the same power of ten
+     * gives the nearest double as BigDecimal.doubleValue does.
+     */
+    static double roundToDecimal32(double value) {
+        if (value == 0) {
+            return 0; //BigDecimal has no negative zero
+        }
+        final double magnitude = Math.abs(value);
+        if (magnitude >= 1e-14 && magnitude < 1e15) {
+            //log10(2) times the binary exponent, at most one digit short
+            int shift = 6 - (int) Math.floor(Math.getExponent(magnitude) * 0.30102999566398120);
+            double scaled = scale(magnitude, shift);
+            while (scaled >= 1e7) {
+                shift--;
+                scaled = scale(magnitude, shift);
+            }
+            while (scaled < 1e6) {
+                shift++;
+                scaled = scale(magnitude, shift);
+            }
+            final double digits = Math.floor(scaled);
+            final double fraction = scaled - digits;
+            if (Math.abs(fraction - 0.5) > 1e-6 && shift <= 22 && shift >= -22) {
+                final double rounded = (fraction > 0.5) ? digits + 1 : digits;
+                final double result = (shift >= 0) ? rounded / POWERS_OF_TEN[shift] : rounded * POWERS_OF_TEN[-shift];
+                return (value < 0) ? -result : result;
+            }
         }
+        return new BigDecimal(value, MathContext.DECIMAL32).doubleValue();
+    }
+
+    private static double scale(double magnitude, int shift) {
+        return (shift >= 0) ? magnitude * POWERS_OF_TEN[shift] : magnitude / POWERS_OF_TEN[-shift];
+    }
+
+    public final double getX() {
+        return x;
+    }
+
+    public void setX(double x) {
+        this.x = round(x, deterministic);
         pointValue = null;
         vectorValue = null;
     }
 
     public final double getY() {
-        if (HIGH_PRECISION) {
-            return bigY.doubleValue();
-        } else {
-            return y;
-        }
+        return y;
     }
 
     public void setY(double y) {
-        if (HIGH_PRECISION) {
-            this.bigY = new BigDecimal(y, MathContext.DECIMAL32);
-        } else {
-            this.y = y;
-        }
+        this.y = round(y, deterministic);
+        pointValue = null;
+        vectorValue = null;
+    }
+
+    /**
+     * Sets both coordinates in place. A Point2d or Vector2d handed out
+     * before keeps the old values, the next toPoint/toVector creates new
+     * ones.
+     */
+    public void set(double x, double y) {
+        this.x = round(x, deterministic);
+        this.y = round(y, deterministic);
         pointValue = null;
         vectorValue = null;
     }
@@ -109,49 +206,27 @@ public class PrecisePoint {
     @Override
     public int hashCode() {
         int hash = 7;
-        if (!HIGH_PRECISION) {
-            hash = 13 * hash + (int) (Double.doubleToLongBits(this.x) ^ (Double.doubleToLongBits(this.x) >>> 32));
-            hash = 13 * hash + (int) (Double.doubleToLongBits(this.y) ^ (Double.doubleToLongBits(this.y) >>> 32));
-        } else {
-            hash = 47 * hash + (this.bigY != null ? this.bigY.hashCode() : 0);
-            hash = 47 * hash + (this.bigX != null ? this.bigX.hashCode() : 0);
-        }
+        hash = 13 * hash + (int) (Double.doubleToLongBits(this.x) ^ (Double.doubleToLongBits(this.x) >>> 32));
+        hash = 13 * hash + (int) (Double.doubleToLongBits(this.y) ^ (Double.doubleToLongBits(this.y) >>> 32));
         return hash;
     }
 
     @Override
     public boolean equals(Object obj) {
-        if (!HIGH_PRECISION) {
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
-            }
-            final PrecisePoint other = (PrecisePoint) obj;
-            if (Double.doubleToLongBits(this.x) != Double.doubleToLongBits(other.x)) {
-                return false;
-            }
-            if (Double.doubleToLongBits(this.y) != Double.doubleToLongBits(other.y)) {
-                return false;
-            }
-            return true;
-        } else {
-            if (obj == null) {
-                return false;
-            }
-            if (getClass() != obj.getClass()) {
-                return false;
-            }
-            final PrecisePoint other = (PrecisePoint) obj;
-            if (this.bigY != other.bigY && (this.bigY == null || !this.bigY.equals(other.bigY))) {
-                return false;
-            }
-            if (this.bigX != other.bigX && (this.bigX == null || !this.bigX.equals(other.bigX))) {
-                return false;
-            }
-            return true;
+        if (obj == null) {
+            return false;
+        }
+        if (getClass() != obj.getClass()) {
+            return false;
+        }
+        final PrecisePoint other = (PrecisePoint) obj;
+        if (Double.doubleToLongBits(this.x) != Double.doubleToLongBits(other.x)) {
+            return false;
+        }
+        if (Double.doubleToLongBits(this.y) != Double.doubleToLongBits(other.y)) {
+            return false;
         }
+        return true;
     }
 
     //@hunan added